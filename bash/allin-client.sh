@@ -0,0 +1,165 @@
+#!/bin/sh
+# allin-client.sh - 1.0
+#
+# Thin client of the resident signing daemon (itext/SigningDaemon.java): TSA, Organization, OnDemand
+# Same arguments and exit codes as allin-tsa.sh, allin-org.sh and allin-ondemand.sh, which delegate
+# to this script if ALLIN_DAEMON is set. The daemon keeps credentials and connections to Allin open.
+# Dependencies: curl, sed, fold
+#
+# Change Log:
+#  1.0 18.10.2026: Initial version
+
+######################################################################
+# User configurable options
+######################################################################
+
+# URL of the signing daemon
+[ "$ALLIN_DAEMON" = "" ] && ALLIN_DAEMON=http://127.0.0.1:8089
+
+######################################################################
+# There should be no need to change anything below
+######################################################################
+
+# Error function
+error()
+{
+  [ "$VERBOSE" = "1" -o "$DEBUG" = "1" ] && echo "$@" >&2
+  exit 1
+}
+
+# Escape a value for a JSON string
+json()
+{
+  printf '%s' "$1" | sed -e 's/\\/\\\\/g' -e 's/"/\\"/g'
+}
+
+# Check command line
+PROFILE=tsa                                     # Default is TSA
+MSGTYPE=SOAP                                    # Default is SOAP
+DEBUG=
+VERBOSE=
+while getopts "dvt:p:" opt; do
+  case $opt in
+    p) PROFILE=$OPTARG ;;
+    t) MSGTYPE=$OPTARG ;;
+    d) DEBUG=1 ;;
+    v) VERBOSE=1 ;;
+  esac
+done
+
+shift $((OPTIND-1))                             # Remove the options
+
+MIN_ARGS=3
+[ "$PROFILE" = "ondemand" ] && MIN_ARGS=4
+if [ $# -lt $MIN_ARGS ]; then                   # Parse the rest of the arguments
+  echo "Usage: $0 <args> digest method pkcs7 <dn> <msisdn> <msg> <lang>"
+  echo "  -p value  - profile (tsa, org, ondemand), default tsa"
+  echo "  -t value  - message type (SOAP, XML, JSON), default SOAP"
+  echo "  -v        - verbose output"
+  echo "  -d        - debug mode"
+  echo "  digest    - digest/hash to be signed"
+  echo "  method    - digest method (SHA224, SHA256, SHA384, SHA512)"
+  echo "  pkcs7     - output file with PKCS#7 (Crytographic Message Syntax)"
+  echo "  dn        - distinguished name in the ondemand certificate, ondemand only"
+  echo "  <msisdn>  - optional Mobile ID step-up, ondemand only"
+  echo "  <msg>     - optional Mobile ID message, ondemand only"
+  echo "  <lang>    - optional Mobile ID language element (EN, DE, FR, IT), ondemand only"
+  echo
+  echo "  Examples $0 -p tsa GcXfOzOP8GsBu7odeT1w3GnMedppEWvngCQ7Ef1IBMA= SHA256 result.p7s"
+  echo "           $0 -p ondemand -v GcXfOzOP8GsBu7odeT1w3GnMedppEWvngCQ7Ef1IBMA= SHA256 result.p7s 'cn=Hans Muster,o=ACME,c=CH'"
+  echo
+  exit 1
+fi
+
+# Check the dependencies
+for cmd in curl sed fold; do
+  hash $cmd &> /dev/null
+  if [ $? -eq 1 ]; then error "Dependency error: '$cmd' not found" ; fi
+done
+
+case "$PROFILE" in
+  tsa|org|ondemand) ;;
+  *)
+    error "Unsupported profile $PROFILE, check with $0" ;;
+esac
+
+# Hash and digests
+DIGEST_VALUE=$1                                 # Hash to be signed
+DIGEST_METHOD=$2                                # Digest method
+case "$DIGEST_METHOD" in
+  SHA224|SHA256|SHA384|SHA512) ;;
+  *)
+    error "Unsupported digest method $DIGEST_METHOD, check with $0" ;;
+esac
+
+case "$MSGTYPE" in
+  SOAP|XML|JSON) ;;
+  *)
+    error "Unsupported message type $MSGTYPE, check with $0" ;;
+esac
+
+# Target file
+PKCS7_RESULT=$3
+[ -f "$PKCS7_RESULT" ] && error "Target file $PKCS7_RESULT already exists"
+
+# Define the job
+JOB='{"profile":"'$PROFILE'","type":"'$MSGTYPE'","digest":"'$(json "$DIGEST_VALUE")'","method":"'$DIGEST_METHOD'"'
+if [ "$PROFILE" = "ondemand" ]; then
+  JOB=$JOB',"dn":"'$(json "$4")'","msisdn":"'$(json "$5")'","msg":"'$(json "$6")'","lang":"'$(json "$7")'"'
+fi
+JOB=$JOB'}'
+
+# Call the daemon
+RSP=$(curl --silent --fail --request POST --data-binary "$JOB" \
+  --header "Content-Type: application/json" \
+  $ALLIN_DAEMON/sign)
+
+# Results
+export RC=$?
+
+if [ "$RC" = "0" ]; then
+  RC=$(echo "$RSP" | sed -n -e 's/^.*"rc":\([0-9]*\).*$/\1/p')
+  RES_MAJ=$(echo "$RSP" | sed -n -e 's/^.*"resultMajor":"\([^"]*\)".*$/\1/p')
+  RES_MIN=$(echo "$RSP" | sed -n -e 's/^.*"resultMinor":"\([^"]*\)".*$/\1/p')
+  RES_MSG=$(echo "$RSP" | sed -n -e 's/^.*"resultMessage":"\(\([^"\\]\|\\.\)*\)".*$/\1/p')
+  RES_ID_CERT=$(echo "$RSP" | sed -n -e 's/^.*"subject":"\(\([^"\\]\|\\.\)*\)".*$/\1/p')
+  SIGNATURE=$(echo "$RSP" | sed -n -e 's/^.*"signature":"\([^"]*\)".*$/\1/p')
+  [ "$RC" = "" ] && RC=2
+
+  if [ "$RC" = "0" ]; then
+    # Save PKCS7 content to target
+    [ "$SIGNATURE" = "" ] && error "Unable to decode Base64Signature"
+    ( echo "-----BEGIN PKCS7-----"; echo "$SIGNATURE" | fold -w 64; echo "-----END PKCS7-----" ) > $PKCS7_RESULT
+    if [ "$VERBOSE" = "1" ]; then                       # Verbose details
+      echo "OK on $DIGEST_VALUE with following details:"
+      echo " Signer subject : $RES_ID_CERT"
+      echo " Result major   : $RES_MAJ with exit $RC"
+    fi
+   else
+    if [ "$VERBOSE" = "1" ]; then                       # Verbose details
+      echo "FAILED on $DIGEST_VALUE with following details:"
+      echo " Result major   : $RES_MAJ with exit $RC"
+      echo " Result minor   : $RES_MIN"
+      echo " Result message : $RES_MSG"
+    fi
+  fi
+ else
+  CURL_ERR=$RC                                          # Keep related error
+  export RC=2                                           # Force returned error code
+  if [ "$VERBOSE" = "1" ]; then                         # Verbose details
+    echo "FAILED on $DIGEST_VALUE with following details:"
+    echo " curl error : $CURL_ERR"
+    echo " daemon     : $ALLIN_DAEMON"
+  fi
+fi
+
+# Debug details
+if [ "$DEBUG" != "" ]; then
+  echo ">>> job <<<" && echo "$JOB"
+  echo ">>> result <<<" && echo "$RSP"
+  echo ""
+fi
+
+exit $RC
+
+#==========================================================
@@ -26,6 +26,11 @@ error()
   exit 1
 }
 
+# Delegate to the resident signing daemon if configured, see allin-client.sh
+if [ "$ALLIN_DAEMON" != "" ]; then
+  exec $(dirname $0)/allin-client.sh -p org "$@"
+fi
+
 # Check command line
 MSGTYPE=SOAP                                    # Default is SOAP
 DEBUG=
@@ -0,0 +1,141 @@
+package dss;
+
+import com.itextpdf.text.Document;
+import com.itextpdf.text.Image;
+import com.itextpdf.text.PageSize;
+import com.itextpdf.text.pdf.PdfWriter;
+import com.sun.istack.internal.NotNull;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.Security;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Documents, hashes and canned server responses shared by the benchmarks
+ */
+final class BenchmarkData {
+
+    /**
+     * Size of a cms signature with timestamp and ocsp response as returned by the server
+     */
+    static final int SIGNATURE_SIZE = 7 * 1024;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * RIPEMD-160 is only provided by bouncy castle
+     */
+    static synchronized void addBouncyCastleProvider() {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null)
+            Security.addProvider(new BouncyCastleProvider());
+    }
+
+    /**
+     * Document with uncompressible images, roughly of the requested size
+     */
+    @NotNull
+    static File createPdf(@NotNull File directory, int sizeKB) throws Exception {
+        File file = new File(directory, "input-" + sizeKB + ".pdf");
+        Document document = new Document(PageSize.A4);
+        PdfWriter writer = PdfWriter.getInstance(document, new FileOutputStream(file));
+        writer.setCompressionLevel(0);
+        document.open();
+
+        Random random = new Random(sizeKB);
+        int side = 256;
+        byte[] pixels = new byte[side * side * 3];
+        long written = 0;
+        do {
+            random.nextBytes(pixels);
+            Image image = Image.getInstance(side, side, 3, 8, pixels);
+            image.scaleToFit(PageSize.A4.getWidth() - 72, PageSize.A4.getHeight() - 72);
+            document.add(image);
+            document.newPage();
+            written += pixels.length;
+        } while (written < sizeKB * 1024L);
+        document.close();
+        return file;
+    }
+
+    @NotNull
+    static File createTempDirectory() throws IOException {
+        File directory = File.createTempFile("allin-benchmark", "");
+        if (!directory.delete() || !directory.mkdir())
+            throw new IOException("Can not create " + directory);
+        return directory;
+    }
+
+    static void delete(File directory) {
+        if (directory == null)
+            return;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    @NotNull
+    static byte[][] randomBytes(int count, int length, long seed) {
+        Random random = new Random(seed);
+        byte[][] values = new byte[count][length];
+        for (byte[] value : values)
+            random.nextBytes(value);
+        return values;
+    }
+
+    /**
+     * Sign response of the given message type with one signature per document, filled from the canned responses
+     *
+     * @param messageType
+     * @param documents
+     * @return response as sent by the server
+     */
+    @NotNull
+    static byte[] createSignResponse(@NotNull MessageType messageType, int documents) throws IOException {
+        String extension = messageType == MessageType.JSON ? ".json" : ".xml";
+        byte[][] signatures = randomBytes(documents, SIGNATURE_SIZE, documents);
+
+        String response;
+        if (documents == 1) {
+            response = readResource("SignResponse" + extension)
+                    .replace("${SIGNATURE}", Base64.getEncoder().encodeToString(signatures[0]));
+        } else {
+            String signatureObject = readResource("ExtendedSignatureObject" + extension);
+            StringBuilder signatureObjects = new StringBuilder();
+            for (int i = 0; i < documents; i++) {
+                if (i > 0 && messageType == MessageType.JSON)
+                    signatureObjects.append(',');
+                signatureObjects.append(signatureObject
+                        .replace("${DOCUMENT_ID}", String.valueOf(i))
+                        .replace("${SIGNATURE}", Base64.getEncoder().encodeToString(signatures[i])));
+            }
+            response = readResource("SignResponse-batch" + extension)
+                    .replace("${SIGNATURE_OBJECTS}", signatureObjects);
+        }
+        return response.replace("${REQUEST_ID}", "42").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @NotNull
+    private static String readResource(@NotNull String name) throws IOException {
+        try (InputStream in = BenchmarkData.class.getResourceAsStream("/responses/" + name)) {
+            if (in == null)
+                throw new IOException("Missing resource " + name);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+            return out.toString("UTF-8").trim();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package dss;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pdf.getPdfHash: stamping the document up to the placeholder and digesting its byte range
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetPdfHashBenchmark {
+
+    /**
+     * Documents are prepared as incremental update, only parsing and hashing grow with the size
+     */
+    @Param({"100", "1024", "20480"})
+    public int pdfSizeKB;
+
+    @Param
+    public HashAlgorithm hashAlgorithm;
+
+    private File directory;
+    private File input;
+    private Pdf pdf;
+    private int count;
+
+    @Setup(Level.Trial)
+    public void createDocument() throws Exception {
+        BenchmarkData.addBouncyCastleProvider();
+        directory = BenchmarkData.createTempDirectory();
+        input = BenchmarkData.createPdf(directory, pdfSizeKB);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDocuments() {
+        BenchmarkData.delete(directory);
+    }
+
+    @Setup(Level.Invocation)
+    public void createPdf() {
+        pdf = new Pdf(input.getPath(), new File(directory, "output-" + count++ % 2 + ".pdf").getPath(), null,
+                "benchmark", "Bern", "Hans Mueller");
+    }
+
+    @TearDown(Level.Invocation)
+    public void discardPdf() throws Exception {
+        pdf.discard();
+    }
+
+    @Benchmark
+    public byte[] getPdfHash() throws Exception {
+        return pdf.getPdfHash(Calendar.getInstance(), SignatureSizeEstimator.Profile.cms(true, true, null).getDefaultSize(),
+                hashAlgorithm.getHashAlgorythm(), false);
+    }
+}
@@ -0,0 +1,232 @@
+package dss;
+
+import com.sun.istack.internal.NotNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives the Java client against a DSS server, typically the {@link MockDSSServer}, and reports latency percentiles and
+ * throughput.
+ * <p>
+ * With --rate the load is open loop: calls are started at fixed intervals regardless of outstanding calls and the
+ * latency is measured from the intended start, so a stalled server shows up in the percentiles instead of slowing the
+ * generator down. With --concurrency a fixed number of callers sign back to back (closed loop).
+ */
+public class LoadGenerator {
+
+    private static final String _USAGE = "Usage: java -cp benchmarks.jar dss.LoadGenerator [options]\n"
+            + "  --url url                 server uri, default https://localhost:8443/DSS-Server/ws, .../rs/v1.0 for JSON\n"
+            + "  --type SOAP|JSON          message type, default SOAP\n"
+            + "  --operation op            static, ondemand, timestamp or static-async, default static\n"
+            + "  --rate n                  calls per second, open loop\n"
+            + "  --concurrency n           parallel callers, closed loop, default 8 if no rate is given\n"
+            + "  --threads n               max outstanding calls of the open loop, default 256\n"
+            + "  --duration s              measured seconds, default 30\n"
+            + "  --warmup s                seconds before measuring, default 5\n"
+            + "  --batch n                 documents per call, default 1\n"
+            + "  --pdf file                document to sign, default a generated one\n"
+            + "  --directory dir           client credentials of the mock server, default mock-dss\n"
+            + "  --keystore file           default <directory>/client.jks\n"
+            + "  --truststore file         default <directory>/truststore.jks\n"
+            + "  --password value          key and trust store password, default changeit\n"
+            + "  --alias name              client key alias, default client\n"
+            + "  --server-alias name       server certificate alias, default server";
+
+    private final DSS_SOAP _dss;
+    private final String _serverUri;
+    private final String _operation;
+    private final File _pdf;
+    private final File _outputDirectory;
+    private final int _batch;
+    private final AtomicLong _sequence = new AtomicLong();
+    private final AtomicLong _calls = new AtomicLong();
+    private final AtomicLong _errors = new AtomicLong();
+    private final List<Long> _latencies = new ArrayList<>();
+    private volatile long _measureFrom;
+    private volatile long _measureUntil;
+
+    LoadGenerator(@NotNull DSS_SOAP dss, @NotNull String serverUri, @NotNull String operation, @NotNull File pdf,
+                  @NotNull File outputDirectory, int batch) {
+        this._dss = dss;
+        this._serverUri = serverUri;
+        this._operation = operation;
+        this._pdf = pdf;
+        this._outputDirectory = outputDirectory;
+        this._batch = batch;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options(args, _USAGE);
+        BenchmarkData.addBouncyCastleProvider();
+
+        MessageType messageType = MessageType.valueOf(options.get("type", "SOAP").toUpperCase());
+        String serverUri = options.get("url", messageType == MessageType.JSON
+                ? "https://localhost:8443/DSS-Server/rs/v1.0" : "https://localhost:8443/DSS-Server/ws");
+        String operation = options.get("operation", "static");
+        if (!Arrays.asList("static", "ondemand", "timestamp", "static-async").contains(operation))
+            options.exit("Invalid operation " + operation);
+
+        File directory = new File(options.get("directory", "mock-dss"));
+        String password = options.get("password", "changeit");
+        String alias = options.get("alias", MockPki.CLIENT_ALIAS);
+        DSS_SOAP dss = new DSS_SOAP(alias, options.get("server-alias", MockPki.SERVER_ALIAS), alias,
+                options.get("keystore", new File(directory, "client.jks").getPath()), password,
+                options.get("truststore", new File(directory, "truststore.jks").getPath()), password, false);
+        dss.setMessageType(messageType);
+        // the mock server answers the first poll, do not wait the default second
+        dss.setAsyncPoller(new DSSAsyncPoller(2, 10, 100, DSSAsyncPoller.DEFAULT_TIMEOUT_MILLIS, Executors.newCachedThreadPool()));
+
+        File outputDirectory = BenchmarkData.createTempDirectory();
+        try {
+            File pdf = options.has("pdf") ? new File(options.get("pdf", null)) : BenchmarkData.createPdf(outputDirectory, 100);
+            LoadGenerator generator = new LoadGenerator(dss, serverUri, operation, pdf, outputDirectory, options.getInt("batch", 1));
+
+            long warmupMillis = TimeUnit.SECONDS.toMillis(options.getLong("warmup", 5));
+            long durationMillis = TimeUnit.SECONDS.toMillis(options.getLong("duration", 30));
+            System.out.println("Signing " + operation + " with " + messageType + " at " + serverUri);
+            if (options.has("rate"))
+                generator.runOpenLoop(options.getDouble("rate", 0), options.getInt("threads", 256), warmupMillis, durationMillis);
+            else
+                generator.runClosedLoop(options.getInt("concurrency", 8), warmupMillis, durationMillis);
+            generator.report(durationMillis);
+        } finally {
+            dss.close();
+            BenchmarkData.delete(outputDirectory);
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Start calls at a fixed rate, the latency includes the time a call waited for a free thread
+     *
+     * @param rate           calls per second
+     * @param threads        max outstanding calls
+     * @param warmupMillis
+     * @param durationMillis
+     */
+    void runOpenLoop(double rate, int threads, long warmupMillis, long durationMillis) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        _measureFrom = start + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+        _measureUntil = _measureFrom + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+        for (long intended = start; intended < _measureUntil; intended += intervalNanos) {
+            long wait = intended - System.nanoTime();
+            if (wait > 0)
+                TimeUnit.NANOSECONDS.sleep(wait);
+            long scheduled = intended;
+            executor.execute(() -> call(scheduled));
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+    }
+
+    /**
+     * Sign back to back with a fixed number of callers
+     *
+     * @param concurrency
+     * @param warmupMillis
+     * @param durationMillis
+     */
+    void runClosedLoop(int concurrency, long warmupMillis, long durationMillis) throws InterruptedException {
+        long start = System.nanoTime();
+        _measureFrom = start + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+        _measureUntil = _measureFrom + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+        Thread[] callers = new Thread[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            callers[i] = new Thread(() -> {
+                long now;
+                while ((now = System.nanoTime()) < _measureUntil)
+                    call(now);
+            }, "load-" + i);
+            callers[i].start();
+        }
+        for (Thread caller : callers)
+            caller.join();
+    }
+
+    private void call(long intendedStart) {
+        long sequence = _sequence.incrementAndGet();
+        Pdf[] pdfs = new Pdf[_batch];
+        for (int i = 0; i < _batch; i++)
+            pdfs[i] = new Pdf(_pdf.getPath(), new File(_outputDirectory, "out-" + sequence + "-" + i + ".pdf").getPath(),
+                    null, "Load test", "Localhost", null);
+
+        boolean failed = false;
+        try {
+            sign(pdfs, (int) (sequence % Integer.MAX_VALUE));
+        } catch (Exception e) {
+            failed = true;
+            if (_errors.get() < 10)
+                System.out.println("Call " + sequence + " failed: " + e);
+        }
+        long end = System.nanoTime();
+
+        for (int i = 0; i < _batch; i++)
+            new File(_outputDirectory, "out-" + sequence + "-" + i + ".pdf").delete();
+
+        if (intendedStart < _measureFrom || intendedStart >= _measureUntil)
+            return;
+        _calls.incrementAndGet();
+        if (failed) {
+            _errors.incrementAndGet();
+            return;
+        }
+        synchronized (_latencies) {
+            _latencies.add(end - intendedStart);
+        }
+    }
+
+    private void sign(@NotNull Pdf[] pdfs, int requestId) throws Exception {
+        Calendar signDate = Calendar.getInstance();
+        switch (_operation) {
+            case "ondemand":
+                _dss.signDocumentOnDemandCert(pdfs, HashAlgorithm.SHA256, signDate, _serverUri, DSSRequest.CERTIFICATE_REQUEST_PROFILE,
+                        true, false, "cn=Load Test, o=allin-cmd, c=CH", "client:ondemand", requestId);
+                break;
+            case "timestamp":
+                _dss.signDocumentTimestampOnly(pdfs, HashAlgorithm.SHA256, signDate, _serverUri, "client", requestId);
+                break;
+            case "static-async":
+                _dss.signDocumentStaticCertAsync(pdfs, HashAlgorithm.SHA256, signDate, _serverUri, true, false, "client:static",
+                        requestId).getFuture().get();
+                break;
+            default:
+                _dss.signDocumentStaticCert(pdfs, HashAlgorithm.SHA256, signDate, _serverUri, true, false, "client:static", requestId);
+        }
+    }
+
+    void report(long durationMillis) {
+        long[] latencies;
+        synchronized (_latencies) {
+            latencies = new long[_latencies.size()];
+            for (int i = 0; i < latencies.length; i++)
+                latencies[i] = _latencies.get(i);
+        }
+        Arrays.sort(latencies);
+        double seconds = durationMillis / 1000.0;
+
+        System.out.println(String.format("calls: %d, errors: %d, calls/s: %.1f, docs/s: %.1f", _calls.get(), _errors.get(),
+                latencies.length / seconds, latencies.length * _batch / seconds));
+        if (latencies.length == 0)
+            return;
+        System.out.println(String.format("latency ms p50: %.1f, p90: %.1f, p99: %.1f, p99.9: %.1f, max: %.1f",
+                percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), latencies[latencies.length - 1] / 1e6));
+    }
+
+    private static double percentile(@NotNull long[] sorted, double quantile) {
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+}
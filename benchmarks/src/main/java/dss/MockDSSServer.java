@@ -0,0 +1,341 @@
+package dss;
+
+import com.sun.istack.internal.NotNull;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the DSS server. Answers sign and pending requests as SOAP on /DSS-Server/ws and as JSON on
+ * /DSS-Server/rs/v1.0/sign and /pending over mutual TLS, with CMS signatures and RFC 3161 timestamp tokens of a test
+ * CA. Latency, error rate and the number of pending polls of asynchronous requests can be configured.
+ * <p>
+ * On start the client credentials are written to the directory: client.jks and truststore.jks for the Java client
+ * (key alias "client"), client.crt, client.key and ca.crt for the bash scripts.
+ */
+public class MockDSSServer {
+
+    private static final String _USAGE = "Usage: java -cp benchmarks.jar dss.MockDSSServer [options]\n"
+            + "  --port n                      listen port, default 8443\n"
+            + "  --directory dir               output of the client credentials, default mock-dss\n"
+            + "  --password value              password of the written key stores, default changeit\n"
+            + "  --latency-ms n                delay of each response, default 0\n"
+            + "  --jitter-ms n                 random delay added on top, default 0\n"
+            + "  --latency-per-document-ms n   delay per document of a request, default 0\n"
+            + "  --error-rate r                share of sign requests answered with ResponderError, default 0\n"
+            + "  --missing-rate r              share of documents left out of successful batch responses, default 0\n"
+            + "  --shuffle true|false          return the signatures of a batch in random order, default false\n"
+            + "  --pending-polls n             pending responses before an async request completes, default 1\n"
+            + "  --ocsp-port n                 plain HTTP OCSP responder named in the certificates, default off\n"
+            + "  --threads n                   request handler threads, default 32";
+
+    private final MockPki _pki;
+    private final MockSigner _signer;
+    private final MockOcspResponder _ocspResponder;
+    private final int _ocspPort;
+    private final int _port;
+    private final long _latencyMillis;
+    private final long _jitterMillis;
+    private final long _latencyPerDocumentMillis;
+    private final double _errorRate;
+    private final int _pendingPolls;
+    private final int _threads;
+    private volatile double _missingRate;
+    private volatile boolean _shuffle;
+    private final Map<String, Pending> _pending = new ConcurrentHashMap<>();
+    private final AtomicLong _requests = new AtomicLong();
+    private final AtomicLong _documents = new AtomicLong();
+    private HttpsServer _server;
+    private ExecutorService _executor;
+
+    /**
+     * Async request waiting for its pending polls
+     */
+    private static class Pending {
+
+        private final MockResponse response;
+        private final AtomicInteger polls;
+
+        Pending(@NotNull MockResponse response, int polls) {
+            this.response = response;
+            this.polls = new AtomicInteger(polls);
+        }
+    }
+
+    /**
+     * @param port
+     * @param latencyMillis            delay of each response
+     * @param jitterMillis             random delay added on top
+     * @param latencyPerDocumentMillis delay per document of a request
+     * @param errorRate                share of sign requests answered with ResponderError
+     * @param pendingPolls             pending responses before an async request completes
+     * @param threads                  request handler threads
+     */
+    public MockDSSServer(int port, long latencyMillis, long jitterMillis, long latencyPerDocumentMillis, double errorRate,
+                         int pendingPolls, int threads) throws Exception {
+        this(port, latencyMillis, jitterMillis, latencyPerDocumentMillis, errorRate, pendingPolls, threads, 0);
+    }
+
+    /**
+     * @param port
+     * @param latencyMillis            delay of each response
+     * @param jitterMillis             random delay added on top
+     * @param latencyPerDocumentMillis delay per document of a request
+     * @param errorRate                share of sign requests answered with ResponderError
+     * @param pendingPolls             pending responses before an async request completes
+     * @param threads                  request handler threads
+     * @param ocspPort                 port of the OCSP responder named in the certificates, 0 for none. With a responder,
+     *                                 signatures of requests with AddOcspResponse contain the OCSP response of their
+     *                                 certificate.
+     */
+    public MockDSSServer(int port, long latencyMillis, long jitterMillis, long latencyPerDocumentMillis, double errorRate,
+                         int pendingPolls, int threads, int ocspPort) throws Exception {
+        this._pki = new MockPki(ocspPort > 0 ? "http://localhost:" + ocspPort + MockOcspResponder.PATH : null);
+        this._ocspResponder = ocspPort > 0 ? new MockOcspResponder(_pki) : null;
+        this._ocspPort = ocspPort;
+        this._signer = new MockSigner(_pki, _ocspResponder);
+        this._port = port;
+        this._latencyMillis = latencyMillis;
+        this._jitterMillis = jitterMillis;
+        this._latencyPerDocumentMillis = latencyPerDocumentMillis;
+        this._errorRate = errorRate;
+        this._pendingPolls = pendingPolls;
+        this._threads = threads;
+    }
+
+    /**
+     * Simulate batch responses without the signatures of some documents. Only the signatures of a batch are referenced by
+     * document, single documents are never left out.
+     *
+     * @param missingRate share of the documents of a successful batch response without signature
+     * @param shuffle     return the signatures of a batch in random order
+     */
+    public void setPartialResponses(double missingRate, boolean shuffle) {
+        this._missingRate = missingRate;
+        this._shuffle = shuffle;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options(args, _USAGE);
+        File directory = new File(options.get("directory", "mock-dss"));
+        char[] password = options.get("password", "changeit").toCharArray();
+
+        MockDSSServer server = new MockDSSServer(options.getInt("port", 8443), options.getLong("latency-ms", 0),
+                options.getLong("jitter-ms", 0), options.getLong("latency-per-document-ms", 0),
+                options.getDouble("error-rate", 0), options.getInt("pending-polls", 1), options.getInt("threads", 32),
+                options.getInt("ocsp-port", 0));
+        server.setPartialResponses(options.getDouble("missing-rate", 0), Boolean.parseBoolean(options.get("shuffle", "false")));
+        server.writeClientFiles(directory, password);
+        server.start(password);
+
+        System.out.println("Mock DSS server listening on https://localhost:" + server.getPort());
+        System.out.println("  SOAP: https://localhost:" + server.getPort() + "/DSS-Server/ws");
+        System.out.println("  JSON: https://localhost:" + server.getPort() + "/DSS-Server/rs/v1.0");
+        if (server._ocspResponder != null)
+            System.out.println("  OCSP: http://localhost:" + server._ocspPort + MockOcspResponder.PATH);
+        System.out.println("  client credentials in " + directory.getAbsolutePath());
+    }
+
+    /**
+     * @param directory
+     * @param password  of the key stores and the client key
+     */
+    public void writeClientFiles(@NotNull File directory, @NotNull char[] password) throws Exception {
+        _pki.writeClientFiles(directory, password);
+    }
+
+    /**
+     * @param password used for the in memory server key store only
+     */
+    public void start(@NotNull char[] password) throws Exception {
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(_pki.getServerKeyStore(password), password);
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(_pki.getTrustStore());
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+
+        _server = HttpsServer.create(new InetSocketAddress(_port), 256);
+        _server.setHttpsConfigurator(new HttpsConfigurator(sslContext) {
+            @Override
+            public void configure(HttpsParameters params) {
+                SSLParameters sslParameters = getSSLContext().getDefaultSSLParameters();
+                sslParameters.setNeedClientAuth(true);
+                params.setSSLParameters(sslParameters);
+            }
+        });
+        _server.createContext("/DSS-Server/ws", exchange -> handle(exchange, MessageType.SOAP));
+        _server.createContext("/DSS-Server/rs/v1.0/" + RequestType.SignRequest.getOperation(), exchange -> handle(exchange, MessageType.JSON));
+        _server.createContext("/DSS-Server/rs/v1.0/" + RequestType.PendingRequest.getOperation(), exchange -> handle(exchange, MessageType.JSON));
+        _executor = Executors.newFixedThreadPool(_threads);
+        _server.setExecutor(_executor);
+        _server.start();
+        if (_ocspResponder != null)
+            _ocspResponder.start(_ocspPort);
+    }
+
+    public void stop() {
+        _server.stop(0);
+        _executor.shutdownNow();
+        if (_ocspResponder != null)
+            _ocspResponder.stop();
+    }
+
+    public int getPort() {
+        return _server.getAddress().getPort();
+    }
+
+    public long getRequestCount() {
+        return _requests.get();
+    }
+
+    public long getDocumentCount() {
+        return _documents.get();
+    }
+
+    /**
+     * @return OCSP requests answered by the responder, 0 without one
+     */
+    public long getOcspRequestCount() {
+        return _ocspResponder != null ? _ocspResponder.getRequestCount() : 0;
+    }
+
+    private void handle(@NotNull HttpExchange exchange, @NotNull MessageType messageType) throws IOException {
+        try {
+            byte[] body = readAll(exchange.getRequestBody());
+            MockRequest request;
+            MockResponse response;
+            int status = 200;
+            try {
+                request = messageType == MessageType.JSON ? MockRequest.fromJson(new String(body, "UTF-8"))
+                        : MockRequest.fromXml(new ByteArrayInputStream(body));
+                _requests.incrementAndGet();
+                response = request.pending ? poll(request) : sign(request);
+                delay(request.pending ? 0 : request.documents.size());
+            } catch (Exception e) {
+                request = null;
+                status = 500;
+                response = MockResponse.error(null, MockResponse.REQUESTER_ERROR,
+                        "urn:oasis:names:tc:dss:1.0:resultminor:GeneralError", String.valueOf(e.getMessage()));
+            }
+
+            byte[] out;
+            if (messageType == MessageType.JSON) {
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                out = response.toJson();
+            } else {
+                exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+                out = response.toSoap(request != null && request.pending);
+            }
+            exchange.sendResponseHeaders(status, out.length);
+            try (OutputStream responseBody = exchange.getResponseBody()) {
+                responseBody.write(out);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @NotNull
+    private MockResponse sign(@NotNull MockRequest request) throws Exception {
+        if (request.documents.isEmpty())
+            return MockResponse.error(request.requestId, MockResponse.REQUESTER_ERROR,
+                    "urn:com:swisscom:dss:1.0:resultminor:InsufficientData", "No DocumentHash");
+        if (ThreadLocalRandom.current().nextDouble() < _errorRate)
+            return MockResponse.error(request.requestId, MockResponse.RESPONDER_ERROR,
+                    "urn:oasis:names:tc:dss:1.0:resultminor:GeneralError", "Simulated error");
+
+        MockResponse response = new MockResponse();
+        response.requestId = request.requestId;
+        response.timestampOnly = request.timestampOnly;
+        response.batch = request.isBatch();
+        List<MockRequest.DocumentHash> documents = request.documents;
+        if (response.batch && (_shuffle || _missingRate > 0)) {
+            documents = new ArrayList<>(documents);
+            if (_shuffle)
+                Collections.shuffle(documents);
+            documents.removeIf(document -> ThreadLocalRandom.current().nextDouble() < _missingRate);
+        }
+        for (MockRequest.DocumentHash document : documents) {
+            response.documentIds.add(document.id != null ? document.id : "");
+            response.signatures.add(request.timestampOnly ? _signer.timestamp(document.digestMethod, document.digest)
+                    : _signer.sign(document.digestMethod, document.digest, request.distinguishedName, request.addTimestamp,
+                    request.addOcsp));
+        }
+        _documents.addAndGet(request.documents.size());
+
+        if (!request.isAsync() || _pendingPolls < 1)
+            return response;
+
+        String responseId = UUID.randomUUID().toString();
+        _pending.put(responseId, new Pending(response, _pendingPolls));
+        return pending(request.requestId, responseId);
+    }
+
+    @NotNull
+    private MockResponse poll(@NotNull MockRequest request) {
+        Pending pending = request.responseId != null ? _pending.get(request.responseId) : null;
+        if (pending == null)
+            return MockResponse.error(null, MockResponse.REQUESTER_ERROR,
+                    "urn:com:swisscom:dss:1.0:resultminor:InvalidResponseID", "Unknown ResponseID " + request.responseId);
+        if (pending.polls.decrementAndGet() > 0)
+            return pending(pending.response.requestId, request.responseId);
+        _pending.remove(request.responseId);
+        return pending.response;
+    }
+
+    @NotNull
+    private static MockResponse pending(String requestId, @NotNull String responseId) {
+        MockResponse response = new MockResponse();
+        response.requestId = requestId;
+        response.resultMajor = RequestResult.Pending.getResultUrn();
+        response.responseId = responseId;
+        return response;
+    }
+
+    private void delay(int documents) {
+        long millis = _latencyMillis + documents * _latencyPerDocumentMillis
+                + (_jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(_jitterMillis + 1) : 0);
+        if (millis <= 0)
+            return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @NotNull
+    private static byte[] readAll(@NotNull InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,127 @@
+package dss;
+
+import com.sun.istack.internal.NotNull;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.bouncycastle.asn1.ocsp.OCSPResponse;
+import org.bouncycastle.asn1.ocsp.OCSPResponseStatus;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.Req;
+import org.bouncycastle.cert.ocsp.RespID;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * OCSP responder of the test CA over plain HTTP on /ocsp, named in the certificates it issues. Every certificate is
+ * good, the responses are signed by the CA and valid for a day. Also creates the responses the mock server embeds into
+ * signatures with AddOcspResponse.
+ */
+class MockOcspResponder {
+
+    static final String PATH = "/ocsp";
+    private static final long _VALIDITY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final MockPki _pki;
+    private final DigestCalculatorProvider _digestCalculatorProvider;
+    private final AtomicLong _requests = new AtomicLong();
+    private HttpServer _server;
+
+    MockOcspResponder(@NotNull MockPki pki) throws Exception {
+        this._pki = pki;
+        this._digestCalculatorProvider = new JcaDigestCalculatorProviderBuilder().setProvider("BC").build();
+    }
+
+    void start(int port) throws IOException {
+        _server = HttpServer.create(new InetSocketAddress(port), 64);
+        _server.createContext(PATH, this::handle);
+        _server.start();
+    }
+
+    void stop() {
+        if (_server != null)
+            _server.stop(0);
+    }
+
+    /**
+     * @return OCSP requests answered over HTTP
+     */
+    long getRequestCount() {
+        return _requests.get();
+    }
+
+    /**
+     * Good status of a certificate issued by the test CA
+     *
+     * @param certificate
+     * @return DER encoded OCSPResponse
+     */
+    @NotNull
+    byte[] respond(@NotNull X509Certificate certificate) throws Exception {
+        CertificateID id = new CertificateID(_digestCalculatorProvider.get(CertificateID.HASH_SHA1),
+                new JcaX509CertificateHolder(_pki.getCaCert()), certificate.getSerialNumber());
+        return respond(new CertificateID[]{id}).getEncoded();
+    }
+
+    @NotNull
+    private OCSPResp respond(@NotNull CertificateID[] ids) throws Exception {
+        X509CertificateHolder ca = new JcaX509CertificateHolder(_pki.getCaCert());
+        BasicOCSPRespBuilder builder = new BasicOCSPRespBuilder(new RespID(ca.getSubject()));
+        Date now = new Date();
+        for (CertificateID id : ids)
+            builder.addResponse(id, CertificateStatus.GOOD, now, new Date(now.getTime() + _VALIDITY_MILLIS), null);
+        ContentSigner signer = new JcaContentSignerBuilder("SHA256withRSA").setProvider("BC").build(_pki.getCaKey());
+        return new OCSPRespBuilder().build(OCSPRespBuilder.SUCCESSFUL, builder.build(signer, new X509CertificateHolder[]{ca}, now));
+    }
+
+    private void handle(@NotNull HttpExchange exchange) throws IOException {
+        try {
+            byte[] out;
+            try {
+                Req[] requests = new OCSPReq(readAll(exchange.getRequestBody())).getRequestList();
+                CertificateID[] ids = new CertificateID[requests.length];
+                for (int i = 0; i < requests.length; i++)
+                    ids[i] = requests[i].getCertID();
+                out = respond(ids).getEncoded();
+                _requests.incrementAndGet();
+            } catch (Exception e) {
+                out = new OCSPResp(new OCSPResponse(new OCSPResponseStatus(OCSPRespBuilder.MALFORMED_REQUEST), null)).getEncoded();
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/ocsp-response");
+            exchange.sendResponseHeaders(200, out.length);
+            try (OutputStream responseBody = exchange.getResponseBody()) {
+                responseBody.write(out);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @NotNull
+    private static byte[] readAll(@NotNull InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,223 @@
+package dss;
+
+import com.sun.istack.internal.NotNull;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.asn1.x509.X509ObjectIdentifiers;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Test CA of the mock server with the certificates for mutual TLS, signing and timestamping. Generated on each start.
+ */
+class MockPki {
+
+    static final String CLIENT_ALIAS = "client";
+    static final String SERVER_ALIAS = "server";
+    private static final String _SIGNATURE_ALGORITHM = "SHA256withRSA";
+    private static final long _VALIDITY_MILLIS = TimeUnit.DAYS.toMillis(365);
+
+    private final AtomicLong _serial = new AtomicLong(System.currentTimeMillis());
+    private final String _ocspUrl;
+    private final KeyPair _caKeys;
+    private final X509Certificate _caCert;
+    private final KeyPair _serverKeys;
+    private final X509Certificate _serverCert;
+    private final KeyPair _clientKeys;
+    private final X509Certificate _clientCert;
+    private final KeyPair _signerKeys;
+    private final X509Certificate _signerCert;
+    private final KeyPair _tsaKeys;
+    private final X509Certificate _tsaCert;
+
+    MockPki() throws GeneralSecurityException, IOException, OperatorCreationException {
+        this(null);
+    }
+
+    /**
+     * @param ocspUrl responder named in the issued certificates, null for certificates without revocation information
+     */
+    MockPki(String ocspUrl) throws GeneralSecurityException, IOException, OperatorCreationException {
+        BenchmarkData.addBouncyCastleProvider();
+        _ocspUrl = ocspUrl;
+        _caKeys = generateKeyPair();
+        _caCert = issue(new X500Name("CN=Mock DSS Test CA, O=allin-cmd, C=CH"), _caKeys, true, null);
+        _serverKeys = generateKeyPair();
+        _serverCert = issue(new X500Name("CN=localhost, O=allin-cmd, C=CH"), _serverKeys, false, KeyPurposeId.id_kp_serverAuth);
+        _clientKeys = generateKeyPair();
+        _clientCert = issue(new X500Name("CN=Mock DSS Client, O=allin-cmd, C=CH"), _clientKeys, false, KeyPurposeId.id_kp_clientAuth);
+        _signerKeys = generateKeyPair();
+        _signerCert = issue(new X500Name("CN=Firma XY AG, O=allin-cmd, C=CH"), _signerKeys, false, null);
+        _tsaKeys = generateKeyPair();
+        _tsaCert = issue(new X500Name("CN=Mock DSS Timestamp Authority, O=allin-cmd, C=CH"), _tsaKeys, false, KeyPurposeId.id_kp_timeStamping);
+    }
+
+    /**
+     * Certificate for an on demand signature, issued for the requested distinguished name with the signer key
+     *
+     * @param distinguishedName
+     */
+    @NotNull
+    X509Certificate issueOnDemand(@NotNull String distinguishedName) throws GeneralSecurityException, IOException, OperatorCreationException {
+        return issue(new X500Name(distinguishedName), _signerKeys, false, null);
+    }
+
+    /**
+     * Key store of the server for TLS
+     */
+    @NotNull
+    KeyStore getServerKeyStore(@NotNull char[] password) throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry(SERVER_ALIAS, _serverKeys.getPrivate(), password, new Certificate[]{_serverCert, _caCert});
+        return keyStore;
+    }
+
+    /**
+     * Trust store containing the test CA, used by server and client
+     */
+    @NotNull
+    KeyStore getTrustStore() throws GeneralSecurityException, IOException {
+        KeyStore trustStore = KeyStore.getInstance("JKS");
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry("ca", _caCert);
+        return trustStore;
+    }
+
+    /**
+     * Write the client credentials: client.jks and truststore.jks for the Java client, PEM files for the bash scripts
+     *
+     * @param directory
+     * @param password  of the key stores and the client key
+     */
+    void writeClientFiles(@NotNull File directory, @NotNull char[] password) throws GeneralSecurityException, IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Can not create " + directory);
+
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry(CLIENT_ALIAS, _clientKeys.getPrivate(), password, new Certificate[]{_clientCert, _caCert});
+        keyStore.setCertificateEntry(SERVER_ALIAS, _serverCert);
+        try (OutputStream out = new FileOutputStream(new File(directory, "client.jks"))) {
+            keyStore.store(out, password);
+        }
+        try (OutputStream out = new FileOutputStream(new File(directory, "truststore.jks"))) {
+            getTrustStore().store(out, password);
+        }
+
+        writePem(new File(directory, "ca.crt"), "CERTIFICATE", _caCert.getEncoded());
+        writePem(new File(directory, "client.crt"), "CERTIFICATE", _clientCert.getEncoded());
+        writePem(new File(directory, "client.key"), "PRIVATE KEY", _clientKeys.getPrivate().getEncoded());
+    }
+
+    @NotNull
+    X509Certificate getCaCert() {
+        return _caCert;
+    }
+
+    @NotNull
+    PrivateKey getCaKey() {
+        return _caKeys.getPrivate();
+    }
+
+    @NotNull
+    PrivateKey getSignerKey() {
+        return _signerKeys.getPrivate();
+    }
+
+    @NotNull
+    X509Certificate getSignerCert() {
+        return _signerCert;
+    }
+
+    @NotNull
+    PrivateKey getTsaKey() {
+        return _tsaKeys.getPrivate();
+    }
+
+    @NotNull
+    X509Certificate getTsaCert() {
+        return _tsaCert;
+    }
+
+    BigInteger nextSerial() {
+        return BigInteger.valueOf(_serial.incrementAndGet());
+    }
+
+    @NotNull
+    private X509Certificate issue(@NotNull X500Name subject, @NotNull KeyPair keys, boolean ca, KeyPurposeId purpose)
+            throws GeneralSecurityException, IOException, OperatorCreationException {
+        long now = System.currentTimeMillis();
+        X500Name issuer = ca ? subject : X500Name.getInstance(_caCert.getSubjectX500Principal().getEncoded());
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(issuer, nextSerial(),
+                new Date(now - TimeUnit.HOURS.toMillis(1)), new Date(now + _VALIDITY_MILLIS), subject, keys.getPublic());
+
+        builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(ca));
+        if (ca) {
+            builder.addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign));
+        } else if (purpose == null) {
+            builder.addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.digitalSignature | KeyUsage.nonRepudiation));
+        } else {
+            builder.addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.digitalSignature | KeyUsage.keyEncipherment));
+            // a timestamp authority must have exactly this one critical extended key usage
+            builder.addExtension(Extension.extendedKeyUsage, purpose == KeyPurposeId.id_kp_timeStamping, new ExtendedKeyUsage(purpose));
+        }
+        if (!ca && _ocspUrl != null) {
+            builder.addExtension(Extension.authorityInfoAccess, false, new AuthorityInformationAccess(
+                    X509ObjectIdentifiers.id_ad_ocsp, new GeneralName(GeneralName.uniformResourceIdentifier, _ocspUrl)));
+        }
+        if (purpose == KeyPurposeId.id_kp_serverAuth) {
+            builder.addExtension(Extension.subjectAlternativeName, false, new GeneralNames(new GeneralName[]{
+                    new GeneralName(GeneralName.dNSName, "localhost"), new GeneralName(GeneralName.iPAddress, "127.0.0.1")}));
+        }
+
+        PrivateKey issuerKey = ca ? keys.getPrivate() : _caKeys.getPrivate();
+        return new JcaX509CertificateConverter().setProvider("BC")
+                .getCertificate(builder.build(new JcaContentSignerBuilder(_SIGNATURE_ALGORITHM).setProvider("BC").build(issuerKey)));
+    }
+
+    @NotNull
+    private static KeyPair generateKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        return generator.generateKeyPair();
+    }
+
+    private static void writePem(@NotNull File file, @NotNull String type, @NotNull byte[] der) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII)) {
+            writer.write("-----BEGIN " + type + "-----\n");
+            writer.write(Base64.getMimeEncoder(64, new byte[]{'\n'}).encodeToString(der));
+            writer.write("\n-----END " + type + "-----\n");
+        }
+    }
+}
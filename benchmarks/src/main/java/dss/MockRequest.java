@@ -0,0 +1,263 @@
+package dss;
+
+import com.sun.istack.internal.NotNull;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sign or pending request as received by the mock server, read from SOAP or JSON by local element names
+ */
+class MockRequest {
+
+    private static final XMLInputFactory _XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    boolean pending;
+    String requestId;
+    String responseId;
+    String distinguishedName;
+    boolean addTimestamp;
+    boolean addOcsp;
+    boolean timestampOnly;
+    final Set<String> additionalProfiles = new HashSet<>();
+    final List<DocumentHash> documents = new ArrayList<>();
+
+    static class DocumentHash {
+        String id;
+        String digestMethod;
+        byte[] digest;
+    }
+
+    boolean isAsync() {
+        return additionalProfiles.contains(AdditionalProfiles.ASYNCHRON.getProfileName());
+    }
+
+    boolean isBatch() {
+        return documents.size() > 1;
+    }
+
+    @NotNull
+    static MockRequest fromXml(@NotNull InputStream in) throws IOException {
+        MockRequest request = new MockRequest();
+        try {
+            XMLStreamReader reader = _XML_INPUT_FACTORY.createXMLStreamReader(in);
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT)
+                    continue;
+                String name = reader.getLocalName();
+                request.element(name, reader.getAttributeValue(null, "RequestID"), reader.getAttributeValue(null, "ID"),
+                        reader.getAttributeValue(null, "Algorithm"));
+                if (isTextElement(name))
+                    request.text(name, reader.getElementText());
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid request: " + e.getMessage(), e);
+        }
+        return request;
+    }
+
+    @NotNull
+    static MockRequest fromJson(@NotNull String json) throws IOException {
+        MockRequest request = new MockRequest();
+        request.walk(null, new JsonReader(json).read());
+        return request;
+    }
+
+    private static boolean isTextElement(@NotNull String name) {
+        return "AdditionalProfile".equals(name) || "DigestValue".equals(name) || "DistinguishedName".equals(name)
+                || "ResponseID".equals(name) || "SignatureType".equals(name);
+    }
+
+    /**
+     * Visit a JSON value the same way as the xml elements: members are elements, @ members attributes, $ the text
+     */
+    @SuppressWarnings("unchecked")
+    private void walk(String name, Object value) {
+        if (value instanceof List) {
+            for (Object item : (List<Object>) value)
+                walk(name, item);
+        } else if (value instanceof Map) {
+            Map<String, Object> members = (Map<String, Object>) value;
+            if (name != null) {
+                element(name, (String) members.get("@RequestID"), (String) members.get("@ID"), (String) members.get("@Algorithm"));
+                if (members.get("$") instanceof String && isTextElement(name))
+                    text(name, (String) members.get("$"));
+            }
+            for (Map.Entry<String, Object> member : members.entrySet()) {
+                if (!member.getKey().startsWith("@") && !"$".equals(member.getKey()))
+                    walk(member.getKey().substring(member.getKey().lastIndexOf('.') + 1), member.getValue());
+            }
+        } else if (name != null && value instanceof String) {
+            element(name, null, null, null);
+            if (isTextElement(name))
+                text(name, (String) value);
+        }
+    }
+
+    private void element(@NotNull String name, String requestId, String id, String algorithm) {
+        if ("SignRequest".equals(name)) {
+            this.requestId = requestId;
+        } else if ("PendingRequest".equals(name)) {
+            pending = true;
+        } else if ("DocumentHash".equals(name)) {
+            DocumentHash document = new DocumentHash();
+            document.id = id;
+            documents.add(document);
+        } else if ("DigestMethod".equals(name) && !documents.isEmpty()) {
+            documents.get(documents.size() - 1).digestMethod = algorithm;
+        } else if ("AddTimestamp".equals(name)) {
+            addTimestamp = true;
+        } else if ("AddOcspResponse".equals(name)) {
+            addOcsp = true;
+        }
+    }
+
+    private void text(@NotNull String name, @NotNull String text) {
+        text = text.trim();
+        if ("AdditionalProfile".equals(name)) {
+            additionalProfiles.add(text);
+        } else if ("DigestValue".equals(name) && !documents.isEmpty()) {
+            documents.get(documents.size() - 1).digest = Base64.getMimeDecoder().decode(text);
+        } else if ("DistinguishedName".equals(name)) {
+            distinguishedName = text;
+        } else if ("ResponseID".equals(name)) {
+            responseId = text;
+        } else if ("SignatureType".equals(name)) {
+            timestampOnly = SignatureType.TIMESTAMP.getSignatureType().equals(text);
+        }
+    }
+
+    /**
+     * Minimal JSON reader into maps, lists and strings, numbers and literals are kept as text
+     */
+    private static class JsonReader {
+
+        private final String _json;
+        private int _position;
+
+        JsonReader(@NotNull String json) {
+            this._json = json;
+        }
+
+        Object read() throws IOException {
+            Object value = readValue();
+            skipWhitespace();
+            if (_position != _json.length())
+                throw invalid();
+            return value;
+        }
+
+        private Object readValue() throws IOException {
+            skipWhitespace();
+            if (_position == _json.length())
+                throw invalid();
+            char c = _json.charAt(_position);
+            if (c == '{') {
+                Map<String, Object> members = new LinkedHashMap<>();
+                _position++;
+                skipWhitespace();
+                if (peek() == '}') {
+                    _position++;
+                    return members;
+                }
+                do {
+                    skipWhitespace();
+                    String key = readString();
+                    skipWhitespace();
+                    expect(':');
+                    members.put(key, readValue());
+                    skipWhitespace();
+                } while (next() == ',');
+                _position--;
+                expect('}');
+                return members;
+            } else if (c == '[') {
+                List<Object> items = new ArrayList<>();
+                _position++;
+                skipWhitespace();
+                if (peek() == ']') {
+                    _position++;
+                    return items;
+                }
+                do {
+                    items.add(readValue());
+                    skipWhitespace();
+                } while (next() == ',');
+                _position--;
+                expect(']');
+                return items;
+            } else if (c == '"') {
+                return readString();
+            }
+            int start = _position;
+            while (_position < _json.length() && ",}] \t\r\n".indexOf(_json.charAt(_position)) < 0)
+                _position++;
+            return _json.substring(start, _position);
+        }
+
+        private String readString() throws IOException {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            char c;
+            while ((c = next()) != '"') {
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                c = next();
+                switch (c) {
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'n': value.append('\n'); break;
+                    case 'r': value.append('\r'); break;
+                    case 't': value.append('\t'); break;
+                    case 'u':
+                        if (_position + 4 > _json.length())
+                            throw invalid();
+                        value.append((char) Integer.parseInt(_json.substring(_position, _position + 4), 16));
+                        _position += 4;
+                        break;
+                    default: value.append(c);
+                }
+            }
+            return value.toString();
+        }
+
+        private void skipWhitespace() {
+            while (_position < _json.length() && Character.isWhitespace(_json.charAt(_position)))
+                _position++;
+        }
+
+        private char peek() throws IOException {
+            if (_position == _json.length())
+                throw invalid();
+            return _json.charAt(_position);
+        }
+
+        private char next() throws IOException {
+            char c = peek();
+            _position++;
+            return c;
+        }
+
+        private void expect(char expected) throws IOException {
+            if (next() != expected)
+                throw invalid();
+        }
+
+        private IOException invalid() {
+            return new IOException("Invalid request: JSON syntax error at " + _position);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package dss;
+
+import com.sun.istack.internal.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Response of the mock server, written in the layout of the DSS server as SOAP envelope or JSON
+ */
+class MockResponse {
+
+    static final String REQUESTER_ERROR = "urn:oasis:names:tc:dss:1.0:resultmajor:RequesterError";
+    static final String RESPONDER_ERROR = "urn:oasis:names:tc:dss:1.0:resultmajor:ResponderError";
+    private static final String _PROFILE = "http://ais.swisscom.ch/1.0";
+
+    String requestId;
+    String resultMajor = RequestResult.Success.getResultUrn();
+    String resultMinor;
+    String resultMessage;
+    String responseId;
+    boolean timestampOnly;
+    boolean batch;
+    final List<String> documentIds = new ArrayList<>();
+    final List<byte[]> signatures = new ArrayList<>();
+
+    @NotNull
+    static MockResponse error(String requestId, @NotNull String resultMajor, @NotNull String resultMinor, @NotNull String message) {
+        MockResponse response = new MockResponse();
+        response.requestId = requestId;
+        response.resultMajor = resultMajor;
+        response.resultMinor = resultMinor;
+        response.resultMessage = message;
+        return response;
+    }
+
+    @NotNull
+    byte[] toSoap(boolean pendingRequest) {
+        String operation = pendingRequest ? "pendingResponse" : "signResponse";
+        StringBuilder xml = new StringBuilder(1024 + signatures.size() * 12 * 1024);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\">")
+                .append("<soap:Body><ns4:").append(operation).append(" xmlns:ns4=\"http://service.ais.swisscom.com/\">")
+                .append("<SignResponse");
+        if (requestId != null)
+            xml.append(" RequestID=\"").append(escapeXml(requestId)).append('"');
+        xml.append(" Profile=\"").append(_PROFILE).append("\" xmlns=\"urn:oasis:names:tc:dss:1.0:core:schema\"")
+                .append(" xmlns:sc=\"urn:com:swisscom:dss:1.0:schema\"")
+                .append(" xmlns:ns3=\"urn:oasis:names:tc:dss:1.0:profiles:asynchronousprocessing:1.0\">");
+
+        xml.append("<Result><ResultMajor>").append(resultMajor).append("</ResultMajor>");
+        if (resultMinor != null)
+            xml.append("<ResultMinor>").append(resultMinor).append("</ResultMinor>");
+        if (resultMessage != null)
+            xml.append("<ResultMessage xml:lang=\"en\">").append(escapeXml(resultMessage)).append("</ResultMessage>");
+        xml.append("</Result>");
+
+        if (responseId != null)
+            xml.append("<OptionalOutputs><ns3:ResponseID>").append(responseId).append("</ns3:ResponseID></OptionalOutputs>");
+
+        if (!signatures.isEmpty()) {
+            xml.append("<SignatureObject>");
+            if (batch)
+                xml.append("<Other><sc:SignatureObjects>");
+            for (int i = 0; i < signatures.size(); i++) {
+                if (batch)
+                    xml.append("<sc:ExtendedSignatureObject WhichDocument=\"").append(escapeXml(documentIds.get(i))).append("\">");
+                String signature = Base64.getEncoder().encodeToString(signatures.get(i));
+                if (timestampOnly)
+                    xml.append("<Timestamp><RFC3161TimeStampToken>").append(signature).append("</RFC3161TimeStampToken></Timestamp>");
+                else
+                    xml.append("<Base64Signature Type=\"urn:ietf:rfc:3369\">").append(signature).append("</Base64Signature>");
+                if (batch)
+                    xml.append("</sc:ExtendedSignatureObject>");
+            }
+            if (batch)
+                xml.append("</sc:SignatureObjects></Other>");
+            xml.append("</SignatureObject>");
+        }
+
+        xml.append("</SignResponse></ns4:").append(operation).append("></soap:Body></soap:Envelope>");
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @NotNull
+    byte[] toJson() {
+        StringBuilder json = new StringBuilder(1024 + signatures.size() * 12 * 1024);
+        json.append("{\"dss.SignResponse\":{");
+        if (requestId != null)
+            json.append("\"@RequestID\":").append(quote(requestId)).append(',');
+        json.append("\"@Profile\":").append(quote(_PROFILE));
+
+        json.append(",\"dss.Result\":{\"dss.ResultMajor\":").append(quote(resultMajor));
+        if (resultMinor != null)
+            json.append(",\"dss.ResultMinor\":").append(quote(resultMinor));
+        if (resultMessage != null)
+            json.append(",\"dss.ResultMessage\":{\"@xml.lang\":\"en\",\"$\":").append(quote(resultMessage)).append('}');
+        json.append('}');
+
+        if (responseId != null)
+            json.append(",\"dss.OptionalOutputs\":{\"async.ResponseID\":").append(quote(responseId)).append('}');
+
+        if (!signatures.isEmpty()) {
+            json.append(",\"dss.SignatureObject\":");
+            if (batch)
+                json.append("{\"dss.Other\":{\"sc.SignatureObjects\":{\"sc.ExtendedSignatureObject\":[");
+            for (int i = 0; i < signatures.size(); i++) {
+                if (i > 0)
+                    json.append(',');
+                json.append('{');
+                if (batch)
+                    json.append("\"@WhichDocument\":").append(quote(documentIds.get(i))).append(',');
+                String signature = Base64.getEncoder().encodeToString(signatures.get(i));
+                if (timestampOnly)
+                    json.append("\"dss.Timestamp\":{\"dss.RFC3161TimeStampToken\":\"").append(signature).append("\"}");
+                else
+                    json.append("\"dss.Base64Signature\":{\"@Type\":\"urn:ietf:rfc:3369\",\"$\":\"").append(signature).append("\"}");
+                json.append('}');
+            }
+            if (batch)
+                json.append("]}}}");
+        }
+
+        json.append("}}");
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @NotNull
+    private static String escapeXml(@NotNull String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    @NotNull
+    private static String quote(@NotNull String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                quoted.append('\\').append(c);
+            else if (c < 0x20)
+                quoted.append(String.format("\\u%04x", (int) c));
+            else
+                quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+}
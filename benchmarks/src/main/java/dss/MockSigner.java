@@ -0,0 +1,206 @@
+package dss;
+
+import com.sun.istack.internal.NotNull;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.DERTaggedObject;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.ocsp.OCSPResponse;
+import org.bouncycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.teletrust.TeleTrusTObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.CMSAbsentContent;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.DefaultSignedAttributeTableGenerator;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.SignerInformationStore;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.DigestCalculator;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.tsp.TimeStampRequestGenerator;
+import org.bouncycastle.tsp.TimeStampToken;
+import org.bouncycastle.tsp.TimeStampTokenGenerator;
+
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Creates detached CMS signatures and RFC 3161 timestamp tokens over the hashes of a request with the test CA
+ */
+class MockSigner {
+
+    private static final ASN1ObjectIdentifier _TSA_POLICY = new ASN1ObjectIdentifier("1.3.6.1.4.1.4146.2.3");
+    /** signed attribute of OCSP responses and CRLs in PDF signatures */
+    private static final ASN1ObjectIdentifier _REVOCATION_INFO_ARCHIVAL = new ASN1ObjectIdentifier("1.2.840.113583.1.1.8");
+    private static final Map<String, DigestMethod> _DIGEST_METHODS = new HashMap<>();
+
+    static {
+        for (HashAlgorithm hashAlgorithm : HashAlgorithm.values())
+            _DIGEST_METHODS.put(hashAlgorithm.getHashUri(), DigestMethod.valueOf(hashAlgorithm.name()));
+    }
+
+    /**
+     * Digest algorithms of the DigestMethod uris with the matching RSA signature algorithm
+     */
+    private enum DigestMethod {
+        SHA224(NISTObjectIdentifiers.id_sha224, "SHA224withRSA"),
+        SHA256(NISTObjectIdentifiers.id_sha256, "SHA256withRSA"),
+        SHA384(NISTObjectIdentifiers.id_sha384, "SHA384withRSA"),
+        SHA512(NISTObjectIdentifiers.id_sha512, "SHA512withRSA"),
+        RIPEMD160(TeleTrusTObjectIdentifiers.ripemd160, "RIPEMD160withRSA");
+
+        private final ASN1ObjectIdentifier oid;
+        private final String signatureAlgorithm;
+
+        DigestMethod(ASN1ObjectIdentifier oid, String signatureAlgorithm) {
+            this.oid = oid;
+            this.signatureAlgorithm = signatureAlgorithm;
+        }
+    }
+
+    private final MockPki _pki;
+    private final MockOcspResponder _ocspResponder;
+    private final DigestCalculatorProvider _digestCalculatorProvider;
+
+    MockSigner(@NotNull MockPki pki) throws Exception {
+        this(pki, null);
+    }
+
+    /**
+     * @param pki
+     * @param ocspResponder creates the OCSP responses embedded with AddOcspResponse, null to embed none
+     */
+    MockSigner(@NotNull MockPki pki, MockOcspResponder ocspResponder) throws Exception {
+        this._pki = pki;
+        this._ocspResponder = ocspResponder;
+        this._digestCalculatorProvider = new JcaDigestCalculatorProviderBuilder().setProvider("BC").build();
+    }
+
+    /**
+     * Detached CMS signature over a document hash, the hash is the message digest attribute
+     *
+     * @param digestMethodUri
+     * @param hash
+     * @param distinguishedName subject of an on demand certificate, null for the static signer certificate
+     * @param addTimestamp      add a signature timestamp as unsigned attribute
+     */
+    @NotNull
+    byte[] sign(@NotNull String digestMethodUri, @NotNull byte[] hash, String distinguishedName, boolean addTimestamp) throws Exception {
+        return sign(digestMethodUri, hash, distinguishedName, addTimestamp, false);
+    }
+
+    /**
+     * Detached CMS signature over a document hash, the hash is the message digest attribute
+     *
+     * @param digestMethodUri
+     * @param hash
+     * @param distinguishedName subject of an on demand certificate, null for the static signer certificate
+     * @param addTimestamp      add a signature timestamp as unsigned attribute
+     * @param addOcsp           add the OCSP response of the signer certificate as revocation info archival attribute,
+     *                          only if the signer has an OCSP responder
+     */
+    @NotNull
+    byte[] sign(@NotNull String digestMethodUri, @NotNull byte[] hash, String distinguishedName, boolean addTimestamp,
+                boolean addOcsp) throws Exception {
+        DigestMethod digestMethod = getDigestMethod(digestMethodUri);
+        X509Certificate signerCert = distinguishedName != null ? _pki.issueOnDemand(distinguishedName) : _pki.getSignerCert();
+
+        // the content is not available, the digest calculator returns the hash computed by the client
+        DigestCalculatorProvider precomputed = algorithm -> new DigestCalculator() {
+            @Override
+            public AlgorithmIdentifier getAlgorithmIdentifier() {
+                return algorithm;
+            }
+
+            @Override
+            public OutputStream getOutputStream() {
+                return new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                    }
+                };
+            }
+
+            @Override
+            public byte[] getDigest() {
+                return hash;
+            }
+        };
+
+        JcaSignerInfoGeneratorBuilder signerInfoBuilder = new JcaSignerInfoGeneratorBuilder(precomputed);
+        if (addOcsp && _ocspResponder != null) {
+            // RevocationInfoArchival ::= SEQUENCE { crl [0], ocsp [1] EXPLICIT SEQUENCE OF OCSPResponse, otherRevInfo [2] }
+            DERSequence archival = new DERSequence(new DERTaggedObject(true, 1,
+                    new DERSequence(OCSPResponse.getInstance(_ocspResponder.respond(signerCert)))));
+            ASN1EncodableVector attributes = new ASN1EncodableVector();
+            attributes.add(new Attribute(_REVOCATION_INFO_ARCHIVAL, new DERSet(archival)));
+            signerInfoBuilder.setSignedAttributeGenerator(new DefaultSignedAttributeTableGenerator(new AttributeTable(attributes)));
+        }
+
+        CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+        generator.addSignerInfoGenerator(signerInfoBuilder.build(
+                new JcaContentSignerBuilder(digestMethod.signatureAlgorithm).setProvider("BC").build(_pki.getSignerKey()), signerCert));
+        generator.addCertificates(new JcaCertStore(Arrays.asList(signerCert, _pki.getCaCert())));
+        CMSSignedData signedData = generator.generate(new CMSAbsentContent(), false);
+
+        if (addTimestamp) {
+            SignerInformation signer = (SignerInformation) signedData.getSignerInfos().getSigners().iterator().next();
+            byte[] signatureHash = MessageDigest.getInstance("SHA-256").digest(signer.getSignature());
+            TimeStampToken token = timestamp(NISTObjectIdentifiers.id_sha256, signatureHash);
+
+            ASN1EncodableVector attributes = new ASN1EncodableVector();
+            attributes.add(new Attribute(PKCSObjectIdentifiers.id_aa_signatureTimeStampToken,
+                    new DERSet(ASN1Primitive.fromByteArray(token.getEncoded()))));
+            signer = SignerInformation.replaceUnsignedAttributes(signer, new AttributeTable(attributes));
+            signedData = CMSSignedData.replaceSigners(signedData, new SignerInformationStore(Collections.singletonList(signer)));
+        }
+        return signedData.getEncoded();
+    }
+
+    /**
+     * RFC 3161 timestamp token over a document hash
+     *
+     * @param digestMethodUri
+     * @param hash
+     */
+    @NotNull
+    byte[] timestamp(@NotNull String digestMethodUri, @NotNull byte[] hash) throws Exception {
+        return timestamp(getDigestMethod(digestMethodUri).oid, hash).getEncoded();
+    }
+
+    @NotNull
+    private TimeStampToken timestamp(@NotNull ASN1ObjectIdentifier digestAlgorithm, @NotNull byte[] hash) throws Exception {
+        TimeStampTokenGenerator generator = new TimeStampTokenGenerator(
+                new JcaSimpleSignerInfoGeneratorBuilder().setProvider("BC").build("SHA256withRSA", _pki.getTsaKey(), _pki.getTsaCert()),
+                _digestCalculatorProvider.get(new AlgorithmIdentifier(OIWObjectIdentifiers.idSHA1)), _TSA_POLICY);
+        generator.addCertificates(new JcaCertStore(Arrays.asList(_pki.getTsaCert(), _pki.getCaCert())));
+        TimeStampRequestGenerator requestGenerator = new TimeStampRequestGenerator();
+        requestGenerator.setCertReq(true);
+        return generator.generate(requestGenerator.generate(digestAlgorithm, hash), _pki.nextSerial(), new Date());
+    }
+
+    @NotNull
+    private static DigestMethod getDigestMethod(String digestMethodUri) {
+        DigestMethod digestMethod = _DIGEST_METHODS.get(digestMethodUri);
+        if (digestMethod == null)
+            throw new IllegalArgumentException("Unsupported DigestMethod " + digestMethodUri);
+        return digestMethod;
+    }
+}
@@ -0,0 +1,69 @@
+package dss;
+
+import com.sun.istack.internal.NotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line options of the form --name value
+ */
+class Options {
+
+    private final Map<String, String> _values = new HashMap<>();
+    private final String _usage;
+
+    /**
+     * Prints the usage and exits on --help or on malformed options
+     *
+     * @param args
+     * @param usage
+     */
+    Options(@NotNull String[] args, @NotNull String usage) {
+        this._usage = usage;
+        for (int i = 0; i < args.length; i++) {
+            if ("--help".equals(args[i]) || "-h".equals(args[i]))
+                exit(null);
+            if (!args[i].startsWith("--") || i + 1 == args.length)
+                exit("Invalid option " + args[i]);
+            _values.put(args[i].substring(2), args[++i]);
+        }
+    }
+
+    String get(@NotNull String name, String defaultValue) {
+        return _values.containsKey(name) ? _values.get(name) : defaultValue;
+    }
+
+    boolean has(@NotNull String name) {
+        return _values.containsKey(name);
+    }
+
+    int getInt(@NotNull String name, int defaultValue) {
+        return (int) getLong(name, defaultValue);
+    }
+
+    long getLong(@NotNull String name, long defaultValue) {
+        try {
+            return _values.containsKey(name) ? Long.parseLong(_values.get(name)) : defaultValue;
+        } catch (NumberFormatException e) {
+            exit("Invalid number for --" + name + ": " + _values.get(name));
+            return defaultValue;
+        }
+    }
+
+    double getDouble(@NotNull String name, double defaultValue) {
+        try {
+            return _values.containsKey(name) ? Double.parseDouble(_values.get(name)) : defaultValue;
+        } catch (NumberFormatException e) {
+            exit("Invalid number for --" + name + ": " + _values.get(name));
+            return defaultValue;
+        }
+    }
+
+    void exit(String message) {
+        if (message != null)
+            System.err.println(message);
+        System.err.println(_usage);
+        System.exit(message != null ? 1 : 0);
+    }
+}
@@ -0,0 +1,159 @@
+package dss;
+
+import com.itextpdf.text.pdf.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Digest of the byte range of a prepared document: one update per byte of the range stream as Pdf.getPdfHash did
+ * before, against the bulk updates of Pdf.digestStream and the memory-mapped Pdf.digestFileRanges. The document is
+ * prepared in memory as before, the mapped mode reads a copy of it in a file, so all modes digest the same bytes. The
+ * bytes counter is the number of bytes digested per second, divided by 1048576 it gives MB/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PdfDigestBenchmark {
+
+    @Param({"1024", "20480"})
+    public int pdfSizeKB;
+
+    @Param
+    public DigestMode mode;
+
+    @Param({"SHA256"})
+    public HashAlgorithm hashAlgorithm;
+
+    private File directory;
+    private PdfSignatureAppearance appearance;
+    private PdfSignature pdfSignature;
+    private File prepared;
+    private long[] ranges;
+    private long bytes;
+    private MessageDigest messageDigest;
+
+    /**
+     * Bytes digested, reported per second
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Digested {
+
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void prepareDocument() throws Exception {
+        BenchmarkData.addBouncyCastleProvider();
+        directory = BenchmarkData.createTempDirectory();
+        File input = BenchmarkData.createPdf(directory, pdfSizeKB);
+
+        // prepared up to preClose like Pdf.getPdfHash does
+        PdfReader pdfReader = new PdfReader(input.getPath());
+        PdfStamper pdfStamper = PdfStamper.createSignature(pdfReader, new FileOutputStream(new File(directory, "output.pdf")),
+                '\0', null, false);
+        appearance = pdfStamper.getSignatureAppearance();
+        pdfSignature = new PdfSignature(PdfName.ADOBE_PPKLITE, PdfName.ADBE_PKCS7_DETACHED);
+        pdfSignature.setDate(new PdfDate(Calendar.getInstance()));
+        appearance.setCryptoDictionary(pdfSignature);
+        HashMap<PdfName, Integer> exc = new HashMap<PdfName, Integer>();
+        exc.put(PdfName.CONTENTS, BenchmarkData.SIGNATURE_SIZE * 2 + 2);
+        appearance.preClose(exc);
+
+        // the range stream with the placeholder put back in between
+        PdfLiteral contents = (PdfLiteral) pdfSignature.get(PdfName.CONTENTS);
+        ByteArrayOutputStream range = new ByteArrayOutputStream();
+        try (InputStream rangeStream = appearance.getRangeStream()) {
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = rangeStream.read(buffer)) != -1)
+                range.write(buffer, 0, read);
+        }
+        byte[] rangeBytes = range.toByteArray();
+        prepared = new File(directory, "prepared.pdf");
+        try (OutputStream out = new FileOutputStream(prepared)) {
+            out.write(rangeBytes, 0, (int) contents.getPosition());
+            out.write(new byte[contents.getPosLength()]);
+            out.write(rangeBytes, (int) contents.getPosition(), rangeBytes.length - (int) contents.getPosition());
+        }
+        ranges = Pdf.getByteRange(contents, prepared.length());
+        bytes = rangeBytes.length;
+        messageDigest = MessageDigest.getInstance(hashAlgorithm.getHashAlgorythm());
+
+        byte[] expected = digest(DigestMode.MAPPED);
+        if (!Arrays.equals(expected, digest(mode)))
+            throw new IllegalStateException(mode + " computed a different digest");
+    }
+
+    @TearDown(Level.Trial)
+    public void closeDocument() throws Exception {
+        PdfLiteral contents = (PdfLiteral) pdfSignature.get(PdfName.CONTENTS);
+        PdfDictionary dic = new PdfDictionary();
+        dic.put(PdfName.CONTENTS, new PdfString(new byte[(contents.getPosLength() - 2) / 2]).setHexWriting(true));
+        appearance.close(dic);
+        BenchmarkData.delete(directory);
+    }
+
+    @Benchmark
+    public byte[] digest(Digested digested) throws IOException {
+        digested.bytes += bytes;
+        return digest(mode);
+    }
+
+    private byte[] digest(DigestMode digestMode) throws IOException {
+        digestMode.update(messageDigest, this);
+        return messageDigest.digest();
+    }
+
+    public enum DigestMode {
+
+        /**
+         * One update per byte of the range stream as before
+         */
+        PER_BYTE {
+            @Override
+            void update(MessageDigest messageDigest, PdfDigestBenchmark benchmark) throws IOException {
+                try (InputStream rangeStream = benchmark.appearance.getRangeStream()) {
+                    int i;
+                    while ((i = rangeStream.read()) != -1)
+                        messageDigest.update((byte) i);
+                }
+            }
+        },
+        STREAM {
+            @Override
+            void update(MessageDigest messageDigest, PdfDigestBenchmark benchmark) throws IOException {
+                try (InputStream rangeStream = benchmark.appearance.getRangeStream()) {
+                    Pdf.digestStream(messageDigest, rangeStream);
+                }
+            }
+        },
+        MAPPED {
+            @Override
+            void update(MessageDigest messageDigest, PdfDigestBenchmark benchmark) throws IOException {
+                Pdf.digestFileRanges(messageDigest, benchmark.prepared, benchmark.ranges);
+            }
+        };
+
+        abstract void update(MessageDigest messageDigest, PdfDigestBenchmark benchmark) throws IOException;
+    }
+}
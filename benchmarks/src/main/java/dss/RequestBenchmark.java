@@ -0,0 +1,63 @@
+package dss;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building and writing sign requests of a batch, as SOAP envelope or JSON
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+
+    @Param({"1", "10", "100", "500"})
+    public int batchSize;
+
+    @Param({"SOAP", "JSON"})
+    public MessageType messageType;
+
+    @Param
+    public HashAlgorithm hashAlgorithm;
+
+    private DSSRequest request;
+
+    @Setup(Level.Trial)
+    public void createRequest() throws Exception {
+        BenchmarkData.addBouncyCastleProvider();
+        int hashLength = java.security.MessageDigest.getInstance(hashAlgorithm.getHashAlgorythm()).getDigestLength();
+        String[] additionalProfiles = batchSize > 1 ? new String[]{AdditionalProfiles.BATCH.getProfileName()} : null;
+        request = DSSRequest.staticCert(42, hashAlgorithm.getHashUri(), BenchmarkData.randomBytes(batchSize, hashLength, 42),
+                additionalProfiles, "Firma XY:kp2-firma_xy", true, true);
+    }
+
+    @Benchmark
+    public long writeRequest() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        DSSConnection.RequestBody body = messageType.createBody(request);
+        body.getContentLength();
+        body.writeTo(out);
+        return out.count;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
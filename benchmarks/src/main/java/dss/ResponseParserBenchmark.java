@@ -0,0 +1,40 @@
+package dss;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing canned sign responses of a batch and decoding their signatures
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseParserBenchmark {
+
+    @Param({"1", "10", "100", "500"})
+    public int batchSize;
+
+    @Param({"SOAP", "JSON"})
+    public MessageType messageType;
+
+    private byte[] response;
+
+    @Setup(Level.Trial)
+    public void createResponse() throws IOException {
+        response = BenchmarkData.createSignResponse(messageType, batchSize);
+        DSSResponse parsed = parse();
+        if (!parsed.isSuccess() || parsed.getSignatures().size() != batchSize)
+            throw new IllegalStateException("Canned response not parsed: " + parsed);
+    }
+
+    @Benchmark
+    public DSSResponse parse() throws IOException {
+        return messageType.parse(new ByteArrayInputStream(response), "Base64Signature");
+    }
+}
@@ -0,0 +1,57 @@
+package dss;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pdf.sign: embedding a returned signature into a prepared document, written to the output or spilled to a temp file
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignPdfBenchmark {
+
+    private static final int _ESTIMATED_SIZE = SignatureSizeEstimator.Profile.cms(true, true, null).getDefaultSize();
+
+    @Param({"100", "1024", "20480"})
+    public int pdfSizeKB;
+
+    @Param({"false", "true"})
+    public boolean spill;
+
+    private File directory;
+    private File input;
+    private byte[] signature;
+    private Pdf pdf;
+    private int count;
+
+    @Setup(Level.Trial)
+    public void createDocument() throws Exception {
+        directory = BenchmarkData.createTempDirectory();
+        input = BenchmarkData.createPdf(directory, pdfSizeKB);
+        signature = BenchmarkData.randomBytes(1, BenchmarkData.SIGNATURE_SIZE, 1)[0];
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDocuments() {
+        BenchmarkData.delete(directory);
+    }
+
+    @Setup(Level.Invocation)
+    public void preparePdf() throws Exception {
+        pdf = new Pdf(input.getPath(), new File(directory, "output-" + count++ % 2 + ".pdf").getPath(), null,
+                "benchmark", "Bern", "Hans Mueller");
+        pdf.getPdfHash(Calendar.getInstance(), _ESTIMATED_SIZE, HashAlgorithm.SHA256.getHashAlgorythm(), false, spill);
+    }
+
+    @Benchmark
+    public void sign() throws Exception {
+        pdf.sign(signature, _ESTIMATED_SIZE);
+    }
+}
@@ -0,0 +1,66 @@
+package dss;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class BatchPlannerTest {
+
+    @Test
+    public void failuresOfAllBatchesAreMerged() throws Exception {
+        Pdf[] pdfs = pdfs(8);
+        BatchPlanner planner = BatchPlanner.fixed(2, 4);
+        IOException refused = new IOException("refused");
+        try {
+            planner.execute(pdfs, batch -> {
+                if (batch[0] == pdfs[2])
+                    throw refused;
+                if (batch[0] == pdfs[6]) {
+                    // second document of the batch signed
+                    LinkedHashMap<Pdf, String> failures = new LinkedHashMap<>();
+                    failures.put(batch[0], "ResponderError");
+                    throw new BatchSigningException(failures, 1, null);
+                }
+            });
+            fail();
+        } catch (BatchSigningException e) {
+            assertEquals(5, e.getSigned());
+            assertEquals(Arrays.asList(pdfs[2], pdfs[3], pdfs[6]), Arrays.asList(e.getFailures().keySet().toArray()));
+            assertEquals("ResponderError", e.getFailures().get(pdfs[6]));
+            assertSame(refused, e.getCause());
+        } finally {
+            planner.shutdown();
+        }
+    }
+
+    @Test
+    public void firstFailureIsThrownIfNothingIsSigned() throws Exception {
+        Pdf[] pdfs = pdfs(4);
+        BatchPlanner planner = BatchPlanner.fixed(2, 2);
+        try {
+            planner.execute(pdfs, batch -> {
+                throw new IOException(batch[0] == pdfs[0] ? "first" : "second");
+            });
+            fail();
+        } catch (IOException e) {
+            assertEquals("first", e.getMessage());
+            assertEquals(1, e.getSuppressed().length);
+            assertEquals("second", e.getSuppressed()[0].getMessage());
+        } finally {
+            planner.shutdown();
+        }
+    }
+
+    private static Pdf[] pdfs(int count) {
+        Pdf[] pdfs = new Pdf[count];
+        for (int i = 0; i < count; i++)
+            pdfs[i] = new Pdf("in" + i + ".pdf", "out" + i + ".pdf", null, "reason", "location", null);
+        return pdfs;
+    }
+}
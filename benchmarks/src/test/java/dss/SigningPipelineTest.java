@@ -0,0 +1,43 @@
+package dss;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class SigningPipelineTest {
+
+    @Test
+    public void failuresOfAllStagesAreMerged() throws Exception {
+        Pdf[] pdfs = new Pdf[6];
+        for (int i = 0; i < pdfs.length; i++)
+            pdfs[i] = new Pdf("in" + i + ".pdf", "out" + i + ".pdf", null, "reason", "location", null);
+        List<Pdf[]> batches = Arrays.asList(new Pdf[]{pdfs[0], pdfs[1]}, new Pdf[]{pdfs[2], pdfs[3]}, new Pdf[]{pdfs[4], pdfs[5]});
+        SigningPipeline pipeline = new SigningPipeline(1, 2, 1, 1);
+        IOException prepareFailure = new IOException("not found");
+        try {
+            pipeline.execute(batches, batch -> {
+                if (batch[0] == pdfs[0])
+                    throw prepareFailure;
+                return batch;
+            }, prepared -> prepared, submitted -> {
+                if (submitted[0] == pdfs[4])
+                    throw new SignatureException("invalid signature");
+                return null;
+            });
+            fail();
+        } catch (BatchSigningException e) {
+            assertEquals(2, e.getSigned());
+            assertEquals(Arrays.asList(pdfs[0], pdfs[1], pdfs[4], pdfs[5]), Arrays.asList(e.getFailures().keySet().toArray()));
+            assertSame(prepareFailure, e.getCause());
+        } finally {
+            pipeline.shutdown();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package dss;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * The templates must write the requests byte for byte as the former SAAJ messages. The golden files were written by
+ * createRequestMessage and createPendingRequestMessage before the templates replaced them.
+ */
+public class SoapRequestTemplateTest {
+
+    private static final String _CLAIMED_IDENTITY = "ais-90days-trial:M\u00fcller & S\u00f6hne <\"OnDemand\"> 'Qualified'";
+    private static final String _DISTINGUISHED_NAME = "cn=Hans M\u00fcller & Co. <AG>, givenname=\"Hans\", o='Test' > AG, c=CH";
+    private static final String _PHONE_NUMBER = "+41791234567";
+    private static final String _CERT_REQ_MSG = "Sign <3 documents> \"A & B\" f\u00fcr 'M\u00fcller'? (#TRANSID#)";
+    private static final String _CERT_REQ_MSG_LANG = "de";
+    private static final String _RESPONSE_ID = "a1b2c3d4-e5f6 & <7890> \"'";
+
+    @Test
+    public void staticCert() throws Exception {
+        assertGolden("static-cert-1.xml", DSSRequest.staticCert(1, HashAlgorithm.SHA256.getHashUri(),
+                hashes(HashAlgorithm.SHA256, 1), null, _CLAIMED_IDENTITY, false, false));
+        assertGolden("static-cert-3.xml", DSSRequest.staticCert(2, HashAlgorithm.SHA384.getHashUri(),
+                hashes(HashAlgorithm.SHA384, 3), profiles(AdditionalProfiles.BATCH), _CLAIMED_IDENTITY, true, false));
+        assertGolden("static-cert-12.xml", DSSRequest.staticCert(3, HashAlgorithm.SHA512.getHashUri(),
+                hashes(HashAlgorithm.SHA512, 12), profiles(AdditionalProfiles.BATCH, AdditionalProfiles.ASYNCHRON),
+                _CLAIMED_IDENTITY, true, true));
+    }
+
+    @Test
+    public void onDemandCert() throws Exception {
+        assertGolden("on-demand-cert-1.xml", DSSRequest.onDemandCert(4, HashAlgorithm.SHA256.getHashUri(),
+                hashes(HashAlgorithm.SHA256, 1), profiles(AdditionalProfiles.ON_DEMAND_CERTIFCATE), _CLAIMED_IDENTITY,
+                DSSRequest.CERTIFICATE_REQUEST_PROFILE, _DISTINGUISHED_NAME, true, true));
+        // any other certificate request profile is written as attribute and without the ns5 prefix
+        assertGolden("on-demand-cert-profile-3.xml", DSSRequest.onDemandCert(5, HashAlgorithm.SHA512.getHashUri(),
+                hashes(HashAlgorithm.SHA512, 3), profiles(AdditionalProfiles.ON_DEMAND_CERTIFCATE, AdditionalProfiles.BATCH),
+                _CLAIMED_IDENTITY, "urn:com:swisscom:dss:v1.0:profile & <test>", _DISTINGUISHED_NAME, false, true));
+        assertGolden("on-demand-cert-12.xml", DSSRequest.onDemandCert(6, HashAlgorithm.SHA512.getHashUri(),
+                hashes(HashAlgorithm.SHA512, 12), profiles(AdditionalProfiles.ON_DEMAND_CERTIFCATE, AdditionalProfiles.BATCH,
+                        AdditionalProfiles.ASYNCHRON), _CLAIMED_IDENTITY, DSSRequest.CERTIFICATE_REQUEST_PROFILE,
+                _DISTINGUISHED_NAME, false, false));
+    }
+
+    @Test
+    public void onDemandCertMobileId() throws Exception {
+        assertGolden("on-demand-cert-mobile-id-1.xml", DSSRequest.onDemandCertMobileId(7, HashAlgorithm.SHA256.getHashUri(),
+                hashes(HashAlgorithm.SHA256, 1), profiles(AdditionalProfiles.ON_DEMAND_CERTIFCATE), _CLAIMED_IDENTITY,
+                _DISTINGUISHED_NAME, _PHONE_NUMBER, _CERT_REQ_MSG, _CERT_REQ_MSG_LANG, false, false));
+        assertGolden("on-demand-cert-mobile-id-3.xml", DSSRequest.onDemandCertMobileId(8, HashAlgorithm.SHA512.getHashUri(),
+                hashes(HashAlgorithm.SHA512, 3), profiles(AdditionalProfiles.ON_DEMAND_CERTIFCATE, AdditionalProfiles.BATCH),
+                _CLAIMED_IDENTITY, _DISTINGUISHED_NAME, _PHONE_NUMBER, _CERT_REQ_MSG, _CERT_REQ_MSG_LANG, true, true));
+        assertGolden("on-demand-cert-mobile-id-12.xml", DSSRequest.onDemandCertMobileId(9, HashAlgorithm.SHA384.getHashUri(),
+                hashes(HashAlgorithm.SHA384, 12), profiles(AdditionalProfiles.ON_DEMAND_CERTIFCATE, AdditionalProfiles.BATCH,
+                        AdditionalProfiles.ASYNCHRON), _CLAIMED_IDENTITY, _DISTINGUISHED_NAME, _PHONE_NUMBER, _CERT_REQ_MSG,
+                _CERT_REQ_MSG_LANG, true, false));
+    }
+
+    @Test
+    public void timestampOnly() throws Exception {
+        assertGolden("timestamp-only-1.xml", DSSRequest.timestampOnly(10, HashAlgorithm.SHA256.getHashUri(),
+                hashes(HashAlgorithm.SHA256, 1), profiles(AdditionalProfiles.TIMESTAMP), _CLAIMED_IDENTITY));
+        assertGolden("timestamp-only-3.xml", DSSRequest.timestampOnly(11, HashAlgorithm.SHA384.getHashUri(),
+                hashes(HashAlgorithm.SHA384, 3), profiles(AdditionalProfiles.TIMESTAMP, AdditionalProfiles.BATCH),
+                _CLAIMED_IDENTITY));
+        assertGolden("timestamp-only-12.xml", DSSRequest.timestampOnly(12, HashAlgorithm.SHA512.getHashUri(),
+                hashes(HashAlgorithm.SHA512, 12), profiles(AdditionalProfiles.TIMESTAMP, AdditionalProfiles.BATCH,
+                        AdditionalProfiles.ASYNCHRON), _CLAIMED_IDENTITY));
+    }
+
+    @Test
+    public void pending() throws Exception {
+        assertGolden("pending.xml", DSSRequest.pending(_CLAIMED_IDENTITY, _RESPONSE_ID));
+    }
+
+    private static void assertGolden(String name, DSSRequest request) throws IOException {
+        byte[] expected = read("soap/" + name);
+        SoapRequestTemplate template = SoapRequestTemplate.forRequest(request);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        template.writeTo(out);
+        // compared as text first for a readable diff
+        assertEquals(name, new String(expected, StandardCharsets.UTF_8), new String(out.toByteArray(), StandardCharsets.UTF_8));
+        assertArrayEquals(name, expected, out.toByteArray());
+        assertEquals(name, expected.length, template.getContentLength());
+    }
+
+    private static byte[] read(String resource) throws IOException {
+        try (InputStream in = SoapRequestTemplateTest.class.getResourceAsStream(resource)) {
+            assertNotNull(resource, in);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Digests of fixed content, SHA-512 ones are long enough for the Base64 line break
+     */
+    private static byte[][] hashes(HashAlgorithm hashAlgorithm, int count) throws NoSuchAlgorithmException {
+        byte[][] hashes = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            MessageDigest messageDigest = MessageDigest.getInstance(hashAlgorithm.getHashAlgorythm());
+            hashes[i] = messageDigest.digest(("document " + i).getBytes(StandardCharsets.UTF_8));
+        }
+        return hashes;
+    }
+
+    private static String[] profiles(AdditionalProfiles... profiles) {
+        String[] names = new String[profiles.length];
+        for (int i = 0; i < profiles.length; i++)
+            names[i] = profiles[i].getProfileName();
+        return names;
+    }
+}
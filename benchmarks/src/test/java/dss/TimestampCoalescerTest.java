@@ -0,0 +1,110 @@
+package dss;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class TimestampCoalescerTest {
+
+    private static final String _DIGEST_METHOD = HashAlgorithm.SHA256.getHashUri();
+    private static final String _CLAIMED_IDENTITY = "client";
+
+    private final List<Integer> _sentDigests = new ArrayList<>();
+
+    @Test
+    public void sharedTokensFollowDocumentIdsOfShuffledResponse() throws Exception {
+        TimestampCoalescer coalescer = new TimestampCoalescer(60000, 100);
+        byte[][] batch = digests(0, 1, 2, 3);
+        DSSResponse response = coalescer.send(request(batch), hashes -> respond(hashes, new Random(42), -1));
+        for (int i = 0; i < batch.length; i++)
+            assertArrayEquals(token(batch[i]), response.getSignature(DSSRequest.getDocumentId(i, batch.length)));
+
+        // digest 2 comes from the cache, only digest 4 is sent
+        byte[][] second = digests(2, 4);
+        response = coalescer.send(request(second), hashes -> respond(hashes, new Random(7), -1));
+        assertArrayEquals(token(second[0]), response.getSignature("0"));
+        assertArrayEquals(token(second[1]), response.getSignature("1"));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), _sentDigests);
+    }
+
+    @Test
+    public void onlyDigestsWithoutTokenFail() throws Exception {
+        TimestampCoalescer coalescer = new TimestampCoalescer(60000, 100);
+        byte[][] batch = digests(0, 1, 2);
+        // the server leaves out digest 1
+        DSSResponse response = coalescer.send(request(batch), hashes -> respond(hashes, new Random(1), 1));
+        assertNull(response.getSignature("1"));
+
+        // digests 0 and 2 are cached, digest 1 is sent again
+        _sentDigests.clear();
+        byte[][] second = digests(0, 1, 2);
+        response = coalescer.send(request(second), hashes -> respond(hashes, new Random(2), -1));
+        for (int i = 0; i < second.length; i++)
+            assertArrayEquals(token(second[i]), response.getSignature(String.valueOf(i)));
+        assertEquals(Collections.singletonList(1), _sentDigests);
+    }
+
+    @Test
+    public void failedResponseFailsWaiters() throws Exception {
+        TimestampCoalescer coalescer = new TimestampCoalescer(60000, 100);
+        try {
+            coalescer.send(request(digests(0, 1)), hashes -> {
+                throw new IOException("refused");
+            });
+            fail();
+        } catch (IOException expected) {
+        }
+        // nothing is cached after a failure
+        DSSResponse response = coalescer.send(request(digests(0, 1)), hashes -> respond(hashes, new Random(3), -1));
+        assertArrayEquals(token(digests(1)[0]), response.getSignature("1"));
+    }
+
+    private DSSRequest request(byte[][] hashes) {
+        return DSSRequest.timestampOnly(1, _DIGEST_METHOD, hashes, null, _CLAIMED_IDENTITY);
+    }
+
+    /**
+     * Successful response with the tokens in random order, like the mock server with --shuffle true
+     *
+     * @param left out index of a digest without token, -1 for none
+     */
+    private DSSResponse respond(byte[][] hashes, Random random, int left) {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < hashes.length; i++) {
+            _sentDigests.add((int) hashes[i][0]);
+            if (i != left)
+                order.add(i);
+        }
+        Collections.shuffle(order, random);
+        DSSResponse response = new DSSResponse();
+        response.setResultMajor(RequestResult.Success.getResultUrn());
+        for (int i : order)
+            response.addSignature(DSSRequest.getDocumentId(i, hashes.length), token(hashes[i]));
+        return response;
+    }
+
+    private static byte[][] digests(int... values) {
+        byte[][] digests = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            digests[i] = new byte[32];
+            Arrays.fill(digests[i], (byte) values[i]);
+        }
+        return digests;
+    }
+
+    private static byte[] token(byte[] digest) {
+        byte[] token = Arrays.copyOf(digest, digest.length + 1);
+        token[digest.length] = (byte) 0xff;
+        return token;
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Created:
+ * 18.10.26 KW42 17:30
+ * </p>
+ * **********************************************************************************
+ * Splits large document arrays into batches and keeps several of them in flight   *
+ * **********************************************************************************
+ */
+
+import com.sun.istack.internal.NotNull;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BatchPlanner {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    public static final long DEFAULT_TARGET_LATENCY_MILLIS = 5000;
+    private static final double _SMOOTHING = 0.3;
+
+    private final int _maxBatchSize;
+    private final int _maxInFlight;
+    private final boolean _autoTuned;
+    private final long _targetLatencyMillis;
+    private final ExecutorService _executor;
+    private int _batchSize;
+    private double _millisPerDocument = -1;
+
+    private BatchPlanner(int maxBatchSize, int maxInFlight, boolean autoTuned, long targetLatencyMillis) {
+        if (maxBatchSize < 1 || maxInFlight < 1)
+            throw new IllegalArgumentException("Batch size and batches in flight must be at least 1");
+        this._maxBatchSize = maxBatchSize;
+        this._maxInFlight = maxInFlight;
+        this._autoTuned = autoTuned;
+        this._targetLatencyMillis = targetLatencyMillis;
+        // auto tuning starts small and grows while round trips stay below the target
+        this._batchSize = autoTuned ? Math.max(1, maxBatchSize / 4) : maxBatchSize;
+        this._executor = Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+            private final AtomicInteger _count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "dss-batch-" + _count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Planner with default settings: auto tuned batches of at most 100 documents, 4 in flight
+     */
+    public BatchPlanner() {
+        this(DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_IN_FLIGHT, true, DEFAULT_TARGET_LATENCY_MILLIS);
+    }
+
+    /**
+     * @param batchSize   documents per request
+     * @param maxInFlight requests sent at the same time
+     * @return planner with a fixed batch size
+     */
+    @NotNull
+    public static BatchPlanner fixed(int batchSize, int maxInFlight) {
+        return new BatchPlanner(batchSize, maxInFlight, false, 0);
+    }
+
+    /**
+     * @param maxBatchSize        upper bound of documents per request
+     * @param maxInFlight         requests sent at the same time
+     * @param targetLatencyMillis batch size is adjusted so that one request takes about this long
+     * @return planner adjusting the batch size to the observed round trip times
+     */
+    @NotNull
+    public static BatchPlanner autoTuned(int maxBatchSize, int maxInFlight, long targetLatencyMillis) {
+        return new BatchPlanner(maxBatchSize, maxInFlight, true, targetLatencyMillis);
+    }
+
+    public synchronized int getBatchSize() {
+        return _batchSize;
+    }
+
+    public int getMaxInFlight() {
+        return _maxInFlight;
+    }
+
+    /**
+     * Split documents into batches of nearly equal size, keeping their order
+     *
+     * @param pdfs
+     * @return batches covering all documents
+     */
+    @NotNull
+    public List<Pdf[]> split(@NotNull Pdf[] pdfs) {
+        int batchSize = getBatchSize();
+        int batches = Math.max(1, (pdfs.length + batchSize - 1) / batchSize);
+        List<Pdf[]> result = new ArrayList<>(batches);
+        int from = 0;
+        for (int i = 0; i < batches; i++) {
+            int size = pdfs.length / batches + (i < pdfs.length % batches ? 1 : 0);
+            result.add(Arrays.copyOfRange(pdfs, from, from + size));
+            from += size;
+        }
+        return result;
+    }
+
+    /**
+     * Feed the round trip time of a batch into the auto tuning
+     *
+     * @param documents
+     * @param millis
+     */
+    public synchronized void record(int documents, long millis) {
+        if (!_autoTuned || documents < 1)
+            return;
+        double millisPerDocument = (double) millis / documents;
+        _millisPerDocument = _millisPerDocument < 0 ? millisPerDocument :
+                _SMOOTHING * millisPerDocument + (1 - _SMOOTHING) * _millisPerDocument;
+        int size = (int) (_targetLatencyMillis / Math.max(_millisPerDocument, 1));
+        // grow at most by half per round trip so a single fast response does not jump to the max
+        size = Math.min(size, _batchSize + Math.max(1, _batchSize / 2));
+        _batchSize = Math.max(1, Math.min(_maxBatchSize, size));
+    }
+
+    /**
+     * Sign the documents batch by batch with up to max in flight batches at the same time. A failing batch does not
+     * stop the others, the failures are thrown once all batches are done.
+     *
+     * @param pdfs
+     * @param task signs one batch
+     * @throws BatchSigningException with the failed documents of all batches if some documents are signed
+     * @throws Exception             first failure in document order if no document is signed
+     */
+    public void execute(@NotNull Pdf[] pdfs, @NotNull BatchTask task) throws Exception {
+        List<Pdf[]> batches = split(pdfs);
+        if (batches.size() == 1) {
+            executeBatch(batches.get(0), task);
+            return;
+        }
+
+        List<Future<Void>> futures = new ArrayList<>(batches.size());
+        for (Pdf[] batch : batches) {
+            futures.add(_executor.submit(() -> {
+                executeBatch(batch, task);
+                return null;
+            }));
+        }
+
+        List<Exception> failures = new ArrayList<>(batches.size());
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+                failures.add(null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Future<Void> pending : futures)
+                    pending.cancel(true);
+                throw new InterruptedIOException("Interrupted while signing batches");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                failures.add(cause instanceof Exception ? (Exception) cause : new Exception(cause));
+            }
+        }
+        Exception failure = BatchSigningException.merge(batches, failures);
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Stop the batch threads
+     */
+    public void shutdown() {
+        _executor.shutdown();
+    }
+
+    private void executeBatch(@NotNull Pdf[] batch, @NotNull BatchTask task) throws Exception {
+        long start = System.currentTimeMillis();
+        task.sign(batch);
+        record(batch.length, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Signs one batch with a single request
+     */
+    public interface BatchTask {
+
+        void sign(@NotNull Pdf[] batch) throws Exception;
+    }
+}
@@ -0,0 +1,80 @@
+import com.sun.istack.internal.NotNull;
+import com.sun.istack.internal.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Some documents of a batch got no signature, the others are signed. The failed documents are discarded, their output
+ * files do not exist.
+ */
+public class BatchSigningException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<Pdf, String> failures;
+    private final int signed;
+
+    BatchSigningException(@NotNull Map<Pdf, String> failures, int signed, Throwable cause) {
+        super("Getting signatures failed for " + failures.size() + " of " + (failures.size() + signed) + " documents. Result: " +
+                failures.values().iterator().next(), cause);
+        this.failures = Collections.unmodifiableMap(failures);
+        this.signed = signed;
+    }
+
+    /**
+     * @return failed documents in batch order with the result or error of their last attempt
+     */
+    @NotNull
+    public Map<Pdf, String> getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return documents of the batch that are signed
+     */
+    public int getSigned() {
+        return signed;
+    }
+
+    /**
+     * Combine the outcome of the batches of one sign call
+     *
+     * @param batches  documents of each batch
+     * @param failures failure of each batch, null for a signed batch
+     * @return null if all batches are signed. If no document is signed the first failure with the others suppressed,
+     * else one BatchSigningException with the failed documents of all batches and the first failure as cause.
+     */
+    @Nullable
+    static Exception merge(@NotNull List<Pdf[]> batches, @NotNull List<Exception> failures) {
+        LinkedHashMap<Pdf, String> failed = new LinkedHashMap<>();
+        List<Exception> thrown = new ArrayList<>();
+        int signed = 0;
+        for (int i = 0; i < batches.size(); i++) {
+            Exception failure = failures.get(i);
+            if (failure == null) {
+                signed += batches.get(i).length;
+                continue;
+            }
+            if (failure instanceof BatchSigningException) {
+                failed.putAll(((BatchSigningException) failure).getFailures());
+                signed += ((BatchSigningException) failure).getSigned();
+            } else {
+                for (Pdf pdf : batches.get(i))
+                    failed.put(pdf, failure.toString());
+            }
+            thrown.add(failure);
+        }
+        if (thrown.isEmpty())
+            return null;
+        Exception first = thrown.get(0);
+        if (signed > 0)
+            return new BatchSigningException(failed, signed, first);
+        for (Exception failure : thrown.subList(1, thrown.size()))
+            first.addSuppressed(failure);
+        return first;
+    }
+}
@@ -0,0 +1,319 @@
+/**
+ * Created:
+ * 19.10.26 KW42 15:05
+ * </p>
+ * **********************************************************************************
+ * Adapts the number of requests in flight to the latency and errors of the server *
+ * **********************************************************************************
+ */
+
+import com.sun.istack.internal.NotNull;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side back pressure with additive increase, multiplicative decrease. Each request without trouble raises the
+ * limit by 1/limit, about one per round trip of all requests in flight. The limit shrinks
+ * <ul>
+ * <li>by half if the server reports an error: ResponderError, RequesterError outside of the mobile id dialog, HTTP 429,
+ * 502, 503, 504, timeouts and refused connections</li>
+ * <li>by a tenth if the round trip takes more than twice the fastest one seen for requests of the same size</li>
+ * </ul>
+ * Mobile ID requests wait for the user, their latency is not taken into account. Requests beyond the limit block, fail
+ * at once or fail after a timeout, see {@link #setWhenLimited}.
+ */
+public class ConcurrencyLimiter implements ConcurrencyLimiterMXBean {
+
+    public static final String OBJECT_NAME = "DSS:type=ConcurrencyLimiter";
+    public static final int DEFAULT_INITIAL_LIMIT = 8;
+    public static final int DEFAULT_MAX_LIMIT = 100;
+    private static final double _ERROR_BACKOFF = 0.5;
+    private static final double _LATENCY_BACKOFF = 0.9;
+    private static final double _LATENCY_TOLERANCE = 2.0;
+    /** the fastest round trip slowly drifts towards the observed ones, so a slower network is learnt again */
+    private static final double _BASELINE_DRIFT = 0.01;
+
+    private final int _minLimit;
+    private final int _maxLimit;
+    private double _limit;
+    private int _inFlight;
+    private int _waiting;
+    private long _rejected;
+    private WhenLimited _whenLimited = WhenLimited.BLOCK;
+    private long _timeoutNanos;
+    /** fastest round trip per power of two of the documents per request */
+    private final long[] _baselineNanos = new long[32];
+
+    /**
+     * What acquire does while the limit is reached
+     */
+    public enum WhenLimited {
+        /** wait until a request completes */
+        BLOCK,
+        /** throw a {@link LimitExceededException} at once */
+        FAIL_FAST,
+        /** wait up to the timeout, then throw a {@link LimitExceededException} */
+        TIMEOUT
+    }
+
+    /**
+     * How a completed request affects the limit
+     */
+    public enum Outcome {
+        /** served in time */
+        SUCCESS,
+        /** the server is overloaded or throttles */
+        DROPPED,
+        /** failed for reasons unrelated to load, e.g. an invalid request */
+        IGNORED
+    }
+
+    /**
+     * Limiter starting at 8 requests in flight, between 1 and 100
+     */
+    public ConcurrencyLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, 1, DEFAULT_MAX_LIMIT);
+    }
+
+    /**
+     * @param initialLimit
+     * @param minLimit     the limit never drops below, at least 1
+     * @param maxLimit
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit)
+            throw new IllegalArgumentException("Expected 1 <= min <= initial <= max limit");
+        this._minLimit = minLimit;
+        this._maxLimit = maxLimit;
+        this._limit = initialLimit;
+        Arrays.fill(_baselineNanos, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param whenLimited
+     * @param timeoutMillis longest wait for {@link WhenLimited#TIMEOUT}
+     */
+    public synchronized void setWhenLimited(@NotNull WhenLimited whenLimited, long timeoutMillis) {
+        this._whenLimited = whenLimited;
+        this._timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Wait for a free slot as configured by {@link #setWhenLimited}
+     *
+     * @param documents          documents of the request, requests of different sizes are compared separately
+     * @param latencySensitive   false if the round trip includes user interaction
+     * @return permit to release once the response arrived
+     * @throws LimitExceededException if no slot got free in time
+     * @throws InterruptedIOException
+     */
+    @NotNull
+    public Permit acquire(int documents, boolean latencySensitive) throws IOException {
+        long start = SigningMetrics.start();
+        synchronized (this) {
+            if (_inFlight >= (int) _limit) {
+                if (_whenLimited == WhenLimited.FAIL_FAST)
+                    throw reject();
+                long deadline = System.nanoTime() + _timeoutNanos;
+                _waiting++;
+                try {
+                    while (_inFlight >= (int) _limit) {
+                        if (_whenLimited == WhenLimited.BLOCK) {
+                            wait();
+                            continue;
+                        }
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0)
+                            throw reject();
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the concurrency limit");
+                } finally {
+                    _waiting--;
+                }
+            }
+            _inFlight++;
+        }
+        SigningMetrics.stop(SigningMetrics.Phase.LIMIT_WAIT, start);
+        return new Permit(documents, latencySensitive);
+    }
+
+    /**
+     * Outcome of a response. Subclasses may map service specific result codes.
+     *
+     * @param response
+     * @return effect on the limit
+     */
+    @NotNull
+    protected Outcome classify(@NotNull DSSResponse response) {
+        String resultMajor = response.getResultMajor();
+        if (response.isSuccess() || response.isPending())
+            return Outcome.SUCCESS;
+        if (resultMajor == null)
+            return Outcome.IGNORED;
+        if (resultMajor.endsWith(":ResponderError"))
+            return Outcome.DROPPED;
+        // a refused or cancelled mobile id dialog is the answer of the user, not of an overloaded server
+        String resultMinor = response.getResultMinor();
+        if (resultMajor.endsWith(":RequesterError") && (resultMinor == null || !resultMinor.contains(":MobileID:")))
+            return Outcome.DROPPED;
+        return Outcome.IGNORED;
+    }
+
+    /**
+     * Outcome of a failed request. Subclasses may map further exceptions.
+     *
+     * @param failure
+     * @return effect on the limit
+     */
+    @NotNull
+    protected Outcome classify(@NotNull Throwable failure) {
+        if (failure instanceof DSSHttpException) {
+            int status = ((DSSHttpException) failure).getStatusCode();
+            return status == 429 || status == 502 || status == 503 || status == 504 ? Outcome.DROPPED : Outcome.IGNORED;
+        }
+        if (failure instanceof SocketTimeoutException || failure instanceof ConnectException)
+            return Outcome.DROPPED;
+        // other I/O errors like reset connections are typical for an overloaded server as well
+        return failure instanceof IOException && !(failure instanceof InterruptedIOException) ? Outcome.DROPPED : Outcome.IGNORED;
+    }
+
+    @Override
+    public synchronized int getLimit() {
+        return (int) _limit;
+    }
+
+    @Override
+    public synchronized int getInFlight() {
+        return _inFlight;
+    }
+
+    @Override
+    public synchronized int getQueueDepth() {
+        return _waiting;
+    }
+
+    @Override
+    public synchronized long getRejected() {
+        return _rejected;
+    }
+
+    /**
+     * Register under {@link #OBJECT_NAME} at the platform MBean server
+     *
+     * @throws JMException
+     */
+    public void registerMBean() throws JMException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // registered before
+        }
+    }
+
+    public void unregisterMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name))
+            server.unregisterMBean(name);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "limit=" + (int) _limit + " inFlight=" + _inFlight + " waiting=" + _waiting + " rejected=" + _rejected;
+    }
+
+    @NotNull
+    private LimitExceededException reject() {
+        _rejected++;
+        SigningMetrics.count(SigningMetrics.Counter.LIMITED_REQUESTS, 1);
+        return new LimitExceededException("Concurrency limit of " + (int) _limit + " requests reached");
+    }
+
+    private synchronized void release(@NotNull Outcome outcome, int documents, boolean latencySensitive, long rttNanos) {
+        _inFlight--;
+        double limit = _limit;
+        if (outcome == Outcome.DROPPED) {
+            limit *= _ERROR_BACKOFF;
+        } else if (outcome == Outcome.SUCCESS) {
+            if (latencySensitive && isSlow(documents, rttNanos, limit <= _minLimit))
+                limit *= _LATENCY_BACKOFF;
+            else if ((_inFlight + 1) * 2 >= limit)
+                // only grow while at least half of the limit is used, an idle client would grow it without evidence
+                limit += 1 / limit;
+        }
+        _limit = Math.max(_minLimit, Math.min(_maxLimit, limit));
+        notifyAll();
+    }
+
+    /**
+     * @param atMinLimit slow round trips at the min limit are not caused by our own load, they move the baseline as well
+     */
+    private boolean isSlow(int documents, long rttNanos, boolean atMinLimit) {
+        int size = 32 - Integer.numberOfLeadingZeros(Math.max(1, documents) - 1);
+        long baseline = _baselineNanos[size];
+        if (rttNanos < baseline) {
+            _baselineNanos[size] = rttNanos;
+            return false;
+        }
+        boolean slow = rttNanos > baseline * _LATENCY_TOLERANCE;
+        if (!slow || atMinLimit)
+            _baselineNanos[size] = baseline + (long) ((rttNanos - baseline) * _BASELINE_DRIFT);
+        return slow;
+    }
+
+    /**
+     * Slot of one request in flight, released exactly once with its response or failure
+     */
+    public class Permit {
+
+        private final int _documents;
+        private final boolean _latencySensitive;
+        private final long _start = System.nanoTime();
+        private boolean _released;
+
+        private Permit(int documents, boolean latencySensitive) {
+            this._documents = documents;
+            this._latencySensitive = latencySensitive;
+        }
+
+        public void release(@NotNull DSSResponse response) {
+            release(classify(response));
+        }
+
+        public void release(@NotNull Throwable failure) {
+            release(classify(failure));
+        }
+
+        public void release(@NotNull Outcome outcome) {
+            if (_released)
+                return;
+            _released = true;
+            ConcurrencyLimiter.this.release(outcome, _documents, _latencySensitive, System.nanoTime() - _start);
+        }
+    }
+
+    /**
+     * No slot got free in time
+     */
+    public static class LimitExceededException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public LimitExceededException(@NotNull String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+/**
+ * JMX view of a {@link ConcurrencyLimiter}
+ */
+public interface ConcurrencyLimiterMXBean {
+
+    /**
+     * @return requests allowed in flight at the moment
+     */
+    int getLimit();
+
+    int getInFlight();
+
+    /**
+     * @return requests waiting for a slot
+     */
+    int getQueueDepth();
+
+    /**
+     * @return requests that failed because no slot got free in time
+     */
+    long getRejected();
+}
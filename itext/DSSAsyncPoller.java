@@ -0,0 +1,194 @@
+/**
+ * Created:
+ * 18.10.26 KW42 11:05
+ * </p>
+ * **********************************************************************************
+ * Shared scheduler polling outstanding asynchronous DSS requests                   *
+ * **********************************************************************************
+ */
+
+import com.sun.istack.internal.NotNull;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DSSAsyncPoller {
+
+    public static final long DEFAULT_INITIAL_DELAY_MILLIS = 1000;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 10000;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10 * 60 * 1000;
+    private static final double _BACKOFF_FACTOR = 1.5;
+    private static final int _MAX_CONSECUTIVE_ERRORS = 3;
+
+    private final ScheduledThreadPoolExecutor _scheduler;
+    private final Executor _completionExecutor;
+    private final long _initialDelayMillis;
+    private final long _maxDelayMillis;
+    private final long _timeoutMillis;
+    private final Set<CompletableFuture<?>> _outstanding = ConcurrentHashMap.newKeySet();
+    private boolean _ownsCompletionExecutor;
+
+    /**
+     * Poller with the default delays and one completion thread per processor. Embedding blocks on file and network
+     * I/O, so it does not run in the common fork join pool.
+     */
+    public DSSAsyncPoller() {
+        this(2, DEFAULT_INITIAL_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_TIMEOUT_MILLIS,
+                Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), threadFactory("dss-async-completion-")));
+        this._ownsCompletionExecutor = true;
+    }
+
+    /**
+     * @param threads            threads sending the pending requests, a few are enough for thousands of outstanding requests
+     * @param initialDelayMillis delay before the first poll
+     * @param maxDelayMillis     upper bound of the growing delay between two polls
+     * @param timeoutMillis      requests still pending after this time fail with a TimeoutException
+     * @param completionExecutor runs the work attached to completed requests, e.g. embedding signatures
+     */
+    public DSSAsyncPoller(int threads, long initialDelayMillis, long maxDelayMillis, long timeoutMillis,
+                          @NotNull Executor completionExecutor) {
+        this._initialDelayMillis = initialDelayMillis;
+        this._maxDelayMillis = maxDelayMillis;
+        this._timeoutMillis = timeoutMillis;
+        this._completionExecutor = completionExecutor;
+        this._scheduler = new ScheduledThreadPoolExecutor(threads, threadFactory("dss-async-poller-"));
+        this._scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    @NotNull
+    private static ThreadFactory threadFactory(@NotNull String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger _count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, prefix + _count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Poll until the task returns a result. The delay between polls grows from the initial to the max delay.
+     *
+     * @param task
+     * @return future completed with the first non null result of the task
+     */
+    @NotNull
+    public <T> CompletableFuture<T> poll(@NotNull PollTask<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        _outstanding.add(future);
+        future.whenComplete((result, error) -> _outstanding.remove(future));
+        schedule(new Attempt<>(task, future, System.currentTimeMillis()), _initialDelayMillis);
+        return future;
+    }
+
+    /**
+     * @return number of requests still polled
+     */
+    public int getOutstanding() {
+        return _outstanding.size();
+    }
+
+    @NotNull
+    public Executor getCompletionExecutor() {
+        return _completionExecutor;
+    }
+
+    /**
+     * Stop polling. Outstanding futures fail with an IOException, so that the work attached to them, e.g. discarding
+     * the prepared documents, still runs on the completion executor. A completion executor passed to the constructor
+     * is left running.
+     */
+    public void shutdown() {
+        _scheduler.shutdownNow();
+        for (CompletableFuture<?> future : _outstanding)
+            future.completeExceptionally(new IOException("Poller shut down"));
+        if (_ownsCompletionExecutor)
+            ((ExecutorService) _completionExecutor).shutdown();
+    }
+
+    private void schedule(@NotNull Attempt<?> attempt, long delayMillis) {
+        // jitter spreads requests submitted at the same time
+        long jitter = delayMillis / 10;
+        long delay = jitter > 0 ? delayMillis - jitter + ThreadLocalRandom.current().nextLong(2 * jitter) : delayMillis;
+        try {
+            _scheduler.schedule(attempt, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            attempt._future.completeExceptionally(new IOException("Poller shut down"));
+        }
+    }
+
+    /**
+     * One poll of a pending request
+     */
+    public interface PollTask<T> {
+
+        /**
+         * @return result or null if the request is still pending
+         * @throws Exception
+         */
+        T poll() throws Exception;
+    }
+
+    private class Attempt<T> implements Runnable {
+
+        private final PollTask<T> _task;
+        private final CompletableFuture<T> _future;
+        private final long _started;
+        private long _delayMillis;
+        private int _errors;
+
+        Attempt(PollTask<T> task, CompletableFuture<T> future, long started) {
+            this._task = task;
+            this._future = future;
+            this._started = started;
+            this._delayMillis = _initialDelayMillis;
+        }
+
+        @Override
+        public void run() {
+            if (_future.isDone())
+                return;
+
+            try {
+                T result = _task.poll();
+                _errors = 0;
+                if (result != null) {
+                    _future.complete(result);
+                    return;
+                }
+            } catch (IOException e) {
+                // network errors are retried with the regular backoff
+                if (++_errors >= _MAX_CONSECUTIVE_ERRORS) {
+                    _future.completeExceptionally(e);
+                    return;
+                }
+            } catch (Exception e) {
+                _future.completeExceptionally(e);
+                return;
+            }
+
+            if (System.currentTimeMillis() - _started > _timeoutMillis) {
+                _future.completeExceptionally(new TimeoutException("Request still pending after " + _timeoutMillis + " ms"));
+                return;
+            }
+
+            _delayMillis = Math.min((long) (_delayMillis * _BACKOFF_FACTOR), _maxDelayMillis);
+            schedule(this, _delayMillis);
+        }
+    }
+}
@@ -14,7 +14,10 @@ import com.sun.istack.internal.NotNull;
 import com.sun.istack.internal.Nullable;
 
 import javax.net.ssl.*;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.URL;
 import java.net.URLConnection;
@@ -22,9 +25,17 @@ import java.security.*;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class DSSConnection {
 
+    public static final int DEFAULT_POOL_SIZE = 8;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30000;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+    /** covers the mobile id step up, the server waits for the user up to a few minutes */
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 180000;
+
     private boolean _debug;
     private String _url;
     private String _privateKey;
@@ -34,11 +45,40 @@ public class DSSConnection {
     private String _trustStore;
     private String _keyStorePass;
     private String _trustStorePass;
+    private int _poolSize;
+    private long _idleTimeoutMillis;
+    private volatile int _connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private volatile int _readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+    private volatile SSLSocketFactory _socketFactory;
+    private final ConcurrentMap<String, DSSConnectionPool> _pools = new ConcurrentHashMap<>();
 
     public DSSConnection(@NotNull String url,@NotNull  String privateKey,@NotNull  String serverCert,@NotNull  String clientCert,
                          @NotNull String keyStoreName,@NotNull  String trustStoreName,
                          @NotNull String keyStorePass,@NotNull  String trustStorePass, boolean debug) {
+        this(privateKey, serverCert, clientCert, keyStoreName, trustStoreName, keyStorePass, trustStorePass,
+                DEFAULT_POOL_SIZE, DEFAULT_IDLE_TIMEOUT_MILLIS, debug);
         this._url = url;
+    }
+
+    /**
+     * Long-lived connection for one credential set. Key and trust stores are loaded once, the ssl context is shared by
+     * all requests so TLS sessions are resumed and connections are kept alive per host.
+     *
+     * @param privateKey
+     * @param serverCert
+     * @param clientCert
+     * @param keyStoreName
+     * @param trustStoreName
+     * @param keyStorePass
+     * @param trustStorePass
+     * @param poolSize          max open connections per host
+     * @param idleTimeoutMillis idle connections are closed after this time
+     * @param debug
+     */
+    public DSSConnection(@NotNull String privateKey, @NotNull String serverCert, @NotNull String clientCert,
+                         @NotNull String keyStoreName, @NotNull String trustStoreName,
+                         @NotNull String keyStorePass, @NotNull String trustStorePass,
+                         int poolSize, long idleTimeoutMillis, boolean debug) {
         this._privateKey = privateKey;
         this._serverCert = serverCert;
         this._clientCert = clientCert;
@@ -46,45 +86,205 @@ public class DSSConnection {
         this._trustStore = trustStoreName;
         this._keyStorePass = keyStorePass;
         this._trustStorePass = trustStorePass;
+        this._poolSize = poolSize;
+        this._idleTimeoutMillis = idleTimeoutMillis;
         this._debug = debug;
     }
 
     @Nullable
     public URLConnection getConnection() {
 
-        System.setProperty("javax.net.ssl.keyStore", _keyStore);
-        System.setProperty("javax.net.ssl.trustStore", _trustStore);
-        System.setProperty("javax.net.ssl.keyStorePassword", _keyStorePass);
-        System.setProperty("javax.net.ssl.trustStorePassword", _trustStorePass);
-
         try {
-            KeyManager[] keyManagers = createKeyManagers(_keyStore, _keyStorePass, _clientCert);
-            TrustManager[] trustManagers = createTrustManagers(_trustStore, _trustStorePass);
-            SSLSocketFactory factory = initItAll(keyManagers, trustManagers);
-            URLConnection con = createConnectionObject(_url, factory);
-
-            return con;
-
-        } catch (KeyStoreException e) {
-            e.printStackTrace();
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (CertificateException e) {
-            e.printStackTrace();
+            return createConnectionObject(_url, getSocketFactory());
         } catch (IOException e) {
             e.printStackTrace();
-        } catch (UnrecoverableKeyException e) {
-            e.printStackTrace();
-        } catch (KeyManagementException e) {
+        } catch (GeneralSecurityException e) {
             e.printStackTrace();
         }
 
         return null;
     }
 
+    /**
+     * POST a request over a pooled keep-alive connection
+     *
+     * @param urlString
+     * @param contentType
+     * @param body
+     * @return response, must be closed to hand the connection back to the pool
+     * @throws IOException
+     * @throws GeneralSecurityException if key or trust store can not be loaded
+     */
+    @NotNull
+    public DSSHttpResponse post(@NotNull String urlString, @NotNull String contentType, @NotNull byte[] body)
+            throws IOException, GeneralSecurityException {
+        return post(urlString, new RequestBody() {
+            @Override
+            public String getContentType() {
+                return contentType;
+            }
+
+            @Override
+            public long getContentLength() {
+                return body.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(body);
+            }
+        });
+    }
+
+    /**
+     * POST a request over a pooled keep-alive connection. The body is written straight into the connection and may be
+     * written a second time if a stale connection has to be replaced.
+     *
+     * @param urlString
+     * @param body
+     * @return response, must be closed to hand the connection back to the pool
+     * @throws IOException
+     * @throws GeneralSecurityException if key or trust store can not be loaded
+     */
+    @NotNull
+    public DSSHttpResponse post(@NotNull String urlString, @NotNull RequestBody body)
+            throws IOException, GeneralSecurityException {
+        return post(urlString, body, null);
+    }
+
+    /**
+     * POST a request over a pooled keep-alive connection
+     *
+     * @param urlString
+     * @param body
+     * @param accept    accepted response content type, no header is sent if null
+     * @return response, must be closed to hand the connection back to the pool
+     * @throws IOException
+     * @throws GeneralSecurityException if key or trust store can not be loaded
+     */
+    @NotNull
+    public DSSHttpResponse post(@NotNull String urlString, @NotNull RequestBody body, @Nullable String accept)
+            throws IOException, GeneralSecurityException {
+        URL url = new URL(urlString);
+        if (!"https".equalsIgnoreCase(url.getProtocol()))
+            throw new IOException("Only https is supported: " + urlString);
+
+        DSSConnectionPool pool = getPool(url);
+        String path = url.getFile().length() == 0 ? "/" : url.getFile();
+        String host = url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort();
+        byte[] head = ("POST " + path + " HTTP/1.1\r\n" +
+                "Host: " + host + "\r\n" +
+                (accept != null ? "Accept: " + accept + "\r\n" : "") +
+                "Content-Type: " + body.getContentType() + "\r\n" +
+                "Content-Length: " + body.getContentLength() + "\r\n" +
+                "Connection: keep-alive\r\n\r\n").getBytes("ISO-8859-1");
+
+        SigningMetrics.value(SigningMetrics.Histogram.REQUEST_BYTES, body.getContentLength());
+        while (true) {
+            long start = SigningMetrics.start();
+            DSSConnectionPool.PooledConnection connection = pool.acquire(_connectTimeoutMillis);
+            start = SigningMetrics.lap(SigningMetrics.Phase.CONNECTION_ACQUIRE, start);
+            boolean reused = connection.isReused();
+            if (reused)
+                SigningMetrics.count(SigningMetrics.Counter.CONNECTIONS_REUSED, 1);
+            boolean written = false;
+            try {
+                connection.setReadTimeout(_readTimeoutMillis);
+                OutputStream out = connection.getOutputStream();
+                out.write(head);
+                body.writeTo(out);
+                out.flush();
+                written = true;
+                start = SigningMetrics.lap(SigningMetrics.Phase.REQUEST_WRITE, start);
+                DSSHttpResponse response = DSSHttpResponse.read(pool, connection);
+                SigningMetrics.stop(SigningMetrics.Phase.SERVER_WAIT, start);
+                return response;
+            } catch (IOException e) {
+                pool.release(connection, false);
+                // the server may have closed the idle connection meanwhile, retry on the next one. Once the request is
+                // written only a close without any response byte is stale, a reset while waiting may come after the
+                // server processed the request.
+                boolean stale = written ? e instanceof DSSHttpResponse.NoResponseException :
+                        e instanceof EOFException || e instanceof SSLException || e instanceof java.net.SocketException;
+                if (!reused || !stale)
+                    throw e;
+                SigningMetrics.count(SigningMetrics.Counter.STALE_CONNECTIONS, 1);
+                if (_debug)
+                    System.out.println("Stale connection to " + host + ", retrying: " + e);
+            } catch (RuntimeException | Error e) {
+                pool.release(connection, false);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Limits of connect and response. A read timeout fails the request with a SocketTimeoutException, it is not retried
+     * because the server may have processed it.
+     *
+     * @param connectTimeoutMillis connect and TLS handshake of a new connection, 0 for none
+     * @param readTimeoutMillis    longest silence of the server while waiting for the response, 0 for none
+     */
+    public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+        if (connectTimeoutMillis < 0 || readTimeoutMillis < 0)
+            throw new IllegalArgumentException("Timeouts must not be negative");
+        this._connectTimeoutMillis = connectTimeoutMillis;
+        this._readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Close all idle pooled connections
+     */
+    public void close() {
+        for (DSSConnectionPool pool : _pools.values())
+            pool.close();
+        _pools.clear();
+    }
+
+    @NotNull
+    private DSSConnectionPool getPool(@NotNull URL url) throws GeneralSecurityException, IOException {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        String key = url.getHost() + ":" + port;
+        DSSConnectionPool pool = _pools.get(key);
+        if (pool == null) {
+            DSSConnectionPool created = new DSSConnectionPool(getSocketFactory(), url.getHost(), port, _poolSize,
+                    _idleTimeoutMillis, _debug);
+            pool = _pools.putIfAbsent(key, created);
+            if (pool == null)
+                pool = created;
+        }
+        return pool;
+    }
+
+    /**
+     * Load key and trust store once and keep the resulting factory. No system properties are touched.
+     *
+     * @return socket factory of the shared ssl context
+     */
+    @NotNull
+    private SSLSocketFactory getSocketFactory() throws GeneralSecurityException, IOException {
+        SSLSocketFactory factory = _socketFactory;
+        if (factory == null) {
+            synchronized (this) {
+                factory = _socketFactory;
+                if (factory == null) {
+                    long start = SigningMetrics.start();
+                    KeyManager[] keyManagers = createKeyManagers(_keyStore, _keyStorePass, _clientCert);
+                    TrustManager[] trustManagers = createTrustManagers(_trustStore, _trustStorePass);
+                    SigningMetrics.stop(SigningMetrics.Phase.KEY_STORE_LOAD, start);
+                    factory = initItAll(keyManagers, trustManagers);
+                    _socketFactory = factory;
+                }
+            }
+        }
+        return factory;
+    }
+
     private URLConnection createConnectionObject(@NotNull String urlString,@NotNull  SSLSocketFactory sslSocketFactory) throws IOException {
         URL url = new URL(urlString);
         URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(_connectTimeoutMillis);
+        connection.setReadTimeout(_readTimeoutMillis);
         if (connection instanceof HttpsURLConnection) {
             ((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
         }
@@ -95,15 +295,18 @@ public class DSSConnection {
             throws NoSuchAlgorithmException, KeyManagementException {
         SSLContext context = SSLContext.getInstance("TLS");
         context.init(keyManagers, trustManagers, null);
+        // sessions are resumed on new connections as long as they are cached
+        context.getClientSessionContext().setSessionTimeout(24 * 60 * 60);
         SSLSocketFactory socketFactory = context.getSocketFactory();
         return socketFactory;
     }
 
     private KeyManager[] createKeyManagers(@NotNull String keyStoreFileName,@NotNull  String keyStorePassword,@NotNull  String alias)
             throws IOException, KeyStoreException, NoSuchAlgorithmException, UnrecoverableKeyException, CertificateException {
-        java.io.InputStream inputStream = new java.io.FileInputStream(keyStoreFileName);
         KeyStore keyStore = KeyStore.getInstance("JKS");
-        keyStore.load(inputStream, keyStorePassword == null ? null : keyStorePassword.toCharArray());
+        try (InputStream inputStream = new java.io.FileInputStream(keyStoreFileName)) {
+            keyStore.load(inputStream, keyStorePassword == null ? null : keyStorePassword.toCharArray());
+        }
         if (_debug) {
             printKeystoreInfo(keyStore);
         }
@@ -111,9 +314,7 @@ public class DSSConnection {
         KeyManager[] managers;
         if (alias != null) {
             managers =
-                    new KeyManager[]{new DSSConnection(_url, _privateKey, _serverCert, _clientCert, _keyStore, _trustStore,
-                                     _keyStorePass, _trustStorePass, _debug).new AliasKeyManager(keyStore, alias, keyStorePassword,
-                                     _privateKey, _serverCert, _clientCert)};
+                    new KeyManager[]{new AliasKeyManager(keyStore, alias, keyStorePassword, _privateKey, _serverCert, _clientCert)};
         } else {
             KeyManagerFactory keyManagerFactory =
                     KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
@@ -125,9 +326,10 @@ public class DSSConnection {
 
     private TrustManager[] createTrustManagers(@NotNull String trustStoreFileName,@NotNull  String trustStorePassword)
             throws KeyStoreException, NoSuchAlgorithmException, IOException, java.security.cert.CertificateException {
-        java.io.InputStream inputStream = new java.io.FileInputStream(trustStoreFileName);
         KeyStore trustStore = KeyStore.getInstance("JKS");
-        trustStore.load(inputStream, trustStorePassword == null ? null : trustStorePassword.toCharArray());
+        try (InputStream inputStream = new java.io.FileInputStream(trustStoreFileName)) {
+            trustStore.load(inputStream, trustStorePassword == null ? null : trustStorePassword.toCharArray());
+        }
         if (_debug) {
             printKeystoreInfo(trustStore);
         }
@@ -148,6 +350,27 @@ public class DSSConnection {
         }
     }
 
+    /**
+     * Request body written directly into the connection
+     */
+    public interface RequestBody {
+
+        String getContentType();
+
+        /**
+         * @return exact number of bytes written by writeTo
+         */
+        long getContentLength() throws IOException;
+
+        /**
+         * May be called more than once and must write the same bytes each time
+         *
+         * @param out
+         * @throws IOException
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
     private class AliasKeyManager implements X509KeyManager {
 
         private KeyStore _ks;
@@ -0,0 +1,219 @@
+/**
+ * Created:
+ * 18.10.26 KW42 09:12
+ * </p>
+ * **********************************************************************************
+ * Pool of persistent TLS connections to one host                                   *
+ * **********************************************************************************
+ */
+
+import com.sun.istack.internal.NotNull;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class DSSConnectionPool {
+
+    private final SSLSocketFactory _socketFactory;
+    private final String _host;
+    private final int _port;
+    private final long _idleTimeoutMillis;
+    private final boolean _debug;
+    private final Semaphore _permits;
+    private final ArrayDeque<PooledConnection> _idle = new ArrayDeque<>();
+    private boolean _closed;
+
+    /**
+     * @param socketFactory     factory of the ssl context shared by all pools of one credential set
+     * @param host
+     * @param port
+     * @param maxConnections    upper bound of open connections, callers block when all are in use
+     * @param idleTimeoutMillis idle connections older than this are closed instead of being reused
+     * @param debug
+     */
+    public DSSConnectionPool(@NotNull SSLSocketFactory socketFactory, @NotNull String host, int port, int maxConnections,
+                             long idleTimeoutMillis, boolean debug) {
+        if (maxConnections < 1)
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        this._socketFactory = socketFactory;
+        this._host = host;
+        this._port = port;
+        this._idleTimeoutMillis = idleTimeoutMillis;
+        this._debug = debug;
+        this._permits = new Semaphore(maxConnections, true);
+    }
+
+    /**
+     * Take an idle connection or open a new one. Blocks while the pool is exhausted, at most for the connect timeout.
+     *
+     * @param connectTimeoutMillis limit of waiting for a free connection and of connect and TLS handshake of a new
+     *                             one, 0 for none
+     * @return connection which must be handed back with {@link #release(PooledConnection, boolean)}
+     * @throws SocketTimeoutException if no connection became free in time
+     * @throws IOException
+     */
+    @NotNull
+    public PooledConnection acquire(int connectTimeoutMillis) throws IOException {
+        try {
+            if (connectTimeoutMillis == 0)
+                _permits.acquire();
+            else if (!_permits.tryAcquire(connectTimeoutMillis, TimeUnit.MILLISECONDS))
+                throw new SocketTimeoutException("No free connection to " + _host + " within " + connectTimeoutMillis + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection to " + _host);
+        }
+
+        try {
+            PooledConnection connection = pollIdle();
+            if (connection != null)
+                return connection;
+            return open(connectTimeoutMillis);
+        } catch (IOException | RuntimeException e) {
+            _permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Return a connection to the pool
+     *
+     * @param connection
+     * @param reusable   false if the connection is in an unknown state and must be closed
+     */
+    public void release(@NotNull PooledConnection connection, boolean reusable) {
+        try {
+            synchronized (_idle) {
+                if (reusable && !_closed && !connection._socket.isClosed()) {
+                    connection._lastUsed = System.currentTimeMillis();
+                    connection._reused = true;
+                    _idle.addFirst(connection);
+                    return;
+                }
+            }
+            connection.close();
+        } finally {
+            _permits.release();
+        }
+    }
+
+    /**
+     * Close all idle connections. Connections in use are closed when they are released.
+     */
+    public void close() {
+        synchronized (_idle) {
+            _closed = true;
+            for (PooledConnection connection : _idle)
+                connection.close();
+            _idle.clear();
+        }
+    }
+
+    private PooledConnection pollIdle() {
+        long now = System.currentTimeMillis();
+        synchronized (_idle) {
+            PooledConnection connection;
+            while ((connection = _idle.pollFirst()) != null) {
+                if (now - connection._lastUsed < _idleTimeoutMillis && !connection._socket.isClosed())
+                    return connection;
+                connection.close();
+            }
+        }
+        return null;
+    }
+
+    private PooledConnection open(int connectTimeoutMillis) throws IOException {
+        long start = SigningMetrics.start();
+        // connected first so that the connect honours the timeout, the TLS layer keeps host and port for SNI and resumption
+        Socket plain = new Socket();
+        SSLSocket socket;
+        try {
+            plain.connect(new InetSocketAddress(_host, _port), connectTimeoutMillis);
+            socket = (SSLSocket) _socketFactory.createSocket(plain, _host, _port, true);
+        } catch (IOException e) {
+            plain.close();
+            throw e;
+        }
+        try {
+            socket.setKeepAlive(true);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(connectTimeoutMillis);
+            // the server certificate must be issued for the host, not just chain to the trust store
+            SSLParameters parameters = socket.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            socket.setSSLParameters(parameters);
+            socket.startHandshake();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        SigningMetrics.stop(SigningMetrics.Phase.TLS_HANDSHAKE, start);
+        SigningMetrics.count(SigningMetrics.Counter.CONNECTIONS_OPENED, 1);
+
+        if (_debug)
+            System.out.println("New connection to " + _host + ":" + _port + " with session " + socket.getSession());
+
+        return new PooledConnection(socket);
+    }
+
+    public static class PooledConnection {
+
+        private final SSLSocket _socket;
+        private final InputStream _in;
+        private final OutputStream _out;
+        private long _lastUsed;
+        private boolean _reused;
+
+        private PooledConnection(@NotNull SSLSocket socket) throws IOException {
+            this._socket = socket;
+            this._in = new BufferedInputStream(socket.getInputStream(), 8192);
+            this._out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+        }
+
+        public InputStream getInputStream() {
+            return _in;
+        }
+
+        public OutputStream getOutputStream() {
+            return _out;
+        }
+
+        /**
+         * @param readTimeoutMillis limit of a single read while waiting for the response, 0 for none
+         * @throws SocketException
+         */
+        public void setReadTimeout(int readTimeoutMillis) throws SocketException {
+            _socket.setSoTimeout(readTimeoutMillis);
+        }
+
+        /**
+         * @return true if the connection already served a request, i.e. the server may have dropped it meanwhile
+         */
+        public boolean isReused() {
+            return _reused;
+        }
+
+        private void close() {
+            try {
+                // the close waits up to the read timeout for the close_notify of the server, a discarded connection does not
+                _socket.setSoTimeout(1);
+                _socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
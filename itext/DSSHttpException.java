@@ -0,0 +1,22 @@
+import com.sun.istack.internal.NotNull;
+
+import java.io.IOException;
+
+/**
+ * The server answered with an HTTP error status instead of a DSS response
+ */
+public class DSSHttpException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    DSSHttpException(int statusCode, @NotNull String url, Throwable cause) {
+        super("Server returned HTTP response code: " + statusCode + " for URL: " + url, cause);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+}
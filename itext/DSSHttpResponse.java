@@ -0,0 +1,301 @@
+/**
+ * Created:
+ * 18.10.26 KW42 09:40
+ * </p>
+ * **********************************************************************************
+ * HTTP/1.1 response read from a pooled connection                                  *
+ * **********************************************************************************
+ */
+
+import com.sun.istack.internal.NotNull;
+import com.sun.istack.internal.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class DSSHttpResponse implements Closeable {
+
+    private static final int _MAX_LINE_LENGTH = 8192;
+
+    private final int _statusCode;
+    private final String _contentType;
+    private final BodyInputStream _body;
+
+    private DSSHttpResponse(int statusCode, String contentType, @NotNull BodyInputStream body) {
+        this._statusCode = statusCode;
+        this._contentType = contentType;
+        this._body = body;
+    }
+
+    /**
+     * Read status line and headers. The body is left on the connection and handed back to the pool when it is closed.
+     *
+     * @param pool
+     * @param connection
+     * @return response with unread body
+     * @throws NoResponseException if the connection was closed before the first byte of the response
+     * @throws IOException
+     */
+    @NotNull
+    static DSSHttpResponse read(@NotNull DSSConnectionPool pool, @NotNull DSSConnectionPool.PooledConnection connection) throws IOException {
+        InputStream in = connection.getInputStream();
+
+        String statusLine = readLine(in);
+        if (statusLine == null)
+            throw new NoResponseException("Connection closed before response");
+        String[] status = statusLine.split(" ", 3);
+        if (status.length < 2 || !status[0].startsWith("HTTP/"))
+            throw new IOException("Invalid status line: " + statusLine);
+        int statusCode = (int) parseNumber(status[1], 10, statusLine);
+
+        long contentLength = -1;
+        boolean chunked = false;
+        boolean keepAlive = !"HTTP/1.0".equals(status[0]);
+        String contentType = null;
+
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon <= 0)
+                continue;
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if ("Content-Length".equalsIgnoreCase(name))
+                contentLength = parseNumber(value, 10, line);
+            else if ("Transfer-Encoding".equalsIgnoreCase(name))
+                chunked = value.toLowerCase().contains("chunked");
+            else if ("Connection".equalsIgnoreCase(name))
+                keepAlive = !"close".equalsIgnoreCase(value);
+            else if ("Content-Type".equalsIgnoreCase(name))
+                contentType = value;
+        }
+        if (line == null)
+            throw new EOFException("Connection closed while reading headers");
+
+        BodyInputStream body;
+        if (chunked)
+            body = new ChunkedBodyInputStream(in, pool, connection, keepAlive);
+        else if (contentLength >= 0)
+            body = new FixedBodyInputStream(in, pool, connection, keepAlive, contentLength);
+        else
+            body = new FixedBodyInputStream(in, pool, connection, false, Long.MAX_VALUE);
+
+        return new DSSHttpResponse(statusCode, contentType, body);
+    }
+
+    public int getStatusCode() {
+        return _statusCode;
+    }
+
+    @Nullable
+    public String getContentType() {
+        return _contentType;
+    }
+
+    /**
+     * @return response body, closing it returns the connection to the pool
+     */
+    @NotNull
+    public InputStream getBody() {
+        return _body;
+    }
+
+    public boolean isSuccess() {
+        return _statusCode >= 200 && _statusCode < 300;
+    }
+
+    @Override
+    public void close() throws IOException {
+        _body.close();
+    }
+
+    /**
+     * Parse a non negative number of the status line or a header
+     *
+     * @param value
+     * @param radix
+     * @param line  whole line for the error message
+     * @throws IOException if the value is not a number
+     */
+    private static long parseNumber(@NotNull String value, int radix, @NotNull String line) throws IOException {
+        try {
+            long number = Long.parseLong(value, radix);
+            if (number >= 0)
+                return number;
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IOException("Invalid number in response: " + line);
+    }
+
+    @Nullable
+    private static String readLine(@NotNull InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, "ISO-8859-1");
+            }
+            if (line.size() >= _MAX_LINE_LENGTH)
+                throw new IOException("Header line too long");
+            line.write(b);
+        }
+        return line.size() == 0 ? null : line.toString("ISO-8859-1");
+    }
+
+    /**
+     * Body of one response. Hands the connection back to the pool on close, keeping it only if the body was read completely.
+     */
+    private abstract static class BodyInputStream extends FilterInputStream {
+
+        private final DSSConnectionPool _pool;
+        private final DSSConnectionPool.PooledConnection _connection;
+        private final boolean _keepAlive;
+        private boolean _closed;
+
+        BodyInputStream(InputStream in, DSSConnectionPool pool, DSSConnectionPool.PooledConnection connection, boolean keepAlive) {
+            super(in);
+            this._pool = pool;
+            this._connection = connection;
+            this._keepAlive = keepAlive;
+        }
+
+        abstract boolean isComplete();
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            int read;
+            while (skipped < n && (read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped))) != -1)
+                skipped += read;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            if (_closed)
+                return;
+            _closed = true;
+            _pool.release(_connection, _keepAlive && isComplete());
+        }
+    }
+
+    private static class FixedBodyInputStream extends BodyInputStream {
+
+        private long _remaining;
+
+        FixedBodyInputStream(InputStream in, DSSConnectionPool pool, DSSConnectionPool.PooledConnection connection,
+                             boolean keepAlive, long length) {
+            super(in, pool, connection, keepAlive);
+            this._remaining = length;
+        }
+
+        @Override
+        boolean isComplete() {
+            return _remaining == 0;
+        }
+
+        @Override
+        public int read(@NotNull byte[] b, int off, int len) throws IOException {
+            if (_remaining == 0)
+                return -1;
+            int n = in.read(b, off, (int) Math.min(len, _remaining));
+            if (n == -1) {
+                if (_remaining != Long.MAX_VALUE)
+                    throw new EOFException("Connection closed before end of response");
+                _remaining = 0;
+                return -1;
+            }
+            if (_remaining != Long.MAX_VALUE)
+                _remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), _remaining);
+        }
+    }
+
+    private static class ChunkedBodyInputStream extends BodyInputStream {
+
+        private long _chunkRemaining;
+        private boolean _eof;
+
+        ChunkedBodyInputStream(InputStream in, DSSConnectionPool pool, DSSConnectionPool.PooledConnection connection,
+                               boolean keepAlive) {
+            super(in, pool, connection, keepAlive);
+        }
+
+        @Override
+        boolean isComplete() {
+            return _eof;
+        }
+
+        @Override
+        public int read(@NotNull byte[] b, int off, int len) throws IOException {
+            if (_eof)
+                return -1;
+            if (_chunkRemaining == 0) {
+                nextChunk();
+                if (_eof)
+                    return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, _chunkRemaining));
+            if (n == -1)
+                throw new EOFException("Connection closed inside chunk");
+            _chunkRemaining -= n;
+            if (_chunkRemaining == 0)
+                readLine(in);
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), _chunkRemaining);
+        }
+
+        private void nextChunk() throws IOException {
+            String line = readLine(in);
+            if (line == null)
+                throw new EOFException("Connection closed before chunk header");
+            int extension = line.indexOf(';');
+            _chunkRemaining = parseNumber((extension >= 0 ? line.substring(0, extension) : line).trim(), 16, line);
+            if (_chunkRemaining == 0) {
+                // trailer headers up to the empty line
+                while ((line = readLine(in)) != null && line.length() > 0) ;
+                _eof = true;
+            }
+        }
+    }
+
+    /**
+     * The server closed the connection without sending a single byte, e.g. because it had dropped the idle connection
+     */
+    public static class NoResponseException extends EOFException {
+
+        private static final long serialVersionUID = 1L;
+
+        public NoResponseException(@NotNull String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+import com.sun.istack.internal.NotNull;
+import com.sun.istack.internal.Nullable;
+
+import java.util.ArrayList;
+
+/**
+ * Content of a sign or pending request, independent of how it is sent to the server
+ */
+public class DSSRequest {
+
+    static final String CLAIMED_IDENTITY_FORMAT = "urn:com:swisscom:dss:v1.0:entity";
+    static final String CERTIFICATE_REQUEST_PROFILE = "urn:com:swisscom:advanced";
+    static final String TIMESTAMP_URN = "urn:ietf:rfc:3161";
+    static final String OCSP_URN = "urn:ietf:rfc:2560";
+    static final String MOBILE_ID_TYPE = "urn:com:swisscom:auth:mobileid:v1.0";
+
+    /**
+     * Request shapes, each one is written with its own template
+     */
+    public enum Shape {
+        STATIC_CERT, ON_DEMAND_CERT, ON_DEMAND_CERT_MOBILE_ID, TIMESTAMP_ONLY, PENDING
+    }
+
+    private final Shape shape;
+    private int requestId;
+    private String digestMethod;
+    private byte[][] hashes;
+    private String[] additionalProfiles;
+    private String claimedIdentity;
+    private String certRequestProfile;
+    private String distinguishedName;
+    private String phoneNumber;
+    private String certReqMsg;
+    private String certReqMsgLang;
+    private boolean addTimestamp;
+    private boolean addOcsp;
+    private String responseId;
+
+    private DSSRequest(@NotNull Shape shape) {
+        this.shape = shape;
+    }
+
+    /**
+     * @param requestId
+     * @param digestMethod       uri of the hash algorithm
+     * @param hashes             one hash per document
+     * @param additionalProfiles may be null
+     * @param claimedIdentity
+     * @param addTimestamp
+     * @param addOcsp
+     * @return sign request with the static certificate of the claimed identity
+     */
+    @NotNull
+    public static DSSRequest staticCert(int requestId, @NotNull String digestMethod, @NotNull byte[][] hashes,
+                                        String[] additionalProfiles, @NotNull String claimedIdentity,
+                                        boolean addTimestamp, boolean addOcsp) {
+        return signRequest(Shape.STATIC_CERT, requestId, digestMethod, hashes, additionalProfiles, claimedIdentity,
+                addTimestamp, addOcsp);
+    }
+
+    /**
+     * @param requestId
+     * @param digestMethod       uri of the hash algorithm
+     * @param hashes             one hash per document
+     * @param additionalProfiles may be null
+     * @param claimedIdentity
+     * @param certRequestProfile
+     * @param distinguishedName
+     * @param addTimestamp
+     * @param addOcsp
+     * @return sign request with an on demand certificate
+     */
+    @NotNull
+    public static DSSRequest onDemandCert(int requestId, @NotNull String digestMethod, @NotNull byte[][] hashes,
+                                          String[] additionalProfiles, @NotNull String claimedIdentity,
+                                          @NotNull String certRequestProfile, @NotNull String distinguishedName,
+                                          boolean addTimestamp, boolean addOcsp) {
+        DSSRequest request = signRequest(Shape.ON_DEMAND_CERT, requestId, digestMethod, hashes, additionalProfiles,
+                claimedIdentity, addTimestamp, addOcsp);
+        request.certRequestProfile = certRequestProfile;
+        request.distinguishedName = distinguishedName;
+        return request;
+    }
+
+    /**
+     * @param requestId
+     * @param digestMethod       uri of the hash algorithm
+     * @param hashes             one hash per document
+     * @param additionalProfiles may be null
+     * @param claimedIdentity
+     * @param distinguishedName
+     * @param phoneNumber        must start with e.g. +41 or +49
+     * @param certReqMsg
+     * @param certReqMsgLang
+     * @param addTimestamp
+     * @param addOcsp
+     * @return sign request with an on demand certificate, authorised by mobile id
+     */
+    @NotNull
+    public static DSSRequest onDemandCertMobileId(int requestId, @NotNull String digestMethod, @NotNull byte[][] hashes,
+                                                  String[] additionalProfiles, @NotNull String claimedIdentity,
+                                                  @NotNull String distinguishedName, @NotNull String phoneNumber,
+                                                  @NotNull String certReqMsg, @NotNull String certReqMsgLang,
+                                                  boolean addTimestamp, boolean addOcsp) {
+        DSSRequest request = signRequest(Shape.ON_DEMAND_CERT_MOBILE_ID, requestId, digestMethod, hashes, additionalProfiles,
+                claimedIdentity, addTimestamp, addOcsp);
+        request.certRequestProfile = CERTIFICATE_REQUEST_PROFILE;
+        request.distinguishedName = distinguishedName;
+        request.phoneNumber = phoneNumber;
+        request.certReqMsg = certReqMsg;
+        request.certReqMsgLang = certReqMsgLang;
+        return request;
+    }
+
+    /**
+     * @param requestId
+     * @param digestMethod       uri of the hash algorithm
+     * @param hashes             one hash per document
+     * @param additionalProfiles may be null
+     * @param claimedIdentity
+     * @return sign request for a timestamp only
+     */
+    @NotNull
+    public static DSSRequest timestampOnly(int requestId, @NotNull String digestMethod, @NotNull byte[][] hashes,
+                                           String[] additionalProfiles, @NotNull String claimedIdentity) {
+        return signRequest(Shape.TIMESTAMP_ONLY, requestId, digestMethod, hashes, additionalProfiles, claimedIdentity,
+                false, false);
+    }
+
+    /**
+     * @param claimedIdentity same identity as in the sign request
+     * @param responseId      returned by the sign request
+     * @return pending request polling the result of an asynchronous sign request
+     */
+    @NotNull
+    public static DSSRequest pending(@NotNull String claimedIdentity, @NotNull String responseId) {
+        DSSRequest request = new DSSRequest(Shape.PENDING);
+        request.claimedIdentity = claimedIdentity;
+        request.responseId = responseId;
+        return request;
+    }
+
+    @NotNull
+    private static DSSRequest signRequest(@NotNull Shape shape, int requestId, @NotNull String digestMethod,
+                                          @NotNull byte[][] hashes, String[] additionalProfiles, @NotNull String claimedIdentity,
+                                          boolean addTimestamp, boolean addOcsp) {
+        DSSRequest request = new DSSRequest(shape);
+        request.requestId = requestId;
+        request.digestMethod = digestMethod;
+        request.hashes = hashes;
+        request.additionalProfiles = additionalProfiles;
+        request.claimedIdentity = claimedIdentity;
+        request.addTimestamp = addTimestamp;
+        request.addOcsp = addOcsp;
+        return request;
+    }
+
+    /**
+     * Synchronous request for some of the documents, e.g. to send failed documents again without hashing them again
+     *
+     * @param indexes of the documents to keep
+     * @return copy of this sign request with the hashes at the indexes, without the asynchron and, for a single
+     * document, without the batch profile
+     */
+    @NotNull
+    public DSSRequest subset(@NotNull int[] indexes) {
+        DSSRequest request = signRequest(shape, requestId, digestMethod, new byte[indexes.length][], null, claimedIdentity,
+                addTimestamp, addOcsp);
+        for (int i = 0; i < indexes.length; i++)
+            request.hashes[i] = hashes[indexes[i]];
+        if (additionalProfiles != null) {
+            ArrayList<String> profiles = new ArrayList<>();
+            for (String profile : additionalProfiles)
+                if (!AdditionalProfiles.ASYNCHRON.getProfileName().equals(profile) &&
+                        (indexes.length > 1 || !AdditionalProfiles.BATCH.getProfileName().equals(profile)))
+                    profiles.add(profile);
+            request.additionalProfiles = profiles.isEmpty() ? null : profiles.toArray(new String[profiles.size()]);
+        }
+        request.certRequestProfile = certRequestProfile;
+        request.distinguishedName = distinguishedName;
+        request.phoneNumber = phoneNumber;
+        request.certReqMsg = certReqMsg;
+        request.certReqMsgLang = certReqMsgLang;
+        return request;
+    }
+
+    /**
+     * @param index of the document
+     * @return ID attribute of its DocumentHash, which the response refers to as WhichDocument. Empty for a single
+     * document, that has no ID.
+     */
+    @NotNull
+    public String getDocumentId(int index) {
+        return getDocumentId(index, hashes.length);
+    }
+
+    /**
+     * @param index     of the document
+     * @param documents of the request
+     * @return ID attribute of the DocumentHash
+     */
+    @NotNull
+    static String getDocumentId(int index, int documents) {
+        return documents > 1 ? String.valueOf(index) : "";
+    }
+
+    @NotNull
+    public Shape getShape() {
+        return shape;
+    }
+
+    @NotNull
+    public RequestType getRequestType() {
+        return shape == Shape.PENDING ? RequestType.PendingRequest : RequestType.SignRequest;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public String getDigestMethod() {
+        return digestMethod;
+    }
+
+    public byte[][] getHashes() {
+        return hashes;
+    }
+
+    @Nullable
+    public String[] getAdditionalProfiles() {
+        return additionalProfiles;
+    }
+
+    public String getClaimedIdentity() {
+        return claimedIdentity;
+    }
+
+    /**
+     * @return null if no on demand certificate is requested
+     */
+    @Nullable
+    public String getCertRequestProfile() {
+        return certRequestProfile;
+    }
+
+    public boolean isAdvancedCertRequestProfile() {
+        return CERTIFICATE_REQUEST_PROFILE.equals(certRequestProfile);
+    }
+
+    public String getDistinguishedName() {
+        return distinguishedName;
+    }
+
+    public String getPhoneNumber() {
+        return phoneNumber;
+    }
+
+    public String getCertReqMsg() {
+        return certReqMsg;
+    }
+
+    public String getCertReqMsgLang() {
+        return certReqMsgLang;
+    }
+
+    /**
+     * @return cms for sign requests, rfc 3161 for timestamp only requests
+     */
+    @NotNull
+    public String getSignatureType() {
+        return (shape == Shape.TIMESTAMP_ONLY ? SignatureType.TIMESTAMP : SignatureType.CMS).getSignatureType();
+    }
+
+    public boolean isAddTimestamp() {
+        return addTimestamp;
+    }
+
+    public boolean isAddOcsp() {
+        return addOcsp;
+    }
+
+    public String getResponseId() {
+        return responseId;
+    }
+}
@@ -0,0 +1,109 @@
+import com.sun.istack.internal.NotNull;
+import com.sun.istack.internal.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Parsed response of a sign or pending request
+ */
+public class DSSResponse {
+
+    private String requestId;
+    private String resultMajor;
+    private String resultMinor;
+    private String resultMessage;
+    private String responseId;
+    private LinkedHashMap<String, byte[]> signatures = new LinkedHashMap<>();
+
+    DSSResponse() {
+    }
+
+    @Nullable
+    public String getRequestId() {
+        return requestId;
+    }
+
+    @Nullable
+    public String getResultMajor() {
+        return resultMajor;
+    }
+
+    @Nullable
+    public String getResultMinor() {
+        return resultMinor;
+    }
+
+    @Nullable
+    public String getResultMessage() {
+        return resultMessage;
+    }
+
+    /**
+     * @return id to poll with a pending request, only set for asynchronous requests
+     */
+    @Nullable
+    public String getResponseId() {
+        return responseId;
+    }
+
+    /**
+     * @return decoded signatures in response order, keyed by the DocumentHash ID. The key is an empty string if the
+     * response contains a single signature without document reference.
+     */
+    @NotNull
+    public Map<String, byte[]> getSignatures() {
+        return signatures;
+    }
+
+    /**
+     * @param documentId ID of the DocumentHash, see {@link DSSRequest#getDocumentId}
+     * @return signature of the document, null if the response has none for it
+     */
+    @Nullable
+    public byte[] getSignature(@NotNull String documentId) {
+        byte[] signature = signatures.get(documentId);
+        // the signature of a single document may come with or without document reference
+        if (signature == null && documentId.isEmpty() && signatures.size() == 1)
+            signature = signatures.values().iterator().next();
+        return signature;
+    }
+
+    public boolean isSuccess() {
+        return RequestResult.Success.getResultUrn().equals(resultMajor);
+    }
+
+    public boolean isPending() {
+        return RequestResult.Pending.getResultUrn().equals(resultMajor);
+    }
+
+    void setRequestId(String requestId) {
+        this.requestId = requestId;
+    }
+
+    void setResultMajor(String resultMajor) {
+        this.resultMajor = resultMajor;
+    }
+
+    void setResultMinor(String resultMinor) {
+        this.resultMinor = resultMinor;
+    }
+
+    void setResultMessage(String resultMessage) {
+        this.resultMessage = resultMessage;
+    }
+
+    void setResponseId(String responseId) {
+        this.responseId = responseId;
+    }
+
+    void addSignature(@NotNull String documentId, @NotNull byte[] signature) {
+        signatures.put(documentId, signature);
+    }
+
+    @Override
+    public String toString() {
+        return "[" + resultMajor + (resultMinor != null ? ", " + resultMinor : "") +
+                (resultMessage != null ? ", " + resultMessage : "") + "]";
+    }
+}
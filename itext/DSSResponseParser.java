@@ -0,0 +1,177 @@
+/**
+ * Created:
+ * 18.10.26 KW42 13:20
+ * </p>
+ * **********************************************************************************
+ * Single pass StAX parser for DSS responses                                        *
+ * **********************************************************************************
+ */
+
+import com.sun.istack.internal.NotNull;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class DSSResponseParser {
+
+    private static final XMLInputFactory _INPUT_FACTORY = createInputFactory();
+
+    private final String _signatureElement;
+
+    /**
+     * @param signatureElement local name of the elements containing the signatures, e.g. Base64Signature or
+     *                         RFC3161TimeStampToken
+     */
+    public DSSResponseParser(@NotNull String signatureElement) {
+        this._signatureElement = signatureElement;
+    }
+
+    /**
+     * Parse a response while it is read. Signatures are Base64 decoded chunk by chunk, the response text is never held
+     * in memory as a whole.
+     *
+     * @param in SOAP or XML response, the encoding is taken from the xml declaration
+     * @return typed response
+     * @throws IOException if the response is no well-formed xml
+     */
+    @NotNull
+    public DSSResponse parse(@NotNull InputStream in) throws IOException {
+        DSSResponse response = new DSSResponse();
+        XMLStreamReader reader = null;
+        try {
+            reader = _INPUT_FACTORY.createXMLStreamReader(in);
+            String documentId = "";
+            char[] buffer = new char[8192];
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if ("Response".equals(name) || "SignResponse".equals(name)) {
+                        response.setRequestId(reader.getAttributeValue(null, "RequestID"));
+                    } else if ("ExtendedSignatureObject".equals(name)) {
+                        String whichDocument = reader.getAttributeValue(null, "WhichDocument");
+                        documentId = whichDocument != null ? whichDocument : "";
+                    } else if ("ResultMajor".equals(name)) {
+                        response.setResultMajor(reader.getElementText().trim());
+                    } else if ("ResultMinor".equals(name)) {
+                        response.setResultMinor(reader.getElementText().trim());
+                    } else if ("ResultMessage".equals(name)) {
+                        response.setResultMessage(reader.getElementText().trim());
+                    } else if ("ResponseID".equals(name)) {
+                        response.setResponseId(reader.getElementText().trim());
+                    } else if (_signatureElement.equals(name)) {
+                        response.addSignature(documentId, readBase64(reader, buffer));
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && "ExtendedSignatureObject".equals(reader.getLocalName())) {
+                    documentId = "";
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid response: " + e.getMessage(), e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException ignored) {
+                }
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Decode the text content of the current element without building a string of it
+     *
+     * @param reader positioned on the start element
+     * @param buffer
+     * @return decoded bytes
+     * @throws XMLStreamException
+     * @throws IOException
+     */
+    @NotNull
+    private static byte[] readBase64(@NotNull XMLStreamReader reader, @NotNull char[] buffer) throws XMLStreamException, IOException {
+        Base64Decoder decoder = new Base64Decoder();
+        int event;
+        while ((event = reader.next()) != XMLStreamConstants.END_ELEMENT) {
+            if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                int length = reader.getTextLength();
+                for (int offset = 0; offset < length; ) {
+                    int read = reader.getTextCharacters(offset, buffer, 0, buffer.length);
+                    decoder.decode(buffer, read);
+                    offset += read;
+                }
+            }
+        }
+        return decoder.finish();
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+
+    /**
+     * Incremental Base64 decoder, skips whitespace between the chunks
+     */
+    static class Base64Decoder {
+
+        private static final byte[] _DECODE = new byte[128];
+
+        static {
+            java.util.Arrays.fill(_DECODE, (byte) -1);
+            String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+            for (int i = 0; i < alphabet.length(); i++)
+                _DECODE[alphabet.charAt(i)] = (byte) i;
+        }
+
+        private final ByteArrayOutputStream _out = new ByteArrayOutputStream(4096);
+        private int _bits;
+        private int _count;
+        private int _padding;
+
+        void decode(@NotNull char[] chars, int length) throws IOException {
+            for (int i = 0; i < length; i++) {
+                char c = chars[i];
+                if (c == '=') {
+                    _padding++;
+                    continue;
+                }
+                if (c == ' ' || c == '\n' || c == '\r' || c == '\t')
+                    continue;
+                int value = c < 128 ? _DECODE[c] : -1;
+                if (value < 0 || _padding > 0)
+                    throw new IOException("Invalid Base64 character '" + c + "'");
+                _bits = (_bits << 6) | value;
+                if (++_count == 4) {
+                    _out.write(_bits >> 16);
+                    _out.write(_bits >> 8);
+                    _out.write(_bits);
+                    _bits = 0;
+                    _count = 0;
+                }
+            }
+        }
+
+        byte[] finish() throws IOException {
+            if (_count == 2) {
+                _out.write(_bits >> 4);
+            } else if (_count == 3) {
+                _out.write(_bits >> 10);
+                _out.write(_bits >> 2);
+            } else if (_count == 1) {
+                throw new IOException("Truncated Base64 content");
+            }
+            return _out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+import com.sun.istack.internal.NotNull;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * Sends a request to the signing service and returns the parsed response
+ */
+public interface DSSTransport {
+
+    /**
+     * @param request
+     * @param serverURI        endpoint of the service, e.g. .../DSS-Server/ws for SOAP or .../DSS-Server/rs/v1.0 for REST
+     * @param signatureElement element containing the signatures, e.g. Base64Signature or RFC3161TimeStampToken
+     * @return parsed server response
+     * @throws IOException
+     * @throws GeneralSecurityException if key or trust store can not be loaded
+     */
+    @NotNull
+    DSSResponse send(@NotNull DSSRequest request, @NotNull String serverURI, @NotNull String signatureElement)
+            throws IOException, GeneralSecurityException;
+}
@@ -7,36 +7,43 @@
  * </p>
  * **********************************************************************************
  * Sign PDF using Swisscom DSS                                                      *
- * Tested with iText-5.4.5; Bouncy Castle 1.50 and JDK 1.7.0_45                     *
+ * Tested with iText-5.4.5; Bouncy Castle 1.50 and JDK 1.8                          *
  * For examples see main method. You only need to change variables in this method.  *
  * **********************************************************************************
  */
 
+import com.itextpdf.text.DocumentException;
 import com.sun.istack.internal.NotNull;
 import com.sun.istack.internal.Nullable;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
-
-import javax.net.ssl.HttpsURLConnection;
-import javax.xml.namespace.QName;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.soap.*;
+
 import java.io.*;
-import java.net.URLConnection;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
+import java.security.SignatureException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DSS_SOAP {
 
-    private static final String _CLAIMED_IDENTITY_FORMAT = "urn:com:swisscom:dss:v1.0:entity";
-    private static final String _CERTIFICATE_REQUEST_PROFILE = "urn:com:swisscom:advanced";
-    private static final String _TIMESTAMP_URN = "urn:ietf:rfc:3161";
-    private static final String _OCSP_URN = "urn:ietf:rfc:2560";
-    private static final String _MOBILE_ID_TYPE = "urn:com:swisscom:auth:mobileid:v1.0";
+    public static final int DEFAULT_DOCUMENT_RETRIES = 1;
+    private static final String _CERTIFICATE_REQUEST_PROFILE = DSSRequest.CERTIFICATE_REQUEST_PROFILE;
     private String _privateKeyName;
     private String _serverCert;
     private String _clientCert;
@@ -45,6 +52,22 @@ public class DSS_SOAP {
     private String _trustStorePath;
     private String _trustStorePass;
     private boolean _debug;
+    private DSSConnection _connection;
+    private DSSAsyncPoller _asyncPoller;
+    private PdfWorkerPool _workerPool;
+    private BatchPlanner _batchPlanner;
+    private SigningPipeline _signingPipeline;
+    private DSSTransport _transport;
+    private SignatureSizeEstimator _sizeEstimator;
+    private boolean _spillPreparedDocuments;
+    private TimestampCoalescer _timestampCoalescer;
+    private Executor _executor;
+    private ConcurrencyLimiter _concurrencyLimiter;
+    private EndpointGroup _endpointGroup;
+    private int _documentRetries = DEFAULT_DOCUMENT_RETRIES;
+    private SignatureVerifier _signatureVerifier;
+    private ValidationDataCache _validationDataCache;
+    private int _poolSize;
 
     /**
      * Constructor
@@ -61,6 +84,27 @@ public class DSS_SOAP {
 
     public DSS_SOAP(String privateKeyName, String serverCert, String clientCert, String keyStorePath, String keyStorePass,
                     String trustStorePath, String trustStorePass, boolean debug) {
+        this(privateKeyName, serverCert, clientCert, keyStorePath, keyStorePass, trustStorePath, trustStorePass,
+                DSSConnection.DEFAULT_POOL_SIZE, DSSConnection.DEFAULT_IDLE_TIMEOUT_MILLIS, debug);
+    }
+
+    /**
+     * Constructor with connection pool settings. Key and trust store are loaded once on the first request, afterwards
+     * connections and TLS sessions are reused by every call of this instance.
+     *
+     * @param privateKeyName
+     * @param serverCert
+     * @param clientCert
+     * @param keyStorePath
+     * @param keyStorePass
+     * @param trustStorePath
+     * @param trustStorePass
+     * @param poolSize          max open connections per server
+     * @param idleTimeoutMillis idle connections are closed after this time
+     * @param debug
+     */
+    public DSS_SOAP(String privateKeyName, String serverCert, String clientCert, String keyStorePath, String keyStorePass,
+                    String trustStorePath, String trustStorePass, int poolSize, long idleTimeoutMillis, boolean debug) {
         this._privateKeyName = privateKeyName;
         this._serverCert = serverCert;
         this._clientCert = clientCert;
@@ -69,10 +113,29 @@ public class DSS_SOAP {
         this._trustStorePath = trustStorePath;
         this._trustStorePass = trustStorePass;
         this._debug = debug;
+        this._poolSize = poolSize;
+        this._connection = new DSSConnection(privateKeyName, serverCert, clientCert, keyStorePath, trustStorePath,
+                keyStorePass, trustStorePass, poolSize, idleTimeoutMillis, debug);
     }
 
     /**
-     * Sign document with on demand certificate and authenticate with mobile id
+     * Close pooled connections and save the signature sizes. The instance may still be used afterwards, new connections
+     * are opened on demand.
+     */
+    public void close() {
+        _connection.close();
+        try {
+            getSizeEstimator().save();
+        } catch (IOException e) {
+            System.out.println("Error when saving signature sizes: " + e.getMessage());
+        }
+        if (_debug && SigningMetrics.enabled())
+            System.out.print(SigningMetrics.getInstance());
+    }
+
+    /**
+     * Sign document with on demand certificate and authenticate with mobile id. The documents are sent in one request
+     * so the user confirms only once.
      *
      * @param pdfs
      * @param signDate
@@ -92,32 +155,65 @@ public class DSS_SOAP {
                                                  @NotNull String distinguishedName, @NotNull String phoneNumber, @NotNull String certReqMsg,
                                                  @NotNull String certReqMsgLang, int requestId) throws Exception {
 
-        String[] additionalProfiles;
-        if (pdfs.length > 1) {
-            additionalProfiles = new String[2];
-            additionalProfiles[1] = AdditionalProfiles.BATCH.getProfileName();
-        } else
-            additionalProfiles = new String[1];
-        additionalProfiles[0] = AdditionalProfiles.ON_DEMAND_CERTIFCATE.getProfileName();
+        SignatureSizeEstimator.Profile sizeProfile = SignatureSizeEstimator.Profile.cms(addTimestamp, addOcsp, _CERTIFICATE_REQUEST_PROFILE);
 
-        int estimatedSize = getEstimatedSize(addTimestamp, addOcsp, _CERTIFICATE_REQUEST_PROFILE);
+        RequestFactory requestFactory = (batch, estimatedSize, async) -> createOnDemandCertMobileIdRequest(batch, signDate, hashAlgo,
+                addTimestamp, addOcsp, claimedIdentity, distinguishedName, phoneNumber, certReqMsg, certReqMsgLang, requestId,
+                estimatedSize, async);
 
-        byte[][] pdfHash = new byte[pdfs.length][];
-        for (int i = 0; i < pdfs.length; i++) {
-            pdfHash[i] = pdfs[i].getPdfHash(signDate, estimatedSize, hashAlgo.getHashAlgorythm(), false);
-        }
+        signDocumentSync(requestFactory, serverURI, pdfs, sizeProfile, "Base64Signature");
 
-        SOAPMessage sigReqMsg = createRequestMessage(RequestType.SignRequest, hashAlgo.getHashUri(), _CERTIFICATE_REQUEST_PROFILE,
-                pdfHash, addTimestamp ? _TIMESTAMP_URN : null, addOcsp ? _OCSP_URN : null, additionalProfiles, _CLAIMED_IDENTITY_FORMAT,
-                claimedIdentity, SignatureType.CMS.getSignatureType(), distinguishedName, _MOBILE_ID_TYPE, phoneNumber,
-                certReqMsg, certReqMsgLang, null, requestId);
+    }
 
-        signDocumentSync(sigReqMsg, serverURI, pdfs, estimatedSize, "Base64Signature");
+    /**
+     * {@link #signDocumentOnDemandCertMobileId} on the executor, see {@link #setExecutor}. Unlike the asynchronous
+     * profile no polling is needed, but a thread waits until the user confirmed.
+     *
+     * @return completed when the signatures are embedded into the documents, exceptionally if signing failed
+     */
+    @NotNull
+    public CompletableFuture<Void> signDocumentOnDemandCertMobileIdFuture(@NotNull Pdf pdfs[], @NotNull Calendar signDate, @NotNull HashAlgorithm hashAlgo,
+                                                                          @NotNull String serverURI, boolean addTimestamp, boolean addOcsp, @NotNull String claimedIdentity,
+                                                                          @NotNull String distinguishedName, @NotNull String phoneNumber, @NotNull String certReqMsg,
+                                                                          @NotNull String certReqMsgLang, int requestId) {
+        return submit(() -> signDocumentOnDemandCertMobileId(pdfs, signDate, hashAlgo, serverURI, addTimestamp, addOcsp,
+                claimedIdentity, distinguishedName, phoneNumber, certReqMsg, certReqMsgLang, requestId));
+    }
 
+    /**
+     * Sign document with on demand certificate and authenticate with mobile id. Returns as soon as the server accepted
+     * the request, the signatures are embedded when polling the pending request succeeds.
+     *
+     * @param pdfs
+     * @param signDate
+     * @param hashAlgo
+     * @param serverURI
+     * @param addTimestamp
+     * @param addOcsp
+     * @param claimedIdentity
+     * @param distinguishedName
+     * @param phoneNumber
+     * @param certReqMsg
+     * @param certReqMsgLang
+     * @param requestId
+     * @return handle of the pending request
+     */
+    public PendingSignature signDocumentOnDemandCertMobileIdAsync(@NotNull Pdf pdfs[], @NotNull Calendar signDate, @NotNull HashAlgorithm hashAlgo,
+                                                                  @NotNull String serverURI, boolean addTimestamp, boolean addOcsp, @NotNull String claimedIdentity,
+                                                                  @NotNull String distinguishedName, @NotNull String phoneNumber, @NotNull String certReqMsg,
+                                                                  @NotNull String certReqMsgLang, int requestId) throws Exception {
+
+        SignatureSizeEstimator.Profile sizeProfile = SignatureSizeEstimator.Profile.cms(addTimestamp, addOcsp, _CERTIFICATE_REQUEST_PROFILE);
+
+        RequestFactory requestFactory = (batch, estimatedSize, async) -> createOnDemandCertMobileIdRequest(batch, signDate, hashAlgo,
+                addTimestamp, addOcsp, claimedIdentity, distinguishedName, phoneNumber, certReqMsg, certReqMsgLang, requestId,
+                estimatedSize, async);
+
+        return signDocumentAsync(requestFactory, serverURI, pdfs, sizeProfile, "Base64Signature", claimedIdentity, requestId);
     }
 
     /**
-     * Sign document with on demand certificate
+     * Sign document with on demand certificate. Large arrays are split into batches, see {@link #setBatchPlanner}.
      *
      * @param pdfs
      * @param hashAlgo
@@ -134,30 +230,57 @@ public class DSS_SOAP {
                                          @NotNull String certRequestProfile, boolean addTimeStamp, boolean addOcsp,
                                          @NotNull String distinguishedName, @NotNull String claimedIdentity, int requestId) throws Exception {
 
-        String[] additionalProfiles;
-        if (pdfs.length > 1) {
-            additionalProfiles = new String[2];
-            additionalProfiles[1] = AdditionalProfiles.BATCH.getProfileName();
-        } else
-            additionalProfiles = new String[1];
-        additionalProfiles[0] = AdditionalProfiles.ON_DEMAND_CERTIFCATE.getProfileName();
+        SignatureSizeEstimator.Profile sizeProfile = SignatureSizeEstimator.Profile.cms(addTimeStamp, addOcsp, certRequestProfile);
 
-        int estimatedSize = getEstimatedSize(addTimeStamp, addOcsp, certRequestProfile);
+        RequestFactory requestFactory = (batch, estimatedSize, async) -> createOnDemandCertRequest(batch, hashAlgo, signDate,
+                certRequestProfile, addTimeStamp, addOcsp, distinguishedName, claimedIdentity, requestId, estimatedSize, async);
 
-        byte[][] pdfHash = new byte[pdfs.length][];
-        for (int i = 0; i < pdfs.length; i++) {
-            pdfHash[i] = pdfs[i].getPdfHash(signDate, estimatedSize, hashAlgo.getHashAlgorythm(), false);
-        }
+        signBatches(requestFactory, serverURI, pdfs, sizeProfile, "Base64Signature");
+    }
+
+    /**
+     * {@link #signDocumentOnDemandCert} on the executor, see {@link #setExecutor}
+     *
+     * @return completed when the signatures are embedded into the documents, exceptionally if signing failed
+     */
+    @NotNull
+    public CompletableFuture<Void> signDocumentOnDemandCertFuture(@NotNull Pdf[] pdfs, @NotNull HashAlgorithm hashAlgo, Calendar signDate,
+                                                                  @NotNull String serverURI, @NotNull String certRequestProfile,
+                                                                  boolean addTimeStamp, boolean addOcsp, @NotNull String distinguishedName,
+                                                                  @NotNull String claimedIdentity, int requestId) {
+        return submit(() -> signDocumentOnDemandCert(pdfs, hashAlgo, signDate, serverURI, certRequestProfile, addTimeStamp,
+                addOcsp, distinguishedName, claimedIdentity, requestId));
+    }
 
-        SOAPMessage sigReqMsg = createRequestMessage(RequestType.SignRequest, hashAlgo.getHashUri(), certRequestProfile,
-                pdfHash, addTimeStamp ? _TIMESTAMP_URN : null, addOcsp ? _OCSP_URN : null, additionalProfiles, _CLAIMED_IDENTITY_FORMAT,
-                claimedIdentity, SignatureType.CMS.getSignatureType(), distinguishedName, null, null, null, null, null, requestId);
+    /**
+     * Sign document with on demand certificate using the asynchronous profile
+     *
+     * @param pdfs
+     * @param hashAlgo
+     * @param signDate
+     * @param serverURI
+     * @param certRequestProfile
+     * @param addTimeStamp
+     * @param addOcsp
+     * @param distinguishedName
+     * @param claimedIdentity
+     * @param requestId
+     * @return handle of the pending request
+     */
+    public PendingSignature signDocumentOnDemandCertAsync(@NotNull Pdf[] pdfs, @NotNull HashAlgorithm hashAlgo, Calendar signDate, @NotNull String serverURI,
+                                                          @NotNull String certRequestProfile, boolean addTimeStamp, boolean addOcsp,
+                                                          @NotNull String distinguishedName, @NotNull String claimedIdentity, int requestId) throws Exception {
+
+        SignatureSizeEstimator.Profile sizeProfile = SignatureSizeEstimator.Profile.cms(addTimeStamp, addOcsp, certRequestProfile);
 
-        signDocumentSync(sigReqMsg, serverURI, pdfs, estimatedSize, "Base64Signature");
+        RequestFactory requestFactory = (batch, estimatedSize, async) -> createOnDemandCertRequest(batch, hashAlgo, signDate,
+                certRequestProfile, addTimeStamp, addOcsp, distinguishedName, claimedIdentity, requestId, estimatedSize, async);
+
+        return signDocumentAsync(requestFactory, serverURI, pdfs, sizeProfile, "Base64Signature", claimedIdentity, requestId);
     }
 
     /**
-     * Sign document with static cert
+     * Sign document with static cert. Large arrays are split into batches, see {@link #setBatchPlanner}.
      *
      * @param pdfs
      * @param hashAlgo
@@ -171,28 +294,52 @@ public class DSS_SOAP {
     public void signDocumentStaticCert(@NotNull Pdf[] pdfs, @NotNull HashAlgorithm hashAlgo, Calendar signDate, @NotNull String serverURI,
                                        boolean addTimeStamp, boolean addOCSP, @NotNull String claimedIdentity, int requestId) throws Exception {
 
-        String[] additionalProfiles = null;
-        if (pdfs.length > 1) {
-            additionalProfiles = new String[1];
-            additionalProfiles[0] = AdditionalProfiles.BATCH.getProfileName();
-        }
+        SignatureSizeEstimator.Profile sizeProfile = SignatureSizeEstimator.Profile.cms(addTimeStamp, addOCSP, null);
 
-        int estimatedSize = getEstimatedSize(addTimeStamp, addOCSP, null);
+        RequestFactory requestFactory = (batch, estimatedSize, async) -> createStaticCertRequest(batch, hashAlgo, signDate,
+                addTimeStamp, addOCSP, claimedIdentity, requestId, estimatedSize, async);
 
-        byte[][] pdfHash = new byte[pdfs.length][];
-        for (int i = 0; i < pdfs.length; i++) {
-            pdfHash[i] = pdfs[i].getPdfHash(signDate, estimatedSize, hashAlgo.getHashAlgorythm(), false);
-        }
+        signBatches(requestFactory, serverURI, pdfs, sizeProfile, "Base64Signature");
+    }
 
-        SOAPMessage sigReqMsg = createRequestMessage(RequestType.SignRequest, hashAlgo.getHashUri(), null,
-                pdfHash, addTimeStamp ? _TIMESTAMP_URN : null, addOCSP ? _OCSP_URN : null, additionalProfiles, _CLAIMED_IDENTITY_FORMAT,
-                claimedIdentity, SignatureType.CMS.getSignatureType(), null, null, null, null, null, null, requestId);
+    /**
+     * {@link #signDocumentStaticCert} on the executor, see {@link #setExecutor}
+     *
+     * @return completed when the signatures are embedded into the documents, exceptionally if signing failed
+     */
+    @NotNull
+    public CompletableFuture<Void> signDocumentStaticCertFuture(@NotNull Pdf[] pdfs, @NotNull HashAlgorithm hashAlgo, Calendar signDate,
+                                                                @NotNull String serverURI, boolean addTimeStamp, boolean addOCSP,
+                                                                @NotNull String claimedIdentity, int requestId) {
+        return submit(() -> signDocumentStaticCert(pdfs, hashAlgo, signDate, serverURI, addTimeStamp, addOCSP, claimedIdentity, requestId));
+    }
 
-        signDocumentSync(sigReqMsg, serverURI, pdfs, estimatedSize, "Base64Signature");
+    /**
+     * Sign document with static cert using the asynchronous profile
+     *
+     * @param pdfs
+     * @param hashAlgo
+     * @param signDate
+     * @param serverURI
+     * @param addTimeStamp
+     * @param addOCSP
+     * @param claimedIdentity
+     * @param requestId
+     * @return handle of the pending request
+     */
+    public PendingSignature signDocumentStaticCertAsync(@NotNull Pdf[] pdfs, @NotNull HashAlgorithm hashAlgo, Calendar signDate, @NotNull String serverURI,
+                                                        boolean addTimeStamp, boolean addOCSP, @NotNull String claimedIdentity, int requestId) throws Exception {
+
+        SignatureSizeEstimator.Profile sizeProfile = SignatureSizeEstimator.Profile.cms(addTimeStamp, addOCSP, null);
+
+        RequestFactory requestFactory = (batch, estimatedSize, async) -> createStaticCertRequest(batch, hashAlgo, signDate,
+                addTimeStamp, addOCSP, claimedIdentity, requestId, estimatedSize, async);
+
+        return signDocumentAsync(requestFactory, serverURI, pdfs, sizeProfile, "Base64Signature", claimedIdentity, requestId);
     }
 
     /**
-     * Sign document only with timestamp
+     * Sign document only with timestamp. Large arrays are split into batches, see {@link #setBatchPlanner}.
      *
      * @param pdfs
      * @param hashAlgo
@@ -204,330 +351,1052 @@ public class DSS_SOAP {
     public void signDocumentTimestampOnly(@NotNull Pdf[] pdfs, @NotNull HashAlgorithm hashAlgo, Calendar signDate,
                                           @NotNull String serverURI, @NotNull String claimedIdentity, int requestId) throws Exception {
 
-        SignatureType signatureType = SignatureType.TIMESTAMP;
+        SignatureSizeEstimator.Profile sizeProfile = SignatureSizeEstimator.Profile.timestamp();
 
-        String[] additionalProfiles;
-        if (pdfs.length > 1) {
-            additionalProfiles = new String[2];
-            additionalProfiles[1] = AdditionalProfiles.BATCH.getProfileName();
-        } else
-            additionalProfiles = new String[1];
-        additionalProfiles[0] = AdditionalProfiles.TIMESTAMP.getProfileName();
+        RequestFactory requestFactory = (batch, estimatedSize, async) -> createTimestampOnlyRequest(batch, hashAlgo, signDate,
+                claimedIdentity, requestId, estimatedSize, async);
 
-        int estimatedSize = getEstimatedSize(true, true, null);
+        signBatches(requestFactory, serverURI, pdfs, sizeProfile, "RFC3161TimeStampToken");
+    }
 
-        byte[][] pdfHash = new byte[pdfs.length][];
-        for (int i = 0; i < pdfs.length; i++) {
-            pdfHash[i] = pdfs[i].getPdfHash(signDate, estimatedSize, hashAlgo.getHashAlgorythm(), true);
-        }
+    /**
+     * {@link #signDocumentTimestampOnly} on the executor, see {@link #setExecutor}
+     *
+     * @return completed when the timestamps are embedded into the documents, exceptionally if signing failed
+     */
+    @NotNull
+    public CompletableFuture<Void> signDocumentTimestampOnlyFuture(@NotNull Pdf[] pdfs, @NotNull HashAlgorithm hashAlgo, Calendar signDate,
+                                                                   @NotNull String serverURI, @NotNull String claimedIdentity, int requestId) {
+        return submit(() -> signDocumentTimestampOnly(pdfs, hashAlgo, signDate, serverURI, claimedIdentity, requestId));
+    }
+
+    /**
+     * Sign document only with timestamp using the asynchronous profile
+     *
+     * @param pdfs
+     * @param hashAlgo
+     * @param signDate
+     * @param serverURI
+     * @param claimedIdentity
+     * @param requestId
+     * @return handle of the pending request
+     */
+    public PendingSignature signDocumentTimestampOnlyAsync(@NotNull Pdf[] pdfs, @NotNull HashAlgorithm hashAlgo, Calendar signDate,
+                                                           @NotNull String serverURI, @NotNull String claimedIdentity, int requestId) throws Exception {
+
+        SignatureSizeEstimator.Profile sizeProfile = SignatureSizeEstimator.Profile.timestamp();
 
-        SOAPMessage sigReqMsg = createRequestMessage(RequestType.SignRequest, hashAlgo.getHashUri(), null,
-                pdfHash, null, null, additionalProfiles, _CLAIMED_IDENTITY_FORMAT, claimedIdentity, signatureType.getSignatureType(),
-                null, null, null, null, null, null, requestId);
+        RequestFactory requestFactory = (batch, estimatedSize, async) -> createTimestampOnlyRequest(batch, hashAlgo, signDate,
+                claimedIdentity, requestId, estimatedSize, async);
 
-        signDocumentSync(sigReqMsg, serverURI, pdfs, estimatedSize, "RFC3161TimeStampToken");
+        return signDocumentAsync(requestFactory, serverURI, pdfs, sizeProfile, "RFC3161TimeStampToken", claimedIdentity, requestId);
     }
 
     /**
-     * Sign document synchron
+     * Sign digests computed by the caller with the static certificate, all digests in one request. Unlike the document
+     * methods the result is not checked.
      *
-     * @param sigReqMsg
+     * @param hashes          one digest per document
+     * @param hashAlgo
      * @param serverURI
-     * @param pdfs
-     * @param estimatedSize
-     * @param signNodeName
+     * @param addTimeStamp
+     * @param addOcsp
+     * @param claimedIdentity
+     * @param requestId
+     * @return response with the CMS signatures in the order of the digests
      */
-    private void signDocumentSync(@NotNull SOAPMessage sigReqMsg, @NotNull String serverURI, @NotNull Pdf[] pdfs, int estimatedSize, String signNodeName) throws Exception {
+    @NotNull
+    public DSSResponse signHashesStaticCert(@NotNull byte[][] hashes, @NotNull HashAlgorithm hashAlgo, @NotNull String serverURI,
+                                            boolean addTimeStamp, boolean addOcsp, @NotNull String claimedIdentity, int requestId)
+            throws IOException, GeneralSecurityException {
+
+        return signHashes(DSSRequest.staticCert(requestId, hashAlgo.getHashUri(), hashes,
+                getAdditionalProfiles(hashes.length, false, null), claimedIdentity, addTimeStamp, addOcsp),
+                serverURI, "Base64Signature", hashes.length);
+    }
 
-        String sigResponse = sendRequest(sigReqMsg, serverURI);
+    /**
+     * Sign digests computed by the caller with an on demand certificate, all digests in one request
+     *
+     * @param hashes             one digest per document
+     * @param hashAlgo
+     * @param serverURI
+     * @param certRequestProfile
+     * @param addTimeStamp
+     * @param addOcsp
+     * @param distinguishedName
+     * @param claimedIdentity
+     * @param requestId
+     * @return response with the CMS signatures in the order of the digests
+     */
+    @NotNull
+    public DSSResponse signHashesOnDemandCert(@NotNull byte[][] hashes, @NotNull HashAlgorithm hashAlgo, @NotNull String serverURI,
+                                              @NotNull String certRequestProfile, boolean addTimeStamp, boolean addOcsp,
+                                              @NotNull String distinguishedName, @NotNull String claimedIdentity, int requestId)
+            throws IOException, GeneralSecurityException {
+
+        return signHashes(DSSRequest.onDemandCert(requestId, hashAlgo.getHashUri(), hashes,
+                getAdditionalProfiles(hashes.length, false, AdditionalProfiles.ON_DEMAND_CERTIFCATE), claimedIdentity,
+                certRequestProfile, distinguishedName, addTimeStamp, addOcsp), serverURI, "Base64Signature", hashes.length);
+    }
 
-        ArrayList<String> responseResult = getTextFromXmlText(sigResponse, "ResultMajor");
+    /**
+     * Sign digests computed by the caller with an on demand certificate authorised by mobile id, all digests in one
+     * request so the user confirms only once
+     *
+     * @param hashes            one digest per document
+     * @param hashAlgo
+     * @param serverURI
+     * @param addTimestamp
+     * @param addOcsp
+     * @param claimedIdentity
+     * @param distinguishedName
+     * @param phoneNumber
+     * @param certReqMsg
+     * @param certReqMsgLang
+     * @param requestId
+     * @return response with the CMS signatures in the order of the digests
+     */
+    @NotNull
+    public DSSResponse signHashesOnDemandCertMobileId(@NotNull byte[][] hashes, @NotNull HashAlgorithm hashAlgo, @NotNull String serverURI,
+                                                      boolean addTimestamp, boolean addOcsp, @NotNull String claimedIdentity,
+                                                      @NotNull String distinguishedName, @NotNull String phoneNumber,
+                                                      @NotNull String certReqMsg, @NotNull String certReqMsgLang, int requestId)
+            throws IOException, GeneralSecurityException {
+
+        return signHashes(DSSRequest.onDemandCertMobileId(requestId, hashAlgo.getHashUri(), hashes,
+                getAdditionalProfiles(hashes.length, false, AdditionalProfiles.ON_DEMAND_CERTIFCATE), claimedIdentity,
+                distinguishedName, phoneNumber, certReqMsg, certReqMsgLang, addTimestamp, addOcsp),
+                serverURI, "Base64Signature", hashes.length);
+    }
 
-        if (responseResult == null || !RequestResult.Success.getResultUrn().equals(responseResult.get(0)))
-            throw new Exception("Getting signatures failed. Result: " + responseResult);
+    /**
+     * Timestamp digests computed by the caller, all digests in one request
+     *
+     * @param hashes          one digest per document
+     * @param hashAlgo
+     * @param serverURI
+     * @param claimedIdentity
+     * @param requestId
+     * @return response with the RFC 3161 timestamp tokens in the order of the digests
+     */
+    @NotNull
+    public DSSResponse signHashesTimestampOnly(@NotNull byte[][] hashes, @NotNull HashAlgorithm hashAlgo, @NotNull String serverURI,
+                                               @NotNull String claimedIdentity, int requestId) throws IOException, GeneralSecurityException {
 
-        ArrayList<String> signHashes = getTextFromXmlText(sigResponse, signNodeName);
-        signDocuments(signHashes, pdfs, estimatedSize);
+        return signHashes(DSSRequest.timestampOnly(requestId, hashAlgo.getHashUri(), hashes,
+                getAdditionalProfiles(hashes.length, false, AdditionalProfiles.TIMESTAMP), claimedIdentity),
+                serverURI, "RFC3161TimeStampToken", hashes.length);
     }
 
     /**
-     * Sign document
+     * Poller used for asynchronous requests. Several instances may share one poller so that a single scheduler serves
+     * all outstanding requests.
      *
-     * @param signatureList
-     * @param pdfs
-     * @param estimatedSize
-     * @throws Exception
+     * @param asyncPoller
+     */
+    public synchronized void setAsyncPoller(@NotNull DSSAsyncPoller asyncPoller) {
+        this._asyncPoller = asyncPoller;
+    }
+
+    /**
+     * Limits of connect and response of every request, by default 10 seconds to connect and 3 minutes for the response
+     *
+     * @param connectTimeoutMillis connect and TLS handshake of a new connection, 0 for none
+     * @param readTimeoutMillis    longest silence of the server while waiting for the response, 0 for none
      */
-    private void signDocuments(@NotNull ArrayList<String> signatureList, @NotNull Pdf[] pdfs, int estimatedSize) {
-        int counter = 0;
-        for (String signatureHash : signatureList) {
-            pdfs[counter].sign(signatureHash, estimatedSize);
-            counter++;
+    public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+        _connection.setTimeouts(connectTimeoutMillis, readTimeoutMillis);
+    }
+
+    /**
+     * Executor of the signDocument*Future methods. By default as many threads as pooled connections per server, further
+     * calls wait in its queue: thousands of concurrent calls do not need thousands of threads.
+     *
+     * @param executor
+     */
+    public synchronized void setExecutor(@NotNull Executor executor) {
+        this._executor = executor;
+    }
+
+    @NotNull
+    private synchronized Executor getExecutor() {
+        if (_executor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(_poolSize, _poolSize, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), new ThreadFactory() {
+                private final AtomicInteger _count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "dss-sign-" + _count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+            _executor = executor;
         }
+        return _executor;
     }
 
     /**
-     * Get nodes text content
+     * Limit of requests in flight adapting to the latency and errors of the server. Several instances talking to the
+     * same service should share one limiter. Off by default.
      *
-     * @param soapResponseText can be a full response as xml
-     * @param nodeName
-     * @return if nodes with searched node names exist it will return an array list containing text from value from nodes
+     * @param concurrencyLimiter null to switch it off
      */
+    public synchronized void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+        this._concurrencyLimiter = concurrencyLimiter;
+    }
+
     @Nullable
-    private ArrayList<String> getTextFromXmlText(String soapResponseText, String nodeName) throws Exception {
+    private synchronized ConcurrencyLimiter getConcurrencyLimiter() {
+        return _concurrencyLimiter;
+    }
 
-        Element element = getNodeList(soapResponseText);
-        return getNodesFromNodeList(element, nodeName);
+    /**
+     * How often documents without signature in a response are sent again, with the hashes of the first request. Only
+     * server side errors, missing signatures and refused connections are retried, other I/O errors only for timestamp
+     * requests since the server may have signed the documents already. 1 by default.
+     *
+     * @param documentRetries 0 to fail at once
+     */
+    public synchronized void setDocumentRetries(int documentRetries) {
+        this._documentRetries = documentRetries;
+    }
+
+    private synchronized int getDocumentRetries() {
+        return _documentRetries;
     }
 
     /**
-     * Get nodes text content
+     * Check the returned signatures before they are embedded or returned. A document with an invalid signature fails
+     * alone and is not sent again, the others of its batch are embedded. Returned hash signatures are checked as a
+     * whole. Several instances may share one verifier and its cache. Off by default.
      *
-     * @param element
-     * @param nodeName
-     * @return if nodes with searched node names exist it will return an array list containing text from value from nodes
+     * @param signatureVerifier null to switch it off
      */
+    public synchronized void setSignatureVerifier(SignatureVerifier signatureVerifier) {
+        this._signatureVerifier = signatureVerifier;
+    }
+
     @Nullable
-    private ArrayList<String> getNodesFromNodeList(@NotNull Element element, @NotNull String nodeName) {
-        ArrayList<String> returnlist = null;
-        NodeList nl = element.getElementsByTagName(nodeName);
-
-        for (int i = 0; i < nl.getLength(); i++) {
-            if (nodeName.equals(nl.item(i).getNodeName())) {
-                if (returnlist == null)
-                    returnlist = new ArrayList<>();
-                returnlist.add(nl.item(i).getTextContent());
-            }
+    private synchronized SignatureVerifier getSignatureVerifier() {
+        return _signatureVerifier;
+    }
+
+    /**
+     * Append the certificates, OCSP responses and CRLs of each signature to its document as DSS dictionary, for long
+     * term validation. A document of a revoked certificate fails alone and is not sent again. A document whose
+     * revocation data is not available is signed without validation data, see
+     * {@link SigningMetrics.Counter#UNVALIDATED_DOCUMENTS}. Several instances may share one cache. Off by default.
+     *
+     * @param validationDataCache null to add no validation data
+     */
+    public synchronized void setValidationDataCache(ValidationDataCache validationDataCache) {
+        this._validationDataCache = validationDataCache;
+    }
+
+    @Nullable
+    private synchronized ValidationDataCache getValidationDataCache() {
+        return _validationDataCache;
+    }
+
+    /**
+     * Servers to spread the requests over. If set, the server uri passed to the sign methods is ignored. Off by default.
+     *
+     * @param endpointGroup null to send to the server uri of the sign methods
+     */
+    public synchronized void setEndpointGroup(EndpointGroup endpointGroup) {
+        this._endpointGroup = endpointGroup;
+    }
+
+    @Nullable
+    private synchronized EndpointGroup getEndpointGroup() {
+        return _endpointGroup;
+    }
+
+    /**
+     * Message format used to talk to the server, SOAP by default. The server uri passed to the sign methods must match:
+     * the web service endpoint for SOAP, e.g. .../DSS-Server/ws, the REST base for JSON, e.g. .../DSS-Server/rs/v1.0
+     *
+     * @param messageType
+     */
+    public synchronized void setMessageType(@NotNull MessageType messageType) {
+        this._transport = new HttpTransport(_connection, messageType, _debug);
+    }
+
+    /**
+     * Custom transport, replaces the one of the message type
+     *
+     * @param transport
+     */
+    public synchronized void setTransport(@NotNull DSSTransport transport) {
+        this._transport = transport;
+    }
+
+    @NotNull
+    private synchronized DSSTransport getTransport() {
+        if (_transport == null)
+            _transport = new HttpTransport(_connection, MessageType.SOAP, _debug);
+        return _transport;
+    }
+
+    /**
+     * Estimator sizing the signature placeholder from the sizes of earlier signatures. Several instances may share one
+     * estimator; a persistent one is saved on {@link #close}.
+     *
+     * @param sizeEstimator
+     */
+    public synchronized void setSizeEstimator(@NotNull SignatureSizeEstimator sizeEstimator) {
+        this._sizeEstimator = sizeEstimator;
+    }
+
+    @NotNull
+    private synchronized SignatureSizeEstimator getSizeEstimator() {
+        if (_sizeEstimator == null)
+            _sizeEstimator = new SignatureSizeEstimator();
+        return _sizeEstimator;
+    }
+
+    /**
+     * Keep prepared documents in temp files next to their output until the signatures arrive, instead of the output
+     * itself or, for documents with a damaged cross reference that are written again as a whole, the heap.
+     *
+     * @param spillPreparedDocuments
+     */
+    public synchronized void setSpillPreparedDocuments(boolean spillPreparedDocuments) {
+        this._spillPreparedDocuments = spillPreparedDocuments;
+    }
+
+    private synchronized boolean isSpillPreparedDocuments() {
+        return _spillPreparedDocuments;
+    }
+
+    /**
+     * Share timestamp only requests of identical digests: a digest in flight or timestamped within the window of the
+     * coalescer is not sent again. Asynchronous requests are never shared. Off by default.
+     *
+     * @param timestampCoalescer null to switch it off
+     */
+    public synchronized void setTimestampCoalescer(TimestampCoalescer timestampCoalescer) {
+        this._timestampCoalescer = timestampCoalescer;
+    }
+
+    @Nullable
+    private synchronized TimestampCoalescer getTimestampCoalescer() {
+        return _timestampCoalescer;
+    }
+
+    /**
+     * Worker pool preparing and signing the documents of a batch in parallel. Several instances may share one pool.
+     *
+     * @param workerPool
+     */
+    public synchronized void setWorkerPool(@NotNull PdfWorkerPool workerPool) {
+        this._workerPool = workerPool;
+    }
+
+    /**
+     * Planner splitting large document arrays into several requests, sent concurrently. Several instances may share one
+     * planner.
+     *
+     * @param batchPlanner
+     */
+    public synchronized void setBatchPlanner(@NotNull BatchPlanner batchPlanner) {
+        this._batchPlanner = batchPlanner;
+    }
+
+    @NotNull
+    private synchronized BatchPlanner getBatchPlanner() {
+        if (_batchPlanner == null)
+            _batchPlanner = new BatchPlanner();
+        return _batchPlanner;
+    }
+
+    /**
+     * Run the batches of a sign call through a pipeline: the next batch is prepared while one is on the wire and the
+     * previous one is embedded. The batches still come from the planner, the pipeline replaces its batches in flight.
+     * Without a pipeline each batch is prepared, sent and embedded in turn on one thread of the planner. Several
+     * instances may share one pipeline.
+     *
+     * @param signingPipeline null to sign batch by batch
+     */
+    public synchronized void setSigningPipeline(SigningPipeline signingPipeline) {
+        this._signingPipeline = signingPipeline;
+    }
+
+    private synchronized SigningPipeline getSigningPipeline() {
+        return _signingPipeline;
+    }
+
+    @NotNull
+    private synchronized PdfWorkerPool getWorkerPool() {
+        if (_workerPool == null)
+            _workerPool = new PdfWorkerPool();
+        return _workerPool;
+    }
+
+    @NotNull
+    private synchronized DSSAsyncPoller getAsyncPoller() {
+        if (_asyncPoller == null)
+            _asyncPoller = new DSSAsyncPoller();
+        return _asyncPoller;
+    }
+
+    private DSSRequest createOnDemandCertMobileIdRequest(@NotNull Pdf pdfs[], @NotNull Calendar signDate, @NotNull HashAlgorithm hashAlgo,
+                                                         boolean addTimestamp, boolean addOcsp, @NotNull String claimedIdentity,
+                                                         @NotNull String distinguishedName, @NotNull String phoneNumber, @NotNull String certReqMsg,
+                                                         @NotNull String certReqMsgLang, int requestId, int estimatedSize, boolean async) throws Exception {
+
+        String[] additionalProfiles = getAdditionalProfiles(pdfs.length, async, AdditionalProfiles.ON_DEMAND_CERTIFCATE);
+
+        byte[][] pdfHash = getWorkerPool().getPdfHashes(pdfs, signDate, estimatedSize, hashAlgo.getHashAlgorythm(), false,
+                isSpillPreparedDocuments());
+
+        return DSSRequest.onDemandCertMobileId(requestId, hashAlgo.getHashUri(), pdfHash, additionalProfiles,
+                claimedIdentity, distinguishedName, phoneNumber, certReqMsg, certReqMsgLang, addTimestamp, addOcsp);
+    }
+
+    private DSSRequest createOnDemandCertRequest(@NotNull Pdf[] pdfs, @NotNull HashAlgorithm hashAlgo, Calendar signDate,
+                                                 @NotNull String certRequestProfile, boolean addTimeStamp, boolean addOcsp,
+                                                 @NotNull String distinguishedName, @NotNull String claimedIdentity, int requestId,
+                                                 int estimatedSize, boolean async) throws Exception {
+
+        String[] additionalProfiles = getAdditionalProfiles(pdfs.length, async, AdditionalProfiles.ON_DEMAND_CERTIFCATE);
+
+        byte[][] pdfHash = getWorkerPool().getPdfHashes(pdfs, signDate, estimatedSize, hashAlgo.getHashAlgorythm(), false,
+                isSpillPreparedDocuments());
+
+        return DSSRequest.onDemandCert(requestId, hashAlgo.getHashUri(), pdfHash, additionalProfiles,
+                claimedIdentity, certRequestProfile, distinguishedName, addTimeStamp, addOcsp);
+    }
+
+    private DSSRequest createStaticCertRequest(@NotNull Pdf[] pdfs, @NotNull HashAlgorithm hashAlgo, Calendar signDate,
+                                               boolean addTimeStamp, boolean addOCSP, @NotNull String claimedIdentity, int requestId,
+                                               int estimatedSize, boolean async) throws Exception {
+
+        String[] additionalProfiles = getAdditionalProfiles(pdfs.length, async, null);
 
+        byte[][] pdfHash = getWorkerPool().getPdfHashes(pdfs, signDate, estimatedSize, hashAlgo.getHashAlgorythm(), false,
+                isSpillPreparedDocuments());
+
+        return DSSRequest.staticCert(requestId, hashAlgo.getHashUri(), pdfHash, additionalProfiles,
+                claimedIdentity, addTimeStamp, addOCSP);
+    }
+
+    private DSSRequest createTimestampOnlyRequest(@NotNull Pdf[] pdfs, @NotNull HashAlgorithm hashAlgo, Calendar signDate,
+                                                  @NotNull String claimedIdentity, int requestId, int estimatedSize, boolean async) throws Exception {
+
+        String[] additionalProfiles = getAdditionalProfiles(pdfs.length, async, AdditionalProfiles.TIMESTAMP);
+
+        byte[][] pdfHash = getWorkerPool().getPdfHashes(pdfs, signDate, estimatedSize, hashAlgo.getHashAlgorythm(), true,
+                isSpillPreparedDocuments());
+
+        return DSSRequest.timestampOnly(requestId, hashAlgo.getHashUri(), pdfHash, additionalProfiles, claimedIdentity);
+    }
+
+    /**
+     * Additional profiles of a sign request
+     *
+     * @param documentCount
+     * @param async
+     * @param mainProfile   e.g. on demand or timestamp, may be null
+     * @return profiles in the order main, batch, asynchron or null if there are none
+     */
+    @Nullable
+    private String[] getAdditionalProfiles(int documentCount, boolean async, AdditionalProfiles mainProfile) {
+        ArrayList<String> additionalProfiles = new ArrayList<>();
+        if (mainProfile != null)
+            additionalProfiles.add(mainProfile.getProfileName());
+        if (documentCount > 1)
+            additionalProfiles.add(AdditionalProfiles.BATCH.getProfileName());
+        if (async)
+            additionalProfiles.add(AdditionalProfiles.ASYNCHRON.getProfileName());
+        return additionalProfiles.isEmpty() ? null : additionalProfiles.toArray(new String[additionalProfiles.size()]);
+    }
+
+    /**
+     * Sign document synchron
+     *
+     * @param requestFactory
+     * @param serverURI
+     * @param pdfs
+     * @param sizeProfile
+     * @param signNodeName
+     */
+    private void signDocumentSync(@NotNull RequestFactory requestFactory, @NotNull String serverURI, @NotNull Pdf[] pdfs,
+                                  @NotNull SignatureSizeEstimator.Profile sizeProfile, String signNodeName) throws Exception {
+
+        signDocumentSync(requestFactory, serverURI, pdfs, sizeProfile, getSizeEstimator().estimate(sizeProfile), signNodeName, true);
+    }
+
+    /**
+     * @param estimatedSize size reserved for the signatures
+     * @param retry         sign documents again with a larger size if their signature does not fit
+     */
+    private void signDocumentSync(@NotNull RequestFactory requestFactory, @NotNull String serverURI, @NotNull Pdf[] pdfs,
+                                  @NotNull SignatureSizeEstimator.Profile sizeProfile, int estimatedSize, String signNodeName,
+                                  boolean retry) throws Exception {
+
+        long start = SigningMetrics.start();
+        countRequest(pdfs.length);
+        try {
+            DSSRequest sigReqMsg = requestFactory.create(pdfs, estimatedSize, false);
+            SigningMetrics.stop(SigningMetrics.Phase.REQUEST_PREPARE, start);
+
+            embedSignatures(sigReqMsg, null, pdfs, estimatedSize, sizeProfile,
+                    request -> sendRequest(request, serverURI, signNodeName), !retry ? null : (oversized, retrySize) ->
+                    signDocumentSync(requestFactory, serverURI, oversized, sizeProfile, retrySize, signNodeName, false));
+        } catch (Exception e) {
+            SigningMetrics.count(SigningMetrics.Counter.FAILED_REQUESTS, 1);
+            throw e;
         }
-        return returnlist;
+        SigningMetrics.stop(SigningMetrics.Phase.REQUEST, start);
     }
 
     /**
-     * Get a XML string as an element
+     * Sign the documents in batches of the planner, through the signing pipeline if one is set
      *
-     * @param xmlString
-     * @return org.w3c.dom.Element from XML String
-     * @throws ParserConfigurationException
-     * @throws IOException
-     * @throws SAXException
+     * @param requestFactory
+     * @param serverURI
+     * @param pdfs
+     * @param sizeProfile
+     * @param signNodeName
      */
-    private Element getNodeList(@NotNull String xmlString) throws ParserConfigurationException, IOException, SAXException {
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        DocumentBuilder db = dbf.newDocumentBuilder();
-        ByteArrayInputStream bis = new ByteArrayInputStream(xmlString.getBytes());
-        Document doc = db.parse(bis);
-        return doc.getDocumentElement();
+    private void signBatches(@NotNull RequestFactory requestFactory, @NotNull String serverURI, @NotNull Pdf[] pdfs,
+                             @NotNull SignatureSizeEstimator.Profile sizeProfile, @NotNull String signNodeName) throws Exception {
+        BatchPlanner planner = getBatchPlanner();
+        SigningPipeline pipeline = getSigningPipeline();
+        if (pipeline == null) {
+            planner.execute(pdfs, batch -> signDocumentSync(requestFactory, serverURI, batch, sizeProfile, signNodeName));
+            return;
+        }
+
+        int estimatedSize = getSizeEstimator().estimate(sizeProfile);
+        Sender sender = request -> sendRequest(request, serverURI, signNodeName);
+        pipeline.execute(planner.split(pdfs), batch -> {
+            long start = SigningMetrics.start();
+            countRequest(batch.length);
+            try {
+                DSSRequest request = requestFactory.create(batch, estimatedSize, false);
+                SigningMetrics.stop(SigningMetrics.Phase.REQUEST_PREPARE, start);
+                return new PipelinedBatch(batch, request, start, sender);
+            } catch (Exception e) {
+                SigningMetrics.count(SigningMetrics.Counter.FAILED_REQUESTS, 1);
+                throw e;
+            }
+        }, prepared -> {
+            long sent = System.currentTimeMillis();
+            prepared.submit();
+            planner.record(prepared.getPdfs().length, System.currentTimeMillis() - sent);
+            return prepared;
+        }, submitted -> {
+            try {
+                // the first send returns the response of the submit stage, resent documents go to the server
+                embedSignatures(submitted.getRequest(), null, submitted.getPdfs(), estimatedSize, sizeProfile, submitted,
+                        (oversized, retrySize) -> signDocumentSync(requestFactory, serverURI, oversized, sizeProfile, retrySize,
+                                signNodeName, false));
+            } catch (Exception e) {
+                SigningMetrics.count(SigningMetrics.Counter.FAILED_REQUESTS, 1);
+                throw e;
+            }
+            SigningMetrics.stop(SigningMetrics.Phase.REQUEST, submitted.getStart());
+            return null;
+        });
+    }
+
+    @NotNull
+    private DSSResponse signHashes(@NotNull DSSRequest request, @NotNull String serverURI, @NotNull String signNodeName,
+                                   int documents) throws IOException, GeneralSecurityException {
+        long start = SigningMetrics.start();
+        countRequest(documents);
+        DSSResponse response;
+        try {
+            response = sendRequest(request, serverURI, signNodeName);
+            SignatureVerifier verifier = getSignatureVerifier();
+            if (verifier != null && response.isSuccess())
+                verifier.verifyAll(request, response);
+        } catch (IOException | GeneralSecurityException e) {
+            SigningMetrics.count(SigningMetrics.Counter.FAILED_REQUESTS, 1);
+            throw e;
+        }
+        if (!response.isSuccess())
+            SigningMetrics.count(SigningMetrics.Counter.FAILED_REQUESTS, 1);
+        SigningMetrics.stop(SigningMetrics.Phase.REQUEST, start);
+        return response;
+    }
+
+    private static void countRequest(int documents) {
+        SigningMetrics.count(SigningMetrics.Counter.REQUESTS, 1);
+        SigningMetrics.count(SigningMetrics.Counter.DOCUMENTS, documents);
+        SigningMetrics.value(SigningMetrics.Histogram.BATCH_SIZE, documents);
     }
 
     /**
-     * Create a SOAP message object. Will print the message if debug is set to true
+     * Sign document asynchron. Sends the request and hands the returned response id to the poller. Documents whose
+     * signature does not fit are signed again with a synchronous request.
      *
-     * @param reqType                  type of request e.g. singing or pending
-     * @param digestMethodAlgorithmURL
-     * @param certRequestProfile       only necessary when on demand certificate is needed
-     * @param hashList                 pdf hashes
-     * @param timestampURN             if needed urn of timestamp
-     * @param ocspURN                  if needed urn of ocsp
-     * @param additionalProfiles
-     * @param claimedIdentity
-     * @param claimedIdentityFormat
-     * @param signatureType            e.g. cms or timestamp
-     * @param distinguishedName
-     * @param mobileIdType
-     * @param phoneNumber              must start with e.g. +41 or +49
-     * @param certReqMsg
-     * @param certReqMsgLang
-     * @param responseId
-     * @return
-     * @throws SOAPException
-     * @throws IOException
+     * @param requestFactory
+     * @param serverURI
+     * @param pdfs
+     * @param sizeProfile
+     * @param signNodeName
+     * @param claimedIdentity needed again for the pending requests
+     * @param requestId
+     * @return handle of the pending request
      */
-    private SOAPMessage createRequestMessage(@NotNull RequestType reqType, @NotNull String digestMethodAlgorithmURL,
-                                             String certRequestProfile, @NotNull byte[][] hashList, String timestampURN, String ocspURN,
-                                             String[] additionalProfiles, String claimedIdentityFormat, String claimedIdentity,
-                                             @NotNull String signatureType, String distinguishedName,
-                                             String mobileIdType, String phoneNumber, String certReqMsg, String certReqMsgLang,
-                                             String responseId, int requestId) throws SOAPException, IOException {
-
-        MessageFactory messageFactory = MessageFactory.newInstance();
-        SOAPMessage soapMessage = messageFactory.createMessage();
-        SOAPPart soapPart = soapMessage.getSOAPPart();
-
-        // SOAP Envelope
-        SOAPEnvelope envelope = soapPart.getEnvelope();
-        envelope.addAttribute(new QName("xmlns"), "urn:oasis:names:tc:dss:1.0:core:schema");
-        envelope.addNamespaceDeclaration("dsig", "http://www.w3.org/2000/09/xmldsig#");
-        envelope.addNamespaceDeclaration("ns5", "urn:com:swisscom:dss:1.0:schema");
-        envelope.addNamespaceDeclaration("ais", "http://service.ais.swisscom.com/");
-
-        // SOAP Body
-        SOAPBody soapBody = envelope.getBody();
-
-        SOAPElement signElement = soapBody.addChildElement("sign", "ais");
-
-        SOAPElement requestElement = signElement.addChildElement(reqType.getRequestType());
-        requestElement.addAttribute(new QName("Profile"), reqType.getUrn());
-        requestElement.addAttribute(new QName("RequestID"), String.valueOf(requestId));
-        SOAPElement inputDocumentsElement = requestElement.addChildElement("InputDocuments");
-
-        SOAPElement digestValueElement;
-        SOAPElement documentHashElement;
-        SOAPElement digestMethodElement;
-
-        for (int i = 0; i < hashList.length; i++) {
-            documentHashElement = inputDocumentsElement.addChildElement("DocumentHash");
-            if (hashList.length > 1)
-                documentHashElement.addAttribute(new QName("ID"), String.valueOf(i));
-            digestMethodElement = documentHashElement.addChildElement("DigestMethod", "dsig");
-            digestMethodElement.addAttribute(new QName("Algorithm"), digestMethodAlgorithmURL);
-            digestValueElement = documentHashElement.addChildElement("DigestValue", "dsig");
-
-            String s = com.itextpdf.text.pdf.codec.Base64.encodeBytes(hashList[i]);
-            digestValueElement.addTextNode(s);
+    private PendingSignature signDocumentAsync(@NotNull RequestFactory requestFactory, @NotNull String serverURI, @NotNull Pdf[] pdfs,
+                                               @NotNull SignatureSizeEstimator.Profile sizeProfile, @NotNull String signNodeName,
+                                               @NotNull String claimedIdentity, int requestId) throws Exception {
+
+        long start = SigningMetrics.start();
+        countRequest(pdfs.length);
+        int estimatedSize = getSizeEstimator().estimate(sizeProfile);
+        DSSRequest sigReqMsg;
+        DSSResponse sigResponse;
+        try {
+            sigReqMsg = requestFactory.create(pdfs, estimatedSize, true);
+            SigningMetrics.stop(SigningMetrics.Phase.REQUEST_PREPARE, start);
+
+            sigResponse = sendRequest(sigReqMsg, serverURI, signNodeName);
+        } catch (Exception e) {
+            SigningMetrics.count(SigningMetrics.Counter.FAILED_REQUESTS, 1);
+            discard(pdfs, e);
+            throw e;
         }
 
-        if (timestampURN != null || additionalProfiles != null || ocspURN != null || certRequestProfile != null || claimedIdentity != null || signatureType != null) {
-            SOAPElement optionalInputsElement = requestElement.addChildElement("OptionalInputs");
+        CompletableFuture<DSSResponse> response;
+        String responseId = null;
+        if (sigResponse.isPending()) {
+            responseId = sigResponse.getResponseId();
+            if (responseId == null) {
+                Exception e = new Exception("Pending response without ResponseID");
+                discard(pdfs, e);
+                throw e;
+            }
 
-            SOAPElement additionalProfileelement;
-            if (additionalProfiles != null)
-                for (String additionalProfile : additionalProfiles) {
-                    additionalProfileelement = optionalInputsElement.addChildElement("AdditionalProfile");
-                    additionalProfileelement.addTextNode(additionalProfile);
-                }
+            final DSSRequest pendingReqMsg = DSSRequest.pending(claimedIdentity, responseId);
+            response = getAsyncPoller().poll(() -> {
+                DSSResponse pendingResponse = sendRequest(pendingReqMsg, serverURI, signNodeName);
+                return pendingResponse.isPending() ? null : pendingResponse;
+            });
+        } else {
+            // the server may answer at once, e.g. on errors
+            response = CompletableFuture.completedFuture(sigResponse);
+        }
 
-            if (claimedIdentity != null && claimedIdentityFormat != null) {
-                SOAPElement claimedIdentityElement = optionalInputsElement.addChildElement(new QName("ClaimedIdentity"));
-                if (!_CERTIFICATE_REQUEST_PROFILE.equals(certRequestProfile))
-                    claimedIdentityElement.addAttribute(new QName("Format"), claimedIdentityFormat);
-                SOAPElement claimedIdNameElement = claimedIdentityElement.addChildElement("Name");
-                claimedIdNameElement.addTextNode(claimedIdentity);
+        // the documents belong to whoever claims them first, the embedding or the discard of a failed or cancelled
+        // request, so that a cancel does not discard documents while their signatures are embedded
+        Executor completionExecutor = getAsyncPoller().getCompletionExecutor();
+        AtomicBoolean claimed = new AtomicBoolean();
+        CompletableFuture<Void> signed = response.thenAcceptAsync(finalResponse -> {
+            if (!claimed.compareAndSet(false, true))
+                return;
+            try {
+                // failed documents are sent again synchronously
+                embedSignatures(sigReqMsg, finalResponse, pdfs, estimatedSize, sizeProfile,
+                        request -> sendRequest(request, serverURI, signNodeName), (oversized, retrySize) ->
+                        signDocumentSync(requestFactory, serverURI, oversized, sizeProfile, retrySize, signNodeName, false));
+            } catch (Exception e) {
+                // embedSignatures discards the documents it failed to sign, others may be left from the retry
+                discard(pdfs, e);
+                throw e instanceof RuntimeException ? (RuntimeException) e : new CompletionException(e);
             }
+        }, completionExecutor);
+        // cancelling the handle stops the polling as well
+        final CompletableFuture<DSSResponse> polled = response;
+        signed.whenComplete((result, error) -> {
+            polled.cancel(false);
+            if (error != null)
+                SigningMetrics.count(SigningMetrics.Counter.FAILED_REQUESTS, 1);
+            else
+                SigningMetrics.stop(SigningMetrics.Phase.REQUEST, start);
+        });
+        signed.whenCompleteAsync((result, error) -> {
+            if (error != null && claimed.compareAndSet(false, true))
+                discard(pdfs, error);
+        }, completionExecutor);
+
+        return new PendingSignature(requestId, responseId, signed);
+    }
 
-            if (certRequestProfile != null) {
-                SOAPElement certificateRequestElement = optionalInputsElement.addChildElement("CertificateRequest", "ns5");
-                if (!_CERTIFICATE_REQUEST_PROFILE.equals(certRequestProfile))
-                    certificateRequestElement.addAttribute(new QName("Profile"), certRequestProfile);
-                if (distinguishedName != null) {
-                    SOAPElement distinguishedNameElement = _CERTIFICATE_REQUEST_PROFILE.equals(certRequestProfile) ?
-                            certificateRequestElement.addChildElement("DistinguishedName", "ns5") :
-                            certificateRequestElement.addChildElement("DistinguishedName");
-                    distinguishedNameElement.addTextNode(distinguishedName);
-                    if (phoneNumber != null) {
-                        SOAPElement stepUpAuthorisationElement = certificateRequestElement.addChildElement("StepUpAuthorisation", "ns5");
-
-                        if (mobileIdType != null && phoneNumber != null) {
-                            SOAPElement mobileIdElement = stepUpAuthorisationElement.addChildElement("MobileID", "ns5");
-                            SOAPElement msisdnElement = mobileIdElement.addChildElement("MSISDN", "ns5");
-                            msisdnElement.addTextNode(phoneNumber);
-                            SOAPElement certReqMsgElement = mobileIdElement.addChildElement("Message", "ns5");
-                            certReqMsgElement.addTextNode(certReqMsg);
-                            SOAPElement certReqMsgLangElement = mobileIdElement.addChildElement("Language", "ns5");
-                            certReqMsgLangElement.addTextNode(certReqMsgLang.toUpperCase());
-                        }
-                    }
+    /**
+     * Add the signatures of a sign response to the documents, matched by the ID of their DocumentHash. Documents without
+     * signature are sent again with their hashes as long as the failure may be temporary, see
+     * {@link #setDocumentRetries}. Documents left without signature are discarded.
+     *
+     * @param request       request of the response
+     * @param sigResponse   null to send the request first
+     * @param pdfs          documents of the request, in request order
+     * @param estimatedSize size reserved when the documents were prepared
+     * @param sizeProfile
+     * @param sender        sends the request and the requests of failed documents
+     * @param retry         signs documents whose signature did not fit again, if null they fail
+     * @throws BatchSigningException if some documents are signed and others are not
+     * @throws Exception             if no document is signed, e.g. a failed response or the exception of the request
+     */
+    private void embedSignatures(@NotNull DSSRequest request, @Nullable DSSResponse sigResponse, @NotNull Pdf[] pdfs,
+                                 int estimatedSize, @NotNull SignatureSizeEstimator.Profile sizeProfile, @NotNull Sender sender,
+                                 @Nullable Retry retry) throws Exception {
+        int signed = 0;
+        // documents failed for good with their reason, discarded once all attempts are done
+        LinkedHashMap<Pdf, String> failures = new LinkedHashMap<>();
+        Exception cause = null;
+        for (int attempt = 0; ; attempt++) {
+            Exception failure = null;
+            if (sigResponse == null) {
+                try {
+                    sigResponse = sender.send(request);
+                } catch (IOException | GeneralSecurityException e) {
+                    // the documents are discarded below, security errors like an unreadable key store are not retried
+                    failure = e;
                 }
             }
-
-            if (signatureType != null) {
-                SOAPElement signatureTypeElement = optionalInputsElement.addChildElement("SignatureType");
-                signatureTypeElement.addTextNode(signatureType);
+            // a document with an invalid signature or a revoked certificate fails alone, the others are embedded
+            Map<String, GeneralSecurityException> rejected = new LinkedHashMap<>();
+            SignatureVerifier verifier = getSignatureVerifier();
+            if (verifier != null && sigResponse != null && sigResponse.isSuccess()) {
+                try {
+                    Map<String, GeneralSecurityException> invalid = verifier.verify(request, sigResponse);
+                    if (!invalid.isEmpty())
+                        cause = addCause(cause, SignatureVerifier.toException(invalid, pdfs.length));
+                    rejected.putAll(invalid);
+                } catch (GeneralSecurityException e) {
+                    failure = e;
+                }
             }
-
-            if (timestampURN != null && !signatureType.equals(_TIMESTAMP_URN)) {
-                SOAPElement addTimeStampelemtn = optionalInputsElement.addChildElement("AddTimestamp");
-                addTimeStampelemtn.addAttribute(new QName("Type"), timestampURN);
+            Map<String, ValidationData> validationData = null;
+            if (failure == null && sigResponse.isSuccess()) {
+                int invalid = rejected.size();
+                validationData = getValidationData(request, sigResponse, rejected, pdfs.length);
+                if (rejected.size() > invalid) {
+                    // usually one certificate for the whole batch, its first failure stands for all
+                    cause = addCause(cause, new ArrayList<>(rejected.values()).get(invalid));
+                }
             }
-
-            if (ocspURN != null && !signatureType.equals(_TIMESTAMP_URN)) {
-                SOAPElement addOcspElement = optionalInputsElement.addChildElement("AddOcspResponse", "ns5");
-                addOcspElement.addAttribute(new QName("Type"), ocspURN);
+            for (int i = 0; i < pdfs.length; i++) {
+                GeneralSecurityException e = rejected.get(request.getDocumentId(i));
+                if (e != null)
+                    failures.put(pdfs[i], e.toString());
             }
 
-            if (responseId != null) {
-                SOAPElement responseIdElement = optionalInputsElement.addChildElement("ResponseID");
-                responseIdElement.addTextNode(responseId);
+            int[] missing;
+            if (failure != null || !sigResponse.isSuccess()) {
+                missing = new int[pdfs.length];
+                for (int i = 0; i < missing.length; i++)
+                    missing[i] = i;
+            } else {
+                try {
+                    missing = embedSignatures(request, sigResponse, rejected.keySet(), validationData, pdfs, estimatedSize,
+                            sizeProfile, retry);
+                } catch (BatchSigningException e) {
+                    // embedding failed part way, the documents left without signature are discarded below
+                    failures.putAll(e.getFailures());
+                    signed += e.getSigned();
+                    cause = addCause(cause, e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+                    break;
+                }
+                signed += pdfs.length - missing.length - rejected.size();
             }
+            if (missing.length == 0)
+                break;
+
+            Pdf[] failed = new Pdf[missing.length];
+            for (int i = 0; i < missing.length; i++)
+                failed[i] = pdfs[missing[i]];
+            if (attempt < getDocumentRetries() && isRetryable(request, sigResponse, failure)) {
+                SigningMetrics.count(SigningMetrics.Counter.RESENT_DOCUMENTS, failed.length);
+                if (_debug)
+                    System.out.println("Sending " + failed.length + " documents again, result: " + (failure != null ? failure : sigResponse));
+                request = request.subset(missing);
+                pdfs = failed;
+                sigResponse = null;
+                continue;
+            }
+
+            String reason = failure != null ? failure.toString() : sigResponse.isSuccess() ?
+                    "No signature for the document in " + sigResponse : sigResponse.toString();
+            for (Pdf pdf : failed)
+                failures.put(pdf, reason);
+            cause = addCause(cause, failure != null ? failure : new Exception("Getting signatures failed. Result: " + sigResponse));
+            break;
         }
+        if (failures.isEmpty())
+            return;
 
-        soapMessage.saveChanges();
+        Exception error = signed == 0 ? cause : new BatchSigningException(failures, signed, cause);
+        discard(failures.keySet().toArray(new Pdf[failures.size()]), error);
+        throw error;
+    }
 
-        if (_debug) {
-            System.out.print("Request SOAP Message = ");
-            ByteArrayOutputStream ba = new ByteArrayOutputStream();
-            soapMessage.writeTo(ba);
-            String msg = new String(ba.toByteArray()).replaceAll("><", ">\n<");
-            System.out.println(msg);
-        }
+    /**
+     * @return the first failure of the documents of a request, later ones are added to it as suppressed
+     */
+    @NotNull
+    private static Exception addCause(@Nullable Exception cause, @NotNull Exception failure) {
+        if (cause == null)
+            return failure;
+        cause.addSuppressed(failure);
+        return cause;
+    }
 
-        return soapMessage;
+    /**
+     * Discard the documents of a failed request. Signed documents are left as they are.
+     *
+     * @param pdfs
+     * @param failure gets the errors of the discard as suppressed exceptions
+     */
+    private static void discard(@NotNull Pdf[] pdfs, @NotNull Throwable failure) {
+        for (Pdf pdf : pdfs) {
+            try {
+                pdf.discard();
+            } catch (IOException | DocumentException e) {
+                failure.addSuppressed(e);
+            }
+        }
     }
 
     /**
-     * Send request to a server. If debug is set to true it will print response message.
+     * Validation data of the signatures of a response by document ID, looked up in the cache. A document whose
+     * certificate is revoked or whose token can not be parsed is rejected. A document whose revocation data is not
+     * available, e.g. while the OCSP responder is down, is signed without validation data.
      *
-     * @param soapMsg
-     * @param urlPath
-     * @return Server response as string
-     * @throws SOAPException
-     * @throws IOException
+     * @param rejected IDs of the documents whose signature is not embedded, gets the newly rejected ones
+     * @return null if no cache is set
      */
     @Nullable
-    private String sendRequest(@NotNull SOAPMessage soapMsg, @NotNull String urlPath) throws IOException, SOAPException {
-
-        URLConnection conn = new DSSConnection(urlPath, _privateKeyName, _serverCert, _clientCert, _keyStorePath, _trustStorePath,
-                _keyStorePass, _trustStorePass, _debug).getConnection();
-        if (conn instanceof HttpsURLConnection) {
-            ((HttpsURLConnection) conn).setRequestMethod("POST");
+    private Map<String, ValidationData> getValidationData(@NotNull DSSRequest request, @NotNull DSSResponse sigResponse,
+                                                          @NotNull Map<String, GeneralSecurityException> rejected,
+                                                          int documents) {
+        ValidationDataCache validationDataCache = getValidationDataCache();
+        if (validationDataCache == null)
+            return null;
+        Map<String, ValidationData> validationData = new HashMap<>();
+        for (int i = 0; i < documents; i++) {
+            String documentId = request.getDocumentId(i);
+            byte[] signature = sigResponse.getSignature(documentId);
+            if (signature == null || rejected.containsKey(documentId))
+                continue;
+            try {
+                validationData.put(documentId, validationDataCache.get(signature));
+            } catch (ValidationDataCache.RevokedException | SignatureException e) {
+                rejected.put(documentId, e);
+            } catch (GeneralSecurityException e) {
+                SigningMetrics.count(SigningMetrics.Counter.UNVALIDATED_DOCUMENTS, 1);
+                if (_debug)
+                    System.out.println("Signing document " + documentId + " without validation data: " + e.getMessage());
+            }
         }
+        return validationData;
+    }
 
-        conn.setAllowUserInteraction(true);
-        conn.setRequestProperty("Content-Type", "text/xml; charset=utf-8");
-        conn.setDoOutput(true);
+    /**
+     * Add the signatures of a successful response to the documents. The signature sizes are recorded by the size
+     * estimator; documents whose signature does not fit are discarded and handed to the retry.
+     *
+     * @param rejected       IDs of the documents whose signature is not embedded, they fail on their own
+     * @param validationData by document ID, null to append none
+     * @return indexes of the documents without signature in the response
+     * @throws BatchSigningException if embedding or the retry fails, with the documents left without signature and the
+     *                               number signed; the documents are not necessarily discarded yet
+     */
+    @NotNull
+    private int[] embedSignatures(@NotNull DSSRequest request, @NotNull DSSResponse sigResponse, @NotNull Set<String> rejected,
+                                  @Nullable Map<String, ValidationData> validationData, @NotNull Pdf[] pdfs,
+                                  int estimatedSize, @NotNull SignatureSizeEstimator.Profile sizeProfile,
+                                  @Nullable Retry retry) throws Exception {
+
+        SignatureSizeEstimator sizeEstimator = getSizeEstimator();
+        ArrayList<Pdf> fitting = new ArrayList<>(pdfs.length);
+        ArrayList<byte[]> signatureList = new ArrayList<>(pdfs.length);
+        ArrayList<ValidationData> validationList = validationData != null ? new ArrayList<>(pdfs.length) : null;
+        ArrayList<Pdf> oversized = new ArrayList<>();
+        int[] missing = new int[pdfs.length];
+        int missingCount = 0;
+        int requiredSize = 0;
+        for (int i = 0; i < pdfs.length; i++) {
+            if (rejected.contains(request.getDocumentId(i)))
+                continue;
+            byte[] signature = sigResponse.getSignature(request.getDocumentId(i));
+            if (signature == null) {
+                missing[missingCount++] = i;
+                continue;
+            }
+            sizeEstimator.record(sizeProfile, signature.length);
+            if (signature.length > estimatedSize) {
+                oversized.add(pdfs[i]);
+                requiredSize = Math.max(requiredSize, signature.length);
+            } else {
+                fitting.add(pdfs[i]);
+                signatureList.add(signature);
+                if (validationList != null)
+                    validationList.add(validationData.get(request.getDocumentId(i)));
+            }
+        }
 
-        OutputStreamWriter out = new OutputStreamWriter(conn.getOutputStream());
+        Pdf[] signing = fitting.toArray(new Pdf[fitting.size()]);
+        LinkedHashMap<Pdf, String> failures = new LinkedHashMap<>();
+        int signed = signing.length;
+        Throwable cause = null;
+        try {
+            signDocuments(signatureList, validationList, signing, estimatedSize);
+        } catch (Exception e) {
+            // the documents the workers did not sign are still prepared, they fail together with the oversized ones
+            for (Pdf pdf : signing) {
+                if (pdf.isPrepared())
+                    failures.put(pdf, e.toString());
+            }
+            signed -= failures.size();
+            for (Pdf pdf : oversized)
+                failures.put(pdf, e.toString());
+            oversized.clear();
+            cause = e;
+        }
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        soapMsg.writeTo(baos);
-        String msg = baos.toString();
+        if (!oversized.isEmpty()) {
+            SigningMetrics.count(SigningMetrics.Counter.RETRIED_DOCUMENTS, oversized.size());
+            try {
+                for (Pdf pdf : oversized)
+                    pdf.discard();
+                if (retry == null)
+                    throw new IOException("Not enough space for signature: " + requiredSize + " bytes, " + estimatedSize + " reserved");
+                if (_debug)
+                    System.out.println("Signing " + oversized.size() + " documents again, " + requiredSize + " bytes did not fit into " + estimatedSize);
+                retry.sign(oversized.toArray(new Pdf[oversized.size()]), sizeEstimator.getRetrySize(sizeProfile, requiredSize));
+                signed += oversized.size();
+            } catch (BatchSigningException e) {
+                failures.putAll(e.getFailures());
+                signed += e.getSigned();
+                cause = e.getCause() != null ? e.getCause() : e;
+            } catch (Exception e) {
+                for (Pdf pdf : oversized)
+                    failures.put(pdf, e.toString());
+                cause = e;
+            }
+        }
+        if (cause == null)
+            return Arrays.copyOf(missing, missingCount);
+
+        // after such a failure the documents missing in the response are not sent again
+        for (int i = 0; i < missingCount; i++)
+            failures.put(pdfs[missing[i]], "No signature for the document in " + sigResponse);
+        if (failures.isEmpty()) {
+            // every signature is embedded, appending validation data failed
+            if (_debug)
+                System.out.println("Signed " + signed + " documents, adding validation data failed: " + cause);
+            return new int[0];
+        }
+        throw new BatchSigningException(failures, signed, cause);
+    }
 
-        out.write(msg);
-        out.flush();
-        if (out != null) {
-            out.close();
+    /**
+     * Failures worth sending the documents again: server side errors, missing signatures and connections that were
+     * refused before the request was written. After other I/O errors, e.g. a read timeout, the server may have signed
+     * and billed the request already; only timestamp requests are sent again then. Refused requests, invalid signatures
+     * and mobile id requests, which would ask the user again, are not repeated.
+     */
+    private static boolean isRetryable(@NotNull DSSRequest request, @Nullable DSSResponse response, @Nullable Exception failure) {
+        if (request.getShape() == DSSRequest.Shape.ON_DEMAND_CERT_MOBILE_ID || failure instanceof GeneralSecurityException)
+            return false;
+        if (failure != null) {
+            if (failure instanceof DSSHttpException) {
+                int status = ((DSSHttpException) failure).getStatusCode();
+                return status == 429 || status >= 500;
+            }
+            if (failure instanceof ConnectException)
+                return true;
+            return request.getShape() == DSSRequest.Shape.TIMESTAMP_ONLY &&
+                    !(failure instanceof ConcurrencyLimiter.LimitExceededException) &&
+                    (!(failure instanceof InterruptedIOException) || failure instanceof SocketTimeoutException);
         }
+        String resultMajor = response.getResultMajor();
+        return response.isSuccess() || resultMajor != null && resultMajor.endsWith(":ResponderError");
+    }
 
-        String line = "";
-        BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()));
+    /**
+     * Sign document
+     *
+     * @param signatureList  decoded signatures in document order
+     * @param validationList validation data in document order, null to append none
+     * @param pdfs
+     * @param estimatedSize
+     * @throws Exception
+     */
+    private void signDocuments(@NotNull Collection<byte[]> signatureList, @Nullable List<ValidationData> validationList,
+                               @NotNull Pdf[] pdfs, int estimatedSize) throws Exception {
+        if (pdfs.length > 0)
+            getWorkerPool().sign(pdfs, new ArrayList<>(signatureList), validationList, estimatedSize);
+    }
 
-        String response = "";
-        while ((line = in.readLine()) != null) {
-            response = response + line;
-        }
-        if (in != null) {
-            in.close();
-        }
+    /**
+     * Send request to a server with the configured transport
+     *
+     * @param request
+     * @param urlPath
+     * @param signNodeName element containing the signatures
+     * @return parsed server response
+     * @throws IOException
+     */
+    @NotNull
+    private DSSResponse sendRequest(@NotNull DSSRequest request, @NotNull String urlPath, @NotNull String signNodeName)
+            throws IOException, GeneralSecurityException {
+        TimestampCoalescer coalescer = getTimestampCoalescer();
+        if (coalescer == null || request.getShape() != DSSRequest.Shape.TIMESTAMP_ONLY || isAsync(request))
+            return transmit(request, urlPath, signNodeName);
+
+        return coalescer.send(request, hashes -> transmit(hashes.length == request.getHashes().length ? request :
+                DSSRequest.timestampOnly(request.getRequestId(), request.getDigestMethod(), hashes,
+                        getAdditionalProfiles(hashes.length, false, AdditionalProfiles.TIMESTAMP), request.getClaimedIdentity()),
+                urlPath, signNodeName));
+    }
 
-        if (_debug)
-            System.out.println("response : " + response.replaceAll("><", ">\n<"));
+    /**
+     * Send over the transport within the concurrency limit
+     */
+    @NotNull
+    private DSSResponse transmit(@NotNull DSSRequest request, @NotNull String urlPath, @NotNull String signNodeName)
+            throws IOException, GeneralSecurityException {
+        ConcurrencyLimiter limiter = getConcurrencyLimiter();
+        if (limiter == null)
+            return route(request, urlPath, signNodeName);
+
+        int documents = request.getHashes() != null ? request.getHashes().length : 1;
+        // the mobile id request waits for the user, its round trip says nothing about the server
+        ConcurrencyLimiter.Permit permit = limiter.acquire(documents,
+                request.getShape() != DSSRequest.Shape.ON_DEMAND_CERT_MOBILE_ID || isAsync(request));
+        DSSResponse response;
+        try {
+            response = route(request, urlPath, signNodeName);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            permit.release(e);
+            throw e;
+        }
+        permit.release(response);
         return response;
     }
 
     /**
-     * Calculate size of signature
-     *
-     * @param useTimestmap
-     * @param useOcsp
-     * @param certRequestProfile
-     * @return calculated size of signature as int
+     * Send to the server uri, or to an endpoint of the group if one is configured
      */
-    private int getEstimatedSize(boolean useTimestmap, boolean useOcsp, String certRequestProfile) {
-        int returnValue = 8192;
-        returnValue = useTimestmap ? returnValue + 4192 : returnValue;
-        returnValue = useOcsp ? returnValue + 4192 : returnValue;
-        returnValue = certRequestProfile != null ? returnValue + 700 : returnValue;
-        return returnValue;
+    @NotNull
+    private DSSResponse route(@NotNull DSSRequest request, @NotNull String urlPath, @NotNull String signNodeName)
+            throws IOException, GeneralSecurityException {
+        EndpointGroup group = getEndpointGroup();
+        if (group == null)
+            return getTransport().send(request, urlPath, signNodeName);
+
+        boolean idempotent = request.getShape() == DSSRequest.Shape.TIMESTAMP_ONLY && !isAsync(request);
+        return group.send(request, idempotent, serverURI -> getTransport().send(request, serverURI, signNodeName));
+    }
+
+    private static boolean isAsync(@NotNull DSSRequest request) {
+        String[] additionalProfiles = request.getAdditionalProfiles();
+        if (additionalProfiles != null)
+            for (String profile : additionalProfiles)
+                if (AdditionalProfiles.ASYNCHRON.getProfileName().equals(profile))
+                    return true;
+        return false;
     }
 
     public static void main(String[] args) throws Exception {
@@ -568,5 +1437,115 @@ public class DSS_SOAP {
                 "CN=Hans Mueller, O=Firma XY AG, L=Bern, ST=Bern, C=CH", "+41123456", "please sign my pdf", "EN", requestId);
     }
 
-}
+    /**
+     * Run a blocking sign call on the executor
+     *
+     * @param task
+     * @return completed with the call, exceptionally with its exception
+     */
+    @NotNull
+    private CompletableFuture<Void> submit(@NotNull SignTask task) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        getExecutor().execute(() -> {
+            if (future.isCancelled())
+                return;
+            try {
+                task.run();
+                future.complete(null);
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
 
+    /**
+     * Creates the request for documents prepared with the given size
+     */
+    private interface RequestFactory {
+        DSSRequest create(@NotNull Pdf[] pdfs, int estimatedSize, boolean async) throws Exception;
+    }
+
+    /**
+     * Sends a request of the documents to sign
+     */
+    private interface Sender {
+        DSSResponse send(@NotNull DSSRequest request) throws IOException, GeneralSecurityException;
+    }
+
+    /**
+     * A prepared batch passed from the submit to the finalize stage of the signing pipeline. Its first send returns the
+     * response or throws the failure of the submit stage, so the finalize stage handles both like a request it sent.
+     */
+    private static class PipelinedBatch implements Sender {
+
+        private final Pdf[] _pdfs;
+        private final DSSRequest _request;
+        private final long _start;
+        private final Sender _sender;
+        private DSSResponse _response;
+        private Exception _failure;
+        private boolean _taken;
+
+        PipelinedBatch(@NotNull Pdf[] pdfs, @NotNull DSSRequest request, long start, @NotNull Sender sender) {
+            this._pdfs = pdfs;
+            this._request = request;
+            this._start = start;
+            this._sender = sender;
+        }
+
+        @NotNull
+        Pdf[] getPdfs() {
+            return _pdfs;
+        }
+
+        @NotNull
+        DSSRequest getRequest() {
+            return _request;
+        }
+
+        long getStart() {
+            return _start;
+        }
+
+        /**
+         * Send the request and keep the response or failure for the finalize stage
+         */
+        void submit() {
+            try {
+                _response = _sender.send(_request);
+            } catch (Exception e) {
+                _failure = e;
+            }
+        }
+
+        @Override
+        public synchronized DSSResponse send(@NotNull DSSRequest request) throws IOException, GeneralSecurityException {
+            if (_taken)
+                return _sender.send(request);
+            _taken = true;
+            if (_failure instanceof IOException)
+                throw (IOException) _failure;
+            if (_failure instanceof GeneralSecurityException)
+                throw (GeneralSecurityException) _failure;
+            if (_failure instanceof RuntimeException)
+                throw (RuntimeException) _failure;
+            return _response;
+        }
+    }
+
+    /**
+     * Signs documents again after their signature did not fit
+     */
+    private interface Retry {
+        void sign(@NotNull Pdf[] pdfs, int estimatedSize) throws Exception;
+    }
+
+    /**
+     * A blocking sign call run by {@link #submit}
+     */
+    private interface SignTask {
+        void run() throws Exception;
+    }
+
+}
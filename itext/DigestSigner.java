@@ -0,0 +1,392 @@
+/**
+ * Created:
+ * 19.10.26 KW42 09:40
+ * </p>
+ * **********************************************************************************
+ * Signs a manifest of precomputed digests in batches, streaming the tokens out    *
+ * **********************************************************************************
+ */
+
+import com.sun.istack.internal.NotNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Signs digests listed in a manifest, one entry per line:
+ * <pre>
+ *     # id digest method
+ *     invoice-17 GcXfOzOP8GsBu7odeT1w3GnMedppEWvngCQ7Ef1IBMA= SHA256
+ * </pre>
+ * The digest is Base64 encoded, method one of SHA224, SHA256, SHA384 and SHA512. Entries of the same method are
+ * collected into batches sized by a {@link BatchPlanner}, the planner also limits the batches in flight. The manifest
+ * is read only as fast as batches complete, so memory stays bounded however long it is.
+ * <p>
+ * Every token is written as id.p7s (CMS signature) or id.tst (RFC 3161 timestamp token) as soon as its batch returns.
+ * The report gets one line per entry in completion order, with the exit codes of the bash scripts:
+ * <pre>
+ *     invoice-17	0
+ *     invoice-18	1	urn:com:swisscom:dss:v1.0:resultminor:subsystem:...	Invalid digest
+ * </pre>
+ */
+public class DigestSigner {
+
+    private static final Map<HashAlgorithm, Integer> _DIGEST_LENGTHS = new EnumMap<>(HashAlgorithm.class);
+
+    private final DSS_SOAP _client;
+    private final String _serverURI;
+    private final Profile _profile;
+    private final BatchPlanner _planner;
+    private final AtomicInteger _requestId = new AtomicInteger();
+
+    static {
+        for (HashAlgorithm hashAlgo : HashAlgorithm.values()) {
+            try {
+                _DIGEST_LENGTHS.put(hashAlgo, MessageDigest.getInstance(hashAlgo.getHashAlgorythm()).getDigestLength());
+            } catch (NoSuchAlgorithmException e) {
+                // digest length is not checked
+            }
+        }
+    }
+
+    /**
+     * @param client
+     * @param serverURI
+     * @param profile   how the digests are signed
+     * @param planner   batch size and batches in flight
+     */
+    public DigestSigner(@NotNull DSS_SOAP client, @NotNull String serverURI, @NotNull Profile profile, @NotNull BatchPlanner planner) {
+        this._client = client;
+        this._serverURI = serverURI;
+        this._profile = profile;
+        this._planner = planner;
+    }
+
+    /**
+     * Usage: java DigestSigner config.properties manifest|- output [options]
+     * <pre>
+     * output                   directory, or archive ending with .zip or .tar
+     * --profile tsa|org|ondemand  default tsa
+     * --dn value               distinguished name of the on demand certificate
+     * --type SOAP|JSON         default SOAP
+     * --batch n                fixed batch size, default auto tuned up to 100
+     * --in-flight n            batches sent at the same time, default 4
+     * --report file            result per entry, default stdout
+     * </pre>
+     * The configuration uses the keys of {@link SigningDaemon}. Exit code 0 if every entry is signed, otherwise 1.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: java DigestSigner config.properties manifest|- output [--profile tsa|org|ondemand] [--dn dn]");
+            System.out.println("       [--type SOAP|JSON] [--batch n] [--in-flight n] [--report file]");
+            System.exit(1);
+        }
+        Properties config = new Properties();
+        try (InputStream in = new FileInputStream(args[0])) {
+            config.load(in);
+        }
+        Map<String, String> options = new HashMap<>();
+        for (int i = 3; i + 1 < args.length; i += 2)
+            options.put(args[i], args[i + 1]);
+
+        String profileName = options.getOrDefault("--profile", "tsa");
+        Profile profile;
+        if ("tsa".equals(profileName))
+            profile = Profile.timestampOnly(SigningDaemon.require(config, "ap.id.tsa"));
+        else if ("org".equals(profileName))
+            profile = Profile.staticCert(SigningDaemon.require(config, "ap.id.org"), true, true);
+        else if ("ondemand".equals(profileName))
+            profile = Profile.onDemandCert(SigningDaemon.require(config, "ap.id.ondemand"),
+                    SigningDaemon.require(options, "--dn"), true, true);
+        else
+            throw new IllegalArgumentException("Unsupported profile " + profileName);
+
+        MessageType messageType = SigningDaemon.getMessageType(options.get("--type"));
+        String serverURI = SigningDaemon.require(config, messageType == MessageType.JSON ? "url.rest" : "url.soap");
+        int inFlight = Integer.parseInt(options.getOrDefault("--in-flight", String.valueOf(BatchPlanner.DEFAULT_MAX_IN_FLIGHT)));
+        BatchPlanner planner = options.containsKey("--batch") ? BatchPlanner.fixed(Integer.parseInt(options.get("--batch")), inFlight) :
+                BatchPlanner.autoTuned(BatchPlanner.DEFAULT_MAX_BATCH_SIZE, inFlight, BatchPlanner.DEFAULT_TARGET_LATENCY_MILLIS);
+
+        DSS_SOAP client = SigningDaemon.createClient(config, messageType);
+        PrintStream report = options.containsKey("--report") ?
+                new PrintStream(new FileOutputStream(options.get("--report")), false, "UTF-8") : System.out;
+        InputStream manifest = "-".equals(args[1]) ? System.in : new FileInputStream(args[1]);
+        Summary summary;
+        try (Reader reader = new InputStreamReader(manifest, StandardCharsets.UTF_8);
+             TokenWriter output = TokenWriter.forPath(new File(args[2]))) {
+            summary = new DigestSigner(client, serverURI, profile, planner).sign(reader, output, report);
+        } finally {
+            report.flush();
+            planner.shutdown();
+            client.close();
+        }
+        System.err.println(summary);
+        System.exit(summary.getFailed() == 0 ? 0 : 1);
+    }
+
+    /**
+     * Sign all entries of the manifest. Invalid lines and failed batches are reported, they do not stop the others.
+     *
+     * @param manifest
+     * @param output   receives the token of every signed entry
+     * @param report   one line per entry, written by the batch threads
+     * @return number of signed and failed entries
+     * @throws IOException reading the manifest failed
+     */
+    @NotNull
+    public Summary sign(@NotNull Reader manifest, @NotNull TokenWriter output, @NotNull PrintStream report)
+            throws IOException, InterruptedException {
+
+        int maxInFlight = _planner.getMaxInFlight();
+        Semaphore permits = new Semaphore(maxInFlight);
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(maxInFlight, runnable -> {
+            Thread thread = new Thread(runnable, "dss-digest-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Summary summary = new Summary(report);
+        Map<HashAlgorithm, List<Entry>> pending = new EnumMap<>(HashAlgorithm.class);
+        BufferedReader reader = new BufferedReader(manifest);
+        try {
+            String line;
+            long lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                Entry entry;
+                try {
+                    entry = Entry.parse(line);
+                } catch (IllegalArgumentException e) {
+                    summary.failed(line.split("\\s+")[0], 1, null, "Line " + lineNumber + ": " + e.getMessage());
+                    continue;
+                }
+                List<Entry> batch = pending.computeIfAbsent(entry.hashAlgo, hashAlgo -> new ArrayList<>());
+                batch.add(entry);
+                if (batch.size() >= _planner.getBatchSize()) {
+                    pending.remove(entry.hashAlgo);
+                    submit(executor, permits, batch, output, summary);
+                }
+            }
+            for (List<Entry> batch : pending.values())
+                submit(executor, permits, batch, output, summary);
+            // all permits back: every batch is done
+            permits.acquire(maxInFlight);
+        } finally {
+            executor.shutdown();
+        }
+        return summary;
+    }
+
+    /**
+     * Blocks while the maximum number of batches is in flight, this throttles the manifest reader
+     */
+    private void submit(@NotNull ExecutorService executor, @NotNull Semaphore permits, @NotNull List<Entry> batch,
+                        @NotNull TokenWriter output, @NotNull Summary summary) throws InterruptedException {
+        permits.acquire();
+        executor.execute(() -> {
+            try {
+                signBatch(batch, output, summary);
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    private void signBatch(@NotNull List<Entry> batch, @NotNull TokenWriter output, @NotNull Summary summary) {
+        byte[][] hashes = new byte[batch.size()][];
+        for (int i = 0; i < hashes.length; i++)
+            hashes[i] = batch.get(i).digest;
+
+        long start = System.currentTimeMillis();
+        DSSResponse response;
+        try {
+            response = _profile.sign(_client, hashes, batch.get(0).hashAlgo, _serverURI, _requestId.incrementAndGet());
+        } catch (IOException | GeneralSecurityException e) {
+            for (Entry entry : batch)
+                summary.failed(entry.id, 2, null, e.toString());
+            return;
+        } catch (RuntimeException e) {
+            for (Entry entry : batch)
+                summary.failed(entry.id, 1, null, e.toString());
+            return;
+        }
+        _planner.record(batch.size(), System.currentTimeMillis() - start);
+
+        if (!response.isSuccess()) {
+            for (Entry entry : batch)
+                summary.failed(entry.id, 1, response.getResultMinor(), response.getResultMessage());
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            Entry entry = batch.get(i);
+            byte[] token = response.getSignature(DSSRequest.getDocumentId(i, batch.size()));
+            if (token == null) {
+                summary.failed(entry.id, 1, null, "No signature returned");
+                continue;
+            }
+            try {
+                output.write(entry.id + "." + _profile.getExtension(), token);
+                summary.signed(entry.id);
+            } catch (IOException e) {
+                summary.failed(entry.id, 1, null, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * How the digests of a batch are signed
+     */
+    public static class Profile {
+
+        private final String _extension;
+        private final HashSigner _signer;
+
+        private Profile(@NotNull String extension, @NotNull HashSigner signer) {
+            this._extension = extension;
+            this._signer = signer;
+        }
+
+        @NotNull
+        public static Profile staticCert(@NotNull String claimedIdentity, boolean addTimeStamp, boolean addOcsp) {
+            return new Profile("p7s", (client, hashes, hashAlgo, serverURI, requestId) ->
+                    client.signHashesStaticCert(hashes, hashAlgo, serverURI, addTimeStamp, addOcsp, claimedIdentity, requestId));
+        }
+
+        @NotNull
+        public static Profile onDemandCert(@NotNull String claimedIdentity, @NotNull String distinguishedName,
+                                           boolean addTimeStamp, boolean addOcsp) {
+            return new Profile("p7s", (client, hashes, hashAlgo, serverURI, requestId) ->
+                    client.signHashesOnDemandCert(hashes, hashAlgo, serverURI, DSSRequest.CERTIFICATE_REQUEST_PROFILE,
+                            addTimeStamp, addOcsp, distinguishedName, claimedIdentity, requestId));
+        }
+
+        @NotNull
+        public static Profile timestampOnly(@NotNull String claimedIdentity) {
+            return new Profile("tst", (client, hashes, hashAlgo, serverURI, requestId) ->
+                    client.signHashesTimestampOnly(hashes, hashAlgo, serverURI, claimedIdentity, requestId));
+        }
+
+        /**
+         * @return file extension of the tokens
+         */
+        @NotNull
+        public String getExtension() {
+            return _extension;
+        }
+
+        /**
+         * @return response with one token per digest, in their order
+         */
+        @NotNull
+        DSSResponse sign(@NotNull DSS_SOAP client, @NotNull byte[][] hashes, @NotNull HashAlgorithm hashAlgo,
+                         @NotNull String serverURI, int requestId) throws IOException, GeneralSecurityException {
+            return _signer.sign(client, hashes, hashAlgo, serverURI, requestId);
+        }
+
+        private interface HashSigner {
+
+            DSSResponse sign(@NotNull DSS_SOAP client, @NotNull byte[][] hashes, @NotNull HashAlgorithm hashAlgo,
+                             @NotNull String serverURI, int requestId) throws IOException, GeneralSecurityException;
+        }
+    }
+
+    /**
+     * Counts the entries and writes the report lines
+     */
+    public static class Summary {
+
+        private final PrintStream _report;
+        private final AtomicLong _signed = new AtomicLong();
+        private final AtomicLong _failed = new AtomicLong();
+
+        Summary(@NotNull PrintStream report) {
+            this._report = report;
+        }
+
+        public long getSigned() {
+            return _signed.get();
+        }
+
+        public long getFailed() {
+            return _failed.get();
+        }
+
+        void signed(@NotNull String id) {
+            _signed.incrementAndGet();
+            synchronized (_report) {
+                _report.print(id);
+                _report.print("\t0\n");
+            }
+        }
+
+        void failed(@NotNull String id, int rc, String resultMinor, String message) {
+            _failed.incrementAndGet();
+            synchronized (_report) {
+                _report.print(id + "\t" + rc + "\t" + (resultMinor != null ? resultMinor : "") + "\t" +
+                        (message != null ? message.replace('\t', ' ').replace('\n', ' ') : "") + "\n");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Signed: " + getSigned() + ", failed: " + getFailed();
+        }
+    }
+
+    private static class Entry {
+
+        final String id;
+        final byte[] digest;
+        final HashAlgorithm hashAlgo;
+
+        private Entry(@NotNull String id, @NotNull byte[] digest, @NotNull HashAlgorithm hashAlgo) {
+            this.id = id;
+            this.digest = digest;
+            this.hashAlgo = hashAlgo;
+        }
+
+        @NotNull
+        static Entry parse(@NotNull String line) {
+            String[] fields = line.split("\\s+");
+            if (fields.length != 3)
+                throw new IllegalArgumentException("Expected: id digest method");
+            try {
+                TokenWriter.checkName(fields[0]);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+            HashAlgorithm hashAlgo = SigningDaemon.getHashAlgorithm(fields[2]);
+            byte[] digest = Base64.getDecoder().decode(fields[1]);
+            Integer length = _DIGEST_LENGTHS.get(hashAlgo);
+            if (length != null && digest.length != length)
+                throw new IllegalArgumentException("Digest of " + digest.length + " bytes is no " + hashAlgo);
+            return new Entry(fields[0], digest, hashAlgo);
+        }
+    }
+}
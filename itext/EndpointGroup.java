@@ -0,0 +1,435 @@
+/**
+ * Created:
+ * 19.10.26 KW42 17:40
+ * </p>
+ * **********************************************************************************
+ * Spreads requests over several servers, avoiding slow and failing ones           *
+ * **********************************************************************************
+ */
+
+import com.sun.istack.internal.NotNull;
+import com.sun.istack.internal.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Several endpoints of the same service, e.g. the SOAP URLs of two data centers. Each request goes to the faster of two
+ * randomly chosen healthy endpoints, weighted by the requests they have in flight.
+ * <p>
+ * Each endpoint has a circuit breaker: after consecutive failures it is skipped for a while, then a single trial request
+ * decides whether it is used again. Failures are I/O errors, HTTP 5xx and ResponderError results. If every endpoint is
+ * open the one closest to its trial is used anyway. Requests that did not reach the server are sent to the next
+ * endpoint. The polls of an asynchronous request go to the endpoint that accepted it.
+ * <p>
+ * With hedging, a synchronous timestamp request, which may safely be sent twice, is sent to a second endpoint if the
+ * first one did not answer within its 95th latency percentile. The first response wins.
+ */
+public class EndpointGroup {
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_MILLIS = 30000;
+    /** hedge delay until an endpoint has enough samples for a percentile */
+    public static final long DEFAULT_HEDGE_DELAY_MILLIS = 1000;
+    private static final int _MIN_SAMPLES = 20;
+    private static final int _MAX_PENDING = 10000;
+
+    private final List<Endpoint> _endpoints;
+    private final int _failureThreshold;
+    private final long _openNanos;
+    private boolean _hedging;
+    private ScheduledExecutorService _scheduler;
+    private ExecutorService _executor;
+    /** endpoint of every asynchronous request still pending, by response id */
+    private final Map<String, Endpoint> _pending = new LinkedHashMap<String, Endpoint>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Endpoint> eldest) {
+            return size() > _MAX_PENDING;
+        }
+    };
+
+    /**
+     * Group opening a circuit after 5 consecutive failures for 30 seconds
+     *
+     * @param serverURIs one per endpoint, in the form expected by the message type
+     */
+    public EndpointGroup(@NotNull String... serverURIs) {
+        this(Arrays.asList(serverURIs), DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS);
+    }
+
+    /**
+     * @param serverURIs       one per endpoint, in the form expected by the message type
+     * @param failureThreshold consecutive failures opening the circuit of an endpoint
+     * @param openMillis       time an open endpoint is skipped before a trial request
+     */
+    public EndpointGroup(@NotNull List<String> serverURIs, int failureThreshold, long openMillis) {
+        if (serverURIs.isEmpty() || failureThreshold < 1)
+            throw new IllegalArgumentException("At least one endpoint and a failure threshold of at least 1 are required");
+        List<Endpoint> endpoints = new ArrayList<>(serverURIs.size());
+        for (String serverURI : serverURIs)
+            endpoints.add(new Endpoint(serverURI));
+        this._endpoints = Collections.unmodifiableList(endpoints);
+        this._failureThreshold = failureThreshold;
+        this._openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    /**
+     * Hedge synchronous timestamp requests, off by default
+     *
+     * @param hedging
+     */
+    public synchronized void setHedging(boolean hedging) {
+        this._hedging = hedging;
+    }
+
+    public synchronized boolean isHedging() {
+        return _hedging;
+    }
+
+    @NotNull
+    public List<Endpoint> getEndpoints() {
+        return _endpoints;
+    }
+
+    /**
+     * Stop the hedging threads
+     */
+    public synchronized void shutdown() {
+        if (_scheduler != null)
+            _scheduler.shutdown();
+        if (_executor != null)
+            _executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Endpoint endpoint : _endpoints)
+            text.append(endpoint).append('\n');
+        return text.toString();
+    }
+
+    /**
+     * Send a request to the best endpoint
+     *
+     * @param request
+     * @param idempotent true if the request may be sent twice, i.e. a synchronous timestamp request
+     * @param sender     sends the request to a server uri
+     * @return response of the endpoint that answered
+     */
+    @NotNull
+    DSSResponse send(@NotNull DSSRequest request, boolean idempotent, @NotNull Sender sender)
+            throws IOException, GeneralSecurityException {
+        Endpoint sticky = null;
+        if (request.getShape() == DSSRequest.Shape.PENDING) {
+            synchronized (_pending) {
+                sticky = _pending.get(request.getResponseId());
+            }
+        }
+        DSSResponse response;
+        if (sticky != null)
+            response = attempt(sticky, sender);
+        else if (idempotent && isHedging())
+            response = sendHedged(sender);
+        else
+            response = sendWithFailover(sender);
+
+        synchronized (_pending) {
+            if (request.getShape() == DSSRequest.Shape.PENDING && !response.isPending())
+                _pending.remove(request.getResponseId());
+        }
+        return response;
+    }
+
+    /**
+     * Try the endpoints one after the other as long as the request did not reach the server
+     */
+    @NotNull
+    private DSSResponse sendWithFailover(@NotNull Sender sender) throws IOException, GeneralSecurityException {
+        List<Endpoint> tried = new ArrayList<>(_endpoints.size());
+        while (true) {
+            Endpoint endpoint = select(tried);
+            tried.add(endpoint);
+            try {
+                return attempt(endpoint, sender);
+            } catch (ConnectException e) {
+                if (tried.size() >= _endpoints.size())
+                    throw e;
+            }
+        }
+    }
+
+    @NotNull
+    private DSSResponse sendHedged(@NotNull Sender sender) throws IOException, GeneralSecurityException {
+        Endpoint first = select(Collections.<Endpoint>emptyList());
+        CompletableFuture<DSSResponse> winner = new CompletableFuture<>();
+        AtomicInteger outstanding = new AtomicInteger(1);
+        AtomicBoolean hedged = new AtomicBoolean();
+        Runnable hedge = () -> {
+            if (winner.isDone() || !hedged.compareAndSet(false, true))
+                return;
+            Endpoint second = select(Collections.singletonList(first));
+            if (second == first)
+                return;
+            SigningMetrics.count(SigningMetrics.Counter.HEDGED_REQUESTS, 1);
+            outstanding.incrementAndGet();
+            submit(second, sender, winner, outstanding, null);
+        };
+        getScheduler().schedule(hedge, first.getHedgeDelayNanos(), TimeUnit.NANOSECONDS);
+        // a failed first request hedges at once, a timestamp may be requested again
+        submit(first, sender, winner, outstanding, hedge);
+
+        try {
+            return winner.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a hedged request");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof GeneralSecurityException)
+                throw (GeneralSecurityException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Run an attempt of a hedged request, the last failing attempt fails the request
+     */
+    private void submit(@NotNull Endpoint endpoint, @NotNull Sender sender, @NotNull CompletableFuture<DSSResponse> winner,
+                        @NotNull AtomicInteger outstanding, @Nullable Runnable onFailure) {
+        getExecutor().execute(() -> {
+            try {
+                winner.complete(attempt(endpoint, sender));
+                outstanding.decrementAndGet();
+            } catch (Throwable e) {
+                if (onFailure != null && !winner.isDone())
+                    onFailure.run();
+                if (outstanding.decrementAndGet() == 0)
+                    winner.completeExceptionally(e);
+            }
+        });
+    }
+
+    @NotNull
+    private DSSResponse attempt(@NotNull Endpoint endpoint, @NotNull Sender sender) throws IOException, GeneralSecurityException {
+        long start = System.nanoTime();
+        synchronized (endpoint) {
+            endpoint._inFlight++;
+        }
+        DSSResponse response;
+        try {
+            response = sender.send(endpoint._serverURI);
+        } catch (DSSHttpException e) {
+            endpoint.record(e.getStatusCode() >= 500, System.nanoTime() - start);
+            throw e;
+        } catch (IOException e) {
+            endpoint.record(true, System.nanoTime() - start);
+            throw e;
+        } catch (GeneralSecurityException | RuntimeException e) {
+            endpoint.record(false, System.nanoTime() - start);
+            throw e;
+        }
+        String resultMajor = response.getResultMajor();
+        endpoint.record(resultMajor != null && resultMajor.endsWith(":ResponderError"), System.nanoTime() - start);
+        if (response.isPending() && response.getResponseId() != null) {
+            synchronized (_pending) {
+                _pending.put(response.getResponseId(), endpoint);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Power of two choices among the endpoints that are not excluded and whose circuit allows a request
+     */
+    @NotNull
+    private Endpoint select(@NotNull List<Endpoint> excluded) {
+        long now = System.nanoTime();
+        List<Endpoint> candidates = new ArrayList<>(_endpoints.size());
+        for (Endpoint endpoint : _endpoints)
+            if (!excluded.contains(endpoint) && endpoint.isAvailable(now))
+                candidates.add(endpoint);
+
+        if (candidates.isEmpty()) {
+            Endpoint nearest = null;
+            for (Endpoint endpoint : _endpoints)
+                if (!excluded.contains(endpoint) && (nearest == null || endpoint._retryAt - nearest._retryAt < 0))
+                    nearest = endpoint;
+            return nearest != null ? nearest : excluded.get(0);
+        }
+        Endpoint chosen = candidates.get(0);
+        if (candidates.size() > 1) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int a = random.nextInt(candidates.size());
+            int b = random.nextInt(candidates.size() - 1);
+            Endpoint first = candidates.get(a);
+            Endpoint second = candidates.get(b >= a ? b + 1 : b);
+            chosen = first.getScore() <= second.getScore() ? first : second;
+        }
+        chosen.onSelected();
+        return chosen;
+    }
+
+    @NotNull
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (_scheduler == null)
+            _scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory("dss-hedge-timer-"));
+        return _scheduler;
+    }
+
+    @NotNull
+    private synchronized ExecutorService getExecutor() {
+        if (_executor == null)
+            _executor = Executors.newCachedThreadPool(threadFactory("dss-hedge-"));
+        return _executor;
+    }
+
+    @NotNull
+    private static ThreadFactory threadFactory(@NotNull String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Sends the request to one server uri
+     */
+    interface Sender {
+
+        @NotNull
+        DSSResponse send(@NotNull String serverURI) throws IOException, GeneralSecurityException;
+    }
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * One server uri with its circuit breaker and latency statistics
+     */
+    public class Endpoint {
+
+        private static final int _SAMPLES = 512;
+        private static final double _SMOOTHING = 0.2;
+
+        private final String _serverURI;
+        /** ring of the latest latencies, _sampleIndex is the next slot to overwrite */
+        private final long[] _samples = new long[_SAMPLES];
+        private int _sampleIndex;
+        private int _sampleCount;
+        private double _latencyNanos = -1;
+        private int _inFlight;
+        private int _failures;
+        private State _state = State.CLOSED;
+        private long _retryAt;
+        private boolean _trialRunning;
+
+        private Endpoint(@NotNull String serverURI) {
+            this._serverURI = serverURI;
+        }
+
+        @NotNull
+        public String getServerURI() {
+            return _serverURI;
+        }
+
+        @NotNull
+        public synchronized State getState() {
+            return _state;
+        }
+
+        /**
+         * @return smoothed round trip time, 0 before the first response
+         */
+        public synchronized double getLatencyMillis() {
+            return Math.max(0, _latencyNanos) / 1e6;
+        }
+
+        public synchronized long getP95Millis() {
+            return TimeUnit.NANOSECONDS.toMillis(percentile(0.95));
+        }
+
+        @Override
+        public synchronized String toString() {
+            return _serverURI + " " + _state + String.format(" latency=%.1fms p95=%dms", getLatencyMillis(), getP95Millis()) +
+                    " inFlight=" + _inFlight + " failures=" + _failures;
+        }
+
+        synchronized boolean isAvailable(long now) {
+            if (_state == State.OPEN && now - _retryAt >= 0) {
+                _state = State.HALF_OPEN;
+                _trialRunning = false;
+            }
+            return _state == State.CLOSED || (_state == State.HALF_OPEN && !_trialRunning);
+        }
+
+        synchronized void onSelected() {
+            if (_state != State.CLOSED)
+                _trialRunning = true;
+        }
+
+        /**
+         * Latency weighted by the requests in flight, unknown endpoints are tried first
+         */
+        synchronized double getScore() {
+            return Math.max(0, _latencyNanos) * (_inFlight + 1);
+        }
+
+        synchronized long getHedgeDelayNanos() {
+            return _sampleCount < _MIN_SAMPLES ? TimeUnit.MILLISECONDS.toNanos(DEFAULT_HEDGE_DELAY_MILLIS) : percentile(0.95);
+        }
+
+        synchronized void record(boolean failure, long nanos) {
+            _inFlight--;
+            if (failure) {
+                _failures++;
+                if (_state == State.HALF_OPEN || _failures >= _failureThreshold) {
+                    _state = State.OPEN;
+                    _retryAt = System.nanoTime() + _openNanos;
+                }
+                return;
+            }
+            _failures = 0;
+            _state = State.CLOSED;
+            _samples[_sampleIndex] = nanos;
+            _sampleIndex = (_sampleIndex + 1) % _SAMPLES;
+            if (_sampleCount < _SAMPLES)
+                _sampleCount++;
+            _latencyNanos = _latencyNanos < 0 ? nanos : _SMOOTHING * nanos + (1 - _SMOOTHING) * _latencyNanos;
+        }
+
+        private long percentile(double quantile) {
+            int count = _sampleCount;
+            if (count == 0)
+                return 0;
+            long[] sorted = Arrays.copyOf(_samples, count);
+            Arrays.sort(sorted);
+            return sorted[Math.min(count - 1, (int) Math.ceil(quantile * count) - 1)];
+        }
+    }
+}
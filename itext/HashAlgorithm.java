@@ -1,9 +1,10 @@
 public enum HashAlgorithm {
 
+    SHA224("SHA-224", "http://www.w3.org/2001/04/xmldsig-more#sha224"),
     SHA256("SHA-256", "http://www.w3.org/2001/04/xmlenc#sha256"),
     SHA384("SHA-384", "http://www.w3.org/2001/04/xmldsig-more#sha384"),
     SHA512("SHA-512", "http://www.w3.org/2001/04/xmlenc#sha512"),
-    RIPEMD160("RIPEMD-160", "http://www.w3.org/2001/04/xmlenc#ripemd160");
+    RIPEMD160("RIPEMD160", "http://www.w3.org/2001/04/xmlenc#ripemd160");
 
     private String hashAlgo;
     private String hashUri;
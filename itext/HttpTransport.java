@@ -0,0 +1,126 @@
+import com.sun.istack.internal.NotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+
+/**
+ * Transport over the pooled https connection, in the message format given by the message type
+ */
+public class HttpTransport implements DSSTransport {
+
+    private final DSSConnection _connection;
+    private final MessageType _messageType;
+    private final boolean _debug;
+
+    /**
+     * @param connection
+     * @param messageType
+     * @param debug       print requests and responses
+     */
+    public HttpTransport(@NotNull DSSConnection connection, @NotNull MessageType messageType, boolean debug) {
+        this._connection = connection;
+        this._messageType = messageType;
+        this._debug = debug;
+    }
+
+    @NotNull
+    public MessageType getMessageType() {
+        return _messageType;
+    }
+
+    /**
+     * Send request to a server and parse the response while it is read. If debug is set to true it will print request
+     * and response message.
+     */
+    @Override
+    @NotNull
+    public DSSResponse send(@NotNull DSSRequest request, @NotNull String serverURI, @NotNull String signatureElement)
+            throws IOException, GeneralSecurityException {
+
+        String url = _messageType.getUrl(serverURI, request);
+        DSSConnection.RequestBody body = _messageType.createBody(request);
+        if (_debug) {
+            System.out.print("Request " + _messageType + " Message = ");
+            ByteArrayOutputStream ba = new ByteArrayOutputStream();
+            body.writeTo(ba);
+            System.out.println(format(ba.toString("UTF-8")));
+        }
+
+        DSSResponse response;
+        try (DSSHttpResponse httpResponse = _connection.post(url, body, _messageType.getAccept())) {
+            InputStream in = httpResponse.getBody();
+            if (_debug) {
+                ByteArrayOutputStream debugCopy = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1)
+                    debugCopy.write(buffer, 0, read);
+                System.out.println("response : " + format(debugCopy.toString("UTF-8")));
+                in = new ByteArrayInputStream(debugCopy.toByteArray());
+            }
+
+            long start = SigningMetrics.start();
+            CountingInputStream counting = null;
+            if (start != 0)
+                in = counting = new CountingInputStream(in);
+            try {
+                response = _messageType.parse(in, signatureElement);
+                SigningMetrics.stop(SigningMetrics.Phase.RESPONSE_PARSE, start);
+                if (counting != null)
+                    SigningMetrics.value(SigningMetrics.Histogram.RESPONSE_BYTES, counting.count);
+            } catch (IOException e) {
+                if (!httpResponse.isSuccess())
+                    throw new DSSHttpException(httpResponse.getStatusCode(), url, e);
+                throw e;
+            }
+            if (!httpResponse.isSuccess() && response.getResultMajor() == null)
+                throw new DSSHttpException(httpResponse.getStatusCode(), url, null);
+        }
+
+        return response;
+    }
+
+    @NotNull
+    private String format(@NotNull String message) {
+        return _messageType == MessageType.SOAP ? message.replaceAll("><", ">\n<") : message;
+    }
+
+    /**
+     * Counts the response bytes for the metrics
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(@NotNull InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1)
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(@NotNull byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0)
+                count += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
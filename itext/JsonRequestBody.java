@@ -0,0 +1,194 @@
+import com.sun.istack.internal.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JSON representation of a request for the REST resources, in the layout the bash scripts send with -t JSON
+ */
+public class JsonRequestBody implements DSSConnection.RequestBody {
+
+    public static final String CONTENT_TYPE = "application/json";
+
+    private final DSSRequest _request;
+    private byte[] _bytes;
+
+    public JsonRequestBody(@NotNull DSSRequest request) {
+        this._request = request;
+    }
+
+    @Override
+    @NotNull
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public long getContentLength() {
+        return getBytes().length;
+    }
+
+    @Override
+    public void writeTo(@NotNull OutputStream out) throws IOException {
+        out.write(getBytes());
+    }
+
+    /**
+     * The message is a few hundred bytes per document, it is built once and kept for retries
+     */
+    @NotNull
+    private synchronized byte[] getBytes() {
+        if (_bytes == null) {
+            StringBuilder json = new StringBuilder(256 + 160 * (_request.getHashes() == null ? 0 : _request.getHashes().length));
+            if (_request.getShape() == DSSRequest.Shape.PENDING)
+                appendPendingRequest(json);
+            else
+                appendSignRequest(json);
+            _bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return _bytes;
+    }
+
+    private void appendSignRequest(@NotNull StringBuilder json) {
+        RequestType requestType = _request.getRequestType();
+        json.append("{\"dss.").append(requestType.getRequestType()).append("\":{");
+        json.append("\"@RequestID\":");
+        appendString(json, String.valueOf(_request.getRequestId()));
+        json.append(",\"@Profile\":");
+        appendString(json, requestType.getUrn());
+
+        json.append(",\"dss.OptionalInputs\":{");
+        appendClaimedIdentity(json, !_request.isAdvancedCertRequestProfile());
+        json.append(",\"dss.SignatureType\":");
+        appendString(json, _request.getSignatureType());
+
+        String[] additionalProfiles = _request.getAdditionalProfiles();
+        if (additionalProfiles != null) {
+            json.append(",\"dss.AdditionalProfile\":");
+            if (additionalProfiles.length == 1) {
+                appendString(json, additionalProfiles[0]);
+            } else {
+                json.append('[');
+                for (int i = 0; i < additionalProfiles.length; i++) {
+                    if (i > 0)
+                        json.append(',');
+                    appendString(json, additionalProfiles[i]);
+                }
+                json.append(']');
+            }
+        }
+
+        if (_request.getCertRequestProfile() != null) {
+            json.append(",\"sc.CertificateRequest\":{");
+            if (!_request.isAdvancedCertRequestProfile()) {
+                json.append("\"@Profile\":");
+                appendString(json, _request.getCertRequestProfile());
+                json.append(',');
+            }
+            json.append("\"sc.DistinguishedName\":");
+            appendString(json, _request.getDistinguishedName());
+            if (_request.getPhoneNumber() != null) {
+                json.append(",\"sc.StepUpAuthorisation\":{\"sc.MobileID\":{\"sc.MSISDN\":");
+                appendString(json, _request.getPhoneNumber());
+                json.append(",\"sc.Message\":");
+                appendString(json, _request.getCertReqMsg());
+                json.append(",\"sc.Language\":");
+                appendString(json, _request.getCertReqMsgLang().toUpperCase());
+                json.append("}}");
+            }
+            json.append('}');
+        }
+
+        if (_request.isAddTimestamp()) {
+            json.append(",\"dss.AddTimestamp\":{\"@Type\":");
+            appendString(json, DSSRequest.TIMESTAMP_URN);
+            json.append('}');
+        }
+        if (_request.isAddOcsp()) {
+            json.append(",\"sc.AddOcspResponse\":{\"@Type\":");
+            appendString(json, DSSRequest.OCSP_URN);
+            json.append('}');
+        }
+        json.append('}');
+
+        byte[][] hashes = _request.getHashes();
+        json.append(",\"dss.InputDocuments\":{\"dss.DocumentHash\":");
+        if (hashes.length > 1)
+            json.append('[');
+        for (int i = 0; i < hashes.length; i++) {
+            if (i > 0)
+                json.append(',');
+            json.append('{');
+            // the id is only set in batch requests
+            String documentId = _request.getDocumentId(i);
+            if (!documentId.isEmpty()) {
+                json.append("\"@ID\":");
+                appendString(json, documentId);
+                json.append(',');
+            }
+            json.append("\"xmldsig.DigestMethod\":{\"@Algorithm\":");
+            appendString(json, _request.getDigestMethod());
+            json.append("},\"xmldsig.DigestValue\":\"");
+            json.append(java.util.Base64.getEncoder().encodeToString(hashes[i]));
+            json.append("\"}");
+        }
+        if (hashes.length > 1)
+            json.append(']');
+        json.append("}}}");
+    }
+
+    private void appendPendingRequest(@NotNull StringBuilder json) {
+        RequestType requestType = _request.getRequestType();
+        json.append("{\"async.").append(requestType.getRequestType()).append("\":{");
+        json.append("\"@Profile\":");
+        appendString(json, requestType.getUrn());
+        json.append(",\"dss.OptionalInputs\":{");
+        appendClaimedIdentity(json, false);
+        json.append(",\"async.ResponseID\":");
+        appendString(json, _request.getResponseId());
+        json.append("}}}");
+    }
+
+    private void appendClaimedIdentity(@NotNull StringBuilder json, boolean withFormat) {
+        json.append("\"dss.ClaimedIdentity\":{");
+        if (withFormat) {
+            json.append("\"@Format\":");
+            appendString(json, DSSRequest.CLAIMED_IDENTITY_FORMAT);
+            json.append(',');
+        }
+        json.append("\"dss.Name\":");
+        appendString(json, _request.getClaimedIdentity());
+        json.append('}');
+    }
+
+    private static void appendString(@NotNull StringBuilder json, @NotNull String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        json.append(String.format("\\u%04x", (int) c));
+                    else
+                        json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * Created:
+ * 18.10.26 KW42 20:05
+ * </p>
+ * **********************************************************************************
+ * Single pass parser for JSON responses of the REST resources                      *
+ * **********************************************************************************
+ */
+
+import com.sun.istack.internal.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class JsonResponseParser {
+
+    private final String _signatureElement;
+    private Reader _reader;
+    private final char[] _buffer = new char[8192];
+    private int _position;
+    private int _limit;
+
+    /**
+     * @param signatureElement local name of the elements containing the signatures, e.g. Base64Signature or
+     *                         RFC3161TimeStampToken
+     */
+    public JsonResponseParser(@NotNull String signatureElement) {
+        this._signatureElement = signatureElement;
+    }
+
+    /**
+     * Parse a response while it is read. Names are matched without their namespace prefix, e.g. dss.ResultMajor as
+     * ResultMajor, the same way the xml parser matches local names. Signatures are Base64 decoded chunk by chunk.
+     *
+     * @param in UTF-8 encoded JSON
+     * @return typed response
+     * @throws IOException if the response is no valid JSON
+     */
+    @NotNull
+    public DSSResponse parse(@NotNull InputStream in) throws IOException {
+        _reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+        _position = 0;
+        _limit = 0;
+
+        DSSResponse response = new DSSResponse();
+        if (nextToken() != '{')
+            throw invalid("object expected");
+        readObject(null, response, new Scope(false));
+        if (nextToken() != -1)
+            throw invalid("content after the response object");
+        return response;
+    }
+
+    /**
+     * Read the members of an object, the opening brace is already consumed
+     *
+     * @param name   local name of the object
+     * @param parent scope collecting the signatures
+     */
+    private void readObject(String name, @NotNull DSSResponse response, @NotNull Scope parent) throws IOException {
+        // WhichDocument may follow the signature, signatures of an ExtendedSignatureObject are added at its end
+        Scope scope = "ExtendedSignatureObject".equals(name) ? new Scope(true) : parent;
+        int c = nextToken();
+        if (c != '}') {
+            while (true) {
+                if (c != '"')
+                    throw invalid("member name expected");
+                String key = getLocalName(readString());
+                if (nextToken() != ':')
+                    throw invalid("':' expected");
+                readValue(name, key, response, scope, nextToken());
+                c = nextToken();
+                if (c == '}')
+                    break;
+                if (c != ',')
+                    throw invalid("',' or '}' expected");
+                c = nextToken();
+            }
+        }
+        if (scope != parent)
+            scope.addTo(response);
+    }
+
+    /**
+     * @param owner local name of the enclosing object
+     * @param key   local name of the member
+     * @param first first character of the value
+     */
+    private void readValue(String owner, @NotNull String key, @NotNull DSSResponse response, @NotNull Scope scope, int first)
+            throws IOException {
+        if (first == '{') {
+            readObject(key, response, scope);
+        } else if (first == '[') {
+            int c = nextToken();
+            if (c == ']')
+                return;
+            while (true) {
+                readValue(owner, key, response, scope, c);
+                c = nextToken();
+                if (c == ']')
+                    break;
+                if (c != ',')
+                    throw invalid("',' or ']' expected");
+                c = nextToken();
+            }
+        } else if (first == '"' && (_signatureElement.equals(key) || "$".equals(key) && _signatureElement.equals(owner))) {
+            scope.add(response, readBase64());
+        } else {
+            setValue(owner, key, response, scope, first == '"' ? readString() : readLiteral(first));
+        }
+    }
+
+    private void setValue(String owner, @NotNull String key, @NotNull DSSResponse response, @NotNull Scope scope, String value) {
+        if ("$".equals(key))
+            key = owner;
+        if ("@RequestID".equals(key) && ("Response".equals(owner) || "SignResponse".equals(owner)))
+            response.setRequestId(value);
+        else if ("@WhichDocument".equals(key) && scope._deferred)
+            scope._documentId = value;
+        else if ("ResultMajor".equals(key) && value != null)
+            response.setResultMajor(value.trim());
+        else if ("ResultMinor".equals(key) && value != null)
+            response.setResultMinor(value.trim());
+        else if ("ResultMessage".equals(key) && value != null)
+            response.setResultMessage(value.trim());
+        else if ("ResponseID".equals(key) && value != null)
+            response.setResponseId(value.trim());
+    }
+
+    /**
+     * @return name without namespace prefix, attributes keep their @
+     */
+    @NotNull
+    private static String getLocalName(@NotNull String name) {
+        if (name.startsWith("@"))
+            return "@" + name.substring(Math.max(1, name.lastIndexOf('.') + 1));
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * Read a string, the opening quote is already consumed
+     */
+    @NotNull
+    private String readString() throws IOException {
+        StringBuilder value = new StringBuilder();
+        int c;
+        while ((c = read()) != '"') {
+            if (c == -1)
+                throw invalid("unterminated string");
+            value.append(c == '\\' ? readEscape() : (char) c);
+        }
+        return value.toString();
+    }
+
+    /**
+     * Decode a Base64 string without building it, the opening quote is already consumed
+     */
+    @NotNull
+    private byte[] readBase64() throws IOException {
+        DSSResponseParser.Base64Decoder decoder = new DSSResponseParser.Base64Decoder();
+        char[] chunk = new char[4096];
+        int length = 0;
+        int c;
+        while ((c = read()) != '"') {
+            if (c == -1)
+                throw invalid("unterminated string");
+            chunk[length++] = c == '\\' ? readEscape() : (char) c;
+            if (length == chunk.length) {
+                decoder.decode(chunk, length);
+                length = 0;
+            }
+        }
+        decoder.decode(chunk, length);
+        return decoder.finish();
+    }
+
+    private char readEscape() throws IOException {
+        int c = read();
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                return (char) c;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(read(), 16);
+                    if (digit < 0)
+                        throw invalid("invalid unicode escape");
+                    value = value << 4 | digit;
+                }
+                return (char) value;
+            default:
+                throw invalid("invalid escape");
+        }
+    }
+
+    /**
+     * Read a number, true, false or null
+     *
+     * @return the literal as text, null for null
+     */
+    private String readLiteral(int first) throws IOException {
+        StringBuilder value = new StringBuilder().append((char) first);
+        while (true) {
+            int c = peek();
+            if (c == -1 || c == ',' || c == '}' || c == ']' || Character.isWhitespace(c))
+                break;
+            value.append((char) read());
+        }
+        String literal = value.toString();
+        if ("null".equals(literal))
+            return null;
+        if (!"true".equals(literal) && !"false".equals(literal) && !literal.matches("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?"))
+            throw invalid("unexpected '" + literal + "'");
+        return literal;
+    }
+
+    private int nextToken() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if (_position == _limit && !fill())
+            return -1;
+        return _buffer[_position];
+    }
+
+    private int read() throws IOException {
+        if (_position == _limit && !fill())
+            return -1;
+        return _buffer[_position++];
+    }
+
+    private boolean fill() throws IOException {
+        int read = _reader.read(_buffer, 0, _buffer.length);
+        if (read <= 0)
+            return false;
+        _position = 0;
+        _limit = read;
+        return true;
+    }
+
+    @NotNull
+    private static IOException invalid(@NotNull String message) {
+        return new IOException("Invalid response: " + message);
+    }
+
+    /**
+     * Signatures found within an object. Signatures of an ExtendedSignatureObject are kept until its WhichDocument is
+     * known, all others are added at once without document reference.
+     */
+    private static class Scope {
+
+        private final boolean _deferred;
+        private final List<byte[]> _signatures = new ArrayList<>(1);
+        private String _documentId;
+
+        Scope(boolean deferred) {
+            this._deferred = deferred;
+        }
+
+        void add(@NotNull DSSResponse response, @NotNull byte[] signature) {
+            if (_deferred)
+                _signatures.add(signature);
+            else
+                response.addSignature("", signature);
+        }
+
+        void addTo(@NotNull DSSResponse response) {
+            for (byte[] signature : _signatures)
+                response.addSignature(_documentId != null ? _documentId : "", signature);
+        }
+    }
+}
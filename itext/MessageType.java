@@ -0,0 +1,72 @@
+import com.sun.istack.internal.NotNull;
+import com.sun.istack.internal.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Message formats of the signing service, same as the -t option of the bash scripts
+ */
+public enum MessageType {
+
+    /**
+     * SOAP envelopes posted to the web service endpoint, e.g. https://ais.pre.swissdigicert.ch/DSS-Server/ws
+     */
+    SOAP(null) {
+        @Override
+        String getUrl(@NotNull String serverURI, @NotNull DSSRequest request) {
+            return serverURI;
+        }
+
+        @Override
+        DSSConnection.RequestBody createBody(@NotNull DSSRequest request) {
+            return SoapRequestTemplate.forRequest(request);
+        }
+
+        @Override
+        DSSResponse parse(@NotNull InputStream in, @NotNull String signatureElement) throws IOException {
+            return new DSSResponseParser(signatureElement).parse(in);
+        }
+    },
+
+    /**
+     * JSON posted to the REST resources /sign and /pending below e.g. https://ais.pre.swissdigicert.ch/DSS-Server/rs/v1.0
+     */
+    JSON("application/json") {
+        @Override
+        String getUrl(@NotNull String serverURI, @NotNull DSSRequest request) {
+            String base = serverURI.endsWith("/") ? serverURI.substring(0, serverURI.length() - 1) : serverURI;
+            return base + "/" + request.getRequestType().getOperation();
+        }
+
+        @Override
+        DSSConnection.RequestBody createBody(@NotNull DSSRequest request) {
+            return new JsonRequestBody(request);
+        }
+
+        @Override
+        DSSResponse parse(@NotNull InputStream in, @NotNull String signatureElement) throws IOException {
+            return new JsonResponseParser(signatureElement).parse(in);
+        }
+    };
+
+    private String accept;
+
+    MessageType(String accept) {
+        this.accept = accept;
+    }
+
+    /**
+     * @return accept header or null if none is sent
+     */
+    @Nullable
+    public String getAccept() {
+        return this.accept;
+    }
+
+    abstract String getUrl(@NotNull String serverURI, @NotNull DSSRequest request);
+
+    abstract DSSConnection.RequestBody createBody(@NotNull DSSRequest request);
+
+    abstract DSSResponse parse(@NotNull InputStream in, @NotNull String signatureElement) throws IOException;
+}
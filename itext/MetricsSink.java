@@ -0,0 +1,26 @@
+import com.sun.istack.internal.NotNull;
+
+/**
+ * Receives every measurement of {@link SigningMetrics} while metrics are enabled, e.g. to forward them to a monitoring
+ * system. Called on the signing threads, implementations must be thread safe and must not block.
+ */
+public interface MetricsSink {
+
+    /**
+     * @param phase
+     * @param nanos duration of the phase
+     */
+    void recordTime(@NotNull SigningMetrics.Phase phase, long nanos);
+
+    /**
+     * @param counter
+     * @param delta
+     */
+    void count(@NotNull SigningMetrics.Counter counter, long delta);
+
+    /**
+     * @param histogram
+     * @param value     e.g. a batch size or a byte count
+     */
+    void recordValue(@NotNull SigningMetrics.Histogram histogram, long value);
+}
@@ -1,12 +1,21 @@
 import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Rectangle;
 import com.itextpdf.text.pdf.*;
 import com.itextpdf.text.pdf.codec.Base64;
+import com.itextpdf.text.pdf.security.LtvVerification;
 import com.sun.istack.internal.NotNull;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.Calendar;
@@ -14,6 +23,14 @@ import java.util.HashMap;
 
 public class Pdf {
 
+    /**
+     * Documents larger than this are read partially from a memory-mapped file and, if they must be written again as a
+     * whole, prepared in a temp file next to the output and hashed memory-mapped
+     */
+    static final long TEMP_FILE_THRESHOLD = 16 * 1024 * 1024;
+    private static final int _HASH_BUFFER_SIZE = 64 * 1024;
+    private static final long _MAP_CHUNK_SIZE = 64 * 1024 * 1024;
+
     private String inputFilePath;
     private String outputFilePath;
     private String pdfPassword;
@@ -22,6 +39,8 @@ public class Pdf {
     private String signContact;
     private PdfSignatureAppearance pdfSignatureAppearance;
     private PdfSignature pdfSignature;
+    private String signatureName;
+    private PreparedDocument preparedDocument;
 
     Pdf(@NotNull String inputFilePath,@NotNull String outputFilePath, String pdfPassword, String signReason, String signLocation, String signContact){
         this.inputFilePath = inputFilePath;
@@ -32,35 +51,292 @@ public class Pdf {
         this.signContact = signContact;
     }
 
+    String getInputFilePath() {
+        return inputFilePath;
+    }
+
+    /**
+     * @return true if the document is prepared and waits for its signature, false once it is signed or discarded
+     */
+    boolean isPrepared() {
+        return preparedDocument != null || pdfSignatureAppearance != null;
+    }
+
     public byte[] getPdfHash(@NotNull Calendar signDate, int estimatedSize,@NotNull String hashAlgorithm, boolean isTimestampOnly) throws Exception {
+        return getPdfHash(signDate, estimatedSize, hashAlgorithm, isTimestampOnly, false);
+    }
+
+    /**
+     * Prepare the document for signing and compute the hash of its byte range
+     *
+     * @param signDate
+     * @param estimatedSize
+     * @param hashAlgorithm
+     * @param isTimestampOnly
+     * @param spill           write the prepared document to a temp file next to the output and keep only its
+     *                        descriptor until the signature arrives, see {@link PreparedDocument}. Documents with
+     *                        an intact cross reference are never kept on the heap, without spill they are prepared
+     *                        in the output itself.
+     * @return hash to be signed
+     * @throws Exception
+     */
+    public byte[] getPdfHash(@NotNull Calendar signDate, int estimatedSize,@NotNull String hashAlgorithm, boolean isTimestampOnly,
+                             boolean spill) throws Exception {
 
-        PdfReader pdfReader = new PdfReader(inputFilePath, pdfPassword != null ? pdfPassword.getBytes() : null);
+        long start = SigningMetrics.start();
+        PdfReader pdfReader = openReader(inputFilePath);
         AcroFields acroFields = pdfReader.getAcroFields();
         boolean hasSignature = acroFields.getSignatureNames().size() > 0;
+        start = SigningMetrics.lap(SigningMetrics.Phase.PDF_PARSE, start);
+
+        // append mode needs an intact cross reference, a rebuilt document is written again as a whole
+        if (!pdfReader.isRebuilt())
+            return prepareIncrementalUpdate(pdfReader, acroFields, signDate, estimatedSize, hashAlgorithm, isTimestampOnly, spill, start);
+
+        File outputFile = new File(outputFilePath);
+        File tempDirectory = null;
+        if (new File(inputFilePath).length() > TEMP_FILE_THRESHOLD)
+            tempDirectory = outputFile.getAbsoluteFile().getParentFile();
+        if (spill)
+            outputFile = File.createTempFile(outputFile.getName(), ".part", outputFile.getAbsoluteFile().getParentFile());
 
-        PdfStamper pdfStamper = PdfStamper.createSignature(pdfReader, new FileOutputStream(outputFilePath), '\0', null, hasSignature);
+        PdfStamper pdfStamper = PdfStamper.createSignature(pdfReader, new FileOutputStream(outputFile), '\0', tempDirectory, hasSignature);
         pdfStamper.setXmpMetadata(pdfReader.getMetadata());
 
         pdfSignatureAppearance = pdfStamper.getSignatureAppearance();
-        pdfSignature = new PdfSignature(PdfName.ADOBE_PPKLITE, isTimestampOnly ? PdfName.ETSI_RFC3161 : PdfName.ADBE_PKCS7_DETACHED);
-        pdfSignature.setReason(signReason);
-        pdfSignature.setLocation(signLocation);
-        pdfSignature.setContact(signContact);
-        pdfSignature.setDate(new PdfDate(signDate));
+        pdfSignature = createSignatureDictionary(signDate, isTimestampOnly);
         pdfSignatureAppearance.setCryptoDictionary(pdfSignature);
 
         HashMap<PdfName, Integer> exc = new HashMap<PdfName, Integer>();
         exc.put(PdfName.CONTENTS, new Integer(estimatedSize * 2 + 2));
 
         pdfSignatureAppearance.preClose(exc);
+        signatureName = pdfSignatureAppearance.getFieldName();
+        start = SigningMetrics.lap(SigningMetrics.Phase.PDF_PREPARE, start);
+        SigningMetrics.value(SigningMetrics.Histogram.DOCUMENT_BYTES, new File(inputFilePath).length());
 
         MessageDigest messageDigest = MessageDigest.getInstance(hashAlgorithm);
-        try (InputStream rangeStream = pdfSignatureAppearance.getRangeStream()) {
-            int i;
-            while ((i = rangeStream.read()) != -1)
-                messageDigest.update((byte) i);
+        PdfLiteral contents = (PdfLiteral) pdfSignature.get(PdfName.CONTENTS);
+        File tempFile = pdfSignatureAppearance.getTempFile();
+        if (tempFile != null) {
+            digestFileRanges(messageDigest, tempFile, getByteRange(contents, tempFile.length()));
+        } else {
+            try (InputStream rangeStream = pdfSignatureAppearance.getRangeStream()) {
+                digestStream(messageDigest, rangeStream);
+            }
+        }
+        byte[] hash = messageDigest.digest();
+        SigningMetrics.stop(SigningMetrics.Phase.PDF_HASH, start);
+
+        if (spill) {
+            // the placeholder keeps its position when the document is closed with empty contents
+            try {
+                closeWithEmptyContents();
+            } catch (Exception e) {
+                outputFile.delete();
+                throw e;
+            }
+            preparedDocument = new PreparedDocument(outputFile, contents.getPosition(), contents.getPosLength());
+        }
+        return hash;
+    }
+
+    /**
+     * Open a document for stamping. Above {@link #TEMP_FILE_THRESHOLD} only the cross reference and trailer are parsed
+     * up front, the other objects are read from the mapped file when the stamper needs them and the heap stays at a few
+     * MB however large the document is.
+     *
+     * @param path
+     * @return reader of the document
+     * @throws IOException
+     */
+    @NotNull
+    private PdfReader openReader(@NotNull String path) throws IOException {
+        boolean partial = new File(path).length() > TEMP_FILE_THRESHOLD;
+        return new PdfReader(path, pdfPassword != null ? pdfPassword.getBytes() : null, partial);
+    }
+
+    /**
+     * Prepare the document as incremental update: the original file is copied with FileChannel.transferTo and only the
+     * signature field, the signature dictionary and the updated objects are written behind it. Time and heap grow with
+     * the size of the update, not of the document.
+     *
+     * @param pdfReader       reader of the input, closed when done
+     * @param acroFields
+     * @param signDate
+     * @param estimatedSize
+     * @param hashAlgorithm
+     * @param isTimestampOnly
+     * @param spill           write to a temp file next to the output instead of the output itself
+     * @param start           start of the prepare phase
+     * @return hash to be signed
+     * @throws Exception
+     */
+    private byte[] prepareIncrementalUpdate(@NotNull PdfReader pdfReader, @NotNull AcroFields acroFields, @NotNull Calendar signDate,
+                                            int estimatedSize, @NotNull String hashAlgorithm, boolean isTimestampOnly, boolean spill,
+                                            long start) throws Exception {
+        File inputFile = new File(inputFilePath);
+        long originalLength = inputFile.length();
+        IncrementOutputStream increment = new IncrementOutputStream(originalLength);
+        PdfLiteral byteRange = new PdfLiteral(80);
+        PdfLiteral contents = new PdfLiteral(estimatedSize * 2 + 2);
+        try {
+            PdfStamper pdfStamper = new PdfStamper(pdfReader, increment, '\0', true);
+            pdfStamper.setXmpMetadata(pdfReader.getMetadata());
+            PdfWriter pdfWriter = pdfStamper.getWriter();
+
+            // invisible signature field on the first page, as PdfSignatureAppearance.preClose adds it
+            signatureName = getNewSignatureName(acroFields);
+            PdfIndirectReference signatureReference = pdfWriter.getPdfIndirectReference();
+            PdfFormField signatureField = PdfFormField.createSignature(pdfWriter);
+            signatureField.setFieldName(signatureName);
+            signatureField.put(PdfName.V, signatureReference);
+            signatureField.setFlags(PdfAnnotation.FLAGS_PRINT | PdfAnnotation.FLAGS_LOCKED);
+            signatureField.setWidget(new Rectangle(0, 0), null);
+            signatureField.setAppearance(PdfAnnotation.APPEARANCE_NORMAL, PdfAppearance.createAppearance(pdfWriter, 0, 0));
+            signatureField.setPage(1);
+            pdfStamper.addAnnotation(signatureField, 1);
+            pdfWriter.setSigFlags(PdfWriter.SIGNATURE_EXISTS | PdfWriter.SIGNATURE_APPEND_ONLY);
+
+            PdfSignature signature = createSignatureDictionary(signDate, isTimestampOnly);
+            signature.put(PdfName.BYTERANGE, byteRange);
+            signature.put(PdfName.CONTENTS, contents);
+            pdfWriter.addToBody(signature, signatureReference, false);
+            pdfStamper.close();
+        } finally {
+            pdfReader.close();
+        }
+
+        long length = originalLength + increment.size();
+        long[] range = getByteRange(contents, length);
+        if (range[1] < originalLength)
+            throw new IOException("Signature placeholder outside of the incremental update");
+        increment.put(byteRange.getPosition(), ("[" + range[0] + " " + range[1] + " " + range[2] + " " + range[3] + "]").getBytes());
+        byte[] placeholder = new byte[contents.getPosLength()];
+        Arrays.fill(placeholder, (byte) '0');
+        placeholder[0] = '<';
+        placeholder[placeholder.length - 1] = '>';
+        increment.put(contents.getPosition(), placeholder);
+
+        File outputFile = new File(outputFilePath);
+        if (spill)
+            outputFile = File.createTempFile(outputFile.getName(), ".part", outputFile.getAbsoluteFile().getParentFile());
+        try {
+            try (FileChannel in = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(outputFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                long position = 0;
+                while (position < originalLength)
+                    position += in.transferTo(position, originalLength - position, out);
+                increment.writeTo(out);
+            }
+            start = SigningMetrics.lap(SigningMetrics.Phase.PDF_PREPARE, start);
+            SigningMetrics.value(SigningMetrics.Histogram.DOCUMENT_BYTES, originalLength);
+
+            // the original part is hashed from the input, the update from the heap
+            MessageDigest messageDigest = MessageDigest.getInstance(hashAlgorithm);
+            digestFileRanges(messageDigest, inputFile, new long[]{0, originalLength});
+            increment.digest(messageDigest, originalLength, range[1]);
+            increment.digest(messageDigest, range[2], length);
+            byte[] hash = messageDigest.digest();
+            SigningMetrics.stop(SigningMetrics.Phase.PDF_HASH, start);
+
+            preparedDocument = new PreparedDocument(outputFile, contents.getPosition(), contents.getPosLength());
+            return hash;
+        } catch (Exception e) {
+            outputFile.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * First unused name Signature1, Signature2, ... that is neither a field nor the parent of one
+     *
+     * @param acroFields
+     * @return name of the new signature field
+     */
+    @NotNull
+    private static String getNewSignatureName(@NotNull AcroFields acroFields) {
+        for (int step = 1; ; step++) {
+            String name = "Signature" + step;
+            if (acroFields.getFieldItem(name) != null)
+                continue;
+            boolean used = false;
+            for (String field : acroFields.getFields().keySet()) {
+                if (field.startsWith(name + ".")) {
+                    used = true;
+                    break;
+                }
+            }
+            if (!used)
+                return name;
+        }
+    }
+
+    @NotNull
+    private PdfSignature createSignatureDictionary(@NotNull Calendar signDate, boolean isTimestampOnly) {
+        PdfSignature signature = new PdfSignature(PdfName.ADOBE_PPKLITE, isTimestampOnly ? PdfName.ETSI_RFC3161 : PdfName.ADBE_PKCS7_DETACHED);
+        signature.setReason(signReason);
+        signature.setLocation(signLocation);
+        signature.setContact(signContact);
+        signature.setDate(new PdfDate(signDate));
+        return signature;
+    }
+
+    /**
+     * @return descriptor of the prepared document, null if the document is not prepared or kept in memory
+     */
+    PreparedDocument getPreparedDocument() {
+        return preparedDocument;
+    }
+
+    /**
+     * Byte range covered by the signature: everything except the contents placeholder
+     *
+     * @param contents   placeholder of the signature, positioned by preClose
+     * @param fileLength
+     * @return pairs of offset and length
+     */
+    static long[] getByteRange(@NotNull PdfLiteral contents, long fileLength) {
+        long contentsEnd = contents.getPosition() + contents.getPosLength();
+        return new long[]{0, contents.getPosition(), contentsEnd, fileLength - contentsEnd};
+    }
+
+    /**
+     * Digest a stream with bulk updates
+     *
+     * @param messageDigest
+     * @param in
+     * @throws IOException
+     */
+    static void digestStream(@NotNull MessageDigest messageDigest, @NotNull InputStream in) throws IOException {
+        byte[] buffer = new byte[_HASH_BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            messageDigest.update(buffer, 0, read);
+    }
+
+    /**
+     * Digest ranges of a file by mapping them into memory
+     *
+     * @param messageDigest
+     * @param file
+     * @param ranges        pairs of offset and length
+     * @throws IOException
+     */
+    static void digestFileRanges(@NotNull MessageDigest messageDigest, @NotNull File file, @NotNull long[] ranges) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            for (int i = 0; i < ranges.length; i += 2) {
+                long position = ranges[i];
+                long end = ranges[i] + ranges[i + 1];
+                while (position < end) {
+                    long size = Math.min(_MAP_CHUNK_SIZE, end - position);
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                    messageDigest.update(buffer);
+                    position += size;
+                }
+            }
         }
-        return messageDigest.digest();
     }
 
     /**
@@ -72,7 +348,7 @@ public class Pdf {
     private void addSignatureToPdf(@NotNull byte[] externalSignature, int estimatedSize) throws IOException, DocumentException {
 
         if (estimatedSize < externalSignature.length)
-            throw new IOException("Not enough space for signature");
+            throw new IOException("Not enough space for signature: " + externalSignature.length + " bytes, " + estimatedSize + " reserved");
 
         PdfLiteral pdfLiteral = (PdfLiteral) pdfSignature.get(PdfName.CONTENTS);
         byte[] outc = new byte[(pdfLiteral.getPosLength() -2) /2];
@@ -83,22 +359,174 @@ public class Pdf {
         PdfDictionary dic2 = new PdfDictionary();
         dic2.put(PdfName.CONTENTS, new PdfString(outc).setHexWriting(true));
         pdfSignatureAppearance.close(dic2);
+        pdfSignatureAppearance = null;
+        pdfSignature = null;
     }
 
     /**
      * Decode hash to Base64 and sign PDF
      * @param hash
      * @param estimatedSize
+     * @throws IOException if the signature is larger than the reserved size
+     * @throws DocumentException
+     */
+    public void sign(@NotNull String hash, int estimatedSize) throws IOException, DocumentException {
+        sign(Base64.decode(hash), estimatedSize);
+    }
+
+    /**
+     * Sign PDF with an already decoded signature
+     * @param signature
+     * @param estimatedSize
+     * @throws IOException if the signature is larger than the reserved size
+     * @throws DocumentException
+     */
+    public void sign(@NotNull byte[] signature, int estimatedSize) throws IOException, DocumentException {
+        sign(signature, estimatedSize, null);
+    }
+
+    /**
+     * Sign PDF and append the validation data of the signature as DSS dictionary in an incremental update
+     * @param signature
+     * @param estimatedSize
+     * @param validationData null or empty to add no DSS dictionary
+     * @throws IOException if the signature is larger than the reserved size
+     * @throws DocumentException
      */
-    public void sign(@NotNull String hash, int estimatedSize){
+    public void sign(@NotNull byte[] signature, int estimatedSize, ValidationData validationData) throws IOException, DocumentException {
+        long start = SigningMetrics.start();
+        SigningMetrics.value(SigningMetrics.Histogram.SIGNATURE_BYTES, signature.length);
+        if (preparedDocument != null) {
+            preparedDocument.patch(signature);
+            preparedDocument.moveTo(new File(outputFilePath));
+            preparedDocument = null;
+        } else {
+            addSignatureToPdf(signature, estimatedSize);
+        }
+        start = SigningMetrics.lap(SigningMetrics.Phase.SIGNATURE_EMBED, start);
+
+        if (validationData != null && !validationData.isEmpty()) {
+            addValidationData(validationData);
+            SigningMetrics.stop(SigningMetrics.Phase.VALIDATION_DATA_EMBED, start);
+        }
+    }
+
+    /**
+     * Append the DSS dictionary with a VRI entry of the signature to the signed output. As for the signature, the
+     * stamper writes the update to the heap and only the update is appended to the output; the signed revision is
+     * neither copied nor rewritten.
+     *
+     * @param validationData
+     * @throws IOException
+     * @throws DocumentException
+     */
+    private void addValidationData(@NotNull ValidationData validationData) throws IOException, DocumentException {
+        File outputFile = new File(outputFilePath);
+        long signedLength = outputFile.length();
+        IncrementOutputStream increment = new IncrementOutputStream(signedLength);
+        PdfReader pdfReader = openReader(outputFilePath);
         try {
-            addSignatureToPdf(Base64.decode(hash), estimatedSize);
-        } catch (UnsupportedEncodingException e) {
-            System.out.println("Error when adding hash to pdf");
-        } catch (Exception e) {
-            System.out.println("Error when adding hash to pdf");
+            PdfStamper pdfStamper = new PdfStamper(pdfReader, increment, '\0', true);
+            LtvVerification ltvVerification = pdfStamper.getLtvVerification();
+            ltvVerification.addVerification(signatureName, validationData.getOcspResponses(), validationData.getCrls(),
+                    validationData.getCertificates());
+            pdfStamper.close();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Adding validation data failed: " + e.getMessage(), e);
+        } finally {
+            pdfReader.close();
+        }
+
+        try (FileChannel out = FileChannel.open(outputFile.toPath(), StandardOpenOption.WRITE)) {
+            out.position(signedLength);
+            try {
+                increment.writeTo(out);
+            } catch (IOException e) {
+                // keep the signed revision intact
+                out.truncate(signedLength);
+                throw e;
+            }
         }
     }
 
+    /**
+     * Drop a prepared document without signing it, e.g. because the signature did not fit. The output file is deleted,
+     * the document may be prepared again with a larger size.
+     *
+     * @throws IOException
+     * @throws DocumentException
+     */
+    public void discard() throws IOException, DocumentException {
+        if (preparedDocument != null) {
+            preparedDocument.delete();
+            preparedDocument = null;
+        }
+        if (pdfSignatureAppearance == null)
+            return;
+
+        // closing with an empty placeholder is the only way to release the output stream and temp file of the stamper
+        try {
+            closeWithEmptyContents();
+        } finally {
+            new File(outputFilePath).delete();
+        }
+    }
+
+    /**
+     * Write the document with a zero filled placeholder and release the stamper
+     */
+    private void closeWithEmptyContents() throws IOException, DocumentException {
+        PdfLiteral pdfLiteral = (PdfLiteral) pdfSignature.get(PdfName.CONTENTS);
+        PdfDictionary dic2 = new PdfDictionary();
+        dic2.put(PdfName.CONTENTS, new PdfString(new byte[(pdfLiteral.getPosLength() - 2) / 2]).setHexWriting(true));
+        try {
+            pdfSignatureAppearance.close(dic2);
+        } finally {
+            pdfSignatureAppearance = null;
+            pdfSignature = null;
+        }
+    }
+
+    /**
+     * Output of a stamper in append mode that drops the copy of the original file and keeps only the incremental
+     * update. Positions are those of the whole file, as counted by the stamper.
+     */
+    private static class IncrementOutputStream extends ByteArrayOutputStream {
+
+        private final long _originalLength;
+        private long _skipped;
+
+        IncrementOutputStream(long originalLength) {
+            this._originalLength = originalLength;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            if (_skipped < _originalLength)
+                _skipped++;
+            else
+                super.write(b);
+        }
 
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            int skip = (int) Math.min(len, _originalLength - _skipped);
+            _skipped += skip;
+            super.write(b, off + skip, len - skip);
+        }
+
+        void put(long position, @NotNull byte[] bytes) {
+            System.arraycopy(bytes, 0, buf, (int) (position - _originalLength), bytes.length);
+        }
+
+        void digest(@NotNull MessageDigest messageDigest, long from, long to) {
+            messageDigest.update(buf, (int) (from - _originalLength), (int) (to - from));
+        }
+
+        void writeTo(@NotNull FileChannel channel) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(buf, 0, count);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+    }
 }
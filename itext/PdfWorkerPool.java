@@ -0,0 +1,273 @@
+/**
+ * Created:
+ * 18.10.26 KW42 16:10
+ * </p>
+ * **********************************************************************************
+ * Bounded worker pool preparing and signing the documents of a batch in parallel   *
+ * **********************************************************************************
+ */
+
+import com.itextpdf.text.DocumentException;
+import com.sun.istack.internal.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PdfWorkerPool {
+
+    /**
+     * Parsing and stamping needs a multiple of the document size on the heap
+     */
+    private static final int _MEMORY_FACTOR = 3;
+    /**
+     * Heap of a document read partially, independent of its size
+     */
+    private static final int _PARTIAL_READ_KB = 4 * 1024;
+    private static final int _KB = 1024;
+
+    private final ExecutorService _executor;
+    private final int _parallelism;
+    private final int _memoryBudgetKB;
+    private final Semaphore _memory;
+
+    /**
+     * Pool with one worker per processor and a quarter of the max heap as memory budget
+     */
+    public PdfWorkerPool() {
+        this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * @param parallelism       number of documents prepared or signed at the same time
+     * @param memoryBudgetBytes heap the documents in preparation may use together. A document bigger than the whole
+     *                          budget is still prepared, but alone.
+     */
+    public PdfWorkerPool(int parallelism, long memoryBudgetBytes) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        this._parallelism = parallelism;
+        this._memoryBudgetKB = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudgetBytes / _KB));
+        this._memory = new Semaphore(_memoryBudgetKB, true);
+        this._executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            private final AtomicInteger _count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "pdf-worker-" + _count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public int getParallelism() {
+        return _parallelism;
+    }
+
+    /**
+     * Prepare the documents for signing and compute their hashes
+     *
+     * @param pdfs
+     * @param signDate
+     * @param estimatedSize
+     * @param hashAlgorithm
+     * @param isTimestampOnly
+     * @return hashes in the order of the documents
+     * @throws Exception first failure in document order, the documents prepared by then are discarded
+     */
+    @NotNull
+    public byte[][] getPdfHashes(@NotNull Pdf[] pdfs, @NotNull Calendar signDate, int estimatedSize,
+                                 @NotNull String hashAlgorithm, boolean isTimestampOnly) throws Exception {
+        return getPdfHashes(pdfs, signDate, estimatedSize, hashAlgorithm, isTimestampOnly, false);
+    }
+
+    /**
+     * Prepare the documents for signing and compute their hashes
+     *
+     * @param pdfs
+     * @param signDate
+     * @param estimatedSize
+     * @param hashAlgorithm
+     * @param isTimestampOnly
+     * @param spill           keep the prepared documents in temp files instead of the heap until they are signed
+     * @return hashes in the order of the documents
+     * @throws Exception first failure in document order, the documents prepared by then are discarded
+     */
+    @NotNull
+    public byte[][] getPdfHashes(@NotNull Pdf[] pdfs, @NotNull Calendar signDate, int estimatedSize,
+                                 @NotNull String hashAlgorithm, boolean isTimestampOnly, boolean spill) throws Exception {
+        List<Callable<byte[]>> tasks = new ArrayList<>(pdfs.length);
+        for (Pdf pdf : pdfs)
+            tasks.add(() -> pdf.getPdfHash(signDate, estimatedSize, hashAlgorithm, isTimestampOnly, spill));
+
+        List<byte[]> hashes = invokeAll(pdfs, tasks);
+        return hashes.toArray(new byte[hashes.size()][]);
+    }
+
+    /**
+     * Embed the signatures into the documents
+     *
+     * @param pdfs
+     * @param signatures    decoded signatures in the order of the documents
+     * @param estimatedSize
+     * @throws Exception
+     */
+    public void sign(@NotNull Pdf[] pdfs, @NotNull List<byte[]> signatures, int estimatedSize) throws Exception {
+        sign(pdfs, signatures, null, estimatedSize);
+    }
+
+    /**
+     * Embed the signatures into the documents and append their validation data
+     *
+     * @param pdfs
+     * @param signatures     decoded signatures in the order of the documents
+     * @param validationData in the order of the documents, null to append none
+     * @param estimatedSize
+     * @throws Exception
+     */
+    public void sign(@NotNull Pdf[] pdfs, @NotNull List<byte[]> signatures, List<ValidationData> validationData,
+                     int estimatedSize) throws Exception {
+        List<Callable<Void>> tasks = new ArrayList<>(signatures.size());
+        for (int i = 0; i < signatures.size() && i < pdfs.length; i++) {
+            Pdf pdf = pdfs[i];
+            byte[] signature = signatures.get(i);
+            ValidationData data = validationData != null ? validationData.get(i) : null;
+            tasks.add(() -> {
+                pdf.sign(signature, estimatedSize, data);
+                return null;
+            });
+        }
+
+        invokeAll(pdfs, tasks);
+    }
+
+    /**
+     * Stop the workers, running tasks are completed
+     */
+    public void shutdown() {
+        _executor.shutdown();
+    }
+
+    /**
+     * Run the tasks, each one after its share of the memory budget is available. Single tasks run in the calling thread.
+     *
+     * @return results in task order
+     */
+    private <T> List<T> invokeAll(@NotNull Pdf[] pdfs, @NotNull List<Callable<T>> tasks) throws Exception {
+        List<T> results = new ArrayList<>(tasks.size());
+        if (tasks.size() == 1) {
+            results.add(tasks.get(0).call());
+            return results;
+        }
+
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        List<MemoryShare> shares = new ArrayList<>(tasks.size());
+        // set after a failure, tasks not started by then are dropped
+        AtomicBoolean dropped = new AtomicBoolean();
+        Exception failure;
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                MemoryShare share = new MemoryShare(getMemoryPermits(pdfs[i]));
+                Callable<T> task = tasks.get(i);
+                _memory.acquire(share._permits);
+                shares.add(share);
+                futures.add(_executor.submit(() -> {
+                    try {
+                        if (dropped.get())
+                            throw new CancellationException("Dropped after a failure");
+                        return task.call();
+                    } finally {
+                        share.release();
+                    }
+                }));
+            }
+
+            for (Future<T> future : futures)
+                results.add(future.get());
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = new InterruptedIOException("Interrupted while processing documents");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            failure = cause instanceof Exception ? (Exception) cause : new Exception(cause);
+        } finally {
+            // a cancelled future would not tell whether its task is still running, so the tasks drop themselves
+            dropped.set(true);
+            if (shares.size() > futures.size())
+                shares.get(futures.size()).release();
+        }
+        discardCompleted(pdfs, futures, failure);
+        throw failure;
+    }
+
+    /**
+     * Wait for the tasks still running or queued after a failure and discard the documents whose task succeeded, so
+     * that the caller does not get back prepared documents it has no hashes for. Signed documents are left as they are.
+     *
+     * @param failure gets the errors of the discard as suppressed exceptions
+     */
+    private static void discardCompleted(@NotNull Pdf[] pdfs, @NotNull List<? extends Future<?>> futures,
+                                         @NotNull Exception failure) {
+        boolean interrupted = Thread.interrupted();
+        for (int i = 0; i < futures.size(); i++) {
+            Future<?> future = futures.get(i);
+            try {
+                while (true) {
+                    try {
+                        future.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                pdfs[i].discard();
+            } catch (ExecutionException e) {
+                // the document failed itself or was dropped
+            } catch (IOException | DocumentException e) {
+                failure.addSuppressed(e);
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Part of the memory budget held by one task, released exactly once
+     */
+    private class MemoryShare {
+
+        private final int _permits;
+        private final AtomicBoolean _released = new AtomicBoolean();
+
+        MemoryShare(int permits) {
+            this._permits = permits;
+        }
+
+        void release() {
+            if (_released.compareAndSet(false, true))
+                _memory.release(_permits);
+        }
+    }
+
+    private int getMemoryPermits(@NotNull Pdf pdf) {
+        long size = new File(pdf.getInputFilePath()).length();
+        // large documents are read partially and prepared in a file
+        long kb = size > Pdf.TEMP_FILE_THRESHOLD ? _PARTIAL_READ_KB : size * _MEMORY_FACTOR / _KB;
+        return (int) Math.max(1, Math.min(kb, _memoryBudgetKB));
+    }
+}
@@ -0,0 +1,47 @@
+import com.sun.istack.internal.NotNull;
+import com.sun.istack.internal.Nullable;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Handle of an asynchronous sign request
+ */
+public class PendingSignature {
+
+    private int requestId;
+    private String responseId;
+    private CompletableFuture<Void> future;
+
+    PendingSignature(int requestId, String responseId, @NotNull CompletableFuture<Void> future) {
+        this.requestId = requestId;
+        this.responseId = responseId;
+        this.future = future;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * @return response id to poll or null if the server answered the request at once
+     */
+    @Nullable
+    public String getResponseId() {
+        return responseId;
+    }
+
+    /**
+     * @return completed when the signatures are embedded into the documents, exceptionally if signing failed
+     */
+    @NotNull
+    public CompletableFuture<Void> getFuture() {
+        return future;
+    }
+
+    /**
+     * Stop polling. The prepared documents are discarded, unless their signatures are already being embedded.
+     */
+    public boolean cancel() {
+        return future.cancel(false);
+    }
+}
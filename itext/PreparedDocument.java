@@ -0,0 +1,82 @@
+import com.sun.istack.internal.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Descriptor of a document prepared for signing and written to a temp file with an empty signature placeholder. Only
+ * the file and the position of the placeholder are kept on the heap, the signature is patched into the file.
+ */
+public class PreparedDocument {
+
+    private static final byte[] _HEX = "0123456789abcdef".getBytes();
+
+    private final File file;
+    private final long contentsOffset;
+    private final int contentsLength;
+
+    /**
+     * @param file           pre-signed document
+     * @param contentsOffset position of the placeholder, including the opening &lt;
+     * @param contentsLength length of the placeholder, including &lt; and &gt;
+     */
+    PreparedDocument(@NotNull File file, long contentsOffset, int contentsLength) {
+        this.file = file;
+        this.contentsOffset = contentsOffset;
+        this.contentsLength = contentsLength;
+    }
+
+    @NotNull
+    public File getFile() {
+        return file;
+    }
+
+    public long getContentsOffset() {
+        return contentsOffset;
+    }
+
+    /**
+     * @return max size of the signature in bytes
+     */
+    public int getCapacity() {
+        return (contentsLength - 2) / 2;
+    }
+
+    /**
+     * Write the signature hex encoded into the placeholder, the rest stays zero padded
+     *
+     * @param signature
+     * @throws IOException if the signature does not fit
+     */
+    void patch(@NotNull byte[] signature) throws IOException {
+        if (signature.length > getCapacity())
+            throw new IOException("Not enough space for signature: " + signature.length + " bytes, " + getCapacity() + " reserved");
+
+        byte[] hex = new byte[signature.length * 2];
+        for (int i = 0; i < signature.length; i++) {
+            hex[2 * i] = _HEX[(signature[i] >> 4) & 0x0f];
+            hex[2 * i + 1] = _HEX[signature[i] & 0x0f];
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(contentsOffset + 1);
+            raf.write(hex);
+        }
+    }
+
+    /**
+     * Move the signed document to its final path
+     *
+     * @param target
+     * @throws IOException
+     */
+    void moveTo(@NotNull File target) throws IOException {
+        Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+}
@@ -1,14 +1,16 @@
 public enum RequestType {
 
-    SignRequest("SignRequest", "urn:com:swisscom:dss:v1.0"),
-    PendingRequest("PendingRequest", "urn:com:swisscom:dss:v1.0");
+    SignRequest("SignRequest", "urn:com:swisscom:dss:v1.0", "sign"),
+    PendingRequest("PendingRequest", "urn:com:swisscom:dss:v1.0", "pending");
 
     private String urn;
     private String requestType;
+    private String operation;
 
-    RequestType(String reqType, String urn) {
+    RequestType(String reqType, String urn, String operation) {
         this.requestType = reqType;
         this.urn = urn;
+        this.operation = operation;
     }
 
     public String getRequestType() {
@@ -19,4 +21,8 @@ public enum RequestType {
         return this.urn;
     }
 
+    public String getOperation() {
+        return this.operation;
+    }
+
 }
@@ -0,0 +1,247 @@
+/**
+ * Created:
+ * 18.10.26 KW42 20:50
+ * </p>
+ * **********************************************************************************
+ * Learns the sizes of returned signatures to size the placeholder in the PDF       *
+ * **********************************************************************************
+ */
+
+import com.sun.istack.internal.NotNull;
+import com.sun.istack.internal.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+public class SignatureSizeEstimator {
+
+    public static final double DEFAULT_QUANTILE = 0.999;
+    public static final double DEFAULT_MARGIN = 0.1;
+    private static final int _BUCKET_SIZE = 256;
+    private static final int _MIN_MARGIN = 512;
+    /**
+     * Below this number of samples of a profile the fixed default size is used
+     */
+    private static final long _MIN_SAMPLES = 20;
+    /**
+     * When a profile reaches this number of samples all counts are halved, so the histogram follows changes of the
+     * certificates or the timestamp authority
+     */
+    private static final long _MAX_SAMPLES = 100000;
+
+    private final File _file;
+    private final double _quantile;
+    private final double _margin;
+    private final Map<String, TreeMap<Integer, Long>> _histograms = new HashMap<>();
+    private final Map<String, Long> _totals = new HashMap<>();
+
+    /**
+     * Estimator kept in memory only, sizes are learnt again after each start
+     */
+    public SignatureSizeEstimator() {
+        this._file = null;
+        this._quantile = DEFAULT_QUANTILE;
+        this._margin = DEFAULT_MARGIN;
+    }
+
+    /**
+     * @param file histogram loaded from and written to this file, it is created by the first {@link #save}
+     * @throws IOException if the file exists but can not be read
+     */
+    public SignatureSizeEstimator(@NotNull File file) throws IOException {
+        this(file, DEFAULT_QUANTILE, DEFAULT_MARGIN);
+    }
+
+    /**
+     * @param file     histogram loaded from and written to this file, may be null
+     * @param quantile share of the signatures the placeholder must fit, the others take the recovery path
+     * @param margin   added to the estimate as share of the size, at least 512 bytes
+     * @throws IOException if the file exists but can not be read
+     */
+    public SignatureSizeEstimator(@Nullable File file, double quantile, double margin) throws IOException {
+        if (quantile <= 0 || quantile > 1 || margin < 0)
+            throw new IllegalArgumentException("Quantile must be in (0, 1], margin must not be negative");
+        this._file = file;
+        this._quantile = quantile;
+        this._margin = margin;
+        if (file != null && file.exists())
+            load(file);
+    }
+
+    /**
+     * @param profile
+     * @return bytes to reserve for a signature of the profile
+     */
+    public synchronized int estimate(@NotNull Profile profile) {
+        TreeMap<Integer, Long> histogram = _histograms.get(profile.getKey());
+        long total = _totals.getOrDefault(profile.getKey(), 0L);
+        if (histogram == null || total < _MIN_SAMPLES)
+            return profile.getDefaultSize();
+
+        long rank = (long) Math.ceil(total * _quantile);
+        long count = 0;
+        int size = histogram.lastKey();
+        for (Map.Entry<Integer, Long> bucket : histogram.entrySet()) {
+            count += bucket.getValue();
+            if (count >= rank) {
+                size = bucket.getKey();
+                break;
+            }
+        }
+        return withMargin(size);
+    }
+
+    /**
+     * Size to reserve when documents are prepared again because their signature did not fit
+     *
+     * @param profile
+     * @param requiredSize size of the largest signature that did not fit
+     * @return at least the required size plus margin
+     */
+    public int getRetrySize(@NotNull Profile profile, int requiredSize) {
+        return Math.max(estimate(profile), withMargin(requiredSize));
+    }
+
+    /**
+     * Add the size of a returned signature to the histogram of its profile
+     *
+     * @param profile
+     * @param size    decoded signature in bytes
+     */
+    public synchronized void record(@NotNull Profile profile, int size) {
+        add(profile.getKey(), (size + _BUCKET_SIZE - 1) / _BUCKET_SIZE * _BUCKET_SIZE, 1);
+    }
+
+    /**
+     * Write the histogram to the file given in the constructor, nothing is done without a file
+     *
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        if (_file == null)
+            return;
+
+        Properties properties = new Properties();
+        for (Map.Entry<String, TreeMap<Integer, Long>> histogram : _histograms.entrySet()) {
+            for (Map.Entry<Integer, Long> bucket : histogram.getValue().entrySet())
+                properties.setProperty(histogram.getKey() + "." + bucket.getKey(), String.valueOf(bucket.getValue()));
+        }
+
+        File directory = _file.getAbsoluteFile().getParentFile();
+        File tempFile = File.createTempFile(_file.getName(), ".tmp", directory);
+        try {
+            try (OutputStream out = new FileOutputStream(tempFile)) {
+                properties.store(out, "Signature sizes per profile: <profile>.<bucket upper bound>=<count>");
+            }
+            Files.move(tempFile.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    private void load(@NotNull File file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        for (String name : properties.stringPropertyNames()) {
+            int separator = name.lastIndexOf('.');
+            try {
+                add(name.substring(0, separator), Integer.parseInt(name.substring(separator + 1)),
+                        Long.parseLong(properties.getProperty(name)));
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid entry in " + file + ": " + name, e);
+            }
+        }
+    }
+
+    private void add(@NotNull String key, int bucket, long count) {
+        TreeMap<Integer, Long> histogram = _histograms.computeIfAbsent(key, k -> new TreeMap<>());
+        histogram.merge(bucket, count, Long::sum);
+        long total = _totals.merge(key, count, Long::sum);
+
+        if (total >= _MAX_SAMPLES) {
+            total = 0;
+            for (Map.Entry<Integer, Long> entry : histogram.entrySet()) {
+                entry.setValue(entry.getValue() / 2);
+                total += entry.getValue();
+            }
+            histogram.values().removeIf(value -> value == 0);
+            _totals.put(key, total);
+        }
+    }
+
+    private int withMargin(int size) {
+        return size + Math.max(_MIN_MARGIN, (int) (size * _margin));
+    }
+
+    /**
+     * Kind of signature, signatures of one profile have about the same size
+     */
+    public static class Profile {
+
+        private final String key;
+        private final int defaultSize;
+
+        private Profile(@NotNull String key, int defaultSize) {
+            this.key = key;
+            this.defaultSize = defaultSize;
+        }
+
+        /**
+         * @param addTimestamp
+         * @param addOcsp
+         * @param certRequestProfile null for static certificates
+         * @return profile of cms signatures
+         */
+        @NotNull
+        public static Profile cms(boolean addTimestamp, boolean addOcsp, @Nullable String certRequestProfile) {
+            String key = "cms" + (addTimestamp ? "-timestamp" : "") + (addOcsp ? "-ocsp" : "")
+                    + (certRequestProfile != null ? "-ondemand" : "");
+            return new Profile(key, getDefaultSize(addTimestamp, addOcsp, certRequestProfile));
+        }
+
+        /**
+         * @return profile of rfc 3161 timestamp tokens
+         */
+        @NotNull
+        public static Profile timestamp() {
+            return new Profile("rfc3161", getDefaultSize(true, true, null));
+        }
+
+        @NotNull
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return size reserved as long as too few signatures of the profile were seen
+         */
+        public int getDefaultSize() {
+            return defaultSize;
+        }
+
+        private static int getDefaultSize(boolean useTimestamp, boolean useOcsp, String certRequestProfile) {
+            int returnValue = 8192;
+            returnValue = useTimestamp ? returnValue + 4192 : returnValue;
+            returnValue = useOcsp ? returnValue + 4192 : returnValue;
+            returnValue = certRequestProfile != null ? returnValue + 700 : returnValue;
+            return returnValue;
+        }
+
+        @Override
+        public String toString() {
+            return key;
+        }
+    }
+}
@@ -0,0 +1,480 @@
+/**
+ * Created:
+ * 19.10.26 KW42 20:15
+ * </p>
+ * **********************************************************************************
+ * Checks returned signatures and timestamp tokens before they are embedded        *
+ * **********************************************************************************
+ */
+
+import com.sun.istack.internal.NotNull;
+import com.sun.istack.internal.Nullable;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.ASN1TaggedObject;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.ocsp.OCSPResponse;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerId;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.DefaultDigestAlgorithmIdentifierFinder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.tsp.TSPException;
+import org.bouncycastle.tsp.TimeStampToken;
+import org.bouncycastle.tsp.TimeStampTokenInfo;
+import org.bouncycastle.util.Store;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Provider;
+import java.security.SignatureException;
+import java.security.cert.CertPathBuilder;
+import java.security.cert.CertStore;
+import java.security.cert.CertificateException;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.PKIXBuilderParameters;
+import java.security.cert.PKIXRevocationChecker;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies the tokens of a sign response, the documents of a batch in parallel. A CMS signature must be made by its
+ * signer certificate over the sent digest, i.e. its message digest attribute; a timestamp token must have the sent
+ * digest as message imprint. The signer or TSA certificate must chain to a trust anchor, the certificates of the token
+ * serve as intermediates.
+ * <p>
+ * Chain validations are cached per certificate and shared by concurrent checks, so a batch signed with one certificate
+ * costs one validation. Parsed certificates are cached as well. Both caches are bounded, validations expire after the
+ * cache time or with the certificate, failed ones are not cached. With revocation checking, OCSP responses embedded in
+ * a CMS signature are used, others are requested online.
+ */
+public class SignatureVerifier {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_CACHE_MILLIS = 300000;
+    /** signed attribute of OCSP responses and CRLs in PDF signatures */
+    private static final ASN1ObjectIdentifier _REVOCATION_INFO_ARCHIVAL = new ASN1ObjectIdentifier("1.2.840.113583.1.1.8");
+    private static final Provider _PROVIDER = new BouncyCastleProvider();
+
+    private final Set<TrustAnchor> _trustAnchors;
+    private final int _maxEntries;
+    private final long _cacheNanos;
+    private boolean _revocationChecking;
+    private ExecutorService _executor;
+    private final LinkedHashMap<X509Certificate, Validation> _validations = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<X509CertificateHolder, X509Certificate> _certificates = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Verifier trusting the certificates of the trust store, caching up to 1000 entries for 5 minutes
+     *
+     * @param trustStore
+     */
+    public SignatureVerifier(@NotNull KeyStore trustStore) throws GeneralSecurityException {
+        this(getCertificates(trustStore), DEFAULT_MAX_ENTRIES, DEFAULT_CACHE_MILLIS);
+    }
+
+    /**
+     * @param trustAnchors root certificates
+     * @param maxEntries   upper bound of cached validations and of cached certificates
+     * @param cacheMillis  time a validation is reused
+     */
+    public SignatureVerifier(@NotNull Collection<X509Certificate> trustAnchors, int maxEntries, long cacheMillis) {
+        if (trustAnchors.isEmpty() || maxEntries < 1)
+            throw new IllegalArgumentException("At least one trust anchor and one cache entry are required");
+        Set<TrustAnchor> anchors = new HashSet<>();
+        for (X509Certificate certificate : trustAnchors)
+            anchors.add(new TrustAnchor(certificate, null));
+        this._trustAnchors = Collections.unmodifiableSet(anchors);
+        this._maxEntries = maxEntries;
+        this._cacheNanos = TimeUnit.MILLISECONDS.toNanos(cacheMillis);
+    }
+
+    /**
+     * Check the revocation status of the chain with OCSP, off by default. Clears the cache.
+     *
+     * @param revocationChecking
+     */
+    public synchronized void setRevocationChecking(boolean revocationChecking) {
+        this._revocationChecking = revocationChecking;
+        clearCache();
+    }
+
+    private synchronized boolean isRevocationChecking() {
+        return _revocationChecking;
+    }
+
+    /**
+     * Drop the cached validations and certificates
+     */
+    public void clearCache() {
+        synchronized (_validations) {
+            _validations.clear();
+        }
+        synchronized (_certificates) {
+            _certificates.clear();
+        }
+    }
+
+    /**
+     * Stop the verification threads
+     */
+    public synchronized void shutdown() {
+        if (_executor != null)
+            _executor.shutdown();
+    }
+
+    /**
+     * Verify the tokens of a successful response and throw if any is invalid, for callers that use the response as a
+     * whole. Documents without token are skipped, they fail anyway.
+     *
+     * @param request  request of the response, provides the sent digests
+     * @param response
+     * @throws SignatureException listing the documents whose token is invalid
+     */
+    public void verifyAll(@NotNull DSSRequest request, @NotNull DSSResponse response) throws GeneralSecurityException {
+        Map<String, GeneralSecurityException> invalid = verify(request, response);
+        if (!invalid.isEmpty())
+            throw toException(invalid, request.getHashes().length);
+    }
+
+    /**
+     * Verify the tokens of a successful response. Documents without token are skipped, they fail anyway.
+     *
+     * @param request  request of the response, provides the sent digests
+     * @param response
+     * @return failures by document ID in document order, empty if all tokens are valid
+     * @throws SignatureException if interrupted while waiting for the checks
+     */
+    @NotNull
+    public Map<String, GeneralSecurityException> verify(@NotNull DSSRequest request, @NotNull DSSResponse response)
+            throws GeneralSecurityException {
+        long start = SigningMetrics.start();
+        byte[][] hashes = request.getHashes();
+        ASN1ObjectIdentifier digestAlgorithm = getDigestAlgorithm(request.getDigestMethod());
+        boolean timestamp = request.getShape() == DSSRequest.Shape.TIMESTAMP_ONLY;
+
+        List<CompletableFuture<Void>> checks = new ArrayList<>(hashes.length);
+        List<String> documents = new ArrayList<>(hashes.length);
+        for (int i = 0; i < hashes.length; i++) {
+            byte[] token = response.getSignature(request.getDocumentId(i));
+            if (token == null)
+                continue;
+            byte[] hash = hashes[i];
+            documents.add(request.getDocumentId(i));
+            // a single document is checked by the caller, a thread switch would only add latency
+            if (hashes.length == 1) {
+                checks.add(check(() -> verifyToken(token, hash, digestAlgorithm, timestamp)));
+                continue;
+            }
+            checks.add(CompletableFuture.runAsync(() -> {
+                try {
+                    verifyToken(token, hash, digestAlgorithm, timestamp);
+                } catch (GeneralSecurityException e) {
+                    throw new CompletionException(e);
+                }
+            }, getExecutor()));
+        }
+
+        Map<String, GeneralSecurityException> invalid = new LinkedHashMap<>();
+        for (int i = 0; i < checks.size(); i++) {
+            try {
+                checks.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SignatureException("Interrupted while verifying signatures");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+                invalid.put(documents.get(i), cause instanceof GeneralSecurityException ? (GeneralSecurityException) cause :
+                        new SignatureException(cause.toString(), cause));
+            }
+        }
+        SigningMetrics.stop(SigningMetrics.Phase.SIGNATURE_VERIFY, start);
+        return invalid;
+    }
+
+    /**
+     * @param invalid   failures of {@link #verify} by document ID
+     * @param documents documents of the request
+     * @return exception listing the first invalid documents with the first failure as cause
+     */
+    @NotNull
+    static SignatureException toException(@NotNull Map<String, GeneralSecurityException> invalid, int documents) {
+        StringBuilder message = new StringBuilder();
+        int listed = 0;
+        for (Map.Entry<String, GeneralSecurityException> entry : invalid.entrySet()) {
+            if (listed++ == 10)
+                break;
+            message.append(listed > 1 ? "; " : ": ").append("document ").append(entry.getKey().isEmpty() ? "0" : entry.getKey()).append(' ')
+                    .append(entry.getValue().getMessage());
+        }
+        return new SignatureException("Invalid signatures for " + invalid.size() + " of " + documents + " documents" + message,
+                invalid.values().iterator().next());
+    }
+
+    @Override
+    public String toString() {
+        int validations;
+        synchronized (_validations) {
+            validations = _validations.size();
+        }
+        return "trustAnchors=" + _trustAnchors.size() + " cachedValidations=" + validations;
+    }
+
+    /**
+     * @param token a CMS signature or an RFC 3161 timestamp token
+     */
+    private void verifyToken(@NotNull byte[] token, @NotNull byte[] hash, @NotNull ASN1ObjectIdentifier digestAlgorithm,
+                             boolean timestamp) throws GeneralSecurityException {
+        try {
+            if (timestamp) {
+                TimeStampToken timeStampToken = new TimeStampToken(new CMSSignedData(token));
+                TimeStampTokenInfo info = timeStampToken.getTimeStampInfo();
+                if (!digestAlgorithm.equals(info.getMessageImprintAlgOID()) || !Arrays.equals(hash, info.getMessageImprintDigest()))
+                    throw new SignatureException("Timestamp does not cover the sent digest");
+                X509Certificate certificate = getSignerCertificate(timeStampToken.getCertificates(), timeStampToken.getSID());
+                timeStampToken.validate(new JcaSimpleSignerInfoVerifierBuilder().setProvider(_PROVIDER).build(certificate));
+                validateChain(certificate, timeStampToken.getCertificates(), null);
+                return;
+            }
+
+            // the content is the document, known to the signature by the sent digest
+            CMSSignedData signedData = new CMSSignedData(Collections.singletonMap(digestAlgorithm.getId(), hash), token);
+            Collection<?> signers = signedData.getSignerInfos().getSigners();
+            if (signers.size() != 1)
+                throw new SignatureException("Expected one signer, found " + signers.size());
+            SignerInformation signer = (SignerInformation) signers.iterator().next();
+            if (!digestAlgorithm.getId().equals(signer.getDigestAlgOID()))
+                throw new SignatureException("Signed with digest algorithm " + signer.getDigestAlgOID() + " instead of " + digestAlgorithm);
+            X509Certificate certificate = getSignerCertificate(signedData.getCertificates(), signer.getSID());
+            if (!signer.verify(new JcaSimpleSignerInfoVerifierBuilder().setProvider(_PROVIDER).build(certificate)))
+                throw new SignatureException("Signature does not cover the sent digest");
+            validateChain(certificate, signedData.getCertificates(), signer);
+        } catch (CMSException | TSPException | OperatorCreationException | IOException e) {
+            throw new SignatureException(e.getMessage(), e);
+        }
+    }
+
+    @NotNull
+    private X509Certificate getSignerCertificate(@NotNull Store certificates, @NotNull SignerId signerId) throws GeneralSecurityException {
+        Collection<?> matches = certificates.getMatches(signerId);
+        if (matches.isEmpty())
+            throw new SignatureException("Signer certificate missing");
+        return toCertificate((X509CertificateHolder) matches.iterator().next());
+    }
+
+    @NotNull
+    private X509Certificate toCertificate(@NotNull X509CertificateHolder holder) throws CertificateException {
+        synchronized (_certificates) {
+            X509Certificate certificate = _certificates.get(holder);
+            if (certificate != null)
+                return certificate;
+        }
+        X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(holder);
+        synchronized (_certificates) {
+            _certificates.put(holder, certificate);
+            evict(_certificates);
+        }
+        return certificate;
+    }
+
+    /**
+     * Validate the chain of the certificate once, concurrent and later checks of the same certificate wait for the
+     * result or reuse it
+     *
+     * @param signer provides embedded OCSP responses, null for timestamps
+     */
+    private void validateChain(@NotNull X509Certificate certificate, @NotNull Store certificates, @Nullable SignerInformation signer)
+            throws GeneralSecurityException {
+        Validation validation;
+        boolean owner = false;
+        synchronized (_validations) {
+            long now = System.nanoTime();
+            validation = _validations.get(certificate);
+            if (validation == null || now - validation._expires > 0) {
+                long untilExpiry = TimeUnit.MILLISECONDS.toNanos(certificate.getNotAfter().getTime() - System.currentTimeMillis());
+                validation = new Validation(now + Math.min(_cacheNanos, Math.max(0, untilExpiry)));
+                _validations.put(certificate, validation);
+                evict(_validations);
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            try {
+                buildPath(certificate, certificates, signer);
+                validation._result.complete(null);
+            } catch (GeneralSecurityException | RuntimeException e) {
+                // a failure may be temporary, e.g. an unreachable OCSP responder: the next request validates again
+                synchronized (_validations) {
+                    _validations.remove(certificate, validation);
+                }
+                validation._result.completeExceptionally(e);
+            }
+        }
+
+        try {
+            validation._result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SignatureException("Interrupted while validating " + certificate.getSubjectX500Principal());
+        } catch (ExecutionException e) {
+            throw new CertificateException("Certificate " + certificate.getSubjectX500Principal() + " not trusted: " +
+                    e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private void buildPath(@NotNull X509Certificate certificate, @NotNull Store certificates, @Nullable SignerInformation signer)
+            throws GeneralSecurityException {
+        List<X509Certificate> intermediates = new ArrayList<>();
+        for (Object holder : certificates.getMatches(null))
+            intermediates.add(toCertificate((X509CertificateHolder) holder));
+
+        X509CertSelector target = new X509CertSelector();
+        target.setCertificate(certificate);
+        PKIXBuilderParameters parameters = new PKIXBuilderParameters(_trustAnchors, target);
+        parameters.addCertStore(CertStore.getInstance("Collection", new CollectionCertStoreParameters(intermediates)));
+        CertPathBuilder builder = CertPathBuilder.getInstance("PKIX");
+        if (isRevocationChecking()) {
+            PKIXRevocationChecker revocationChecker = (PKIXRevocationChecker) builder.getRevocationChecker();
+            revocationChecker.setOptions(EnumSet.of(PKIXRevocationChecker.Option.NO_FALLBACK));
+            if (signer != null)
+                revocationChecker.setOcspResponses(getOcspResponses(signer, intermediates));
+            parameters.addCertPathChecker(revocationChecker);
+        } else {
+            parameters.setRevocationEnabled(false);
+        }
+        builder.build(parameters);
+    }
+
+    /**
+     * OCSP responses of the revocation info archival attribute, by the certificate they are about
+     */
+    @NotNull
+    private static Map<X509Certificate, byte[]> getOcspResponses(@NotNull SignerInformation signer,
+                                                                 @NotNull List<X509Certificate> certificates) throws SignatureException {
+        Map<X509Certificate, byte[]> responses = new HashMap<>();
+        AttributeTable attributes = signer.getSignedAttributes();
+        Attribute archival = attributes != null ? attributes.get(_REVOCATION_INFO_ARCHIVAL) : null;
+        if (archival == null)
+            return responses;
+        try {
+            for (ASN1Encodable element : ASN1Sequence.getInstance(archival.getAttrValues().getObjectAt(0)).toArray()) {
+                ASN1TaggedObject tagged = ASN1TaggedObject.getInstance(element);
+                // [0] CRLs, [1] OCSP responses, [2] other
+                if (tagged.getTagNo() != 1)
+                    continue;
+                for (ASN1Encodable encoded : ASN1Sequence.getInstance(tagged.getObject()).toArray()) {
+                    OCSPResponse ocspResponse = OCSPResponse.getInstance(encoded);
+                    Object basic = new OCSPResp(ocspResponse).getResponseObject();
+                    if (!(basic instanceof BasicOCSPResp))
+                        continue;
+                    for (SingleResp single : ((BasicOCSPResp) basic).getResponses())
+                        for (X509Certificate certificate : certificates)
+                            if (certificate.getSerialNumber().equals(single.getCertID().getSerialNumber()))
+                                responses.put(certificate, ocspResponse.getEncoded());
+                }
+            }
+        } catch (IOException | OCSPException | IllegalArgumentException e) {
+            throw new SignatureException("Invalid revocation info: " + e.getMessage(), e);
+        }
+        return responses;
+    }
+
+    private void evict(@NotNull LinkedHashMap<?, ?> cache) {
+        for (Iterator<?> it = cache.values().iterator(); cache.size() > _maxEntries; ) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    @NotNull
+    private static ASN1ObjectIdentifier getDigestAlgorithm(@NotNull String digestMethod) throws GeneralSecurityException {
+        for (HashAlgorithm hashAlgorithm : HashAlgorithm.values())
+            if (hashAlgorithm.getHashUri().equals(digestMethod))
+                return new DefaultDigestAlgorithmIdentifierFinder().find(hashAlgorithm.getHashAlgorythm()).getAlgorithm();
+        throw new SignatureException("Unsupported digest method " + digestMethod);
+    }
+
+    @NotNull
+    private static List<X509Certificate> getCertificates(@NotNull KeyStore trustStore) throws GeneralSecurityException {
+        List<X509Certificate> certificates = new ArrayList<>();
+        for (String alias : Collections.list(trustStore.aliases()))
+            if (trustStore.isCertificateEntry(alias) && trustStore.getCertificate(alias) instanceof X509Certificate)
+                certificates.add((X509Certificate) trustStore.getCertificate(alias));
+        return certificates;
+    }
+
+    @NotNull
+    private static CompletableFuture<Void> check(@NotNull Check check) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            check.run();
+            result.complete(null);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    @NotNull
+    private synchronized ExecutorService getExecutor() {
+        if (_executor == null) {
+            AtomicInteger count = new AtomicInteger();
+            _executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread(runnable, "dss-verify-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return _executor;
+    }
+
+    private interface Check {
+        void run() throws GeneralSecurityException;
+    }
+
+    /**
+     * Chain validation of one certificate, completes exceptionally if the chain is not trusted
+     */
+    private static class Validation {
+
+        private final CompletableFuture<Void> _result = new CompletableFuture<>();
+        private final long _expires;
+
+        Validation(long expires) {
+            this._expires = expires;
+        }
+    }
+}
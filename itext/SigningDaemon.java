@@ -0,0 +1,525 @@
+/**
+ * Created:
+ * 18.10.26 KW42 23:40
+ * </p>
+ * **********************************************************************************
+ * Resident process signing digests for the bash scripts over one shared client     *
+ * **********************************************************************************
+ */
+
+import com.sun.istack.internal.NotNull;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.bouncycastle.asn1.x500.RDN;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.asn1.x500.style.IETFUtils;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+
+import javax.management.JMException;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Signs digests for allin-tsa.sh, allin-org.sh and allin-ondemand.sh without a process, temp files and TLS handshake per
+ * digest. Key and trust store are loaded once and the connections to the service are pooled across all jobs.
+ * <p>
+ * A job is a JSON object with the arguments of the scripts:
+ * <pre>
+ *     {"id":"1","profile":"ondemand","type":"SOAP","digest":"GcXf...","method":"SHA256","dn":"cn=Hans Muster,o=ACME,c=CH",
+ *      "msisdn":"+41792080350","msg":"Sign it?","lang":"EN"}
+ * </pre>
+ * profile is tsa, org or ondemand; type, dn and the mobile id members are optional. The result carries the exit code of
+ * the scripts: 0 signed, 1 not signed or invalid job, 2 service not reachable.
+ * <pre>
+ *     {"id":"1","rc":0,"resultMajor":"...","signature":"MIAG...","subject":"subject= /CN=Hans Muster/O=ACME/C=CH"}
+ * </pre>
+ * Jobs are posted to http://127.0.0.1:port/sign, one per request, or read from stdin with --stdin, one per line, with
+ * one result line per job on stdout in completion order.
+ */
+public class SigningDaemon {
+
+    private static final String _CONTENT_TYPE = "application/json";
+    private static final Map<String, SignatureVerifier> _verifiers = new HashMap<>();
+
+    private final Properties _config;
+    private final Map<MessageType, DSS_SOAP> _clients = new LinkedHashMap<>();
+    private final AtomicInteger _requestId = new AtomicInteger();
+    private ConcurrencyLimiter _limiter;
+
+    /**
+     * @param config see {@link #main} for the keys
+     */
+    public SigningDaemon(@NotNull Properties config) {
+        this._config = config;
+    }
+
+    /**
+     * Usage: java SigningDaemon config.properties [--stdin]
+     * <pre>
+     * keystore, keystore.password          client key store
+     * truststore, truststore.password      trust store of the server certificate
+     * key.alias                            private key in the key store
+     * client.cert.alias, server.cert.alias certificates in the key store
+     * url.soap, url.rest                   e.g. https://ais.pre.swissdigicert.ch/DSS-Server/ws and .../rs/v1.0,
+     *                                      several comma separated urls are used as endpoint group
+     * hedge                                true to hedge timestamp requests over the endpoint group, default false
+     * verify.truststore                    trust anchors of returned signatures and timestamps, not verified if not set
+     * verify.truststore.password           its password
+     * verify.revocation                    true to check the revocation status of their certificates with OCSP
+     * ap.id.tsa, ap.id.org, ap.id.ondemand claimed identities of the profiles
+     * http.port                            loopback port, default 8089
+     * threads                              jobs signed at the same time, default 16
+     * timeout.connect, timeout.read        milliseconds, default 10 seconds and 3 minutes
+     * limit.max                            adaptive limit of requests in flight to the service, off if not set
+     * limit.wait                           milliseconds a job waits for the limit before failing with 2, default forever
+     * tsa.coalesce.window                  share timestamps of identical digests for this many milliseconds, off if not set
+     * tsa.coalesce.entries                 digests tracked for sharing, default 1000
+     * </pre>
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: java SigningDaemon config.properties [--stdin]");
+            System.exit(1);
+        }
+        Properties config = new Properties();
+        try (InputStream in = new FileInputStream(args[0])) {
+            config.load(in);
+        }
+        SigningDaemon daemon = new SigningDaemon(config);
+        int threads = Integer.parseInt(config.getProperty("threads", "16"));
+
+        if (args.length > 1 && "--stdin".equals(args[1])) {
+            daemon.serveStream(System.in, System.out, threads);
+            daemon.close();
+            return;
+        }
+
+        int port = Integer.parseInt(config.getProperty("http.port", "8089"));
+        daemon.serveHttp(port, threads);
+        Runtime.getRuntime().addShutdownHook(new Thread(daemon::close));
+        System.out.println("Signing daemon listening on http://127.0.0.1:" + port + "/sign");
+    }
+
+    /**
+     * Accept jobs on the loopback interface only
+     *
+     * @param port
+     * @param threads
+     * @return started server
+     */
+    @NotNull
+    public HttpServer serveHttp(int port, int threads) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 128);
+        server.createContext("/sign", this::handle);
+        server.setExecutor(Executors.newFixedThreadPool(threads));
+        server.start();
+        return server;
+    }
+
+    /**
+     * Sign one job per line until the end of the input, at most threads jobs at the same time
+     *
+     * @param in
+     * @param out     one result per line
+     * @param threads
+     */
+    public void serveStream(@NotNull InputStream in, @NotNull PrintStream out, int threads) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Semaphore permits = new Semaphore(threads);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().isEmpty())
+                continue;
+            final String job = line;
+            permits.acquire();
+            executor.execute(() -> {
+                try {
+                    String result = process(job);
+                    synchronized (out) {
+                        out.println(result);
+                        out.flush();
+                    }
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+    /**
+     * Close the pooled connections
+     */
+    public synchronized void close() {
+        for (DSS_SOAP client : _clients.values())
+            client.close();
+    }
+
+    private void handle(@NotNull HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            try (InputStream in = exchange.getRequestBody()) {
+                while ((read = in.read(buffer)) != -1)
+                    body.write(buffer, 0, read);
+            }
+            byte[] result = process(body.toString("UTF-8")).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", _CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, result.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(result);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Sign the digest of a job
+     *
+     * @param json job
+     * @return result as JSON, never throws
+     */
+    @NotNull
+    public String process(@NotNull String json) {
+        Map<String, String> job;
+        try {
+            job = parseObject(json);
+        } catch (IOException e) {
+            return result(null, 1, null, null, e.getMessage(), null, null);
+        }
+        String id = job.get("id");
+        try {
+            MessageType messageType = getMessageType(job.get("type"));
+            String profile = require(job, "profile");
+            HashAlgorithm hashAlgo = getHashAlgorithm(require(job, "method"));
+            byte[][] hashes = {Base64.getDecoder().decode(require(job, "digest"))};
+            String serverURI = require(_config, messageType == MessageType.JSON ? "url.rest" : "url.soap");
+            DSS_SOAP client = getClient(messageType);
+            int requestId = _requestId.incrementAndGet();
+
+            DSSResponse response;
+            if ("tsa".equals(profile)) {
+                response = client.signHashesTimestampOnly(hashes, hashAlgo, serverURI, require(_config, "ap.id.tsa"), requestId);
+            } else if ("org".equals(profile)) {
+                response = client.signHashesStaticCert(hashes, hashAlgo, serverURI, true, true, require(_config, "ap.id.org"), requestId);
+            } else if ("ondemand".equals(profile)) {
+                String claimedIdentity = require(_config, "ap.id.ondemand");
+                String msisdn = job.get("msisdn");
+                if (msisdn == null || msisdn.isEmpty())
+                    response = client.signHashesOnDemandCert(hashes, hashAlgo, serverURI, DSSRequest.CERTIFICATE_REQUEST_PROFILE,
+                            true, true, require(job, "dn"), claimedIdentity, requestId);
+                else
+                    response = client.signHashesOnDemandCertMobileId(hashes, hashAlgo, serverURI, true, true, claimedIdentity,
+                            require(job, "dn"), msisdn, orDefault(job.get("msg"), "Sign it?"), orDefault(job.get("lang"), "EN"), requestId);
+            } else {
+                throw new IllegalArgumentException("Unsupported profile " + profile);
+            }
+
+            if (!response.isSuccess() || response.getSignatures().isEmpty())
+                return result(id, 1, response.getResultMajor(), response.getResultMinor(), response.getResultMessage(), null, null);
+            byte[] signature = response.getSignatures().values().iterator().next();
+            return result(id, 0, response.getResultMajor(), null, null, signature, getSignerSubject(signature));
+        } catch (IOException | GeneralSecurityException e) {
+            return result(id, 2, null, null, e.toString(), null, null);
+        } catch (Exception e) {
+            return result(id, 1, null, null, e.getMessage(), null, null);
+        }
+    }
+
+    @NotNull
+    private synchronized DSS_SOAP getClient(@NotNull MessageType messageType) {
+        DSS_SOAP client = _clients.get(messageType);
+        if (client == null) {
+            client = createClient(_config, messageType);
+            client.setConcurrencyLimiter(getLimiter());
+            _clients.put(messageType, client);
+        }
+        return client;
+    }
+
+    /**
+     * One limiter shared by the clients of all message types, they talk to the same service
+     *
+     * @return null if not configured
+     */
+    private synchronized ConcurrencyLimiter getLimiter() {
+        String max = _config.getProperty("limit.max");
+        if (_limiter == null && max != null && !max.isEmpty()) {
+            int maxLimit = Integer.parseInt(max);
+            _limiter = new ConcurrencyLimiter(Math.min(ConcurrencyLimiter.DEFAULT_INITIAL_LIMIT, maxLimit), 1, maxLimit);
+            String wait = _config.getProperty("limit.wait");
+            if (wait != null && !wait.isEmpty()) {
+                long waitMillis = Long.parseLong(wait);
+                _limiter.setWhenLimited(waitMillis > 0 ? ConcurrencyLimiter.WhenLimited.TIMEOUT :
+                        ConcurrencyLimiter.WhenLimited.FAIL_FAST, waitMillis);
+            }
+            try {
+                _limiter.registerMBean();
+            } catch (JMException e) {
+                System.out.println("Error when registering the concurrency limiter: " + e.getMessage());
+            }
+        }
+        return _limiter;
+    }
+
+    /**
+     * @param config      key and trust store keys, see {@link #main}
+     * @param messageType
+     * @return client with the credentials of the configuration
+     */
+    @NotNull
+    static DSS_SOAP createClient(@NotNull Properties config, @NotNull MessageType messageType) {
+        DSS_SOAP client = new DSS_SOAP(require(config, "key.alias"), require(config, "server.cert.alias"),
+                require(config, "client.cert.alias"), require(config, "keystore"), config.getProperty("keystore.password"),
+                require(config, "truststore"), config.getProperty("truststore.password"), false);
+        client.setMessageType(messageType);
+        client.setTimeouts(Integer.parseInt(config.getProperty("timeout.connect", String.valueOf(DSSConnection.DEFAULT_CONNECT_TIMEOUT_MILLIS))),
+                Integer.parseInt(config.getProperty("timeout.read", String.valueOf(DSSConnection.DEFAULT_READ_TIMEOUT_MILLIS))));
+        String urls = config.getProperty(messageType == MessageType.JSON ? "url.rest" : "url.soap");
+        if (urls != null && urls.contains(",")) {
+            EndpointGroup group = new EndpointGroup(urls.trim().split("\\s*,\\s*"));
+            group.setHedging(Boolean.parseBoolean(config.getProperty("hedge")));
+            client.setEndpointGroup(group);
+        }
+        String verifyTrustStore = config.getProperty("verify.truststore");
+        if (verifyTrustStore != null && !verifyTrustStore.isEmpty())
+            client.setSignatureVerifier(getSignatureVerifier(config, verifyTrustStore));
+        String window = config.getProperty("tsa.coalesce.window");
+        if (window != null && !window.isEmpty())
+            client.setTimestampCoalescer(new TimestampCoalescer(Long.parseLong(window), Integer.parseInt(
+                    config.getProperty("tsa.coalesce.entries", String.valueOf(TimestampCoalescer.DEFAULT_MAX_ENTRIES)))));
+        return client;
+    }
+
+    /**
+     * One verifier per trust store, the clients of all message types share its cache
+     */
+    @NotNull
+    private static synchronized SignatureVerifier getSignatureVerifier(@NotNull Properties config, @NotNull String trustStorePath) {
+        SignatureVerifier verifier = _verifiers.get(trustStorePath);
+        if (verifier == null) {
+            String password = config.getProperty("verify.truststore.password");
+            try (InputStream in = new FileInputStream(trustStorePath)) {
+                KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+                trustStore.load(in, password != null ? password.toCharArray() : null);
+                verifier = new SignatureVerifier(trustStore);
+            } catch (IOException | GeneralSecurityException e) {
+                throw new IllegalArgumentException("Can not load " + trustStorePath + ": " + e.getMessage(), e);
+            }
+            verifier.setRevocationChecking(Boolean.parseBoolean(config.getProperty("verify.revocation")));
+            _verifiers.put(trustStorePath, verifier);
+        }
+        return verifier;
+    }
+
+    /**
+     * The REST resources also accept XML, the client speaks SOAP or JSON: XML jobs are sent as SOAP
+     */
+    @NotNull
+    static MessageType getMessageType(String type) {
+        if (type == null || "SOAP".equals(type) || "XML".equals(type))
+            return MessageType.SOAP;
+        if ("JSON".equals(type))
+            return MessageType.JSON;
+        throw new IllegalArgumentException("Unsupported message type " + type);
+    }
+
+    @NotNull
+    static HashAlgorithm getHashAlgorithm(@NotNull String method) {
+        if ("SHA224".equals(method) || "SHA256".equals(method) || "SHA384".equals(method) || "SHA512".equals(method))
+            return HashAlgorithm.valueOf(method);
+        throw new IllegalArgumentException("Unsupported digest method " + method);
+    }
+
+    /**
+     * Subject of the signer certificate, formatted like openssl x509 -subject
+     */
+    private static String getSignerSubject(@NotNull byte[] signature) {
+        try {
+            CMSSignedData signedData = new CMSSignedData(signature);
+            SignerInformation signer = (SignerInformation) signedData.getSignerInfos().getSigners().iterator().next();
+            @SuppressWarnings("unchecked")
+            Collection<X509CertificateHolder> certificates = signedData.getCertificates().getMatches(signer.getSID());
+            if (certificates.isEmpty())
+                return null;
+            X500Name subject = certificates.iterator().next().getSubject();
+            StringBuilder text = new StringBuilder("subject= ");
+            for (RDN rdn : subject.getRDNs())
+                text.append('/').append(BCStyle.INSTANCE.oidToDisplayName(rdn.getFirst().getType()))
+                        .append('=').append(IETFUtils.valueToString(rdn.getFirst().getValue()));
+            return text.toString();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    @NotNull
+    static String require(@NotNull Map<?, ?> values, @NotNull String name) {
+        Object value = values.get(name);
+        if (value == null || value.toString().isEmpty())
+            throw new IllegalArgumentException("Missing " + name);
+        return value.toString();
+    }
+
+    @NotNull
+    private static String orDefault(String value, @NotNull String defaultValue) {
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    @NotNull
+    private static String result(String id, int rc, String resultMajor, String resultMinor, String resultMessage,
+                                 byte[] signature, String subject) {
+        StringBuilder json = new StringBuilder(256 + (signature != null ? signature.length * 4 / 3 : 0)).append('{');
+        if (id != null)
+            appendMember(json, "id", id).append(',');
+        json.append("\"rc\":").append(rc);
+        if (resultMajor != null)
+            appendMember(json.append(','), "resultMajor", resultMajor);
+        if (resultMinor != null)
+            appendMember(json.append(','), "resultMinor", resultMinor);
+        if (resultMessage != null)
+            appendMember(json.append(','), "resultMessage", resultMessage);
+        if (signature != null)
+            appendMember(json.append(','), "signature", Base64.getEncoder().encodeToString(signature));
+        if (subject != null)
+            appendMember(json.append(','), "subject", subject);
+        return json.append('}').toString();
+    }
+
+    @NotNull
+    private static StringBuilder appendMember(@NotNull StringBuilder json, @NotNull String name, @NotNull String value) {
+        json.append('"').append(name).append("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                json.append('\\').append(c);
+            else if (c < 0x20)
+                json.append(String.format("\\u%04x", (int) c));
+            else
+                json.append(c);
+        }
+        return json.append('"');
+    }
+
+    /**
+     * Parse a flat JSON object, values other than strings are kept as their text
+     */
+    @NotNull
+    private static Map<String, String> parseObject(@NotNull String json) throws IOException {
+        Map<String, String> members = new LinkedHashMap<>();
+        int[] position = {skipWhitespace(json, 0)};
+        expect(json, position, '{');
+        if (peek(json, position) == '}')
+            return members;
+        while (true) {
+            expect(json, position, '"');
+            String name = readString(json, position);
+            expect(json, position, ':');
+            String value;
+            if (peek(json, position) == '"') {
+                position[0]++;
+                value = readString(json, position);
+            } else {
+                int start = position[0];
+                while (position[0] < json.length() && ",} \t\r\n".indexOf(json.charAt(position[0])) < 0)
+                    position[0]++;
+                value = json.substring(start, position[0]);
+                if ("null".equals(value))
+                    value = null;
+            }
+            members.put(name, value);
+            char c = peek(json, position);
+            position[0]++;
+            if (c == '}')
+                return members;
+            if (c != ',')
+                throw new IOException("Invalid job: ',' or '}' expected at " + position[0]);
+        }
+    }
+
+    @NotNull
+    private static String readString(@NotNull String json, @NotNull int[] position) throws IOException {
+        StringBuilder value = new StringBuilder();
+        for (int i = position[0]; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '"') {
+                position[0] = i + 1;
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (++i == json.length())
+                break;
+            c = json.charAt(i);
+            switch (c) {
+                case 'n': value.append('\n'); break;
+                case 'r': value.append('\r'); break;
+                case 't': value.append('\t'); break;
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'u':
+                    if (i + 4 >= json.length())
+                        throw new IOException("Invalid job: bad escape at " + i);
+                    value.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    break;
+                default: value.append(c);
+            }
+        }
+        throw new IOException("Invalid job: unterminated string");
+    }
+
+    private static char peek(@NotNull String json, @NotNull int[] position) throws IOException {
+        position[0] = skipWhitespace(json, position[0]);
+        if (position[0] >= json.length())
+            throw new IOException("Invalid job: unexpected end");
+        return json.charAt(position[0]);
+    }
+
+    private static void expect(@NotNull String json, @NotNull int[] position, char expected) throws IOException {
+        if (peek(json, position) != expected)
+            throw new IOException("Invalid job: '" + expected + "' expected at " + position[0]);
+        position[0]++;
+    }
+
+    private static int skipWhitespace(@NotNull String json, int position) {
+        while (position < json.length() && Character.isWhitespace(json.charAt(position)))
+            position++;
+        return position;
+    }
+}
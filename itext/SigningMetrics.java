@@ -0,0 +1,419 @@
+/**
+ * Created:
+ * 18.10.26 KW42 22:15
+ * </p>
+ * **********************************************************************************
+ * Timers, counters and histograms of the signing flow, exposed via JMX and sinks  *
+ * **********************************************************************************
+ */
+
+import com.sun.istack.internal.NotNull;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process wide metrics of all DSS_SOAP instances. Disabled by default: then every probe is a single volatile read and
+ * nothing is recorded. Enabled by {@link #setEnabled}, {@link #registerMBean} or by adding a sink.
+ * <p>
+ * Probes are placed as
+ * <pre>
+ *     long start = SigningMetrics.start();
+ *     ...
+ *     SigningMetrics.stop(SigningMetrics.Phase.PDF_HASH, start);
+ * </pre>
+ */
+public final class SigningMetrics implements SigningMetricsMXBean {
+
+    public static final String OBJECT_NAME = "DSS:type=SigningMetrics";
+    private static final SigningMetrics _INSTANCE = new SigningMetrics();
+    private static final double _NANOS_PER_MILLI = 1e6;
+    private static volatile boolean _enabled;
+
+    private final Stats[] _timers = new Stats[Phase.values().length];
+    private final LongAdder[] _counters = new LongAdder[Counter.values().length];
+    private final Stats[] _histograms = new Stats[Histogram.values().length];
+    private final CopyOnWriteArrayList<MetricsSink> _sinks = new CopyOnWriteArrayList<>();
+
+    /**
+     * Timed phases of the signing flow
+     */
+    public enum Phase {
+        /** loading key and trust store, once per DSSConnection */
+        KEY_STORE_LOAD,
+        /** connect and TLS handshake of a new pooled connection */
+        TLS_HANDSHAKE,
+        /** waiting for the concurrency limiter */
+        LIMIT_WAIT,
+        /** waiting for a pooled connection, includes the handshake of a new one */
+        CONNECTION_ACQUIRE,
+        /** reading the input document */
+        PDF_PARSE,
+        /** stamping the document with the signature placeholder */
+        PDF_PREPARE,
+        /** hashing the byte range of a prepared document */
+        PDF_HASH,
+        /** preparing and hashing all documents of a request and building the request */
+        REQUEST_PREPARE,
+        /** serializing and sending the request, the body is streamed into the connection */
+        REQUEST_WRITE,
+        /** from the sent request to the response header */
+        SERVER_WAIT,
+        /** reading and parsing the response body */
+        RESPONSE_PARSE,
+        /** verifying the signatures of a response, see SignatureVerifier */
+        SIGNATURE_VERIFY,
+        /** collecting the certificates and revocation data of the signatures of a response, see ValidationDataCache */
+        VALIDATION_DATA,
+        /** adding a signature to a document and writing it */
+        SIGNATURE_EMBED,
+        /** appending the DSS dictionary with the validation data to a signed document */
+        VALIDATION_DATA_EMBED,
+        /** a batch waiting for room in a stage of the signing pipeline, see SigningPipeline */
+        PIPELINE_STALL,
+        /** a sign request from preparing the documents to the last embedded signature */
+        REQUEST
+    }
+
+    public enum Counter {
+        REQUESTS,
+        FAILED_REQUESTS,
+        DOCUMENTS,
+        /** documents signed again because their signature did not fit */
+        RETRIED_DOCUMENTS,
+        /** documents sent again because the response had no signature for them */
+        RESENT_DOCUMENTS,
+        /** timestamp digests served from another request or the cache instead of the server */
+        COALESCED_DOCUMENTS,
+        /** requests rejected by the concurrency limiter */
+        LIMITED_REQUESTS,
+        /** timestamp requests sent to a second endpoint because the first one was slow */
+        HEDGED_REQUESTS,
+        /** OCSP responses and CRLs requested online for the validation data cache */
+        REVOCATION_FETCHES,
+        /** documents signed without validation data because their revocation data was not available */
+        UNVALIDATED_DOCUMENTS,
+        CONNECTIONS_OPENED,
+        CONNECTIONS_REUSED,
+        /** pooled connections closed by the server meanwhile */
+        STALE_CONNECTIONS
+    }
+
+    public enum Histogram {
+        BATCH_SIZE,
+        DOCUMENT_BYTES,
+        REQUEST_BYTES,
+        RESPONSE_BYTES,
+        SIGNATURE_BYTES,
+        /** batches running or waiting in the prepare stage of the signing pipeline, sampled when one is handed in */
+        PREPARE_QUEUE,
+        /** batches running or waiting in the submit stage of the signing pipeline */
+        SUBMIT_QUEUE,
+        /** batches running or waiting in the finalize stage of the signing pipeline */
+        FINALIZE_QUEUE
+    }
+
+    private SigningMetrics() {
+        reset();
+    }
+
+    @NotNull
+    public static SigningMetrics getInstance() {
+        return _INSTANCE;
+    }
+
+    /**
+     * @return start of a phase, 0 if metrics are disabled
+     */
+    static long start() {
+        // never 0, that marks a disabled probe
+        return _enabled ? System.nanoTime() | 1 : 0;
+    }
+
+    /**
+     * Record a phase started by {@link #start}
+     *
+     * @param phase
+     * @param start
+     */
+    static void stop(@NotNull Phase phase, long start) {
+        if (start != 0)
+            _INSTANCE.recordTime(phase, System.nanoTime() - start);
+    }
+
+    /**
+     * Record a phase and start the next one
+     *
+     * @param phase
+     * @param start
+     * @return start of the next phase, 0 if metrics are disabled
+     */
+    static long lap(@NotNull Phase phase, long start) {
+        if (start == 0)
+            return 0;
+        long now = System.nanoTime() | 1;
+        _INSTANCE.recordTime(phase, now - start);
+        return now;
+    }
+
+    static void count(@NotNull Counter counter, long delta) {
+        if (_enabled) {
+            _INSTANCE._counters[counter.ordinal()].add(delta);
+            for (MetricsSink sink : _INSTANCE._sinks)
+                sink.count(counter, delta);
+        }
+    }
+
+    static void value(@NotNull Histogram histogram, long value) {
+        if (_enabled) {
+            _INSTANCE._histograms[histogram.ordinal()].record(value);
+            for (MetricsSink sink : _INSTANCE._sinks)
+                sink.recordValue(histogram, value);
+        }
+    }
+
+    static boolean enabled() {
+        return _enabled;
+    }
+
+    private void recordTime(@NotNull Phase phase, long nanos) {
+        _timers[phase.ordinal()].record(nanos);
+        for (MetricsSink sink : _sinks)
+            sink.recordTime(phase, nanos);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return _enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        _enabled = enabled;
+    }
+
+    /**
+     * Forward all measurements to the sink and enable the metrics
+     *
+     * @param sink
+     */
+    public void addSink(@NotNull MetricsSink sink) {
+        _sinks.add(sink);
+        _enabled = true;
+    }
+
+    public void removeSink(@NotNull MetricsSink sink) {
+        _sinks.remove(sink);
+    }
+
+    /**
+     * Register under {@link #OBJECT_NAME} at the platform MBean server and enable the metrics
+     *
+     * @throws JMException
+     */
+    public void registerMBean() throws JMException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // registered before
+        }
+        _enabled = true;
+    }
+
+    public void unregisterMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name))
+            server.unregisterMBean(name);
+    }
+
+    @NotNull
+    public Snapshot getTimer(@NotNull Phase phase) {
+        return _timers[phase.ordinal()].snapshot(_NANOS_PER_MILLI);
+    }
+
+    public long getCounter(@NotNull Counter counter) {
+        return _counters[counter.ordinal()].sum();
+    }
+
+    @NotNull
+    public Snapshot getHistogram(@NotNull Histogram histogram) {
+        return _histograms[histogram.ordinal()].snapshot(1);
+    }
+
+    @Override
+    public Map<String, Snapshot> getTimers() {
+        Map<String, Snapshot> timers = new LinkedHashMap<>();
+        for (Phase phase : Phase.values())
+            timers.put(phase.name(), getTimer(phase));
+        return timers;
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        for (Counter counter : Counter.values())
+            counters.put(counter.name(), getCounter(counter));
+        return counters;
+    }
+
+    @Override
+    public Map<String, Snapshot> getHistograms() {
+        Map<String, Snapshot> histograms = new LinkedHashMap<>();
+        for (Histogram histogram : Histogram.values())
+            histograms.put(histogram.name(), getHistogram(histogram));
+        return histograms;
+    }
+
+    /**
+     * Clear all recorded values, e.g. after a warm up
+     */
+    @Override
+    public synchronized void reset() {
+        for (int i = 0; i < _timers.length; i++)
+            _timers[i] = new Stats();
+        for (int i = 0; i < _counters.length; i++)
+            _counters[i] = new LongAdder();
+        for (int i = 0; i < _histograms.length; i++)
+            _histograms[i] = new Stats();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Snapshot> timer : getTimers().entrySet())
+            if (timer.getValue().getCount() > 0)
+                text.append(timer.getKey()).append(" ms: ").append(timer.getValue()).append('\n');
+        for (Map.Entry<String, Long> counter : getCounters().entrySet())
+            text.append(counter.getKey()).append(": ").append(counter.getValue()).append('\n');
+        for (Map.Entry<String, Snapshot> histogram : getHistograms().entrySet())
+            if (histogram.getValue().getCount() > 0)
+                text.append(histogram.getKey()).append(": ").append(histogram.getValue()).append('\n');
+        return text.toString();
+    }
+
+    /**
+     * Statistics of a timer or histogram at one point in time. Percentiles are accurate to 1/8 of their power of two.
+     */
+    public static class Snapshot {
+
+        private final long count;
+        private final double mean;
+        private final double max;
+        private final double p50;
+        private final double p99;
+        private final double p999;
+
+        @ConstructorProperties({"count", "mean", "max", "p50", "p99", "p999"})
+        public Snapshot(long count, double mean, double max, double p50, double p99, double p999) {
+            this.count = count;
+            this.mean = mean;
+            this.max = max;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public double getP50() {
+            return p50;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        public double getP999() {
+            return p999;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%.2f p50=%.2f p99=%.2f p99.9=%.2f max=%.2f", count, mean, p50, p99, p999, max);
+        }
+    }
+
+    /**
+     * Lock free histogram with 8 linear sub buckets per power of two
+     */
+    private static class Stats {
+
+        private static final int _SUB_BUCKET_BITS = 3;
+        private static final int _SUB_BUCKETS = 1 << _SUB_BUCKET_BITS;
+
+        private final LongAdder _count = new LongAdder();
+        private final LongAdder _sum = new LongAdder();
+        private final LongAccumulator _max = new LongAccumulator(Math::max, 0);
+        private final AtomicLongArray _buckets = new AtomicLongArray(64 * _SUB_BUCKETS);
+
+        void record(long value) {
+            if (value < 0)
+                value = 0;
+            _count.increment();
+            _sum.add(value);
+            _max.accumulate(value);
+            _buckets.incrementAndGet(bucket(value));
+        }
+
+        @NotNull
+        Snapshot snapshot(double unit) {
+            long count = _count.sum();
+            if (count == 0)
+                return new Snapshot(0, 0, 0, 0, 0, 0);
+            long[] buckets = new long[_buckets.length()];
+            long total = 0;
+            for (int i = 0; i < buckets.length; i++)
+                total += buckets[i] = _buckets.get(i);
+            return new Snapshot(count, _sum.sum() / unit / count, _max.get() / unit, quantile(buckets, total, 0.5) / unit,
+                    quantile(buckets, total, 0.99) / unit, quantile(buckets, total, 0.999) / unit);
+        }
+
+        private long quantile(@NotNull long[] buckets, long total, double quantile) {
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && buckets[i] > 0)
+                    return Math.min(upperBound(i), _max.get());
+            }
+            return _max.get();
+        }
+
+        private static int bucket(long value) {
+            if (value < _SUB_BUCKETS)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int shift = exponent - _SUB_BUCKET_BITS;
+            return (shift + 1) * _SUB_BUCKETS + (int) ((value >>> shift) & (_SUB_BUCKETS - 1));
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < _SUB_BUCKETS)
+                return bucket;
+            int shift = bucket / _SUB_BUCKETS - 1;
+            long lower = (long) (_SUB_BUCKETS + bucket % _SUB_BUCKETS) << shift;
+            return lower + (1L << shift) - 1;
+        }
+    }
+}
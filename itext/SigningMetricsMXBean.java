@@ -0,0 +1,25 @@
+import java.util.Map;
+
+/**
+ * JMX view of {@link SigningMetrics}, times in milliseconds
+ */
+public interface SigningMetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    /**
+     * @return duration statistics per phase
+     */
+    Map<String, SigningMetrics.Snapshot> getTimers();
+
+    Map<String, Long> getCounters();
+
+    /**
+     * @return value statistics of batch sizes and byte counts
+     */
+    Map<String, SigningMetrics.Snapshot> getHistograms();
+
+    void reset();
+}
@@ -0,0 +1,236 @@
+/**
+ * Created:
+ * 19.10.26 KW42 23:50
+ * </p>
+ * **********************************************************************************
+ * Runs batches through prepare, submit and finalize stages with bounded queues    *
+ * **********************************************************************************
+ */
+
+import com.sun.istack.internal.NotNull;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pipeline of the batches of a sign call: while one batch is on the wire, the next one is prepared and the previous one
+ * is verified and embedded. Each stage has its own workers and takes at most queue depth batches more than it has
+ * workers; a stage whose successor is full waits, so a slow server holds back the preparing instead of piling up
+ * prepared documents. Several instances of DSS_SOAP may share one pipeline.
+ */
+public class SigningPipeline {
+
+    public static final int DEFAULT_PREPARE_WORKERS = 1;
+    public static final int DEFAULT_SUBMIT_WORKERS = BatchPlanner.DEFAULT_MAX_IN_FLIGHT;
+    public static final int DEFAULT_FINALIZE_WORKERS = 1;
+    public static final int DEFAULT_QUEUE_DEPTH = 2;
+
+    private final int _queueDepth;
+    private final StageExecutor _prepare;
+    private final StageExecutor _submit;
+    private final StageExecutor _finalize;
+
+    /**
+     * Pipeline with one prepare and one finalize worker, 4 submit workers and a queue depth of 2
+     */
+    public SigningPipeline() {
+        this(DEFAULT_PREPARE_WORKERS, DEFAULT_SUBMIT_WORKERS, DEFAULT_FINALIZE_WORKERS, DEFAULT_QUEUE_DEPTH);
+    }
+
+    /**
+     * @param prepareWorkers  batches prepared and hashed at the same time, the documents of a batch are prepared in
+     *                        parallel by the PdfWorkerPool
+     * @param submitWorkers   requests on the wire at the same time
+     * @param finalizeWorkers batches verified and embedded at the same time
+     * @param queueDepth      batches waiting in front of each stage
+     */
+    public SigningPipeline(int prepareWorkers, int submitWorkers, int finalizeWorkers, int queueDepth) {
+        if (prepareWorkers < 1 || submitWorkers < 1 || finalizeWorkers < 1)
+            throw new IllegalArgumentException("Every stage needs at least 1 worker");
+        if (queueDepth < 0)
+            throw new IllegalArgumentException("Queue depth must not be negative");
+        this._queueDepth = queueDepth;
+        this._prepare = new StageExecutor("prepare", prepareWorkers, queueDepth, SigningMetrics.Histogram.PREPARE_QUEUE);
+        this._submit = new StageExecutor("submit", submitWorkers, queueDepth, SigningMetrics.Histogram.SUBMIT_QUEUE);
+        this._finalize = new StageExecutor("finalize", finalizeWorkers, queueDepth, SigningMetrics.Histogram.FINALIZE_QUEUE);
+    }
+
+    public int getPrepareWorkers() {
+        return _prepare.getWorkers();
+    }
+
+    public int getSubmitWorkers() {
+        return _submit.getWorkers();
+    }
+
+    public int getFinalizeWorkers() {
+        return _finalize.getWorkers();
+    }
+
+    public int getQueueDepth() {
+        return _queueDepth;
+    }
+
+    /**
+     * Run every batch through the three stages. The batches are handed in in order as the prepare stage has room, a
+     * failing batch does not stop the others and the failures are thrown once all batches are done.
+     *
+     * @param batches
+     * @param prepare  prepares the documents of a batch and builds its request
+     * @param submit   sends the request, should hand failures on to the finalize stage so it can clean up
+     * @param finalize verifies and embeds the signatures
+     * @throws BatchSigningException with the failed documents of all batches if some documents are signed
+     * @throws Exception             first failure in batch order if no document is signed
+     */
+    public <P, S> void execute(@NotNull List<Pdf[]> batches, @NotNull Stage<Pdf[], P> prepare, @NotNull Stage<P, S> submit,
+                               @NotNull Stage<S, Void> finalize) throws Exception {
+        List<CompletableFuture<Void>> futures = new ArrayList<>(batches.size());
+        try {
+            for (Pdf[] batch : batches) {
+                CompletableFuture<Void> done = new CompletableFuture<>();
+                futures.add(done);
+                run(_prepare, prepare, batch, done, prepared ->
+                        run(_submit, submit, prepared, done, submitted ->
+                                run(_finalize, finalize, submitted, done, finalized -> done.complete(null))));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while handing in batches");
+        }
+
+        List<Exception> failures = new ArrayList<>(batches.size());
+        for (CompletableFuture<Void> future : futures) {
+            try {
+                future.get();
+                failures.add(null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while signing batches");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                failures.add(cause instanceof Exception ? (Exception) cause : new Exception(cause));
+            }
+        }
+        Exception failure = BatchSigningException.merge(batches, failures);
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Stop the stage threads
+     */
+    public void shutdown() {
+        _prepare.shutdown();
+        _submit.shutdown();
+        _finalize.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "prepareWorkers=" + getPrepareWorkers() + " submitWorkers=" + getSubmitWorkers() + " finalizeWorkers=" +
+                getFinalizeWorkers() + " queueDepth=" + _queueDepth;
+    }
+
+    /**
+     * Run a stage of a batch once the stage has room and hand its result to the next one. The worker waits while the
+     * next stage is full.
+     */
+    private static <I, O> void run(@NotNull StageExecutor executor, @NotNull Stage<I, O> stage, I input,
+                                   @NotNull CompletableFuture<Void> done, @NotNull Handoff<O> next) throws InterruptedException {
+        executor.execute(() -> {
+            try {
+                next.accept(stage.run(input));
+            } catch (Throwable e) {
+                done.completeExceptionally(e);
+            }
+        });
+    }
+
+    /**
+     * Workers of one stage with room for queue depth waiting batches
+     */
+    private static class StageExecutor {
+
+        private final int _workers;
+        private final SigningMetrics.Histogram _queue;
+        private final Semaphore _slots;
+        private final AtomicInteger _occupied = new AtomicInteger();
+        private final ExecutorService _executor;
+
+        StageExecutor(@NotNull String name, int workers, int queueDepth, @NotNull SigningMetrics.Histogram queue) {
+            this._workers = workers;
+            this._queue = queue;
+            this._slots = new Semaphore(workers + queueDepth, true);
+            this._executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+                private final AtomicInteger _count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "dss-" + name + "-" + _count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        int getWorkers() {
+            return _workers;
+        }
+
+        /**
+         * Wait for room in the stage and run the task on one of its workers
+         *
+         * @param task
+         * @throws InterruptedException
+         */
+        void execute(@NotNull Runnable task) throws InterruptedException {
+            long start = SigningMetrics.start();
+            _slots.acquire();
+            SigningMetrics.stop(SigningMetrics.Phase.PIPELINE_STALL, start);
+            // batches running or waiting in the stage, including this one
+            SigningMetrics.value(_queue, _occupied.incrementAndGet());
+            try {
+                _executor.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        _occupied.decrementAndGet();
+                        _slots.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                _occupied.decrementAndGet();
+                _slots.release();
+                throw e;
+            }
+        }
+
+        void shutdown() {
+            _executor.shutdown();
+        }
+    }
+
+    /**
+     * One stage of a batch
+     */
+    public interface Stage<I, O> {
+
+        O run(@NotNull I input) throws Exception;
+    }
+
+    /**
+     * Takes the result of a stage
+     */
+    private interface Handoff<O> {
+        void accept(O output) throws Exception;
+    }
+}
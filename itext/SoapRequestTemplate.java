@@ -0,0 +1,399 @@
+/**
+ * Created:
+ * 18.10.26 KW42 18:40
+ * </p>
+ * **********************************************************************************
+ * Precompiled SOAP envelopes per request shape, written as UTF-8 into a stream     *
+ * The output is the same as the SAAJ message built before, byte by byte.           *
+ * **********************************************************************************
+ */
+
+import com.sun.istack.internal.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+public class SoapRequestTemplate implements DSSConnection.RequestBody {
+
+    public static final String CONTENT_TYPE = "text/xml; charset=utf-8";
+
+    private static final String _ENVELOPE_START = "<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\" " +
+            "xmlns=\"urn:oasis:names:tc:dss:1.0:core:schema\" xmlns:ais=\"http://service.ais.swisscom.com/\" ";
+    private static final String _ENVELOPE_END = "</SOAP-ENV:Body></SOAP-ENV:Envelope>";
+    private static final String _SIGN_START = _ENVELOPE_START +
+            "xmlns:dsig=\"http://www.w3.org/2000/09/xmldsig#\" xmlns:ns5=\"urn:com:swisscom:dss:1.0:schema\">" +
+            "<SOAP-ENV:Header/><SOAP-ENV:Body><ais:" + RequestType.SignRequest.getOperation() + ">" +
+            "<" + RequestType.SignRequest.getRequestType() + " Profile=\"" + RequestType.SignRequest.getUrn() + "\" RequestID=\"{REQUEST_ID}\">" +
+            "<InputDocuments>{DOCUMENTS}</InputDocuments><OptionalInputs>{ADDITIONAL_PROFILES}";
+    private static final String _SIGN_END = "</OptionalInputs></" + RequestType.SignRequest.getRequestType() + "></ais:" +
+            RequestType.SignRequest.getOperation() + ">" + _ENVELOPE_END;
+    private static final String _CLAIMED_IDENTITY_NAME = "<Name xmlns=\"urn:oasis:names:tc:dss:1.0:core:schema\">{CLAIMED_IDENTITY}</Name></ClaimedIdentity>";
+    private static final String _CLAIMED_IDENTITY = "<ClaimedIdentity Format=\"" + DSSRequest.CLAIMED_IDENTITY_FORMAT + "\" xmlns=\"\">" +
+            _CLAIMED_IDENTITY_NAME;
+    // the advanced on demand profile is sent without identity format
+    private static final String _CLAIMED_IDENTITY_WITHOUT_FORMAT = "<ClaimedIdentity xmlns=\"\">" + _CLAIMED_IDENTITY_NAME;
+    private static final String _CMS_SIGNATURE = "<SignatureType>" + SignatureType.CMS.getSignatureType() + "</SignatureType>" +
+            "{ADD_TIMESTAMP}{ADD_OCSP}";
+
+    private static final Map<DSSRequest.Shape, SoapRequestTemplate> _TEMPLATES = new EnumMap<>(DSSRequest.Shape.class);
+    private static final SoapRequestTemplate _ON_DEMAND_CERT_PROFILE;
+
+    static {
+        _TEMPLATES.put(DSSRequest.Shape.STATIC_CERT, new SoapRequestTemplate(_SIGN_START + _CLAIMED_IDENTITY + _CMS_SIGNATURE + _SIGN_END));
+        _TEMPLATES.put(DSSRequest.Shape.ON_DEMAND_CERT, new SoapRequestTemplate(_SIGN_START + _CLAIMED_IDENTITY_WITHOUT_FORMAT +
+                "<ns5:CertificateRequest><ns5:DistinguishedName>{DISTINGUISHED_NAME}</ns5:DistinguishedName></ns5:CertificateRequest>" +
+                _CMS_SIGNATURE + _SIGN_END));
+        _TEMPLATES.put(DSSRequest.Shape.ON_DEMAND_CERT_MOBILE_ID, new SoapRequestTemplate(_SIGN_START + _CLAIMED_IDENTITY_WITHOUT_FORMAT +
+                "<ns5:CertificateRequest><ns5:DistinguishedName>{DISTINGUISHED_NAME}</ns5:DistinguishedName>" +
+                "<ns5:StepUpAuthorisation><ns5:MobileID><ns5:MSISDN>{PHONE_NUMBER}</ns5:MSISDN>" +
+                "<ns5:Message>{CERT_REQ_MSG}</ns5:Message><ns5:Language>{CERT_REQ_MSG_LANG}</ns5:Language>" +
+                "</ns5:MobileID></ns5:StepUpAuthorisation></ns5:CertificateRequest>" +
+                _CMS_SIGNATURE + _SIGN_END));
+        _TEMPLATES.put(DSSRequest.Shape.TIMESTAMP_ONLY, new SoapRequestTemplate(_SIGN_START + _CLAIMED_IDENTITY +
+                "<SignatureType>" + SignatureType.TIMESTAMP.getSignatureType() + "</SignatureType>" + _SIGN_END));
+        _TEMPLATES.put(DSSRequest.Shape.PENDING, new SoapRequestTemplate(_ENVELOPE_START +
+                "xmlns:async=\"urn:oasis:names:tc:dss:1.0:profiles:asynchronousprocessing:1.0\" " +
+                "xmlns:dsig=\"http://www.w3.org/2000/09/xmldsig#\"><SOAP-ENV:Header/><SOAP-ENV:Body>" +
+                "<ais:" + RequestType.PendingRequest.getOperation() + "><async:" + RequestType.PendingRequest.getRequestType() +
+                " Profile=\"" + RequestType.PendingRequest.getUrn() + "\"><OptionalInputs>" +
+                "<ClaimedIdentity><Name>{CLAIMED_IDENTITY}</Name></ClaimedIdentity>" +
+                "<async:ResponseID>{RESPONSE_ID}</async:ResponseID></OptionalInputs>" +
+                "</async:" + RequestType.PendingRequest.getRequestType() + "></ais:" + RequestType.PendingRequest.getOperation() + ">" +
+                _ENVELOPE_END));
+        // on demand certificates of other profiles name the profile and keep the identity format
+        _ON_DEMAND_CERT_PROFILE = new SoapRequestTemplate(_SIGN_START + _CLAIMED_IDENTITY +
+                "<ns5:CertificateRequest Profile=\"{CERT_REQUEST_PROFILE}\"><DistinguishedName>{DISTINGUISHED_NAME}</DistinguishedName>" +
+                "</ns5:CertificateRequest>" + _CMS_SIGNATURE + _SIGN_END);
+    }
+
+    /**
+     * Literal parts as UTF-8 bytes and placeholders
+     */
+    private final Object[] _parts;
+    private final DSSRequest _request;
+
+    private SoapRequestTemplate(@NotNull String template) {
+        List<Object> parts = new ArrayList<>();
+        int start = 0;
+        int open;
+        while ((open = template.indexOf('{', start)) != -1) {
+            int close = template.indexOf('}', open);
+            parts.add(template.substring(start, open).getBytes(StandardCharsets.UTF_8));
+            parts.add(Field.valueOf(template.substring(open + 1, close)));
+            start = close + 1;
+        }
+        parts.add(template.substring(start).getBytes(StandardCharsets.UTF_8));
+        this._parts = parts.toArray();
+        this._request = null;
+    }
+
+    private SoapRequestTemplate(@NotNull SoapRequestTemplate template, @NotNull DSSRequest request) {
+        this._parts = template._parts;
+        this._request = request;
+    }
+
+    /**
+     * @param request
+     * @return template bound to the request, may be written several times
+     */
+    @NotNull
+    public static SoapRequestTemplate forRequest(@NotNull DSSRequest request) {
+        SoapRequestTemplate template = _TEMPLATES.get(request.getShape());
+        if (request.getShape() == DSSRequest.Shape.ON_DEMAND_CERT && !request.isAdvancedCertRequestProfile())
+            template = _ON_DEMAND_CERT_PROFILE;
+        return new SoapRequestTemplate(template, request);
+    }
+
+    @Override
+    @NotNull
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    /**
+     * @return size of the UTF-8 encoded message, computed without buffering it
+     */
+    @Override
+    public long getContentLength() throws IOException {
+        CountingOutputStream counter = new CountingOutputStream();
+        writeTo(counter);
+        return counter._count;
+    }
+
+    /**
+     * Write the message as UTF-8. Digests are Base64 encoded directly into the stream.
+     *
+     * @param out
+     * @throws IOException
+     */
+    @Override
+    public void writeTo(@NotNull OutputStream out) throws IOException {
+        Utf8Writer writer = new Utf8Writer(out);
+        for (Object part : _parts) {
+            if (part instanceof byte[])
+                writer.write((byte[]) part);
+            else
+                ((Field) part).write(writer, _request);
+        }
+        writer.flush();
+    }
+
+    private enum Field {
+        REQUEST_ID {
+            @Override
+            void write(Utf8Writer writer, DSSRequest request) throws IOException {
+                writer.writeText(String.valueOf(request.getRequestId()));
+            }
+        },
+        DOCUMENTS {
+            @Override
+            void write(Utf8Writer writer, DSSRequest request) throws IOException {
+                byte[][] hashes = request.getHashes();
+                for (int i = 0; i < hashes.length; i++) {
+                    writer.write(_DOCUMENT_HASH);
+                    // the id is only set in batch requests
+                    String documentId = request.getDocumentId(i);
+                    if (!documentId.isEmpty()) {
+                        writer.write(_ID);
+                        writer.writeText(documentId);
+                        writer.write(_QUOTE);
+                    }
+                    writer.write(_DIGEST_METHOD);
+                    writer.writeAttribute(request.getDigestMethod());
+                    writer.write(_DIGEST_VALUE);
+                    writer.writeBase64(hashes[i]);
+                    writer.write(_DOCUMENT_HASH_END);
+                }
+            }
+        },
+        ADDITIONAL_PROFILES {
+            @Override
+            void write(Utf8Writer writer, DSSRequest request) throws IOException {
+                if (request.getAdditionalProfiles() == null)
+                    return;
+                for (String additionalProfile : request.getAdditionalProfiles()) {
+                    writer.write(_ADDITIONAL_PROFILE);
+                    writer.writeText(additionalProfile);
+                    writer.write(_ADDITIONAL_PROFILE_END);
+                }
+            }
+        },
+        CLAIMED_IDENTITY {
+            @Override
+            void write(Utf8Writer writer, DSSRequest request) throws IOException {
+                writer.writeText(request.getClaimedIdentity());
+            }
+        },
+        CERT_REQUEST_PROFILE {
+            @Override
+            void write(Utf8Writer writer, DSSRequest request) throws IOException {
+                writer.writeAttribute(request.getCertRequestProfile());
+            }
+        },
+        DISTINGUISHED_NAME {
+            @Override
+            void write(Utf8Writer writer, DSSRequest request) throws IOException {
+                writer.writeText(request.getDistinguishedName());
+            }
+        },
+        PHONE_NUMBER {
+            @Override
+            void write(Utf8Writer writer, DSSRequest request) throws IOException {
+                writer.writeText(request.getPhoneNumber());
+            }
+        },
+        CERT_REQ_MSG {
+            @Override
+            void write(Utf8Writer writer, DSSRequest request) throws IOException {
+                writer.writeText(request.getCertReqMsg());
+            }
+        },
+        CERT_REQ_MSG_LANG {
+            @Override
+            void write(Utf8Writer writer, DSSRequest request) throws IOException {
+                writer.writeText(request.getCertReqMsgLang().toUpperCase());
+            }
+        },
+        ADD_TIMESTAMP {
+            @Override
+            void write(Utf8Writer writer, DSSRequest request) throws IOException {
+                if (request.isAddTimestamp())
+                    writer.write(_ADD_TIMESTAMP);
+            }
+        },
+        ADD_OCSP {
+            @Override
+            void write(Utf8Writer writer, DSSRequest request) throws IOException {
+                if (request.isAddOcsp())
+                    writer.write(_ADD_OCSP);
+            }
+        },
+        RESPONSE_ID {
+            @Override
+            void write(Utf8Writer writer, DSSRequest request) throws IOException {
+                writer.writeText(request.getResponseId());
+            }
+        };
+
+        private static final byte[] _DOCUMENT_HASH = ascii("<DocumentHash");
+        private static final byte[] _ID = ascii(" ID=\"");
+        private static final byte[] _QUOTE = ascii("\"");
+        private static final byte[] _DIGEST_METHOD = ascii("><dsig:DigestMethod Algorithm=\"");
+        private static final byte[] _DIGEST_VALUE = ascii("\"/><dsig:DigestValue>");
+        private static final byte[] _DOCUMENT_HASH_END = ascii("</dsig:DigestValue></DocumentHash>");
+        private static final byte[] _ADDITIONAL_PROFILE = ascii("<AdditionalProfile>");
+        private static final byte[] _ADDITIONAL_PROFILE_END = ascii("</AdditionalProfile>");
+        private static final byte[] _ADD_TIMESTAMP = ascii("<AddTimestamp Type=\"" + DSSRequest.TIMESTAMP_URN + "\"/>");
+        private static final byte[] _ADD_OCSP = ascii("<ns5:AddOcspResponse Type=\"" + DSSRequest.OCSP_URN + "\"/>");
+
+        abstract void write(Utf8Writer writer, DSSRequest request) throws IOException;
+
+        private static byte[] ascii(String value) {
+            return value.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Buffered UTF-8 output escaping text and attribute values like the SAAJ serializer does
+     */
+    private static class Utf8Writer {
+
+        private static final byte[] _BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+                .getBytes(StandardCharsets.US_ASCII);
+        // line length of the iText Base64 encoder used before
+        private static final int _BASE64_LINE_LENGTH = 76;
+
+        private final OutputStream _out;
+        private final byte[] _buffer = new byte[4096];
+        private int _count;
+
+        Utf8Writer(@NotNull OutputStream out) {
+            this._out = out;
+        }
+
+        void write(@NotNull byte[] bytes) throws IOException {
+            if (bytes.length > _buffer.length - _count) {
+                flush();
+                if (bytes.length > _buffer.length) {
+                    _out.write(bytes);
+                    return;
+                }
+            }
+            System.arraycopy(bytes, 0, _buffer, _count, bytes.length);
+            _count += bytes.length;
+        }
+
+        void writeText(@NotNull String value) throws IOException {
+            writeEscaped(value, false);
+        }
+
+        void writeAttribute(@NotNull String value) throws IOException {
+            writeEscaped(value, true);
+        }
+
+        /**
+         * Base64 with a line break after every 76 characters, as com.itextpdf.text.pdf.codec.Base64.encodeBytes
+         */
+        void writeBase64(@NotNull byte[] bytes) throws IOException {
+            int lineLength = 0;
+            int i = 0;
+            for (; i + 2 < bytes.length; i += 3) {
+                int triple = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | bytes[i + 2] & 0xff;
+                writeByte(_BASE64[triple >>> 18]);
+                writeByte(_BASE64[triple >>> 12 & 0x3f]);
+                writeByte(_BASE64[triple >>> 6 & 0x3f]);
+                writeByte(_BASE64[triple & 0x3f]);
+                lineLength += 4;
+                if (lineLength == _BASE64_LINE_LENGTH) {
+                    writeByte('\n');
+                    lineLength = 0;
+                }
+            }
+            if (i < bytes.length) {
+                int triple = (bytes[i] & 0xff) << 16 | (i + 1 < bytes.length ? (bytes[i + 1] & 0xff) << 8 : 0);
+                writeByte(_BASE64[triple >>> 18]);
+                writeByte(_BASE64[triple >>> 12 & 0x3f]);
+                writeByte(i + 1 < bytes.length ? _BASE64[triple >>> 6 & 0x3f] : '=');
+                writeByte('=');
+            }
+        }
+
+        void flush() throws IOException {
+            if (_count > 0) {
+                _out.write(_buffer, 0, _count);
+                _count = 0;
+            }
+        }
+
+        private void writeEscaped(@NotNull String value, boolean attribute) throws IOException {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '&')
+                    writeAscii("&amp;");
+                else if (c == '<')
+                    writeAscii("&lt;");
+                else if (c == '>')
+                    writeAscii("&gt;");
+                else if (c == '"' && attribute)
+                    writeAscii("&quot;");
+                else if (c < 0x20) {
+                    // tab and line feed are kept in text, everything else is a character reference
+                    if (!attribute && (c == '\t' || c == '\n'))
+                        writeByte(c);
+                    else
+                        writeCharacterReference(c);
+                } else if (c >= 0x7f && c <= 0x9f && !attribute)
+                    writeCharacterReference(c);
+                else if (c < 0x80)
+                    writeByte(c);
+                else if (Character.isSurrogate(c)) {
+                    if (!Character.isHighSurrogate(c) || i + 1 == value.length() || !Character.isLowSurrogate(value.charAt(i + 1)))
+                        throw new IOException("Invalid UTF-16 surrogate detected: " + Integer.toHexString(c));
+                    writeCharacterReference(Character.toCodePoint(c, value.charAt(++i)));
+                } else if (c < 0x800) {
+                    writeByte(0xc0 | c >> 6);
+                    writeByte(0x80 | c & 0x3f);
+                } else {
+                    writeByte(0xe0 | c >> 12);
+                    writeByte(0x80 | c >> 6 & 0x3f);
+                    writeByte(0x80 | c & 0x3f);
+                }
+            }
+        }
+
+        private void writeCharacterReference(int codePoint) throws IOException {
+            writeAscii("&#" + codePoint + ";");
+        }
+
+        private void writeAscii(@NotNull String value) throws IOException {
+            for (int i = 0; i < value.length(); i++)
+                writeByte(value.charAt(i));
+        }
+
+        private void writeByte(int b) throws IOException {
+            if (_count == _buffer.length)
+                flush();
+            _buffer[_count++] = (byte) b;
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+
+        private long _count;
+
+        @Override
+        public void write(int b) {
+            _count++;
+        }
+
+        @Override
+        public void write(@NotNull byte[] b, int off, int len) {
+            _count += len;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/**
+ * Created:
+ * 19.10.26 KW42 11:20
+ * </p>
+ * **********************************************************************************
+ * Shares timestamp tokens of identical digests between concurrent requests        *
+ * **********************************************************************************
+ */
+
+import com.sun.istack.internal.NotNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timestamp only requests for a digest that is already on its way to the server, or was timestamped within the window,
+ * get the same token instead of a new server call. Retries, duplicate uploads and fan out jobs then cost one
+ * transaction per digest. Digests are shared per digest method and claimed identity.
+ * <p>
+ * At most the given number of digests is tracked, the oldest are evicted first. Failed requests are not cached: every
+ * request waiting for one of their digests fails the same way.
+ */
+public class TimestampCoalescer {
+
+    public static final long DEFAULT_WINDOW_MILLIS = 5000;
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private final long _windowNanos;
+    private final int _maxEntries;
+    private final LinkedHashMap<Key, Entry> _entries = new LinkedHashMap<>();
+
+    /**
+     * Coalescer with a window of 5 seconds and at most 1000 tracked digests
+     */
+    public TimestampCoalescer() {
+        this(DEFAULT_WINDOW_MILLIS, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param windowMillis tokens are reused for this long after they arrived
+     * @param maxEntries   upper bound of digests in flight and cached tokens
+     */
+    public TimestampCoalescer(long windowMillis, int maxEntries) {
+        if (windowMillis < 0 || maxEntries < 1)
+            throw new IllegalArgumentException("Window must not be negative and at least one entry must be cached");
+        this._windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this._maxEntries = maxEntries;
+    }
+
+    /**
+     * Send only the digests of the request that are neither in flight nor cached, wait for the others
+     *
+     * @param request timestamp only request
+     * @param sender  sends a request with the given digests
+     * @return response of the sender if it covers all digests, otherwise a response assembled from the shared tokens
+     */
+    @NotNull
+    DSSResponse send(@NotNull DSSRequest request, @NotNull Sender sender) throws IOException, GeneralSecurityException {
+        byte[][] hashes = request.getHashes();
+        Entry[] entries = new Entry[hashes.length];
+        List<Entry> owned = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            evictExpired(now);
+            for (int i = 0; i < hashes.length; i++) {
+                Key key = new Key(request.getDigestMethod(), request.getClaimedIdentity(), hashes[i]);
+                Entry entry = _entries.get(key);
+                if (entry == null || entry.isExpired(now, _windowNanos)) {
+                    entry = new Entry(key);
+                    // removed first so that the new entry moves to the end of the insertion order
+                    _entries.remove(key);
+                    _entries.put(key, entry);
+                    owned.add(entry);
+                }
+                entries[i] = entry;
+            }
+            // evicted entries in flight are still completed for their waiters, only new requests do not find them
+            for (Iterator<Entry> it = _entries.values().iterator(); _entries.size() > _maxEntries; ) {
+                it.next();
+                it.remove();
+            }
+        }
+        if (owned.size() < hashes.length)
+            SigningMetrics.count(SigningMetrics.Counter.COALESCED_DOCUMENTS, hashes.length - owned.size());
+
+        DSSResponse ownResponse = null;
+        if (!owned.isEmpty()) {
+            ownResponse = sendOwned(owned, sender);
+            if (owned.size() == hashes.length && ownResponse.isSuccess())
+                return ownResponse;
+        }
+
+        DSSResponse response = new DSSResponse();
+        response.setRequestId(String.valueOf(request.getRequestId()));
+        for (int i = 0; i < entries.length; i++) {
+            Object result = entries[i].await();
+            if (result instanceof DSSResponse)
+                return (DSSResponse) result;
+            // same keys as the server uses: the DocumentHash ID of batch requests, none for a single digest
+            response.addSignature(request.getDocumentId(i), (byte[]) result);
+        }
+        response.setResultMajor(ownResponse != null ? ownResponse.getResultMajor() : RequestResult.Success.getResultUrn());
+        return response;
+    }
+
+    /**
+     * Drop all cached tokens, requests in flight are still shared with their waiters
+     */
+    public synchronized void clear() {
+        _entries.clear();
+    }
+
+    @NotNull
+    private DSSResponse sendOwned(@NotNull List<Entry> owned, @NotNull Sender sender) throws IOException, GeneralSecurityException {
+        byte[][] hashes = new byte[owned.size()][];
+        for (int i = 0; i < hashes.length; i++)
+            hashes[i] = owned.get(i)._key._hash;
+        DSSResponse response;
+        try {
+            response = sender.send(hashes);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            fail(owned, e);
+            throw e;
+        }
+        if (!response.isSuccess()) {
+            fail(owned, response);
+            return response;
+        }
+
+        // tokens are matched by the DocumentHash ID, the server may return them in any order or leave some out
+        long now = System.nanoTime();
+        List<Entry> missing = new ArrayList<>();
+        for (int i = 0; i < hashes.length; i++) {
+            byte[] token = response.getSignature(DSSRequest.getDocumentId(i, hashes.length));
+            if (token != null)
+                owned.get(i).complete(token, now);
+            else
+                missing.add(owned.get(i));
+        }
+        if (!missing.isEmpty())
+            fail(missing, new IOException("No timestamp token for " + missing.size() + " of " + hashes.length + " digests"));
+        return response;
+    }
+
+    private void fail(@NotNull List<Entry> owned, @NotNull Object failure) {
+        synchronized (this) {
+            for (Entry entry : owned)
+                _entries.remove(entry._key, entry);
+        }
+        for (Entry entry : owned)
+            entry._result.complete(failure);
+    }
+
+    /**
+     * Entries are kept in insertion order, which is about completion order: stop at the first one still valid
+     */
+    private void evictExpired(long now) {
+        for (Iterator<Entry> it = _entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (!entry.isExpired(now, _windowNanos))
+                break;
+            it.remove();
+        }
+    }
+
+    /**
+     * Sends a timestamp only request for the given digests
+     */
+    interface Sender {
+
+        @NotNull
+        DSSResponse send(@NotNull byte[][] hashes) throws IOException, GeneralSecurityException;
+    }
+
+    private static class Key {
+
+        private final String _digestMethod;
+        private final String _claimedIdentity;
+        private final byte[] _hash;
+        private final int _hashCode;
+
+        Key(String digestMethod, String claimedIdentity, @NotNull byte[] hash) {
+            this._digestMethod = digestMethod;
+            this._claimedIdentity = claimedIdentity;
+            this._hash = hash;
+            this._hashCode = Arrays.hashCode(new Object[]{digestMethod, claimedIdentity}) * 31 + Arrays.hashCode(hash);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return _hashCode == key._hashCode && Arrays.equals(_hash, key._hash) &&
+                    Objects.equals(_digestMethod, key._digestMethod) &&
+                    Objects.equals(_claimedIdentity, key._claimedIdentity);
+        }
+
+        @Override
+        public int hashCode() {
+            return _hashCode;
+        }
+    }
+
+    /**
+     * A digest in flight or its token. The result is the token, the failed DSSResponse or the exception of the request.
+     */
+    private static class Entry {
+
+        private final Key _key;
+        private final CompletableFuture<Object> _result = new CompletableFuture<>();
+        private volatile long _completed;
+
+        Entry(@NotNull Key key) {
+            this._key = key;
+        }
+
+        void complete(@NotNull byte[] token, long now) {
+            // never 0, that marks an entry in flight
+            _completed = now | 1;
+            _result.complete(token);
+        }
+
+        boolean isExpired(long now, long windowNanos) {
+            long completed = _completed;
+            return completed != 0 && now - completed > windowNanos;
+        }
+
+        /**
+         * @return token or failed response
+         */
+        @NotNull
+        Object await() throws IOException, GeneralSecurityException {
+            Object result;
+            try {
+                result = _result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a shared timestamp");
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+            if (result instanceof IOException)
+                throw new IOException("Shared timestamp request failed", (IOException) result);
+            if (result instanceof GeneralSecurityException)
+                throw new GeneralSecurityException("Shared timestamp request failed", (GeneralSecurityException) result);
+            if (result instanceof RuntimeException)
+                throw new IOException("Shared timestamp request failed", (RuntimeException) result);
+            return result;
+        }
+    }
+}
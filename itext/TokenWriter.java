@@ -0,0 +1,181 @@
+/**
+ * Created:
+ * 19.10.26 KW42 09:10
+ * </p>
+ * **********************************************************************************
+ * Stores signatures and timestamp tokens as files or entries of one archive       *
+ * **********************************************************************************
+ */
+
+import com.sun.istack.internal.NotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Destination of the tokens written by {@link DigestSigner}. Tokens are written as they arrive, nothing is kept in
+ * memory. Implementations are thread safe.
+ */
+public abstract class TokenWriter implements AutoCloseable {
+
+    /**
+     * @param name  file or entry name, e.g. "invoice-17.p7s"
+     * @param token DER encoded signature or timestamp token
+     * @throws IOException e.g. if the name exists already
+     */
+    public abstract void write(@NotNull String name, @NotNull byte[] token) throws IOException;
+
+    @Override
+    public abstract void close() throws IOException;
+
+    /**
+     * @param target ending with .zip or .tar for an archive, otherwise a directory that is created if missing
+     * @return writer for the target
+     */
+    @NotNull
+    public static TokenWriter forPath(@NotNull File target) throws IOException {
+        String name = target.getName().toLowerCase();
+        if (name.endsWith(".zip"))
+            return zip(new FileOutputStream(target));
+        if (name.endsWith(".tar"))
+            return tar(new FileOutputStream(target));
+        return directory(target);
+    }
+
+    /**
+     * One file per token, existing files are not overwritten
+     *
+     * @param directory
+     */
+    @NotNull
+    public static TokenWriter directory(@NotNull File directory) throws IOException {
+        Files.createDirectories(directory.toPath());
+        return new TokenWriter() {
+            @Override
+            public void write(@NotNull String name, @NotNull byte[] token) throws IOException {
+                Files.write(new File(directory, checkName(name)).toPath(), token, StandardOpenOption.CREATE_NEW);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * @param out closed with the writer
+     */
+    @NotNull
+    public static TokenWriter zip(@NotNull OutputStream out) {
+        ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(out));
+        return new TokenWriter() {
+            @Override
+            public synchronized void write(@NotNull String name, @NotNull byte[] token) throws IOException {
+                zip.putNextEntry(new ZipEntry(checkName(name)));
+                zip.write(token);
+                zip.closeEntry();
+            }
+
+            @Override
+            public synchronized void close() throws IOException {
+                zip.close();
+            }
+        };
+    }
+
+    /**
+     * Plain ustar archive, names are limited to 100 bytes
+     *
+     * @param out closed with the writer
+     */
+    @NotNull
+    public static TokenWriter tar(@NotNull OutputStream out) {
+        return new TarWriter(new BufferedOutputStream(out));
+    }
+
+    /**
+     * Names become file names: no paths, no control characters
+     *
+     * @param name
+     * @return the name
+     */
+    @NotNull
+    static String checkName(@NotNull String name) throws IOException {
+        if (name.isEmpty() || name.equals(".") || name.equals(".."))
+            throw new IOException("Invalid name '" + name + "'");
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < 0x20 || c == '/' || c == '\\' || c == ':')
+                throw new IOException("Invalid name '" + name + "'");
+        }
+        return name;
+    }
+
+    private static class TarWriter extends TokenWriter {
+
+        private static final int _BLOCK = 512;
+
+        private final OutputStream _out;
+        private final long _mtime = System.currentTimeMillis() / 1000;
+
+        TarWriter(@NotNull OutputStream out) {
+            this._out = out;
+        }
+
+        @Override
+        public synchronized void write(@NotNull String name, @NotNull byte[] token) throws IOException {
+            byte[] entryName = checkName(name).getBytes(StandardCharsets.UTF_8);
+            if (entryName.length > 100)
+                throw new IOException("Name longer than 100 bytes: " + name);
+
+            byte[] header = new byte[_BLOCK];
+            System.arraycopy(entryName, 0, header, 0, entryName.length);
+            octal(header, 100, 8, 0644);
+            octal(header, 108, 8, 0);
+            octal(header, 116, 8, 0);
+            octal(header, 124, 12, token.length);
+            octal(header, 136, 12, _mtime);
+            header[156] = '0';
+            System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+
+            // the checksum is computed with its own field set to spaces
+            for (int i = 148; i < 156; i++)
+                header[i] = ' ';
+            long checksum = 0;
+            for (byte b : header)
+                checksum += b & 0xff;
+            octal(header, 148, 7, checksum);
+
+            _out.write(header);
+            _out.write(token);
+            int padding = (_BLOCK - token.length % _BLOCK) % _BLOCK;
+            _out.write(new byte[padding]);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            // end of archive: two empty blocks
+            _out.write(new byte[2 * _BLOCK]);
+            _out.close();
+        }
+
+        /**
+         * Zero padded octal number terminated by NUL
+         */
+        private static void octal(@NotNull byte[] header, int offset, int length, long value) {
+            String digits = Long.toOctalString(value);
+            int pad = length - 1 - digits.length();
+            for (int i = 0; i < length - 1; i++)
+                header[offset + i] = (byte) (i < pad ? '0' : digits.charAt(i - pad));
+            header[offset + length - 1] = 0;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+import com.sun.istack.internal.NotNull;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Certificates, OCSP responses and CRLs to validate a signature after its certificates expired, the content of its
+ * entry in the DSS dictionary of a document. The encodings are shared by all documents signed with the same
+ * certificates, see {@link ValidationDataCache}.
+ */
+public class ValidationData {
+
+    private final List<byte[]> certificates;
+    private final List<byte[]> ocspResponses;
+    private final List<byte[]> crls;
+
+    /**
+     * @param certificates  DER encoded certificates
+     * @param ocspResponses DER encoded BasicOCSPResponses
+     * @param crls          DER encoded CRLs
+     */
+    ValidationData(@NotNull List<byte[]> certificates, @NotNull List<byte[]> ocspResponses, @NotNull List<byte[]> crls) {
+        this.certificates = Collections.unmodifiableList(certificates);
+        this.ocspResponses = Collections.unmodifiableList(ocspResponses);
+        this.crls = Collections.unmodifiableList(crls);
+    }
+
+    @NotNull
+    public List<byte[]> getCertificates() {
+        return certificates;
+    }
+
+    /**
+     * @return BasicOCSPResponses, without the OCSPResponse envelope
+     */
+    @NotNull
+    public List<byte[]> getOcspResponses() {
+        return ocspResponses;
+    }
+
+    @NotNull
+    public List<byte[]> getCrls() {
+        return crls;
+    }
+
+    public boolean isEmpty() {
+        return certificates.isEmpty() && ocspResponses.isEmpty() && crls.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "[" + certificates.size() + " certificates, " + ocspResponses.size() + " OCSP responses, " + crls.size() + " CRLs]";
+    }
+}
@@ -0,0 +1,584 @@
+/**
+ * Created:
+ * 19.10.26 KW42 22:40
+ * </p>
+ * **********************************************************************************
+ * Certificates and revocation data of signatures for long term validation, cached *
+ * **********************************************************************************
+ */
+
+import com.sun.istack.internal.NotNull;
+import com.sun.istack.internal.Nullable;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.ASN1TaggedObject;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.ocsp.OCSPResponse;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AccessDescription;
+import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.asn1.x509.X509ObjectIdentifiers;
+import org.bouncycastle.cert.CertException;
+import org.bouncycastle.cert.X509CRLEntryHolder;
+import org.bouncycastle.cert.X509CRLHolder;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.ContentVerifierProvider;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.util.Store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.SignatureException;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validation data of returned signatures and timestamp tokens, see {@link ValidationData}. The certificates come from
+ * the token, the revocation data of each certificate of the chain from
+ * <ul>
+ * <li>the cache, while its entry is fresh</li>
+ * <li>the OCSP responses and CRLs the service embedded into the signature, see AddOcspResponse</li>
+ * <li>the OCSP responder named in the certificate or set by {@link #setOcspUrl}, else its CRL distribution point</li>
+ * </ul>
+ * Entries are kept per certificate until the cache time passes, the OCSP response or CRL has its next update or the
+ * certificate expires. A batch signed with one certificate therefore does the revocation work once, concurrent lookups
+ * of a certificate share one fetch. Failed fetches are not cached, a revoked certificate fails the lookup.
+ */
+public class ValidationDataCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_CACHE_MILLIS = 3600000;
+    public static final int DEFAULT_TIMEOUT_MILLIS = 10000;
+    /** signed attribute of OCSP responses and CRLs in PDF signatures */
+    private static final ASN1ObjectIdentifier _REVOCATION_INFO_ARCHIVAL = new ASN1ObjectIdentifier("1.2.840.113583.1.1.8");
+    private static final Provider _PROVIDER = new BouncyCastleProvider();
+    private static final int _MAX_CHAIN_LENGTH = 10;
+    /** tolerated difference between the clocks of the responder and the client */
+    private static final long _CLOCK_SKEW_MILLIS = 5 * 60 * 1000;
+
+    private final int _maxEntries;
+    private final long _cacheNanos;
+    private final DigestCalculatorProvider _digestCalculatorProvider;
+    private String _ocspUrl;
+    private boolean _fetching = true;
+    private int _timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private final LinkedHashMap<X509CertificateHolder, Entry> _entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Cache of up to 1000 certificates for at most an hour
+     */
+    public ValidationDataCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_CACHE_MILLIS);
+    }
+
+    /**
+     * @param maxEntries  upper bound of cached certificates
+     * @param cacheMillis longest time revocation data is reused
+     */
+    public ValidationDataCache(int maxEntries, long cacheMillis) {
+        if (maxEntries < 1)
+            throw new IllegalArgumentException("At least one cache entry is required");
+        this._maxEntries = maxEntries;
+        this._cacheNanos = TimeUnit.MILLISECONDS.toNanos(cacheMillis);
+        try {
+            this._digestCalculatorProvider = new JcaDigestCalculatorProviderBuilder().setProvider(_PROVIDER).build();
+        } catch (OperatorCreationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * OCSP responder asked for all certificates instead of the one named in them, e.g. a local stand-in in tests
+     *
+     * @param ocspUrl null to ask the responders of the certificates
+     */
+    public synchronized void setOcspUrl(String ocspUrl) {
+        this._ocspUrl = ocspUrl;
+    }
+
+    @Nullable
+    private synchronized String getOcspUrl() {
+        return _ocspUrl;
+    }
+
+    /**
+     * @param fetching false to use only the revocation data embedded into the signatures. True by default.
+     */
+    public synchronized void setFetching(boolean fetching) {
+        this._fetching = fetching;
+    }
+
+    private synchronized boolean isFetching() {
+        return _fetching;
+    }
+
+    /**
+     * @param timeoutMillis connect and read timeout of OCSP and CRL requests
+     */
+    public synchronized void setTimeout(int timeoutMillis) {
+        this._timeoutMillis = timeoutMillis;
+    }
+
+    private synchronized int getTimeout() {
+        return _timeoutMillis;
+    }
+
+    public void clear() {
+        synchronized (_entries) {
+            _entries.clear();
+        }
+    }
+
+    /**
+     * Validation data of a CMS signature or timestamp token, including the timestamp token of a signature
+     *
+     * @param token DER encoded
+     * @return certificates of the chains with the revocation data of each certificate below the root
+     * @throws SignatureException   if the token can not be parsed
+     * @throws RevokedException     if a certificate is revoked
+     * @throws CertificateException if the revocation data of a certificate is not available, e.g. the responder is
+     *                              unreachable or its response can not be used
+     */
+    @NotNull
+    public ValidationData get(@NotNull byte[] token) throws GeneralSecurityException {
+        long start = SigningMetrics.start();
+        Collected collected = new Collected();
+        collect(token, collected);
+        List<byte[]> certificates = new ArrayList<>(collected.certificates.size());
+        for (X509CertificateHolder certificate : collected.certificates) {
+            try {
+                certificates.add(certificate.getEncoded());
+            } catch (IOException e) {
+                throw new CertificateException(e.getMessage(), e);
+            }
+        }
+        for (Revocation revocation : collected.revocations)
+            addAll(certificates, revocation._certificates);
+        List<byte[]> ocspResponses = new ArrayList<>();
+        List<byte[]> crls = new ArrayList<>();
+        for (Revocation revocation : collected.revocations) {
+            addAll(ocspResponses, revocation._ocspResponses);
+            addAll(crls, revocation._crls);
+        }
+        SigningMetrics.stop(SigningMetrics.Phase.VALIDATION_DATA, start);
+        return new ValidationData(certificates, ocspResponses, crls);
+    }
+
+    @Override
+    public String toString() {
+        synchronized (_entries) {
+            return "entries=" + _entries.size() + " maxEntries=" + _maxEntries + " cacheMillis=" + TimeUnit.NANOSECONDS.toMillis(_cacheNanos);
+        }
+    }
+
+    private void collect(@NotNull byte[] token, @NotNull Collected collected) throws GeneralSecurityException {
+        CMSSignedData signedData;
+        try {
+            signedData = new CMSSignedData(token);
+        } catch (CMSException | RuntimeException e) {
+            throw new SignatureException("Invalid token: " + e.getMessage(), e);
+        }
+        Store certificates = signedData.getCertificates();
+        for (Object object : signedData.getSignerInfos().getSigners()) {
+            SignerInformation signer = (SignerInformation) object;
+            Iterator<?> matches = certificates.getMatches(signer.getSID()).iterator();
+            if (!matches.hasNext())
+                throw new SignatureException("Token without signer certificate");
+
+            List<X509CertificateHolder> chain = getChain((X509CertificateHolder) matches.next(), certificates);
+            for (int i = 0; i < chain.size(); i++) {
+                collected.certificates.add(chain.get(i));
+                // the root needs no revocation data, a certificate without its issuer can not be looked up
+                if (i + 1 < chain.size())
+                    collected.revocations.add(getRevocation(chain.get(i), chain.get(i + 1), signer));
+            }
+
+            AttributeTable unsigned = signer.getUnsignedAttributes();
+            Attribute timestamp = unsigned != null ? unsigned.get(PKCSObjectIdentifiers.id_aa_signatureTimeStampToken) : null;
+            if (timestamp != null) {
+                try {
+                    collect(timestamp.getAttrValues().getObjectAt(0).toASN1Primitive().getEncoded(), collected);
+                } catch (IOException e) {
+                    throw new SignatureException("Invalid signature timestamp: " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the certificate followed by its issuers as far as the token contains them
+     */
+    @NotNull
+    private static List<X509CertificateHolder> getChain(@NotNull X509CertificateHolder certificate, @NotNull Store certificates) {
+        List<X509CertificateHolder> chain = new ArrayList<>();
+        chain.add(certificate);
+        while (!certificate.getSubject().equals(certificate.getIssuer()) && chain.size() < _MAX_CHAIN_LENGTH) {
+            X509CertificateHolder issuer = null;
+            for (Object holder : certificates.getMatches(null))
+                if (((X509CertificateHolder) holder).getSubject().equals(certificate.getIssuer()))
+                    issuer = (X509CertificateHolder) holder;
+            if (issuer == null || chain.contains(issuer))
+                break;
+            chain.add(issuer);
+            certificate = issuer;
+        }
+        return chain;
+    }
+
+    /**
+     * Revocation data of the certificate, looked up once; concurrent and later lookups wait for the result or reuse it
+     *
+     * @param signer may embed the revocation data
+     */
+    @NotNull
+    private Revocation getRevocation(@NotNull X509CertificateHolder certificate, @NotNull X509CertificateHolder issuer,
+                                     @NotNull SignerInformation signer) throws GeneralSecurityException {
+        Entry entry;
+        boolean owner = false;
+        synchronized (_entries) {
+            entry = _entries.get(certificate);
+            if (entry == null || entry.isExpired(System.nanoTime())) {
+                entry = new Entry();
+                _entries.put(certificate, entry);
+                for (Iterator<Entry> it = _entries.values().iterator(); _entries.size() > _maxEntries; ) {
+                    it.next();
+                    it.remove();
+                }
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            try {
+                Revocation revocation = getEmbedded(certificate, issuer, signer);
+                if (revocation == null)
+                    revocation = isFetching() ? fetch(certificate, issuer) : new Revocation(certificate, null);
+                entry._result.complete(revocation);
+            } catch (IOException | OCSPException | CertException | OperatorCreationException | GeneralSecurityException |
+                    RuntimeException e) {
+                // e.g. an unreachable responder: the next lookup tries again
+                synchronized (_entries) {
+                    _entries.remove(certificate, entry);
+                }
+                entry._result.completeExceptionally(e);
+            }
+        }
+
+        try {
+            return entry._result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CertificateException("Interrupted while looking up the revocation data of " + certificate.getSubject());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CertificateException)
+                throw (CertificateException) cause;
+            throw new CertificateException("No revocation data for " + certificate.getSubject() + ": " + cause, cause);
+        }
+    }
+
+    /**
+     * @return the OCSP response or CRL of the revocation info archival attribute about the certificate, null if the
+     * signature has none
+     */
+    @Nullable
+    private Revocation getEmbedded(@NotNull X509CertificateHolder certificate, @NotNull X509CertificateHolder issuer,
+                                   @NotNull SignerInformation signer)
+            throws GeneralSecurityException, IOException, OCSPException, CertException, OperatorCreationException {
+        AttributeTable attributes = signer.getSignedAttributes();
+        Attribute archival = attributes != null ? attributes.get(_REVOCATION_INFO_ARCHIVAL) : null;
+        if (archival == null)
+            return null;
+        for (ASN1Encodable element : ASN1Sequence.getInstance(archival.getAttrValues().getObjectAt(0)).toArray()) {
+            ASN1TaggedObject tagged = ASN1TaggedObject.getInstance(element);
+            // [0] CRLs, [1] OCSP responses, [2] other
+            for (ASN1Encodable encoded : ASN1Sequence.getInstance(tagged.getObject()).toArray()) {
+                if (tagged.getTagNo() == 0) {
+                    X509CRLHolder crl = new X509CRLHolder(encoded.toASN1Primitive().getEncoded());
+                    if (crl.getIssuer().equals(certificate.getIssuer()))
+                        return toRevocation(certificate, issuer, crl);
+                } else if (tagged.getTagNo() == 1) {
+                    Object basic = new OCSPResp(OCSPResponse.getInstance(encoded)).getResponseObject();
+                    if (!(basic instanceof BasicOCSPResp))
+                        continue;
+                    // an outdated response is skipped, the responder is asked for a current one
+                    for (SingleResp single : ((BasicOCSPResp) basic).getResponses())
+                        if (single.getCertID().getSerialNumber().equals(certificate.getSerialNumber()) &&
+                                single.getCertID().matchesIssuer(issuer, _digestCalculatorProvider) && isCurrent(single))
+                            return toRevocation(certificate, issuer, (BasicOCSPResp) basic, single);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Ask the OCSP responder, else the CRL distribution point of the certificate
+     */
+    @NotNull
+    private Revocation fetch(@NotNull X509CertificateHolder certificate, @NotNull X509CertificateHolder issuer)
+            throws GeneralSecurityException, IOException, OCSPException, CertException, OperatorCreationException {
+        String ocspUrl = getOcspUrl();
+        if (ocspUrl == null)
+            ocspUrl = getOcspUrl(certificate);
+        if (ocspUrl != null) {
+            CertificateID id = new CertificateID(_digestCalculatorProvider.get(CertificateID.HASH_SHA1), issuer, certificate.getSerialNumber());
+            OCSPResp response = new OCSPResp(request(ocspUrl, new OCSPReqBuilder().addRequest(id).build().getEncoded()));
+            if (response.getStatus() != OCSPResp.SUCCESSFUL || !(response.getResponseObject() instanceof BasicOCSPResp))
+                throw new CertificateException("OCSP responder " + ocspUrl + " answered with status " + response.getStatus());
+            BasicOCSPResp basic = (BasicOCSPResp) response.getResponseObject();
+            for (SingleResp single : basic.getResponses())
+                if (id.equals(single.getCertID()))
+                    return toRevocation(certificate, issuer, basic, single);
+            throw new CertificateException("OCSP response of " + ocspUrl + " without status of " + certificate.getSubject());
+        }
+
+        String crlUrl = getCrlUrl(certificate);
+        if (crlUrl != null)
+            return toRevocation(certificate, issuer, new X509CRLHolder(request(crlUrl, null)));
+        // a certificate without revocation information, e.g. short lived ones
+        return new Revocation(certificate, null);
+    }
+
+    @NotNull
+    private Revocation toRevocation(@NotNull X509CertificateHolder certificate, @NotNull X509CertificateHolder issuer,
+                                    @NotNull BasicOCSPResp basic, @NotNull SingleResp single)
+            throws GeneralSecurityException, IOException, OCSPException, CertException, OperatorCreationException {
+        Object status = single.getCertStatus();
+        if (status instanceof RevokedStatus)
+            throw new RevokedException("Certificate " + certificate.getSubject() + " revoked at " + ((RevokedStatus) status).getRevocationTime());
+        if (status != CertificateStatus.GOOD)
+            throw new CertificateException("Certificate " + certificate.getSubject() + " has unknown OCSP status");
+        if (!isCurrent(single))
+            throw new CertificateException("OCSP response about " + certificate.getSubject() + " of " + single.getThisUpdate() +
+                    " is not current, next update " + single.getNextUpdate());
+
+        // signed by the issuer itself or by a responder certificate the issuer issued for OCSP signing
+        X509CertificateHolder responder = null;
+        for (X509CertificateHolder candidate : basic.getCerts()) {
+            if (isOcspSigner(candidate) && candidate.isSignatureValid(getVerifier(issuer)) &&
+                    basic.isSignatureValid(getVerifier(candidate)))
+                responder = candidate;
+        }
+        if (responder == null && !basic.isSignatureValid(getVerifier(issuer)))
+            throw new CertificateException("OCSP response about " + certificate.getSubject() + " not signed by its issuer");
+
+        Revocation revocation = new Revocation(certificate, single.getNextUpdate());
+        revocation._ocspResponses.add(basic.getEncoded());
+        if (responder != null)
+            revocation._certificates.add(responder.getEncoded());
+        return revocation;
+    }
+
+    @NotNull
+    private Revocation toRevocation(@NotNull X509CertificateHolder certificate, @NotNull X509CertificateHolder issuer,
+                                    @NotNull X509CRLHolder crl) throws GeneralSecurityException, IOException, CertException {
+        if (!crl.isSignatureValid(getVerifier(issuer)))
+            throw new CertificateException("CRL of " + crl.getIssuer() + " not signed by the issuer");
+        X509CRLEntryHolder entry = crl.getRevokedCertificate(certificate.getSerialNumber());
+        if (entry != null)
+            throw new RevokedException("Certificate " + certificate.getSubject() + " revoked at " + entry.getRevocationDate());
+
+        Revocation revocation = new Revocation(certificate, crl.toASN1Structure().getNextUpdate() != null ? crl.toASN1Structure().getNextUpdate().getDate() : null);
+        revocation._crls.add(crl.getEncoded());
+        return revocation;
+    }
+
+    /**
+     * @return true if the response is not issued in the future and its next update has not passed
+     */
+    private static boolean isCurrent(@NotNull SingleResp single) {
+        long now = System.currentTimeMillis();
+        Date nextUpdate = single.getNextUpdate();
+        return single.getThisUpdate().getTime() <= now + _CLOCK_SKEW_MILLIS &&
+                (nextUpdate == null || nextUpdate.getTime() > now);
+    }
+
+    /**
+     * @return true if the certificate has the id-kp-OCSPSigning extended key usage of a delegated responder, RFC 6960
+     * section 4.2.2.2
+     */
+    private static boolean isOcspSigner(@NotNull X509CertificateHolder certificate) {
+        Extension extension = certificate.getExtension(Extension.extendedKeyUsage);
+        return extension != null && ExtendedKeyUsage.getInstance(extension.getParsedValue()).hasKeyPurposeId(KeyPurposeId.id_kp_OCSPSigning);
+    }
+
+    @NotNull
+    private static ContentVerifierProvider getVerifier(@NotNull X509CertificateHolder certificate) throws GeneralSecurityException {
+        try {
+            return new JcaContentVerifierProviderBuilder().setProvider(_PROVIDER).build(certificate);
+        } catch (OperatorCreationException e) {
+            throw new CertificateException(e.getMessage(), e);
+        }
+    }
+
+    @Nullable
+    private static String getOcspUrl(@NotNull X509CertificateHolder certificate) {
+        Extension extension = certificate.getExtension(Extension.authorityInfoAccess);
+        if (extension == null)
+            return null;
+        for (AccessDescription description : AuthorityInformationAccess.getInstance(extension.getParsedValue()).getAccessDescriptions())
+            if (X509ObjectIdentifiers.id_ad_ocsp.equals(description.getAccessMethod()) &&
+                    description.getAccessLocation().getTagNo() == GeneralName.uniformResourceIdentifier)
+                return description.getAccessLocation().getName().toString();
+        return null;
+    }
+
+    @Nullable
+    private static String getCrlUrl(@NotNull X509CertificateHolder certificate) {
+        Extension extension = certificate.getExtension(Extension.cRLDistributionPoints);
+        if (extension == null)
+            return null;
+        for (DistributionPoint point : CRLDistPoint.getInstance(extension.getParsedValue()).getDistributionPoints()) {
+            DistributionPointName name = point.getDistributionPoint();
+            if (name == null || name.getType() != DistributionPointName.FULL_NAME)
+                continue;
+            for (GeneralName generalName : GeneralNames.getInstance(name.getName()).getNames())
+                if (generalName.getTagNo() == GeneralName.uniformResourceIdentifier)
+                    return generalName.getName().toString();
+        }
+        return null;
+    }
+
+    /**
+     * POST an OCSP request or GET a CRL
+     *
+     * @param body OCSP request, null for a GET
+     */
+    @NotNull
+    private byte[] request(@NotNull String url, @Nullable byte[] body) throws IOException {
+        SigningMetrics.count(SigningMetrics.Counter.REVOCATION_FETCHES, 1);
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(getTimeout());
+            connection.setReadTimeout(getTimeout());
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/ocsp-request");
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body);
+                }
+            }
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK)
+                throw new IOException("HTTP " + connection.getResponseCode() + " from " + url);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream in = connection.getInputStream()) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1)
+                    out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Adds the encodings missing in the list, cached ones are shared and compared by identity
+     */
+    private static void addAll(@NotNull List<byte[]> list, @NotNull List<byte[]> encodings) {
+        for (byte[] encoding : encodings) {
+            boolean contained = false;
+            for (byte[] element : list)
+                contained |= element == encoding;
+            if (!contained)
+                list.add(encoding);
+        }
+    }
+
+    /**
+     * Chain certificates and revocation data of one token and its timestamp
+     */
+    private static class Collected {
+
+        private final LinkedHashSet<X509CertificateHolder> certificates = new LinkedHashSet<>();
+        private final List<Revocation> revocations = new ArrayList<>();
+    }
+
+    /**
+     * Revocation data of one certificate, completes exceptionally if it is not available
+     */
+    private static class Entry {
+
+        private final CompletableFuture<Revocation> _result = new CompletableFuture<>();
+
+        boolean isExpired(long now) {
+            Revocation revocation = _result.getNow(null);
+            return revocation != null && now - revocation._expires > 0;
+        }
+    }
+
+    /**
+     * OCSP response or CRL of one certificate with the certificate of a delegated OCSP responder
+     */
+    private class Revocation {
+
+        private final List<byte[]> _certificates = new ArrayList<>(1);
+        private final List<byte[]> _ocspResponses = new ArrayList<>(1);
+        private final List<byte[]> _crls = new ArrayList<>(1);
+        private final long _expires;
+
+        /**
+         * @param nextUpdate of the OCSP response or CRL, null if unknown
+         */
+        Revocation(@NotNull X509CertificateHolder certificate, @Nullable Date nextUpdate) {
+            long now = System.currentTimeMillis();
+            long millis = Math.min(TimeUnit.NANOSECONDS.toMillis(_cacheNanos), certificate.getNotAfter().getTime() - now);
+            if (nextUpdate != null)
+                millis = Math.min(millis, nextUpdate.getTime() - now);
+            this._expires = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+        }
+    }
+
+    /**
+     * A certificate of the chain is revoked. Other failures of a lookup mean that the revocation data is not available.
+     */
+    public static class RevokedException extends CertificateException {
+
+        private static final long serialVersionUID = 1L;
+
+        public RevokedException(@NotNull String message) {
+            super(message);
+        }
+    }
+}